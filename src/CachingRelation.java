@@ -0,0 +1,1127 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * A Relation of bounded size that evicts the least recently used keys, for caching pairs loaded from elsewhere
+ * <p>
+ * The pairs are held in a HashRelation. Each x held is kept in a list ordered by when it was last used, where a use
+ * is a lookup by x (contains, getAllMatchingX, viewMatchingX, snapshotMatchingX, degreeX, forEachMatchingX)
+ * or a put with x.
+ * Whenever the relation holds more than its maximum number of pairs, whole groups are evicted, least recently
+ * used x first, until it fits again. Evicting removes every pair of the x through removeAllMatchingX,
+ * so both indexes of the relation always agree. A group larger than the whole budget is evicted as soon as
+ * it has been used. Lookups by y read the pairs held but do not count as a use of any x.
+ * <p>
+ * Optionally, every pair expires a fixed time after it was last put, and is then removed as if by remove.
+ * Expired pairs are removed at the start of every operation, in the order they expire, so a pair is never seen
+ * once it has expired.
+ * <p>
+ * Optionally, a loader supplies the partners of an x that getAllMatchingX finds no pairs for, for example from
+ * a database. The pairs loaded are put as one group, and count towards the budget like any other.
+ * An x the loader finds no partners for is not remembered, so the next lookup asks the loader again.
+ * <p>
+ * The relation counts lookups by x that found pairs for x (hits) and that did not (misses), along with loads,
+ * evictions and expirations; see cacheStats. Like HashRelation, it is not thread safe
+ *
+ * @param <X> Type of the first item in a pair
+ * @param <Y> Type of the second item in a pair
+ * @author Matthew Smith
+ */
+public class CachingRelation<X, Y> implements Relation<X, Y> {
+
+    /**
+     * The pairs held
+     */
+    private final HashRelation<X, Y> relation = new HashRelation<>();
+
+
+    /**
+     * The largest number of pairs held once an operation completes
+     */
+    private final int maxPairs;
+
+
+    /**
+     * Nanoseconds a pair is held for after it was last put, or 0 if pairs do not expire
+     */
+    private final long ttlNanos;
+
+
+    /**
+     * Supplies the partners of an x missing from the relation, or null if misses are not loaded
+     */
+    private final Function<? super X, ? extends Iterable<? extends Y>> loader;
+
+
+    /**
+     * Source of the current time in nanoseconds, for expiry
+     */
+    private final LongSupplier ticker;
+
+
+    /**
+     * The node of each x held
+     */
+    private final Map<X, Node<X, Y>> nodes = new HashMap<>();
+
+
+    /**
+     * Sentinel of the list of nodes in order of use: the node after it is the least recently used,
+     * the node before it the most recently used
+     */
+    private final Node<X, Y> order = new Node<>(null, false);
+
+
+    /**
+     * Sentinel of the list of expiry records in the order they expire, which is the order their pairs were last put:
+     * the record after it expires first. Each pair held has exactly one record, moved to the end when the pair is
+     * put again and unlinked as soon as the pair leaves the relation, so the list never outgrows the relation
+     */
+    private final Expiry<X, Y> expiries = new Expiry<>(null, null);
+
+
+    /**
+     * Number of lookups by x that found pairs for x
+     */
+    private long hits;
+
+
+    /**
+     * Number of lookups by x that found no pairs for x
+     */
+    private long misses;
+
+
+    /**
+     * Number of calls made to the loader
+     */
+    private long loads;
+
+
+    /**
+     * Number of groups evicted to keep within the budget
+     */
+    private long evictions;
+
+
+    /**
+     * Number of pairs removed because they expired
+     */
+    private long expirations;
+
+
+    /**
+     * Constructs an empty CachingRelation whose pairs do not expire and whose misses are not loaded
+     *
+     * @param maxPairs the largest number of pairs to hold
+     * @throws IllegalArgumentException if maxPairs is not positive
+     */
+    public CachingRelation(int maxPairs) {
+        this(maxPairs, null, null);
+    }
+
+
+    /**
+     * Constructs an empty CachingRelation whose pairs do not expire
+     *
+     * @param maxPairs the largest number of pairs to hold
+     * @param loader   supplies the partners of an x that getAllMatchingX finds no pairs for
+     * @throws IllegalArgumentException if maxPairs is not positive
+     */
+    public CachingRelation(int maxPairs, Function<? super X, ? extends Iterable<? extends Y>> loader) {
+        this(maxPairs, null, loader);
+    }
+
+
+    /**
+     * Constructs an empty CachingRelation
+     *
+     * @param maxPairs   the largest number of pairs to hold
+     * @param timeToLive how long a pair is held for after it was last put, or null if pairs do not expire
+     * @param loader     supplies the partners of an x that getAllMatchingX finds no pairs for,
+     *                   or null if misses are not loaded
+     * @throws IllegalArgumentException if maxPairs or timeToLive is not positive
+     */
+    public CachingRelation(int maxPairs, Duration timeToLive,
+                           Function<? super X, ? extends Iterable<? extends Y>> loader) {
+        this(maxPairs, timeToLive, loader, System::nanoTime);
+    }
+
+
+    /**
+     * Constructs an empty CachingRelation reading the time from a given source, so tests can control expiry
+     *
+     * @param maxPairs   the largest number of pairs to hold
+     * @param timeToLive how long a pair is held for after it was last put, or null if pairs do not expire
+     * @param loader     supplies the partners of an x that getAllMatchingX finds no pairs for, or null
+     * @param ticker     source of the current time in nanoseconds
+     * @throws IllegalArgumentException if maxPairs or timeToLive is not positive
+     */
+    CachingRelation(int maxPairs, Duration timeToLive,
+                    Function<? super X, ? extends Iterable<? extends Y>> loader, LongSupplier ticker) {
+        if (maxPairs <= 0) {
+            throw new IllegalArgumentException("Maximum number of pairs must be positive: " + maxPairs);
+        }
+        if (timeToLive != null && (timeToLive.isNegative() || timeToLive.isZero())) {
+            throw new IllegalArgumentException("Time to live must be positive: " + timeToLive);
+        }
+        this.maxPairs = maxPairs;
+        this.ttlNanos = timeToLive == null ? 0 : timeToLive.toNanos();
+        this.loader = loader;
+        this.ticker = ticker;
+        order.before = order;
+        order.after = order;
+        expiries.before = expiries;
+        expiries.after = expiries;
+    }
+
+
+    /**
+     * Get the budget of the relation
+     *
+     * @return the largest number of pairs held once an operation completes
+     */
+    public int maxPairs() {
+        return maxPairs;
+    }
+
+
+    /**
+     * Takes a snapshot of the counts of hits, misses, loads, evictions and expirations
+     *
+     * @return the counts since the relation was constructed
+     */
+    public Stats cacheStats() {
+        return new Stats(hits, misses, loads, evictions, expirations);
+    }
+
+
+    /**
+     * Requirement 1
+     * Given a pair (x, y), returns true if the relation contains the pair, and false otherwise
+     * <p>
+     * A use of x, counted as a hit if any pair of x is held
+     *
+     * @param x the first part of the pair to be matched
+     * @param y the second part of the pair to be matched
+     * @return true if a pair matching (x, y) is found, false otherwise
+     */
+    @Override
+    public boolean contains(X x, Y y) {
+        expire();
+        use(x);
+        return relation.contains(x, y);
+    }
+
+
+    /**
+     * Requirement 2
+     * Given x, returns a set containing all values y such that the relation contains (x, y)
+     * <p>
+     * A use of x. If no pair of x is held and the relation has a loader, the partners it supplies are put first.
+     * They are returned even if the group is then evicted for being larger than the budget
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a set containing all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Y> getAllMatchingX(X x) {
+        expire();
+        if (use(x) != null || loader == null) {
+            return relation.getAllMatchingX(x);
+        }
+
+        //materialise the partners first, so a loader that fails part way caches nothing
+        List<Y> ys = new ArrayList<>();
+        loader.apply(x).forEach(ys::add);
+        loads++;
+        for (Y y : ys) {
+            add(x, y);
+        }
+        Set<Y> matching = relation.getAllMatchingX(x);
+        evict();
+        return matching;
+    }
+
+
+    /**
+     * Requirement 3
+     * Given y, returns a set containing all values x such that the relation contains (x, y)
+     * <p>
+     * Not a use of any x
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a set containing all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<X> getAllMatchingY(Y y) {
+        expire();
+        return relation.getAllMatchingY(y);
+    }
+
+
+    /**
+     * Given x, returns a live read-only view of all values y such that the relation contains (x, y)
+     * <p>
+     * A use of x, counted as a hit or a miss, but a miss is not loaded. Expired pairs are removed first;
+     * the view reads the pairs held as they are when it is read, without removing any that expire meanwhile
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a live, unmodifiable set of all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Y> viewMatchingX(X x) {
+        expire();
+        use(x);
+        return relation.viewMatchingX(x);
+    }
+
+
+    /**
+     * Given y, returns a live read-only view of all values x such that the relation contains (x, y)
+     * <p>
+     * Not a use of any x. Expired pairs are removed first, as in viewMatchingX
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a live, unmodifiable set of all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<X> viewMatchingY(Y y) {
+        expire();
+        return relation.viewMatchingY(y);
+    }
+
+
+    /**
+     * Given x, returns an unsorted copy of all values y such that the relation contains (x, y)
+     * <p>
+     * A use of x, counted as a hit or a miss, but a miss is not loaded. Expired pairs are removed first
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a new set containing all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Y> snapshotMatchingX(X x) {
+        expire();
+        use(x);
+        return relation.snapshotMatchingX(x);
+    }
+
+
+    /**
+     * Given y, returns an unsorted copy of all values x such that the relation contains (x, y)
+     * <p>
+     * Not a use of any x. Expired pairs are removed first
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a new set containing all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<X> snapshotMatchingY(Y y) {
+        expire();
+        return relation.snapshotMatchingY(y);
+    }
+
+
+    /**
+     * Given x, performs an action on every value y such that the relation contains (x, y), in no particular order
+     * <p>
+     * A use of x, counted as a hit or a miss, but a miss is not loaded. Expired pairs are removed first,
+     * then the group of x is walked without allocating. The action must not modify the relation
+     *
+     * @param x      the element to search for in the first half of a pair
+     * @param action the action to perform on each partner of x
+     */
+    @Override
+    public void forEachMatchingX(X x, Consumer<? super Y> action) {
+        expire();
+        use(x);
+        relation.forEachMatchingX(x, action);
+    }
+
+
+    /**
+     * Given y, performs an action on every value x such that the relation contains (x, y), in no particular order
+     * <p>
+     * Not a use of any x. Expired pairs are removed first. The action must not modify the relation
+     *
+     * @param y      the element to search for in the second half of a pair
+     * @param action the action to perform on each partner of y
+     */
+    @Override
+    public void forEachMatchingY(Y y, Consumer<? super X> action) {
+        expire();
+        relation.forEachMatchingY(y, action);
+    }
+
+
+    /**
+     * Given x, performs an action on values y such that the relation contains (x, y) until the action returns false
+     * <p>
+     * A use of x, as in forEachMatchingX
+     *
+     * @param x      the element to search for in the first half of a pair
+     * @param action the action to perform on each partner of x, returning false to stop
+     * @return true if the action was performed on every partner, false if it stopped early
+     */
+    @Override
+    public boolean forEachMatchingXWhile(X x, Predicate<? super Y> action) {
+        expire();
+        use(x);
+        return relation.forEachMatchingXWhile(x, action);
+    }
+
+
+    /**
+     * Given y, performs an action on values x such that the relation contains (x, y) until the action returns false
+     * <p>
+     * Not a use of any x, as in forEachMatchingY
+     *
+     * @param y      the element to search for in the second half of a pair
+     * @param action the action to perform on each partner of y, returning false to stop
+     * @return true if the action was performed on every partner, false if it stopped early
+     */
+    @Override
+    public boolean forEachMatchingYWhile(Y y, Predicate<? super X> action) {
+        expire();
+        return relation.forEachMatchingYWhile(y, action);
+    }
+
+
+    /**
+     * Given x, returns the number of values y such that the relation contains (x, y)
+     * <p>
+     * A use of x, counted as a hit or a miss, but a miss is not loaded, so this counts only the pairs held.
+     * Expired pairs are removed first
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return the number of pairs of x held, 0 if there are none
+     */
+    @Override
+    public int degreeX(X x) {
+        expire();
+        use(x);
+        return relation.degreeX(x);
+    }
+
+
+    /**
+     * Given y, returns the number of values x such that the relation contains (x, y)
+     * <p>
+     * Not a use of any x. Expired pairs are removed first
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return the number of pairs of y held, 0 if there are none
+     */
+    @Override
+    public int degreeY(Y y) {
+        expire();
+        return relation.degreeY(y);
+    }
+
+
+    /**
+     * Requirement 4
+     * Empties the relation
+     * <p>
+     * The counts of cacheStats are kept
+     */
+    @Override
+    public void clear() {
+        relation.clear();
+        nodes.clear();
+        order.before = order;
+        order.after = order;
+        expiries.before = expiries;
+        expiries.after = expiries;
+    }
+
+
+    /**
+     * Requirement 5
+     * Adds a pair (x, y) to the relation, or restarts its time to live if it is already present
+     * <p>
+     * A use of x. Groups are then evicted until the relation is within its budget
+     *
+     * @param x the first half of the pair to be added
+     * @param y the second half of the pair to be added
+     */
+    @Override
+    public void put(X x, Y y) {
+        expire();
+        add(x, y);
+        evict();
+    }
+
+
+    /**
+     * Requirement 6
+     * Removes a pair (x, y) from the relation
+     *
+     * @param x the first half of the pair to be removed
+     * @param y the second half of the pair to be removed
+     * @throws NoSuchElementException if the pair is not in the relation
+     */
+    @Override
+    public void remove(X x, Y y) throws NoSuchElementException {
+        expire();
+        relation.remove(x, y);
+        forget(x, y);
+    }
+
+
+    /**
+     * Adds every pair in a batch to the relation, restarting the time to live of pairs already present
+     * <p>
+     * Each pair is a use of its x, as in put, but groups are evicted only once the whole batch is in,
+     * so the count includes pairs of the batch that are then evicted along with their group
+     *
+     * @param pairs the pairs to add, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs added, not counting those already in the relation or repeated in the batch
+     */
+    @Override
+    public int putAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        expire();
+        int added = 0;
+        for (Map.Entry<? extends X, ? extends Y> pair : pairs) {
+            if (add(pair.getKey(), pair.getValue())) {
+                added++;
+            }
+        }
+        evict();
+        return added;
+    }
+
+
+    /**
+     * Adds the pairs (xs[i], ys[i]) to the relation, restarting the time to live of pairs already present
+     * <p>
+     * As putAll of a batch of entries: groups are evicted once the whole batch is in
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @return the number of pairs added, not counting those already in the relation or repeated in the arrays
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    @Override
+    public int putAll(X[] xs, Y[] ys) {
+        checkLengths(xs, ys);
+        expire();
+        int added = 0;
+        for (int i = 0; i < xs.length; i++) {
+            if (add(xs[i], ys[i])) {
+                added++;
+            }
+        }
+        evict();
+        return added;
+    }
+
+
+    /**
+     * Removes every pair in a batch from the relation, skipping pairs that are not present
+     * <p>
+     * Not a use of any x: the pairs are looked up without counting hits or misses or changing the order of use
+     *
+     * @param pairs the pairs to remove, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        expire();
+        int removed = 0;
+        for (Map.Entry<? extends X, ? extends Y> pair : pairs) {
+            if (delete(pair.getKey(), pair.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+
+    /**
+     * Removes the pairs (xs[i], ys[i]) from the relation, skipping pairs that are not present
+     * <p>
+     * Not a use of any x, as in removeAll of a batch of entries
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @return the number of pairs removed
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    @Override
+    public int removeAll(X[] xs, Y[] ys) {
+        checkLengths(xs, ys);
+        expire();
+        int removed = 0;
+        for (int i = 0; i < xs.length; i++) {
+            if (delete(xs[i], ys[i])) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+
+    /**
+     * Requirement 7
+     * Given x, removes all pairs (x, y) from the relation
+     *
+     * @param x the first half of the pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingX(X x) {
+        expire();
+        Node<X, Y> node = nodes.get(x);
+        if (node != null) {
+            drop(node);
+        }
+        return relation.removeAllMatchingX(x);
+    }
+
+
+    /**
+     * Requirement 8
+     * Given y, removes all pairs (x, y) from the relation
+     *
+     * @param y the second half of the pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingY(Y y) {
+        expire();
+        List<X> partners = new ArrayList<>(relation.degreeY(y));
+        relation.forEachMatchingY(y, partners::add);
+        int removed = relation.removeAllMatchingY(y);
+        for (X x : partners) {
+            forget(x, y);
+        }
+        return removed;
+    }
+
+
+    /**
+     * Requirement 9
+     * Renders the pairs held as a string, in the bucket by bucket format of HashRelation
+     * <p>
+     * Expired pairs are removed first. Not a use of any x
+     *
+     * @return a string representation of the relation
+     */
+    @Override
+    public String toString() {
+        expire();
+        return relation.toString();
+    }
+
+
+    /**
+     * Returns the number of pairs held, after removing expired pairs
+     * <p>
+     * Never more than maxPairs
+     *
+     * @return the number of pairs held
+     */
+    @Override
+    public int size() {
+        expire();
+        return relation.size();
+    }
+
+
+    /**
+     * Returns a cursor over every pair held, after removing expired pairs
+     * <p>
+     * Not a use of any x. Pairs that expire while the cursor is in use are still visited, since expiry only
+     * happens at the start of an operation; the relation must not be modified while the cursor is in use
+     *
+     * @return a cursor positioned before the first pair
+     */
+    @Override
+    public PairCursor<X, Y> cursor() {
+        expire();
+        return relation.cursor();
+    }
+
+
+    /**
+     * Performs an action on every pair held, in no particular order, after removing expired pairs
+     * <p>
+     * Not a use of any x. The action must not modify the relation
+     *
+     * @param action the action to perform on each pair
+     */
+    @Override
+    public void forEachPair(BiConsumer<? super X, ? super Y> action) {
+        expire();
+        relation.forEachPair(action);
+    }
+
+
+    /**
+     * Performs an action on pairs held, in no particular order, until the action returns false
+     * <p>
+     * Expired pairs are removed first. Not a use of any x. The action must not modify the relation
+     *
+     * @param action the action to perform on each pair, returning false to stop
+     * @return true if the action was performed on every pair, false if it stopped early
+     */
+    @Override
+    public boolean forEachPairWhile(BiPredicate<? super X, ? super Y> action) {
+        expire();
+        return relation.forEachPairWhile(action);
+    }
+
+
+    /**
+     * Returns a sequential stream of every pair held, after removing expired pairs
+     * <p>
+     * Not a use of any x. The stream reads the HashRelation holding the pairs, so it sees pairs that expire while
+     * it is in use, and the relation must not be modified until it is done
+     *
+     * @return a stream of the pairs
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> stream() {
+        expire();
+        return relation.stream();
+    }
+
+
+    /**
+     * Returns a parallel stream of every pair held, after removing expired pairs
+     * <p>
+     * As stream, but split over the tables of the HashRelation holding the pairs
+     *
+     * @return a parallel stream of the pairs
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> parallelStream() {
+        expire();
+        return relation.parallelStream();
+    }
+
+
+    /**
+     * Counts the expiry records held, one for each pair if pairs expire, so tests can check none are left behind
+     * <p>
+     * Complexity:
+     * O(n) for n pairs
+     *
+     * @return the number of records in the list of expiries
+     */
+    int expiryRecordCount() {
+        int count = 0;
+        for (Expiry<X, Y> e = expiries.after; e != expiries; e = e.after) {
+            count++;
+        }
+        return count;
+    }
+
+
+    /**
+     * Records a lookup by x, moving x to the most recently used end of the list if it is held
+     *
+     * @param x the x looked up
+     * @return the node of x, or null if no pair of x is held
+     */
+    private Node<X, Y> use(X x) {
+        Node<X, Y> node = nodes.get(x);
+        if (node == null) {
+            misses++;
+        } else {
+            hits++;
+            node.moveBefore(order);
+        }
+        return node;
+    }
+
+
+    /**
+     * Puts a pair and makes x the most recently used, without evicting
+     *
+     * @param x the first half of the pair
+     * @param y the second half of the pair
+     * @return true if the pair was not already held
+     */
+    private boolean add(X x, Y y) {
+        Node<X, Y> node = nodes.get(x);
+        if (node == null) {
+            node = new Node<>(x, ttlNanos > 0);
+            nodes.put(x, node);
+        }
+        node.moveBefore(order);
+        int before = relation.size();
+        relation.put(x, y);
+        if (ttlNanos > 0) {
+            Expiry<X, Y> e = node.expiries.get(y);
+            if (e == null) {
+                e = new Expiry<>(x, y);
+                node.expiries.put(y, e);
+            }
+            //the time to live is the same for every pair, so the pair put last always expires last
+            e.expiresAt = ticker.getAsLong() + ttlNanos;
+            e.moveBefore(expiries);
+        }
+        return relation.size() != before;
+    }
+
+
+    /**
+     * Removes a pair if it is held, without counting a use of x
+     *
+     * @param x the first half of the pair
+     * @param y the second half of the pair
+     * @return true if the pair was removed, false if it was not held
+     */
+    private boolean delete(X x, Y y) {
+        if (!relation.contains(x, y)) {
+            return false;
+        }
+        relation.remove(x, y);
+        forget(x, y);
+        return true;
+    }
+
+
+    /**
+     * Evicts groups, least recently used first, until the relation holds no more than maxPairs pairs
+     */
+    private void evict() {
+        while (relation.size() > maxPairs) {
+            Node<X, Y> eldest = order.after;
+            drop(eldest);
+            relation.removeAllMatchingX(eldest.x);
+            evictions++;
+        }
+    }
+
+
+    /**
+     * Removes every pair whose time to live has passed
+     */
+    private void expire() {
+        if (ttlNanos == 0) {
+            return;
+        }
+        long now = ticker.getAsLong();
+        Expiry<X, Y> e;
+        while ((e = expiries.after) != expiries && e.expiresAt - now <= 0) {
+            relation.remove(e.x, e.y);
+            forget(e.x, e.y);
+            expirations++;
+        }
+    }
+
+
+    /**
+     * Updates the bookkeeping of x after the pair (x, y) has left the relation, dropping x if it has no pairs left
+     *
+     * @param x the first half of the pair
+     * @param y the second half of the pair
+     */
+    private void forget(X x, Y y) {
+        Node<X, Y> node = nodes.get(x);
+        if (node == null) {
+            return;
+        }
+        if (node.expiries != null) {
+            Expiry<X, Y> e = node.expiries.remove(y);
+            if (e != null) {
+                e.unlink();
+            }
+        }
+        if (relation.degreeX(x) == 0) {
+            drop(node);
+        }
+    }
+
+
+    /**
+     * Drops the bookkeeping of an x whose pairs are leaving the relation: its node and the expiry record of each pair
+     *
+     * @param node the node of the x
+     */
+    private void drop(Node<X, Y> node) {
+        node.unlink();
+        nodes.remove(node.x);
+        if (node.expiries != null) {
+            for (Expiry<X, Y> e : node.expiries.values()) {
+                e.unlink();
+            }
+        }
+    }
+
+
+    /**
+     * Checks that the parallel arrays of a batch hold the same number of elements
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    private static void checkLengths(Object[] xs, Object[] ys) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("Arrays of x and y have different lengths: "
+                    + xs.length + " and " + ys.length);
+        }
+    }
+
+
+    /**
+     * Counts of the work done by a CachingRelation, taken at one moment
+     */
+    public static final class Stats {
+        /**
+         * Number of lookups by x that found pairs for x
+         */
+        private final long hits;
+
+        /**
+         * Number of lookups by x that found no pairs for x
+         */
+        private final long misses;
+
+        /**
+         * Number of calls made to the loader
+         */
+        private final long loads;
+
+        /**
+         * Number of groups evicted to keep within the budget
+         */
+        private final long evictions;
+
+        /**
+         * Number of pairs removed because they expired
+         */
+        private final long expirations;
+
+        /**
+         * Constructs a snapshot of the counts
+         *
+         * @param hits        the number of hits
+         * @param misses      the number of misses
+         * @param loads       the number of loads
+         * @param evictions   the number of groups evicted
+         * @param expirations the number of pairs expired
+         */
+        private Stats(long hits, long misses, long loads, long evictions, long expirations) {
+            this.hits = hits;
+            this.misses = misses;
+            this.loads = loads;
+            this.evictions = evictions;
+            this.expirations = expirations;
+        }
+
+        /**
+         * Get the number of lookups by x that found pairs for x
+         *
+         * @return the number of hits
+         */
+        public long hitCount() {
+            return hits;
+        }
+
+        /**
+         * Get the number of lookups by x that found no pairs for x, including those then loaded
+         *
+         * @return the number of misses
+         */
+        public long missCount() {
+            return misses;
+        }
+
+        /**
+         * Get the fraction of lookups by x that were hits
+         *
+         * @return hits over hits plus misses, or 1 if there have been no lookups
+         */
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 1.0 : (double) hits / lookups;
+        }
+
+        /**
+         * Get the number of calls made to the loader
+         *
+         * @return the number of loads
+         */
+        public long loadCount() {
+            return loads;
+        }
+
+        /**
+         * Get the number of groups evicted to keep within the budget
+         *
+         * @return the number of evictions
+         */
+        public long evictionCount() {
+            return evictions;
+        }
+
+        /**
+         * Get the number of pairs removed because their time to live passed
+         *
+         * @return the number of expirations
+         */
+        public long expirationCount() {
+            return expirations;
+        }
+
+        /**
+         * Lists the counts
+         *
+         * @return the counts as name=value pairs, for logs
+         */
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", misses=" + misses + ", loads=" + loads
+                    + ", evictions=" + evictions + ", expirations=" + expirations;
+        }
+    }
+
+
+    /**
+     * Static nested class holding an x in the list of keys ordered by use
+     *
+     * @param <X> Type of the first item in a pair
+     * @param <Y> Type of the second item in a pair
+     */
+    private static final class Node<X, Y> {
+        /**
+         * The x, or null in the sentinel
+         */
+        final X x;
+
+        /**
+         * The expiry record of each partner of x, or null if pairs do not expire
+         */
+        final Map<Y, Expiry<X, Y>> expiries;
+
+        /**
+         * The nodes used before and after this one
+         */
+        Node<X, Y> before, after;
+
+        /**
+         * Constructs an unlinked node
+         *
+         * @param x       the x
+         * @param expires true if the pairs of x expire
+         */
+        Node(X x, boolean expires) {
+            this.x = x;
+            this.expiries = expires ? new HashMap<>() : null;
+        }
+
+        /**
+         * Moves the node to just before another, unlinking it first if it is linked
+         *
+         * @param next the node to place this one before
+         */
+        void moveBefore(Node<X, Y> next) {
+            if (after == next) {
+                return;
+            }
+            unlink();
+            before = next.before;
+            after = next;
+            before.after = this;
+            next.before = this;
+        }
+
+        /**
+         * Removes the node from the list, if it is in it
+         */
+        void unlink() {
+            if (before != null) {
+                before.after = after;
+                after.before = before;
+                before = null;
+                after = null;
+            }
+        }
+    }
+
+
+    /**
+     * Static nested class recording when a pair expires, held in the list of records in the order they expire
+     *
+     * @param <X> Type of the first item in a pair
+     * @param <Y> Type of the second item in a pair
+     */
+    private static final class Expiry<X, Y> {
+        /**
+         * The first half of the pair, or null in the sentinel
+         */
+        final X x;
+
+        /**
+         * The second half of the pair, or null in the sentinel
+         */
+        final Y y;
+
+        /**
+         * When the pair expires, in the units of the ticker
+         */
+        long expiresAt;
+
+        /**
+         * The records expiring before and after this one
+         */
+        Expiry<X, Y> before, after;
+
+        /**
+         * Constructs an unlinked record for a pair
+         *
+         * @param x the first half of the pair
+         * @param y the second half of the pair
+         */
+        Expiry(X x, Y y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * Moves the record to just before another, unlinking it first if it is linked
+         *
+         * @param next the record to place this one before
+         */
+        void moveBefore(Expiry<X, Y> next) {
+            if (after == next) {
+                return;
+            }
+            unlink();
+            before = next.before;
+            after = next;
+            before.after = this;
+            next.before = this;
+        }
+
+        /**
+         * Removes the record from the list, if it is in it
+         */
+        void unlink() {
+            if (before != null) {
+                before.after = after;
+                after.before = before;
+                before = null;
+                after = null;
+            }
+        }
+    }
+}
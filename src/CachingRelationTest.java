@@ -0,0 +1,174 @@
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingRelationTest {
+
+    @Test
+    void evictsLeastRecentlyUsedGroups() {
+        CachingRelation<String, String> r = new CachingRelation<>(4);
+        r.put("a", "1");
+        r.put("a", "2");
+        r.put("b", "1");
+        r.put("c", "3");
+        assertTrue(r.contains("a", "1"), "a used, so b is now the least recent");
+        r.put("d", "4");
+        assertEquals(4, r.size(), "Within budget");
+        assertEquals(Set.of(), r.getAllMatchingX("b"), "b evicted");
+        assertEquals(Set.of("a"), r.getAllMatchingY("1"), "Y index agrees with the eviction");
+        assertEquals(Set.of("1", "2"), r.getAllMatchingX("a"), "a kept");
+        assertEquals(1, r.cacheStats().evictionCount(), "One eviction");
+
+        r.put("e", "5");
+        r.put("e", "6");
+        assertEquals(Set.of(), r.getAllMatchingX("c"), "Whole groups are evicted, least recent first");
+        assertEquals(Set.of(), r.getAllMatchingY("3"), "Y index of c cleared");
+        assertEquals(Set.of(), r.getAllMatchingX("d"), "d evicted too");
+        assertEquals(4, r.size(), "Size after evicting two groups");
+        assertThrows(IllegalArgumentException.class, () -> new CachingRelation<String, String>(0), "Empty budget");
+    }
+
+    @Test
+    void loadsMisses() {
+        List<String> loaded = new ArrayList<>();
+        CachingRelation<String, String> r = new CachingRelation<>(3, x -> {
+            loaded.add(x);
+            return x.equals("none") ? List.of() : List.of(x + "1", x + "2");
+        });
+        assertEquals(Set.of("a1", "a2"), r.getAllMatchingX("a"), "Loaded on a miss");
+        assertEquals(Set.of("a1", "a2"), r.getAllMatchingX("a"), "Served from the cache");
+        assertEquals(List.of("a"), loaded, "Loaded once");
+        assertEquals(Set.of("a"), r.getAllMatchingY("a2"), "Loaded pairs are indexed by y");
+
+        assertEquals(Set.of("b1", "b2"), r.getAllMatchingX("b"), "b loaded");
+        assertFalse(r.contains("a", "a1"), "a evicted to make room for b");
+        assertTrue(r.getAllMatchingX("none").isEmpty(), "Nothing to load");
+        r.getAllMatchingX("none");
+        assertEquals(List.of("a", "b", "none", "none"), loaded, "Empty loads are not remembered");
+
+        CachingRelation.Stats stats = r.cacheStats();
+        assertEquals(1, stats.hitCount(), "Hits");
+        assertEquals(5, stats.missCount(), "Misses");
+        assertEquals(4, stats.loadCount(), "Loads");
+        assertEquals(1, stats.evictionCount(), "Evictions");
+        assertEquals(1.0 / 6, stats.hitRate(), 1e-9, "Hit rate");
+    }
+
+    @Test
+    void expiresPairs() {
+        long[] now = {0};
+        CachingRelation<String, String> r = new CachingRelation<>(100, Duration.ofSeconds(10), null, () -> now[0]);
+        r.put("a", "1");
+        now[0] = Duration.ofSeconds(5).toNanos();
+        r.put("a", "2");
+        r.put("b", "1");
+        now[0] = Duration.ofSeconds(8).toNanos();
+        r.put("a", "1");
+
+        now[0] = Duration.ofSeconds(12).toNanos();
+        assertEquals(Set.of("1", "2"), r.getAllMatchingX("a"), "Putting a pair again restarts its time to live");
+        now[0] = Duration.ofSeconds(15).toNanos();
+        assertEquals(Set.of("1"), r.getAllMatchingX("a"), "(a, 2) expired");
+        assertEquals(Set.of("a"), r.getAllMatchingY("1"), "(b, 1) expired from the Y index");
+        assertEquals(1, r.size(), "Size after expiry");
+
+        r.remove("a", "1");
+        r.put("a", "1");
+        now[0] = Duration.ofSeconds(19).toNanos();
+        assertTrue(r.contains("a", "1"), "A pair removed and put again has a new time to live");
+        now[0] = Duration.ofSeconds(25).toNanos();
+        assertEquals(0, r.size(), "Everything expired");
+        assertEquals(3, r.cacheStats().expirationCount(), "Expirations");
+        assertThrows(NoSuchElementException.class, () -> r.remove("a", "1"), "Expired pair is gone");
+        assertThrows(IllegalArgumentException.class,
+                () -> new CachingRelation<String, String>(1, Duration.ZERO, null), "Zero time to live");
+    }
+
+    @Test
+    void expiryRecordsStayBounded() {
+        long[] now = {0};
+        CachingRelation<Integer, Integer> r = new CachingRelation<>(10, Duration.ofHours(1), null, () -> now[0]);
+        for (int i = 0; i < 1000; i++) {
+            now[0]++;
+            r.put(i % 20, i % 3);
+            r.put(i % 20, i % 3);
+        }
+        assertEquals(r.size(), r.expiryRecordCount(), "One record per pair, despite puts again and evictions");
+        r.removeAllMatchingY(0);
+        r.remove(r.stream().findFirst().get().getKey(), r.stream().findFirst().get().getValue());
+        assertEquals(r.size(), r.expiryRecordCount(), "Records of removed pairs dropped");
+
+        now[0] += Duration.ofHours(2).toNanos();
+        assertEquals(0, r.size(), "Everything expired");
+        assertEquals(0, r.expiryRecordCount(), "No records left");
+        r.put(1, 1);
+        r.clear();
+        assertEquals(0, r.expiryRecordCount(), "Clear drops the records");
+    }
+
+    @Test
+    void removalsKeepBookkeeping() {
+        CachingRelation<String, String> r = new CachingRelation<>(3);
+        r.put("a", "1");
+        r.put("b", "1");
+        r.put("c", "2");
+        assertEquals(2, r.removeAllMatchingY("1"), "Removed by y");
+        r.put("d", "3");
+        r.put("e", "4");
+        r.put("g", "6");
+        assertEquals(Set.of(), r.getAllMatchingX("c"), "c evicted, as a and b left with their pairs");
+        assertEquals(Set.of("3"), r.getAllMatchingX("d"), "d kept");
+        assertEquals(3, r.size(), "Size");
+        assertEquals(1, r.removeAllMatchingX("d"), "Removed by x");
+        r.clear();
+        assertEquals(0, r.size(), "Cleared");
+        r.put("f", "5");
+        assertEquals(Set.of("5"), r.getAllMatchingX("f"), "Usable after clear");
+    }
+
+    @Test
+    void batches() {
+        CachingRelation<String, Integer> r = new CachingRelation<>(3);
+        r.put("a", 1);
+        r.put("a", 2);
+        r.put("a", 3);
+        assertEquals(1, r.putAll(new String[]{"b"}, new Integer[]{1}), "New pair counted though a was evicted");
+        assertEquals(1, r.size(), "a evicted to make room");
+        assertEquals(1, r.cacheStats().evictionCount(), "Evicted once");
+
+        r.put("c", 1);
+        assertEquals(1, r.putAll(List.of(Map.entry("b", 1), Map.entry("c", 2), Map.entry("c", 2))),
+                "Only new pairs counted");
+        assertEquals(0, r.removeAll(new String[]{"x", "b"}, new Integer[]{1, 9}), "Absent pairs skipped");
+        assertEquals(1, r.removeAll(List.of(Map.entry("b", 1), Map.entry("b", 1))), "Removed once");
+        assertEquals(0, r.cacheStats().hitCount() + r.cacheStats().missCount(), "Batches are not lookups");
+
+        r.put("d", 4);
+        r.removeAll(List.of(Map.entry("c", 9)));
+        r.put("e", 5);
+        assertEquals(0, r.degreeY(1), "c stayed least recently used, so was evicted");
+        assertThrows(IllegalArgumentException.class, () -> r.putAll(new String[]{"a"}, new Integer[0]));
+    }
+
+    @Test
+    void keysNeedNotBeComparable() {
+        Object a = new Object(), b = new Object(), y = new Object();
+        CachingRelation<Object, Object> r = new CachingRelation<>(2);
+        r.put(a, y);
+        r.put(b, y);
+        assertEquals(2, r.removeAllMatchingY(y), "Removed by y without sorting the partners");
+        assertEquals(0, r.size(), "Empty");
+        r.put(a, y);
+        r.put(b, y);
+        r.put(a, b);
+        assertEquals(0, r.degreeX(b), "No stale node left for b: it was evicted as the least recently used");
+        assertEquals(2, r.size(), "Within budget");
+    }
+}
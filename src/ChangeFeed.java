@@ -0,0 +1,483 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded feed of the changes made to a relation, for keeping caches and replicas in sync incrementally
+ * <p>
+ * A relation with a feed attached records every change that has an effect: a put of a new pair, a remove of a
+ * pair that was present, a removeAllMatchingX or removeAllMatchingY that removed something, and a clear of a
+ * non-empty relation. Puts of pairs already present and removes of nothing are not recorded.
+ * removeAllMatchingX and removeAllMatchingY are recorded as one change naming the key, not one per pair removed.
+ * <p>
+ * Changes are written into a ring buffer with room for a fixed number of changes, without allocating, and are
+ * delivered to the listeners in batches by drain. drain may be called from any thread, for example on a timer;
+ * if it is not called often enough and the buffer fills, the writer drains the oldest changes itself before
+ * recording the next one, so no change is ever lost and a writer can never get more than a buffer ahead of
+ * its listeners.
+ * <p>
+ * The relation records changes from the thread that modifies it, so a feed must be attached to only one relation.
+ * The ring buffer has a single producer and any number of threads may drain it; drains are serialised by a lock,
+ * so each change is delivered once, in order, to every listener
+ *
+ * @param <X> Type of the first item in a pair
+ * @param <Y> Type of the second item in a pair
+ * @author Matthew Smith
+ */
+public class ChangeFeed<X, Y> {
+
+    /**
+     * The kinds of change a feed records
+     */
+    public enum Kind {
+        /**
+         * The pair (x, y) was added
+         */
+        PUT,
+        /**
+         * The pair (x, y) was removed
+         */
+        REMOVE,
+        /**
+         * Every pair with first half x was removed; y is null
+         */
+        REMOVE_ALL_MATCHING_X,
+        /**
+         * Every pair with second half y was removed; x is null
+         */
+        REMOVE_ALL_MATCHING_Y,
+        /**
+         * Every pair was removed; x and y are null
+         */
+        CLEAR
+    }
+
+
+    /**
+     * Receives the changes of a feed in batches
+     *
+     * @param <X> Type of the first item in a pair
+     * @param <Y> Type of the second item in a pair
+     */
+    @FunctionalInterface
+    public interface Listener<X, Y> {
+
+        /**
+         * Called with each batch of changes, in the order they were made
+         * <p>
+         * The batch is only valid during the call: it reads straight from the ring buffer, whose slots are
+         * reused once the call returns
+         *
+         * @param batch the changes
+         */
+        void onChanges(Batch<X, Y> batch);
+    }
+
+
+    /**
+     * Default number of changes the ring buffer has room for
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 12;
+
+
+    /**
+     * Default largest number of changes delivered to a listener in one batch
+     */
+    public static final int DEFAULT_MAX_BATCH = 256;
+
+
+    /**
+     * The kind of the change in each slot of the ring buffer
+     */
+    private final Kind[] kinds;
+
+
+    /**
+     * The x of the change in each slot of the ring buffer
+     */
+    private final Object[] xs;
+
+
+    /**
+     * The y of the change in each slot of the ring buffer
+     */
+    private final Object[] ys;
+
+
+    /**
+     * Capacity of the ring buffer minus one; the capacity is a power of two
+     */
+    private final int mask;
+
+
+    /**
+     * Largest number of changes delivered in one batch
+     */
+    private final int maxBatch;
+
+
+    /**
+     * The listeners changes are delivered to
+     */
+    private final List<Listener<X, Y>> listeners = new CopyOnWriteArrayList<>();
+
+
+    /**
+     * Serialises drains, so each change is delivered once
+     */
+    private final ReentrantLock drainLock = new ReentrantLock();
+
+
+    /**
+     * The view of the ring buffer passed to the listeners, reused for every batch
+     */
+    private final Batch<X, Y> batch = new Batch<>(this);
+
+
+    /**
+     * Sequence number of the next change to be recorded; only written by the relation
+     * <p>
+     * Writing it publishes the slot of the change before it to drains on other threads
+     */
+    private volatile long head;
+
+
+    /**
+     * Sequence number of the next change to be delivered; only written while holding drainLock
+     * <p>
+     * Writing it hands the slots of the changes before it back to the relation
+     */
+    private volatile long tail;
+
+
+    /**
+     * Constructs a feed with the default capacity and batch size
+     */
+    public ChangeFeed() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_BATCH);
+    }
+
+
+    /**
+     * Constructs a feed
+     *
+     * @param capacity the number of changes the ring buffer has room for, rounded up to a power of two
+     * @param maxBatch the largest number of changes delivered to a listener in one batch
+     * @throws IllegalArgumentException if either argument is not positive, or capacity is over 2^30
+     */
+    public ChangeFeed(int capacity, int maxBatch) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30: " + capacity);
+        }
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatch);
+        }
+        int slots = Integer.highestOneBit(capacity);
+        if (slots < capacity) {
+            slots <<= 1;
+        }
+        this.kinds = new Kind[slots];
+        this.xs = new Object[slots];
+        this.ys = new Object[slots];
+        this.mask = slots - 1;
+        this.maxBatch = maxBatch;
+    }
+
+
+    /**
+     * Adds a listener, which receives every change delivered from now on
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener<X, Y> listener) {
+        listeners.add(listener);
+    }
+
+
+    /**
+     * Removes a listener
+     *
+     * @param listener the listener
+     * @return true if the listener was removed, false if it was not listening
+     */
+    public boolean removeListener(Listener<X, Y> listener) {
+        return listeners.remove(listener);
+    }
+
+
+    /**
+     * Get the number of changes the ring buffer has room for
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+
+    /**
+     * Get the number of changes recorded but not yet delivered
+     *
+     * @return the number of pending changes
+     */
+    public int pending() {
+        return (int) (head - tail);
+    }
+
+
+    /**
+     * Get the sequence number the next change will be recorded with; the first change recorded is number 0
+     *
+     * @return the number of changes recorded so far
+     */
+    public long sequence() {
+        return head;
+    }
+
+
+    /**
+     * Delivers every pending change to the listeners, in batches of at most the maximum batch size
+     * <p>
+     * Waits for any drain already running on another thread to finish first. If a listener throws,
+     * the batch it was given still counts as delivered and the exception is passed on
+     *
+     * @return the number of changes delivered
+     */
+    public int drain() {
+        drainLock.lock();
+        try {
+            long t = tail;
+            long h = head;
+            long start = t;
+            while (t < h) {
+                int n = (int) Math.min(maxBatch, h - t);
+                batch.start = t;
+                batch.size = n;
+                try {
+                    for (Listener<X, Y> listener : listeners) {
+                        listener.onChanges(batch);
+                    }
+                } finally {
+                    release(t, n);
+                    t += n;
+                    tail = t;
+                }
+            }
+            return (int) (t - start);
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+
+    /**
+     * Records a change, first draining the buffer from the writing thread if it is full
+     *
+     * @param kind the kind of change
+     * @param x    the x of the change, or null
+     * @param y    the y of the change, or null
+     */
+    void record(Kind kind, Object x, Object y) {
+        long h = head;
+        if (h - tail > mask) {
+            try {
+                drain();
+            } finally {
+                publish(h, kind, x, y);
+            }
+        } else {
+            publish(h, kind, x, y);
+        }
+    }
+
+
+    /**
+     * Writes a change into its slot and publishes it
+     *
+     * @param sequence the sequence number of the change, which must have a free slot
+     * @param kind     the kind of change
+     * @param x        the x of the change, or null
+     * @param y        the y of the change, or null
+     */
+    private void publish(long sequence, Kind kind, Object x, Object y) {
+        int i = (int) sequence & mask;
+        kinds[i] = kind;
+        xs[i] = x;
+        ys[i] = y;
+        head = sequence + 1;
+    }
+
+
+    /**
+     * Clears the slots of delivered changes, so the feed does not keep their keys reachable
+     *
+     * @param start the sequence number of the first change
+     * @param n     the number of changes
+     */
+    private void release(long start, int n) {
+        for (int k = 0; k < n; k++) {
+            int i = (int) (start + k) & mask;
+            kinds[i] = null;
+            xs[i] = null;
+            ys[i] = null;
+        }
+    }
+
+
+    /**
+     * A batch of consecutive changes, read straight from the ring buffer of a feed
+     * <p>
+     * Only valid during the call to the listener it is passed to
+     *
+     * @param <X> Type of the first item in a pair
+     * @param <Y> Type of the second item in a pair
+     */
+    public static final class Batch<X, Y> {
+
+        /**
+         * The feed whose ring buffer holds the changes
+         */
+        private final ChangeFeed<X, Y> feed;
+
+
+        /**
+         * Sequence number of the first change in the batch
+         */
+        private long start;
+
+
+        /**
+         * Number of changes in the batch
+         */
+        private int size;
+
+
+        /**
+         * Constructs the batch view of a feed
+         *
+         * @param feed the feed
+         */
+        private Batch(ChangeFeed<X, Y> feed) {
+            this.feed = feed;
+        }
+
+
+        /**
+         * Get the number of changes in the batch
+         *
+         * @return the number of changes
+         */
+        public int size() {
+            return size;
+        }
+
+
+        /**
+         * Get the sequence number of a change in the batch
+         *
+         * @param i the index of the change in the batch
+         * @return its sequence number
+         * @throws IndexOutOfBoundsException if i is not in [0, size)
+         */
+        public long sequence(int i) {
+            return start + check(i);
+        }
+
+
+        /**
+         * Get the kind of a change in the batch
+         *
+         * @param i the index of the change in the batch
+         * @return its kind
+         * @throws IndexOutOfBoundsException if i is not in [0, size)
+         */
+        public Kind kind(int i) {
+            return feed.kinds[slot(i)];
+        }
+
+
+        /**
+         * Get the x of a change in the batch
+         *
+         * @param i the index of the change in the batch
+         * @return its x, or null for REMOVE_ALL_MATCHING_Y and CLEAR
+         * @throws IndexOutOfBoundsException if i is not in [0, size)
+         */
+        @SuppressWarnings("unchecked")
+        public X x(int i) {
+            return (X) feed.xs[slot(i)];
+        }
+
+
+        /**
+         * Get the y of a change in the batch
+         *
+         * @param i the index of the change in the batch
+         * @return its y, or null for REMOVE_ALL_MATCHING_X and CLEAR
+         * @throws IndexOutOfBoundsException if i is not in [0, size)
+         */
+        @SuppressWarnings("unchecked")
+        public Y y(int i) {
+            return (Y) feed.ys[slot(i)];
+        }
+
+
+        /**
+         * Replays every change in the batch onto another relation, such as a replica
+         * <p>
+         * Replaying is idempotent: a removed pair the replica does not contain is skipped, so a replica copied
+         * from the relation after some of the changes in the batch were made ends up the same as the relation
+         *
+         * @param replica the relation to apply the changes to
+         */
+        public void applyTo(Relation<X, Y> replica) {
+            for (int i = 0; i < size; i++) {
+                switch (kind(i)) {
+                    case PUT:
+                        replica.put(x(i), y(i));
+                        break;
+                    case REMOVE:
+                        if (replica.contains(x(i), y(i))) {
+                            replica.remove(x(i), y(i));
+                        }
+                        break;
+                    case REMOVE_ALL_MATCHING_X:
+                        replica.removeAllMatchingX(x(i));
+                        break;
+                    case REMOVE_ALL_MATCHING_Y:
+                        replica.removeAllMatchingY(y(i));
+                        break;
+                    default:
+                        replica.clear();
+                        break;
+                }
+            }
+        }
+
+
+        /**
+         * Finds the slot of the ring buffer holding a change in the batch
+         *
+         * @param i the index of the change in the batch
+         * @return the slot
+         */
+        private int slot(int i) {
+            return (int) (start + check(i)) & feed.mask;
+        }
+
+
+        /**
+         * Checks an index into the batch
+         *
+         * @param i the index
+         * @return i
+         * @throws IndexOutOfBoundsException if i is not in [0, size)
+         */
+        private int check(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("Index " + i + " out of batch of " + size);
+            }
+            return i;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeFeedTest {
+
+    @Test
+    void recordsEffectiveChanges() {
+        HashRelation<String, String> r = new HashRelation<>();
+        ChangeFeed<String, String> feed = new ChangeFeed<>();
+        List<String> seen = new ArrayList<>();
+        feed.addListener(batch -> {
+            for (int i = 0; i < batch.size(); i++) {
+                seen.add(batch.sequence(i) + " " + batch.kind(i) + " " + batch.x(i) + " " + batch.y(i));
+            }
+        });
+
+        r.put("a", "before");
+        r.setChangeFeed(feed);
+        assertSame(feed, r.getChangeFeed(), "Feed attached");
+        r.put("a", "1");
+        r.put("a", "1");
+        r.put("b", "1");
+        r.remove("a", "1");
+        assertEquals(0, r.removeAll(new String[]{"a"}, new String[]{"1"}), "Nothing to remove");
+        r.putAll(new String[]{"c", "c", "d"}, new String[]{"2", "2", "2"});
+        r.removeAllMatchingX("zzz");
+        r.removeAllMatchingX("c");
+        r.removeAllMatchingY("2");
+        r.clear();
+        r.clear();
+        assertEquals(8, feed.pending(), "Pending until drained");
+        assertTrue(seen.isEmpty(), "Nothing delivered before a drain");
+
+        assertEquals(8, feed.drain(), "Drained");
+        assertEquals(List.of(
+                "0 PUT a 1",
+                "1 PUT b 1",
+                "2 REMOVE a 1",
+                "3 PUT c 2",
+                "4 PUT d 2",
+                "5 REMOVE_ALL_MATCHING_X c null",
+                "6 REMOVE_ALL_MATCHING_Y null 2",
+                "7 CLEAR null null"), seen, "Only effective changes, in order");
+        assertEquals(0, feed.pending(), "Nothing pending");
+        assertEquals(0, feed.drain(), "Nothing left to drain");
+
+        r.setChangeFeed(null);
+        r.put("e", "3");
+        assertEquals(8, feed.sequence(), "Nothing recorded once detached");
+    }
+
+    @Test
+    void batchesAndFullBuffer() {
+        HashRelation<Integer, Integer> r = new HashRelation<>();
+        ChangeFeed<Integer, Integer> feed = new ChangeFeed<>(10, 3);
+        assertEquals(16, feed.capacity(), "Capacity rounded up to a power of two");
+        List<Integer> sizes = new ArrayList<>();
+        feed.addListener(batch -> sizes.add(batch.size()));
+        r.setChangeFeed(feed);
+
+        for (int i = 0; i < 16; i++) {
+            r.put(i, i);
+        }
+        assertTrue(sizes.isEmpty(), "Buffer not yet full");
+        r.put(16, 16);
+        assertEquals(16 / 3 + 1, sizes.size(), "Full buffer drained by the writer");
+        assertTrue(sizes.stream().allMatch(n -> n <= 3), "Batches no bigger than the maximum");
+        assertEquals(1, feed.pending(), "Change that found the buffer full is recorded");
+
+        ChangeFeed.Listener<Integer, Integer> failing = batch -> {
+            throw new IllegalStateException("listener failed");
+        };
+        feed.addListener(failing);
+        assertThrows(IllegalStateException.class, feed::drain, "Listener exception passed on");
+        assertEquals(0, feed.pending(), "Failed batch still counts as delivered");
+        assertTrue(feed.removeListener(failing), "Listener removed");
+
+        assertThrows(IllegalArgumentException.class, () -> new ChangeFeed<Integer, Integer>(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new ChangeFeed<Integer, Integer>(8, 0));
+    }
+
+    @Test
+    void replicaStaysInSync() throws InterruptedException {
+        final HashRelation<Integer, Integer> r = new HashRelation<>();
+        final HashRelation<Integer, Integer> replica = new HashRelation<>();
+        final ChangeFeed<Integer, Integer> feed = new ChangeFeed<>(64, 16);
+        feed.addListener(batch -> batch.applyTo(replica));
+        r.setChangeFeed(feed);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread consumer = new Thread(() -> {
+            while (!done.get()) {
+                feed.drain();
+            }
+        });
+        consumer.start();
+        Random random = new Random(4);
+        for (int i = 0; i < 20000; i++) {
+            int x = random.nextInt(50);
+            int y = random.nextInt(50);
+            int op = random.nextInt(20);
+            if (op < 14) {
+                r.put(x, y);
+            } else if (op < 18) {
+                r.removeAll(new Integer[]{x}, new Integer[]{y});
+            } else if (op == 18) {
+                r.removeAllMatchingY(y);
+            } else if (random.nextInt(50) == 0) {
+                r.clear();
+            } else {
+                r.removeAllMatchingX(x);
+            }
+        }
+        done.set(true);
+        consumer.join();
+        feed.drain();
+
+        assertEquals(r.size(), replica.size(), "Replica size");
+        assertEquals(r.stream().map(Object::toString).collect(Collectors.toSet()),
+                replica.stream().map(Object::toString).collect(Collectors.toSet()), "Replica pairs");
+    }
+}
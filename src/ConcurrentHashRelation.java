@@ -0,0 +1,788 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * A thread safe hash table representation of a Relation
+ * <p>
+ * Like HashRelation, pairs are indexed twice, by x and by y, with each distinct key mapping to the set of its partners.
+ * Both indexes are concurrent hash maps whose partner sets are themselves concurrent,
+ * so contains, getAllMatchingX and getAllMatchingY never take a lock and never block.
+ * <p>
+ * Writes are serialised per key by an array of lock stripes shared by both indexes.
+ * A write locks the stripe of every key whose partner set it changes, always in ascending stripe order,
+ * so writes to unrelated keys proceed in parallel and writes that overlap cannot deadlock.
+ * <p>
+ * Put adds a pair to the Y index before the X index, and remove takes it out of the X index first,
+ * so any pair a reader can see by x can also be seen by y.
+ * Reads are weakly consistent: a read that overlaps a write may or may not see it, but never sees it half applied
+ * to the index it reads from
+ *
+ * @param <X> Type of the first item in a pair
+ * @param <Y> Type of the second item in a pair
+ * @author Matthew Smith
+ */
+public class ConcurrentHashRelation<X, Y> implements Relation<X, Y> {
+
+    /**
+     * Index X: maps each x to the set of all y such that the relation contains (x, y)
+     */
+    private final ConcurrentMap<X, Set<Y>> indexX = new ConcurrentHashMap<>();
+
+
+    /**
+     * Index Y: maps each y to the set of all x such that the relation contains (x, y)
+     */
+    private final ConcurrentMap<Y, Set<X>> indexY = new ConcurrentHashMap<>();
+
+
+    /**
+     * Lock stripes guarding writes to both indexes; the length is always a power of two
+     * <p>
+     * The entry for a key in either index is only ever changed while holding the stripe the key hashes to
+     */
+    private final ReentrantLock[] locks;
+
+
+    /**
+     * Number of pairs currently stored in the relation
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+
+    /**
+     * Constructs a ConcurrentHashRelation with four lock stripes per available processor
+     */
+    public ConcurrentHashRelation() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+     * Constructs a ConcurrentHashRelation with at least a specified number of lock stripes
+     *
+     * @param concurrencyLevel the number of writers expected to run at once, rounded up to a power of two
+     * @throws IllegalArgumentException if concurrencyLevel is not positive
+     */
+    public ConcurrentHashRelation(int concurrencyLevel) {
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("Concurrency level must be positive: " + concurrencyLevel);
+        }
+        int stripes = Integer.highestOneBit(Math.min(concurrencyLevel, 1 << 16) * 2 - 1);
+        locks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+
+    /**
+     * Requirement 1
+     * Returns true if the relation contains the specified pair (x, y)
+     * <p>
+     * Looks up the partners of x without locking
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the first part of the pair to be matched
+     * @param y the second part of the pair to be matched
+     * @return true if a pair matching (x, y) is found, false otherwise
+     */
+    @Override
+    public boolean contains(X x, Y y) {
+        Set<Y> partners = indexX.get(x);
+        return partners != null && partners.contains(y);
+    }
+
+
+    /**
+     * Requirement 2
+     * Given x, returns a set containing all values y such that the relation contains (x, y)
+     * <p>
+     * Copies the partners of x into a sorted set without locking
+     * <p>
+     * Complexity:
+     * O(k log k) where k is the number of pairs matching x
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a set containing all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Y> getAllMatchingX(X x) {
+        Set<Y> set = new TreeSet<>();
+        Set<Y> partners = indexX.get(x);
+        if (partners != null) {
+            set.addAll(partners);
+        }
+        return set;
+    }
+
+
+    /**
+     * Requirement 3
+     * Given y, returns a set containing all values x such that the relation contains (x, y)
+     * <p>
+     * Copies the partners of y into a sorted set without locking
+     * <p>
+     * Complexity:
+     * O(k log k) where k is the number of pairs matching y
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a set containing all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<X> getAllMatchingY(Y y) {
+        Set<X> set = new TreeSet<>();
+        Set<X> partners = indexY.get(y);
+        if (partners != null) {
+            set.addAll(partners);
+        }
+        return set;
+    }
+
+
+    /**
+     * Given x, returns a live read-only view of all values y such that the relation contains (x, y)
+     * <p>
+     * The view looks the partners of x up again on every call, without locking.
+     * It is weakly consistent and never throws ConcurrentModificationException
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a live, unmodifiable set of all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Y> viewMatchingX(X x) {
+        return new IndexView<>(indexX, x);
+    }
+
+
+    /**
+     * Given y, returns a live read-only view of all values x such that the relation contains (x, y)
+     * <p>
+     * The view looks the partners of y up again on every call, without locking.
+     * It is weakly consistent and never throws ConcurrentModificationException
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a live, unmodifiable set of all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<X> viewMatchingY(Y y) {
+        return new IndexView<>(indexY, y);
+    }
+
+
+    /**
+     * Given x, returns the number of values y such that the relation contains (x, y)
+     * <p>
+     * Reads the size of the partner set of x without locking
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return the number of pairs matching x, 0 if there are none
+     */
+    @Override
+    public int degreeX(X x) {
+        Set<Y> partners = indexX.get(x);
+        return partners == null ? 0 : partners.size();
+    }
+
+
+    /**
+     * Given x, performs an action on every value y such that the relation contains (x, y), in no particular order
+     * <p>
+     * Walks the partner set of x without locking or copying it, so the action sees a weakly consistent
+     * traversal: pairs added or removed concurrently may or may not be seen
+     * <p>
+     * Complexity:
+     * O(k) where k is the number of pairs matching x
+     *
+     * @param x      the element to search for in the first half of a pair
+     * @param action the action to perform on each partner of x
+     */
+    @Override
+    public void forEachMatchingX(X x, Consumer<? super Y> action) {
+        Set<Y> partners = indexX.get(x);
+        if (partners != null) {
+            partners.forEach(action);
+        }
+    }
+
+
+    /**
+     * Given y, performs an action on every value x such that the relation contains (x, y), in no particular order
+     * <p>
+     * Walks the partner set of y without locking or copying it, as forEachMatchingX does
+     * <p>
+     * Complexity:
+     * O(k) where k is the number of pairs matching y
+     *
+     * @param y      the element to search for in the second half of a pair
+     * @param action the action to perform on each partner of y
+     */
+    @Override
+    public void forEachMatchingY(Y y, Consumer<? super X> action) {
+        Set<X> partners = indexY.get(y);
+        if (partners != null) {
+            partners.forEach(action);
+        }
+    }
+
+
+    /**
+     * Given y, returns the number of values x such that the relation contains (x, y)
+     * <p>
+     * Reads the size of the partner set of y without locking
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return the number of pairs matching y, 0 if there are none
+     */
+    @Override
+    public int degreeY(Y y) {
+        Set<X> partners = indexY.get(y);
+        return partners == null ? 0 : partners.size();
+    }
+
+
+    /**
+     * Requirement 4
+     * Empties the relation
+     * <p>
+     * Takes every lock stripe, so no write is in progress while the indexes are cleared
+     * <p>
+     * Complexity:
+     * O(n)
+     */
+    @Override
+    public void clear() {
+        int[] all = new int[locks.length];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+
+        lock(all);
+        try {
+            indexX.clear();
+            indexY.clear();
+            size.set(0);
+        } finally {
+            unlock(all);
+        }
+    }
+
+
+    /**
+     * Requirement 5
+     * Adds a given pair (x, y) to the relation
+     * <p>
+     * Locks the stripes of x and y, then adds x to the partners of y before adding y to the partners of x
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the first half of the pair to be added
+     * @param y the second half of the pair to be added
+     */
+    @Override
+    public void put(X x, Y y) {
+        int[] stripes = stripes(stripeFor(x), stripeFor(y));
+        lock(stripes);
+        try {
+            if (contains(x, y)) {
+                return;
+            }
+            partners(indexY, y).add(x);
+            partners(indexX, x).add(y);
+            size.incrementAndGet();
+        } finally {
+            unlock(stripes);
+        }
+    }
+
+
+    /**
+     * Get the number of pairs in the relation
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @return the number of pairs in the relation
+     */
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+
+    /**
+     * Returns a cursor over every pair in the relation, walking the X index
+     * <p>
+     * The cursor is weakly consistent, like the iterators of the indexes: it never throws
+     * ConcurrentModificationException and may or may not show writes made while it is in use
+     *
+     * @return a cursor positioned before the first pair
+     */
+    @Override
+    public PairCursor<X, Y> cursor() {
+        final Iterator<Map.Entry<X, Set<Y>>> keys = indexX.entrySet().iterator();
+        return new PairCursor<X, Y>() {
+            /**
+             * The x of the partners being walked, or null before the first pair
+             */
+            private X x;
+
+            /**
+             * The partners of x not visited yet
+             */
+            private Iterator<Y> partners = Collections.emptyIterator();
+
+            /**
+             * The current y, or null if the cursor is not on a pair
+             */
+            private Y y;
+
+            @Override
+            public boolean advance() {
+                while (!partners.hasNext()) {
+                    if (!keys.hasNext()) {
+                        y = null;
+                        return false;
+                    }
+                    Map.Entry<X, Set<Y>> e = keys.next();
+                    x = e.getKey();
+                    partners = e.getValue().iterator();
+                }
+                y = partners.next();
+                return true;
+            }
+
+            @Override
+            public X x() {
+                if (y == null) {
+                    throw new IllegalStateException("Cursor is not on a pair");
+                }
+                return x;
+            }
+
+            @Override
+            public Y y() {
+                if (y == null) {
+                    throw new IllegalStateException("Cursor is not on a pair");
+                }
+                return y;
+            }
+        };
+    }
+
+
+    /**
+     * Returns a sequential stream of every pair in the relation, weakly consistent like cursor
+     *
+     * @return a stream of the pairs
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> stream() {
+        return pairs(indexX.entrySet().stream());
+    }
+
+
+    /**
+     * Returns a parallel stream of every pair in the relation, split by the spliterator of the X index
+     * <p>
+     * Writers may keep running while the stream is consumed; the stream is weakly consistent like cursor
+     *
+     * @return a parallel stream of the pairs
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> parallelStream() {
+        return pairs(indexX.entrySet().parallelStream());
+    }
+
+
+    /**
+     * Flattens a stream of the entries of the X index into a stream of pairs
+     *
+     * @param keys the entries of the X index
+     * @param <X>  Type of the first item in a pair
+     * @param <Y>  Type of the second item in a pair
+     * @return a stream of every pair of the entries
+     */
+    private static <X, Y> Stream<Map.Entry<X, Y>> pairs(Stream<Map.Entry<X, Set<Y>>> keys) {
+        return keys.flatMap(e -> e.getValue().stream()
+                .map(y -> new AbstractMap.SimpleImmutableEntry<>(e.getKey(), y)));
+    }
+
+
+    /**
+     * Requirement 6
+     * Removes a given pair (x, y) to the relation
+     * <p>
+     * Locks the stripes of x and y, then removes y from the partners of x before removing x from the partners of y
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the first half of the pair to be removed
+     * @param y the second half of the pair to be removed
+     * @throws NoSuchElementException when trying to remove an element that isn't in the relation
+     */
+    @Override
+    public void remove(X x, Y y) throws NoSuchElementException {
+        int[] stripes = stripes(stripeFor(x), stripeFor(y));
+        lock(stripes);
+        try {
+            if (!removePartner(indexX, x, y)) {
+                throw new NoSuchElementException();
+            }
+            removePartner(indexY, y, x);
+            size.decrementAndGet();
+        } finally {
+            unlock(stripes);
+        }
+    }
+
+
+    /**
+     * Requirement 7
+     * Given x, removes all pairs(x, y) from the relation
+     * <p>
+     * Locks the stripe of x and of each of its partners, then removes x from the X index
+     * and from the partners of each y
+     * <p>
+     * Complexity:
+     * O(k) where k is the number of pairs matching x
+     *
+     * @param x the first part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingX(X x) {
+        return removeAll(indexX, indexY, x, true);
+    }
+
+
+    /**
+     * Requirement 8
+     * Given y, removes all pairs(x, y) from the relation
+     * <p>
+     * Locks the stripe of y and of each of its partners, then removes y from the partners of each x
+     * and only then from the Y index, so the pairs leave the X index first, as in remove
+     * <p>
+     * Complexity:
+     * O(k) where k is the number of pairs matching y
+     *
+     * @param y the second part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingY(Y y) {
+        return removeAll(indexY, indexX, y, false);
+    }
+
+
+    /**
+     * Requirement 9
+     * Renders the relations contents as a string in a readable format
+     * <p>
+     * Prints every key in each index along with its pairs.
+     * The indexes are read without locking, so concurrent writes may or may not be shown
+     * <p>
+     * Complexity:
+     * O(n)
+     *
+     * @return a string representation of the relation
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendIndex(sb, "X index", indexX);
+        appendIndex(sb, "Y index", indexY);
+        return sb.toString();
+    }
+
+    /**
+     * Appends every key of an index to a string builder, one key per line
+     *
+     * @param sb    the string builder to append to
+     * @param title the heading printed above the index
+     * @param index the index to print
+     */
+    private static void appendIndex(StringBuilder sb, String title, Map<?, ? extends Set<?>> index) {
+        sb.append("\n-- ");
+        sb.append(title);
+        sb.append(" --\n");
+        for (Map.Entry<?, ? extends Set<?>> e : index.entrySet()) {
+            sb.append(e.getKey());
+            sb.append(": [");
+            for (Object partner : e.getValue()) {
+                sb.append("(");
+                sb.append(e.getKey());
+                sb.append(", ");
+                sb.append(partner);
+                sb.append("), ");
+            }
+            sb.append("]\n");
+        }
+    }
+
+    /**
+     * Removes every pair matching a key, from both the index keyed by it and the mirrored index
+     * <p>
+     * The partners of the key are read without locking to find out which stripes are needed.
+     * If more partners have been added by the time those stripes are held, the locks are released and the
+     * attempt repeated with the larger set of stripes.
+     * <p>
+     * The pairs are taken out of the X index before the Y index, whichever side k is on,
+     * so a reader never finds a pair by x that it cannot find by y
+     *
+     * @param index    the index keyed by k
+     * @param mirror   the index keyed by the partners of k
+     * @param k        the key whose pairs are removed
+     * @param sideX    true if index is the X index, false if it is the Y index
+     * @param <K>      the type of k
+     * @param <V>      the type of the partners of k
+     * @return the number of pairs removed
+     */
+    private <K, V> int removeAll(ConcurrentMap<K, Set<V>> index, ConcurrentMap<V, Set<K>> mirror, K k,
+                                 boolean sideX) {
+        while (true) {
+            Set<V> partners = index.get(k);
+            if (partners == null) {
+                return 0;
+            }
+
+            int[] stripes = stripesFor(k, partners);
+            lock(stripes);
+            try {
+                //the stripe of k is held, so its partners can no longer change
+                partners = index.get(k);
+                if (partners == null) {
+                    return 0;
+                }
+                if (!covers(stripes, partners)) {
+                    continue;
+                }
+
+                if (sideX) {
+                    index.remove(k);
+                }
+                for (V v : partners) {
+                    removePartner(mirror, v, k);
+                }
+                if (!sideX) {
+                    index.remove(k);
+                }
+                size.addAndGet(-partners.size());
+                return partners.size();
+            } finally {
+                unlock(stripes);
+            }
+        }
+    }
+
+    /**
+     * Returns the partner set of a key, creating it if the key has no partners
+     * <p>
+     * The caller must hold the stripe of the key
+     *
+     * @param index the index to look the key up in
+     * @param k     the key
+     * @param <K>   the type of the key
+     * @param <V>   the type of the partners
+     * @return the partner set of k
+     */
+    private static <K, V> Set<V> partners(ConcurrentMap<K, Set<V>> index, K k) {
+        Set<V> partners = index.get(k);
+        if (partners == null) {
+            partners = ConcurrentHashMap.newKeySet();
+            index.put(k, partners);
+        }
+        return partners;
+    }
+
+    /**
+     * Removes a partner from the partner set of a key, dropping the key if it has no partners left
+     * <p>
+     * The caller must hold the stripe of the key
+     *
+     * @param index the index to look the key up in
+     * @param k     the key
+     * @param v     the partner to remove
+     * @param <K>   the type of the key
+     * @param <V>   the type of the partners
+     * @return true if the partner was removed, false if the pair was not in the index
+     */
+    private static <K, V> boolean removePartner(ConcurrentMap<K, Set<V>> index, K k, V v) {
+        Set<V> partners = index.get(k);
+        if (partners == null || !partners.remove(v)) {
+            return false;
+        }
+        if (partners.isEmpty()) {
+            index.remove(k);
+        }
+        return true;
+    }
+
+    /**
+     * Finds the distinct stripes of a key and of each of its partners, in ascending order
+     *
+     * @param k        the key
+     * @param partners the partners of the key
+     * @return the stripes to lock, sorted and without duplicates
+     */
+    private int[] stripesFor(Object k, Set<?> partners) {
+        boolean[] needed = new boolean[locks.length];
+        needed[stripeFor(k)] = true;
+        int count = 1;
+        for (Object v : partners) {
+            int s = stripeFor(v);
+            if (!needed[s]) {
+                needed[s] = true;
+                count++;
+            }
+        }
+
+        int[] stripes = new int[count];
+        for (int i = 0, j = 0; i < needed.length; i++) {
+            if (needed[i]) {
+                stripes[j++] = i;
+            }
+        }
+        return stripes;
+    }
+
+    /**
+     * Checks that the stripe of every partner is in a set of stripes
+     *
+     * @param stripes  the stripes held, sorted ascending
+     * @param partners the partners to check
+     * @return true if every partner's stripe is held
+     */
+    private boolean covers(int[] stripes, Set<?> partners) {
+        for (Object v : partners) {
+            if (Arrays.binarySearch(stripes, stripeFor(v)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Orders the stripes of the two halves of a pair
+     *
+     * @param a the stripe of one half of the pair
+     * @param b the stripe of the other half of the pair
+     * @return the distinct stripes in ascending order
+     */
+    private static int[] stripes(int a, int b) {
+        if (a == b) {
+            return new int[]{a};
+        }
+        return a < b ? new int[]{a, b} : new int[]{b, a};
+    }
+
+    /**
+     * Locks a set of stripes in the order given
+     *
+     * @param stripes the stripes to lock, sorted ascending
+     */
+    private void lock(int[] stripes) {
+        for (int s : stripes) {
+            locks[s].lock();
+        }
+    }
+
+    /**
+     * Unlocks a set of stripes in the reverse of the order they were locked
+     *
+     * @param stripes the stripes to unlock
+     */
+    private void unlock(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            locks[stripes[i]].unlock();
+        }
+    }
+
+    /**
+     * Maps a key to the lock stripe guarding it, spreading the high bits of its hash code into the low bits
+     *
+     * @param k the key
+     * @return the index of the stripe guarding k
+     */
+    private int stripeFor(Object k) {
+        int h = k.hashCode();
+        h ^= h >>> 16;
+        return h & (locks.length - 1);
+    }
+
+    /**
+     * Static nested class for the live views returned by viewMatchingX and viewMatchingY
+     *
+     * @param <K> Type of the key of the view
+     * @param <V> Type of the partners in the view
+     */
+    private static class IndexView<K, V> extends AbstractSet<V> {
+        /**
+         * The index the partners are read from
+         */
+        private final ConcurrentMap<K, Set<V>> index;
+
+        /**
+         * The key whose partners are viewed
+         */
+        private final K key;
+
+        /**
+         * Constructs a view of the partners of a key
+         *
+         * @param index the index the partners are read from
+         * @param key   the key whose partners are viewed
+         */
+        private IndexView(ConcurrentMap<K, Set<V>> index, K key) {
+            this.index = index;
+            this.key = key;
+        }
+
+        /**
+         * Returns the current partners of the key
+         *
+         * @return the partner set of the key, or an empty set if it has none
+         */
+        private Set<V> partners() {
+            Set<V> partners = index.get(key);
+            return partners == null ? Collections.<V>emptySet() : partners;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return partners().contains(o);
+        }
+
+        @Override
+        public int size() {
+            return partners().size();
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return Collections.unmodifiableSet(partners()).iterator();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrentHashRelationTest {
+
+    private Relation<String, String> r;
+    private String[] a = {"j", "j", "c", "c", "c", "p", "n", "k", "k", "k"};
+    private String[] b = {"java", "javascript", "c++", "c#", "c", "python", "node", "java", "node", "c"};
+
+    @BeforeEach
+    void setUp() {
+        r = new ConcurrentHashRelation<>();
+
+        for (int i = 0; i < a.length; i++) {
+            r.put(a[i], b[i]);
+        }
+    }
+
+    @Test
+    void contains() {
+        assertTrue(r.contains("j", "java"), "Contains j, java");
+        assertFalse(r.contains("r", "ruby"), "Does not contain r, ruby");
+    }
+
+    @Test
+    void getAllMatching() {
+        Set<String> s = new TreeSet<>();
+        s.add("java");
+        s.add("javascript");
+        assertEquals(s, r.getAllMatchingX("j"), "getAllMatchingX set equal");
+
+        s.clear();
+        s.add("j");
+        s.add("k");
+        assertEquals(s, r.getAllMatchingY("java"), "getAllMatchingY set equal");
+        assertEquals(s, r.viewMatchingY("java"), "viewMatchingY set equal");
+    }
+
+    @Test
+    void removeAndSize() {
+        r.put("j", "java");
+        assertEquals(a.length, r.size(), "Duplicate put ignored");
+
+        r.remove("j", "java");
+        assertFalse(r.contains("j", "java"), "Remove after");
+        assertFalse(r.getAllMatchingY("java").contains("j"), "Removed from Y index");
+        assertEquals(a.length - 1, r.size(), "Size after remove");
+
+        assertThrows(NoSuchElementException.class, () -> r.remove("not in the relation", "?"));
+    }
+
+    @Test
+    void removeAllMatching() {
+        assertEquals(3, r.removeAllMatchingX("c"), "removeAllMatchingX count");
+        assertTrue(r.getAllMatchingY("c").contains("k"), "Other partners of c kept");
+        assertFalse(r.getAllMatchingY("c").contains("c"), "Mirrored pair removed");
+
+        assertEquals(2, r.removeAllMatchingY("node"), "removeAllMatchingY count");
+        assertTrue(r.getAllMatchingX("n").isEmpty(), "Mirrored pairs removed");
+        assertEquals(a.length - 5, r.size(), "Size after removeAll");
+
+        r.clear();
+        assertEquals(0, r.size(), "Size empty");
+        assertFalse(r.contains("j", "java"), "Clear doesn't contain anything");
+    }
+
+    @Test
+    void concurrentWriters() throws Exception {
+        final ConcurrentHashRelation<Integer, Integer> c = new ConcurrentHashRelation<>(4);
+        final int threads = 8, perThread = 5000;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                tasks.add(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        int x = id * perThread + i;
+                        c.put(x, x % 10);
+                        c.put(x, -1);
+                        if (i % 2 == 0) {
+                            c.remove(x, x % 10);
+                        }
+                        if (i % 100 == 0) {
+                            c.removeAllMatchingX(-2);
+                            c.put(-2, id);
+                        }
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        int pairs = 0;
+        for (int y = -1; y < 10; y++) {
+            for (Integer x : c.getAllMatchingY(y)) {
+                assertTrue(c.contains(x, y), "Y index agrees with X index for " + x + ", " + y);
+                pairs++;
+            }
+        }
+        assertEquals(pairs, c.size(), "Size agrees with indexes");
+        assertEquals(threads * perThread, c.getAllMatchingY(-1).size(), "No lost puts");
+    }
+
+    @Test
+    void cursorAndStreams() {
+        Set<String> expected = new TreeSet<>();
+        for (int i = 0; i < a.length; i++) {
+            expected.add(a[i] + "=" + b[i]);
+        }
+        Set<String> visited = new TreeSet<>();
+        PairCursor<String, String> cursor = r.cursor();
+        while (cursor.advance()) {
+            visited.add(cursor.x() + "=" + cursor.y());
+        }
+        assertEquals(expected, visited, "Cursor visits every pair");
+        assertEquals(expected, r.parallelStream().map(Object::toString).collect(Collectors.toSet()),
+                "Parallel stream pairs");
+        assertEquals(a.length, r.stream().count(), "Stream count");
+    }
+
+    @Test
+    void removeAllMatchingYLeavesXIndexFirst() {
+        final ConcurrentHashRelation<Integer, Probe> c = new ConcurrentHashRelation<>();
+        final Probe y = new Probe();
+        for (int x = 0; x < 4; x++) {
+            c.put(x, y);
+        }
+        //the indexes hash y at each step of the removal, so check the promise a reader relies on at every step
+        y.check = () -> {
+            for (int x = 0; x < 4; x++) {
+                assertTrue(!c.contains(x, y) || c.degreeY(y) > 0, "Pair (" + x + ", y) visible by x but not by y");
+            }
+        };
+        assertEquals(4, c.removeAllMatchingY(y), "removeAllMatchingY count");
+        assertTrue(y.checks > 0, "Checked during the removal");
+        assertEquals(0, c.size(), "Empty");
+    }
+
+    /**
+     * Key that runs a check whenever it is hashed, to observe the indexes part way through a write
+     */
+    private static final class Probe {
+        private Runnable check;
+        private boolean checking;
+        private int checks;
+
+        @Override
+        public int hashCode() {
+            if (check != null && !checking) {
+                checking = true;
+                try {
+                    check.run();
+                    checks++;
+                } finally {
+                    checking = false;
+                }
+            }
+            return 42;
+        }
+    }
+}
@@ -0,0 +1,858 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * An immutable Relation laid out for fast reads, built by freezing another relation
+ * <p>
+ * Each direction is stored in compressed sparse row form: the distinct keys in one array, sorted by hash,
+ * and the partners of every key in one contiguous slice of a shared partner array, sorted by hash within the slice.
+ * The hashes of the keys and of the partners are kept in int arrays alongside, so a lookup compares ints
+ * in sequential memory and only calls equals on a matching hash. A directory indexed by the top bits of a hash
+ * gives the range of keys to binary search, so finding a key is O(1) on average.
+ * <p>
+ * Nothing is allocated per pair: a relation of n pairs holds two object arrays and a few int arrays,
+ * about 16 bytes per pair plus 12 bytes per distinct key, whatever the degrees of the keys.
+ * getAllMatchingX and getAllMatchingY return read-only views of a slice without copying it.
+ * <p>
+ * Every method that would modify the relation throws an UnsupportedOperationException.
+ * A frozen relation is safe to share between threads without synchronisation
+ *
+ * @param <X> Type of the first item in a pair
+ * @param <Y> Type of the second item in a pair
+ * @author Matthew Smith
+ */
+public final class FrozenRelation<X, Y> implements Relation<X, Y> {
+
+    /**
+     * Index X: the rows of partners y of each distinct x
+     */
+    private final Index<X, Y> byX;
+
+
+    /**
+     * Index Y: the rows of partners x of each distinct y
+     */
+    private final Index<Y, X> byY;
+
+
+    /**
+     * Hashes keys and partners for both indexes
+     */
+    private final KeyHasher hasher;
+
+
+    /**
+     * Constructs a frozen relation from its indexes
+     *
+     * @param byX    the index by x
+     * @param byY    the index by y
+     * @param hasher the hasher both indexes were built with
+     */
+    private FrozenRelation(Index<X, Y> byX, Index<Y, X> byY, KeyHasher hasher) {
+        this.byX = byX;
+        this.byY = byY;
+        this.hasher = hasher;
+    }
+
+
+    /**
+     * Freezes a copy of a relation, hashing keys with the default hasher
+     *
+     * @param relation the relation to copy, which must not be modified during the copy
+     * @param <X>      Type of the first item in a pair
+     * @param <Y>      Type of the second item in a pair
+     * @return an immutable relation holding the same pairs
+     */
+    public static <X, Y> FrozenRelation<X, Y> copyOf(Relation<X, Y> relation) {
+        return copyOf(relation, KeyHasher.MIX);
+    }
+
+
+    /**
+     * Freezes a copy of a relation
+     * <p>
+     * Complexity:
+     * O(n log n) to sort the n pairs by hash, once for each direction
+     *
+     * @param relation the relation to copy, which must not be modified during the copy
+     * @param hasher   the hasher for the keys of both directions
+     * @param <X>      Type of the first item in a pair
+     * @param <Y>      Type of the second item in a pair
+     * @return an immutable relation holding the same pairs
+     */
+    public static <X, Y> FrozenRelation<X, Y> copyOf(Relation<X, Y> relation, KeyHasher hasher) {
+        if (relation instanceof FrozenRelation && ((FrozenRelation<X, Y>) relation).hasher == hasher) {
+            return (FrozenRelation<X, Y>) relation;
+        }
+
+        int n = relation.size();
+        Object[] xs = new Object[n];
+        Object[] ys = new Object[n];
+        int[] hashesX = new int[n];
+        int[] hashesY = new int[n];
+        int i = 0;
+        PairCursor<X, Y> cursor = relation.cursor();
+        while (cursor.advance()) {
+            xs[i] = cursor.x();
+            ys[i] = cursor.y();
+            hashesX[i] = hasher.hash(xs[i]);
+            hashesY[i] = hasher.hash(ys[i]);
+            i++;
+        }
+        if (i != n) {
+            throw new IllegalStateException("Relation reported " + n + " pairs but held " + i);
+        }
+
+        return new FrozenRelation<>(new Index<X, Y>(xs, ys, hashesX, hashesY),
+                new Index<Y, X>(ys, xs, hashesY, hashesX), hasher);
+    }
+
+
+    /**
+     * Requirement 1
+     * Returns true if the relation contains the specified pair (x, y)
+     * <p>
+     * Finds the row of x and of y and searches the shorter one
+     * <p>
+     * Complexity:
+     * O(log k) where k is the smaller of the number of pairs matching x and matching y
+     *
+     * @param x the first part of the pair to be matched
+     * @param y the second part of the pair to be matched
+     * @return true if a pair matching (x, y) is found, false otherwise
+     */
+    @Override
+    public boolean contains(X x, Y y) {
+        int hx = hasher.hash(x);
+        int hy = hasher.hash(y);
+        int rowX = byX.rowOf(x, hx);
+        if (rowX < 0) {
+            return false;
+        }
+        int rowY = byY.rowOf(y, hy);
+        if (rowY < 0) {
+            return false;
+        }
+        if (byX.degree(rowX) <= byY.degree(rowY)) {
+            return byX.containsPartner(rowX, y, hy);
+        }
+        return byY.containsPartner(rowY, x, hx);
+    }
+
+
+    /**
+     * Requirement 2
+     * Given x, returns a read-only set of all values y such that the relation contains (x, y)
+     * <p>
+     * The set is a view of the row of x, so nothing is copied
+     * <p>
+     * Complexity:
+     * O(1) (assuming keys are spread evenly)
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a read-only set containing all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Y> getAllMatchingX(X x) {
+        return byX.row(x, hasher);
+    }
+
+
+    /**
+     * Requirement 3
+     * Given y, returns a read-only set of all values x such that the relation contains (x, y)
+     * <p>
+     * The set is a view of the row of y, so nothing is copied
+     * <p>
+     * Complexity:
+     * O(1) (assuming keys are spread evenly)
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a read-only set containing all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<X> getAllMatchingY(Y y) {
+        return byY.row(y, hasher);
+    }
+
+
+    /**
+     * Returns the same view as getAllMatchingX, which never changes since the relation is immutable
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a read-only set of the values y matching x
+     */
+    @Override
+    public Set<Y> viewMatchingX(X x) {
+        return getAllMatchingX(x);
+    }
+
+
+    /**
+     * Returns the same view as getAllMatchingY, which never changes since the relation is immutable
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a read-only set of the values x matching y
+     */
+    @Override
+    public Set<X> viewMatchingY(Y y) {
+        return getAllMatchingY(y);
+    }
+
+
+    /**
+     * Returns the same view as getAllMatchingX, which is already a snapshot since the relation is immutable
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a read-only set of the values y matching x
+     */
+    @Override
+    public Set<Y> snapshotMatchingX(X x) {
+        return getAllMatchingX(x);
+    }
+
+
+    /**
+     * Returns the same view as getAllMatchingY, which is already a snapshot since the relation is immutable
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a read-only set of the values x matching y
+     */
+    @Override
+    public Set<X> snapshotMatchingY(Y y) {
+        return getAllMatchingY(y);
+    }
+
+
+    /**
+     * Requirement 4
+     * Not supported: a frozen relation is immutable
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void clear() {
+        throw immutable();
+    }
+
+
+    /**
+     * Requirement 5
+     * Not supported: a frozen relation is immutable
+     *
+     * @param x the first half of the pair
+     * @param y the second half of the pair
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void put(X x, Y y) {
+        throw immutable();
+    }
+
+
+    /**
+     * Requirement 6
+     * Not supported: a frozen relation is immutable
+     *
+     * @param x the first half of the pair
+     * @param y the second half of the pair
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void remove(X x, Y y) {
+        throw immutable();
+    }
+
+
+    /**
+     * Requirement 7
+     * Not supported: a frozen relation is immutable
+     *
+     * @param x the first part of all pairs to be removed
+     * @return never returns
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public int removeAllMatchingX(X x) {
+        throw immutable();
+    }
+
+
+    /**
+     * Requirement 8
+     * Not supported: a frozen relation is immutable
+     *
+     * @param y the second part of all pairs to be removed
+     * @return never returns
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public int removeAllMatchingY(Y y) {
+        throw immutable();
+    }
+
+
+    /**
+     * Not supported: a frozen relation is immutable
+     *
+     * @param pairs the pairs to add
+     * @return never returns
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public int putAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        throw immutable();
+    }
+
+
+    /**
+     * Not supported: a frozen relation is immutable
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @return never returns
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public int putAll(X[] xs, Y[] ys) {
+        throw immutable();
+    }
+
+
+    /**
+     * Not supported: a frozen relation is immutable
+     *
+     * @param pairs the pairs to remove
+     * @return never returns
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public int removeAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        throw immutable();
+    }
+
+
+    /**
+     * Not supported: a frozen relation is immutable
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @return never returns
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public int removeAll(X[] xs, Y[] ys) {
+        throw immutable();
+    }
+
+
+    /**
+     * Requirement 9
+     * Returns a string representation of the relation, in the format of HashRelation
+     * <p>
+     * Complexity:
+     * O(n) (has to traverse every item in the relation)
+     *
+     * @return a string representation of the relation
+     */
+    @Override
+    public String toString() {
+        HashRelation<X, Y> copy = new HashRelation<>();
+        PairCursor<X, Y> cursor = cursor();
+        while (cursor.advance()) {
+            copy.put(cursor.x(), cursor.y());
+        }
+        return copy.toString();
+    }
+
+
+    /**
+     * Requirement 10
+     * Returns the number of pairs in the relation
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @return the number of pairs in the relation
+     */
+    @Override
+    public int size() {
+        return byX.partners.length;
+    }
+
+
+    /**
+     * Returns a cursor over every pair in the relation, walking the X rows in order
+     * <p>
+     * The relation is immutable, so any number of cursors may be used at once from any threads
+     *
+     * @return a cursor positioned before the first pair
+     */
+    @Override
+    public PairCursor<X, Y> cursor() {
+        return new PairCursor<X, Y>() {
+            /**
+             * The row of the current pair
+             */
+            private int row;
+
+            /**
+             * The position of the current pair in the partner array, or -1 before the first pair
+             */
+            private int pair = -1;
+
+            @Override
+            public boolean advance() {
+                if (pair >= byX.partners.length - 1) {
+                    pair = byX.partners.length;
+                    return false;
+                }
+                pair++;
+                while (byX.offsets[row + 1] <= pair) {
+                    row++;
+                }
+                return true;
+            }
+
+            @Override
+            public X x() {
+                check();
+                return cast(byX.keys[row]);
+            }
+
+            @Override
+            public Y y() {
+                check();
+                return cast(byX.partners[pair]);
+            }
+
+            /**
+             * Checks the cursor is on a pair
+             *
+             * @throws IllegalStateException if it is not
+             */
+            private void check() {
+                if (pair < 0 || pair >= byX.partners.length) {
+                    throw new IllegalStateException("Cursor is not on a pair");
+                }
+            }
+        };
+    }
+
+
+    /**
+     * Returns a sequential stream of every pair in the relation
+     *
+     * @return a stream of the pairs
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> stream() {
+        return pairs(IntStream.range(0, byX.keys.length));
+    }
+
+
+    /**
+     * Returns a parallel stream of every pair in the relation, split by ranges of X rows
+     *
+     * @return a parallel stream of the pairs
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> parallelStream() {
+        return pairs(IntStream.range(0, byX.keys.length).parallel());
+    }
+
+
+    /**
+     * Expands a stream of X rows into a stream of their pairs
+     *
+     * @param rows the rows of the X index
+     * @return a stream of every pair in the rows
+     */
+    private Stream<Map.Entry<X, Y>> pairs(IntStream rows) {
+        return rows.boxed().flatMap(row -> {
+            X x = cast(byX.keys[row]);
+            return IntStream.range(byX.offsets[row], byX.offsets[row + 1])
+                    .mapToObj(p -> new AbstractMap.SimpleImmutableEntry<>(x, FrozenRelation.<Y>cast(byX.partners[p])));
+        });
+    }
+
+
+    /**
+     * Creates the exception thrown by every method that would modify the relation
+     *
+     * @return the exception
+     */
+    private static UnsupportedOperationException immutable() {
+        return new UnsupportedOperationException("Relation is frozen");
+    }
+
+
+    /**
+     * Casts an object taken from the arrays of an index back to the type of a key or partner
+     *
+     * @param o   the object to cast
+     * @param <T> the type to cast to
+     * @return the object as a T
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object o) {
+        return (T) o;
+    }
+
+
+    /**
+     * Static nested class holding one direction of the relation in compressed sparse row form
+     * <p>
+     * Row r is the distinct key keys[r] and its partners partners[offsets[r]] to partners[offsets[r + 1] - 1].
+     * Keys are sorted by their hashes as unsigned ints, and the partners of each row likewise.
+     * directory[b] is the first row whose hash has top bits b, so the rows a hash can be in are found in O(1)
+     *
+     * @param <K> Type of the keys of the rows
+     * @param <V> Type of the partners in the rows
+     */
+    private static final class Index<K, V> {
+        /**
+         * Longest run of pairs with equal key hashes that is grouped into rows by comparing keys pairwise
+         */
+        private static final int COLLISION_SCAN_LIMIT = 8;
+
+        /**
+         * The distinct keys, sorted by hash
+         */
+        final Object[] keys;
+
+        /**
+         * The hash of each key
+         */
+        final int[] keyHashes;
+
+        /**
+         * The start of the row of each key in the partner arrays, with the number of pairs appended
+         */
+        final int[] offsets;
+
+        /**
+         * The partners of every row, one row after another
+         */
+        final Object[] partners;
+
+        /**
+         * The hash of each partner
+         */
+        final int[] partnerHashes;
+
+        /**
+         * The first row with each value of the top bits of the hash, with the number of rows appended
+         */
+        final int[] directory;
+
+        /**
+         * The shift taking a hash to its directory entry
+         */
+        final int shift;
+
+        /**
+         * Builds an index from the pairs (keys[i], partners[i]), which must be distinct
+         *
+         * @param keys          the key of each pair
+         * @param partners      the partner of each pair
+         * @param keyHashes     the hash of each key
+         * @param partnerHashes the hash of each partner
+         */
+        Index(Object[] keys, Object[] partners, int[] keyHashes, int[] partnerHashes) {
+            int n = keys.length;
+            int[] order = sortByHash(keyHashes, n);
+
+            //split the sorted pairs into rows of equal keys; keys with equal hashes may be interleaved
+            int[] rowOf = new int[n];
+            Object[] distinct = new Object[n];
+            int[] distinctHashes = new int[n];
+            int rows = 0;
+            for (int start = 0; start < n; ) {
+                int end = start + 1;
+                while (end < n && keyHashes[order[end]] == keyHashes[order[start]]) {
+                    end++;
+                }
+                //a long run of colliding hashes is grouped with a map rather than by comparing with every row
+                Map<Object, Integer> runRows = end - start > COLLISION_SCAN_LIMIT ? new HashMap<>() : null;
+                int firstRow = rows;
+                for (int k = start; k < end; k++) {
+                    Object key = keys[order[k]];
+                    int row;
+                    if (runRows != null) {
+                        Integer known = runRows.putIfAbsent(key, rows);
+                        row = known == null ? rows : known;
+                    } else {
+                        row = firstRow;
+                        while (row < rows && !distinct[row].equals(key)) {
+                            row++;
+                        }
+                    }
+                    if (row == rows) {
+                        distinct[rows] = key;
+                        distinctHashes[rows] = keyHashes[order[k]];
+                        rows++;
+                    }
+                    rowOf[order[k]] = row;
+                }
+                start = end;
+            }
+
+            //count the pairs of each row, then place each pair in its row
+            offsets = new int[rows + 1];
+            for (int i = 0; i < n; i++) {
+                offsets[rowOf[i] + 1]++;
+            }
+            for (int r = 0; r < rows; r++) {
+                offsets[r + 1] += offsets[r];
+            }
+            int[] next = Arrays.copyOf(offsets, rows);
+            int[] byRow = new int[n];
+            for (int i = 0; i < n; i++) {
+                byRow[next[rowOf[i]]++] = i;
+            }
+
+            //sort each row by the hashes of its partners
+            this.partners = new Object[n];
+            this.partnerHashes = new int[n];
+            long[] scratch = new long[0];
+            for (int r = 0; r < rows; r++) {
+                int from = offsets[r];
+                int degree = offsets[r + 1] - from;
+                if (scratch.length < degree) {
+                    scratch = new long[Math.max(degree, scratch.length * 2)];
+                }
+                for (int k = 0; k < degree; k++) {
+                    int i = byRow[from + k];
+                    scratch[k] = sortKey(partnerHashes[i], i);
+                }
+                Arrays.sort(scratch, 0, degree);
+                for (int k = 0; k < degree; k++) {
+                    int i = (int) scratch[k];
+                    this.partners[from + k] = partners[i];
+                    this.partnerHashes[from + k] = partnerHashes[i];
+                }
+            }
+
+            this.keys = Arrays.copyOf(distinct, rows);
+            this.keyHashes = Arrays.copyOf(distinctHashes, rows);
+
+            //one directory entry per row or so, rounded to a power of two
+            int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(1, rows - 1)));
+            this.shift = 32 - bits;
+            this.directory = new int[(1 << bits) + 1];
+            for (int r = 0; r < rows; r++) {
+                directory[(this.keyHashes[r] >>> shift) + 1]++;
+            }
+            for (int b = 0; b < 1 << bits; b++) {
+                directory[b + 1] += directory[b];
+            }
+        }
+
+        /**
+         * Finds the row of a key
+         *
+         * @param key  the key
+         * @param hash the hash of the key
+         * @return the row, or -1 if the key has no pairs
+         */
+        int rowOf(Object key, int hash) {
+            int b = hash >>> shift;
+            for (int r = lowerBound(keyHashes, directory[b], directory[b + 1], hash);
+                 r < keyHashes.length && keyHashes[r] == hash; r++) {
+                if (keys[r].equals(key)) {
+                    return r;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Get the number of partners in a row
+         *
+         * @param row the row
+         * @return the number of pairs with the key of the row
+         */
+        int degree(int row) {
+            return offsets[row + 1] - offsets[row];
+        }
+
+        /**
+         * Returns true if a row contains a partner
+         *
+         * @param row     the row
+         * @param partner the partner
+         * @param hash    the hash of the partner
+         * @return true if the pair of the key of the row and the partner is in the relation
+         */
+        boolean containsPartner(int row, Object partner, int hash) {
+            return containsPartner(offsets[row], offsets[row + 1], partner, hash);
+        }
+
+        /**
+         * Returns true if a slice of the partner array holding one row, or part of one, contains a partner
+         *
+         * @param from    the start of the slice
+         * @param to      the end of the slice
+         * @param partner the partner
+         * @param hash    the hash of the partner
+         * @return true if the partner is in the slice
+         */
+        boolean containsPartner(int from, int to, Object partner, int hash) {
+            for (int p = lowerBound(partnerHashes, from, to, hash); p < to && partnerHashes[p] == hash; p++) {
+                if (partners[p].equals(partner)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns a read-only view of the row of a key
+         *
+         * @param key    the key
+         * @param hasher the hasher of the relation
+         * @return a view of the partners of the key, empty if the key has no pairs
+         */
+        Set<V> row(Object key, KeyHasher hasher) {
+            int row = rowOf(key, hasher.hash(key));
+            return row < 0 ? new Row<>(this, 0, 0, hasher) : new Row<>(this, offsets[row], offsets[row + 1], hasher);
+        }
+
+        /**
+         * Orders the first n indexes by hash, as unsigned ints
+         *
+         * @param hashes the hashes
+         * @param n      the number of indexes
+         * @return the indexes from 0 to n - 1 in order of hash
+         */
+        private static int[] sortByHash(int[] hashes, int n) {
+            long[] sorted = new long[n];
+            for (int i = 0; i < n; i++) {
+                sorted[i] = sortKey(hashes[i], i);
+            }
+            Arrays.sort(sorted);
+            int[] order = new int[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = (int) sorted[i];
+            }
+            return order;
+        }
+
+        /**
+         * Packs a hash and an index into a long that sorts by the hash as an unsigned int, then by index
+         *
+         * @param hash  the hash
+         * @param index the index, not negative
+         * @return the packed value, whose low 32 bits are the index
+         */
+        private static long sortKey(int hash, int index) {
+            return ((long) (hash ^ Integer.MIN_VALUE) << 32) | index;
+        }
+
+        /**
+         * Finds the first position in a sorted range holding a hash at least a given hash, as unsigned ints
+         *
+         * @param hashes the hashes, sorted as unsigned ints
+         * @param from   the start of the range
+         * @param to     the end of the range
+         * @param hash   the hash to look for
+         * @return the position, or to if every hash in the range is smaller
+         */
+        private static int lowerBound(int[] hashes, int from, int to, int hash) {
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                if (Integer.compareUnsigned(hashes[mid], hash) < 0) {
+                    from = mid + 1;
+                } else {
+                    to = mid;
+                }
+            }
+            return from;
+        }
+    }
+
+
+    /**
+     * Static nested class for the read-only views of a row returned by getAllMatchingX and getAllMatchingY
+     *
+     * @param <V> Type of the partners in the row
+     */
+    private static final class Row<V> extends AbstractSet<V> {
+        /**
+         * The index holding the row
+         */
+        private final Index<?, V> index;
+
+        /**
+         * The position of the first partner of the row
+         */
+        private final int from;
+
+        /**
+         * The position after the last partner of the row
+         */
+        private final int to;
+
+        /**
+         * The hasher the index was built with
+         */
+        private final KeyHasher hasher;
+
+        /**
+         * Constructs a view of a slice of the partner array
+         *
+         * @param index  the index holding the row
+         * @param from   the position of the first partner of the row
+         * @param to     the position after the last partner of the row
+         * @param hasher the hasher the index was built with
+         */
+        private Row(Index<?, V> index, int from, int to, KeyHasher hasher) {
+            this.index = index;
+            this.from = from;
+            this.to = to;
+            this.hasher = hasher;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o != null && from != to && index.containsPartner(from, to, o, hasher.hash(o));
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return new Iterator<V>() {
+                /**
+                 * The position of the next partner to return
+                 */
+                private int p = from;
+
+                @Override
+                public boolean hasNext() {
+                    return p < to;
+                }
+
+                @Override
+                public V next() {
+                    if (p >= to) {
+                        throw new NoSuchElementException();
+                    }
+                    return cast(index.partners[p++]);
+                }
+            };
+        }
+    }
+}
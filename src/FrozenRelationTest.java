@@ -0,0 +1,123 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrozenRelationTest {
+
+    private HashRelation<String, String> source;
+    private FrozenRelation<String, String> r;
+    private String[] a = {"j", "j", "c", "c", "c", "p", "n", "k", "k", "k"};
+    private String[] b = {"java", "javascript", "c++", "c#", "c", "python", "node", "java", "node", "c"};
+
+    @BeforeEach
+    void setUp() {
+        source = new HashRelation<>();
+        for (int i = 0; i < a.length; i++) {
+            source.put(a[i], b[i]);
+        }
+        r = source.freeze();
+    }
+
+    @Test
+    void contains() {
+        assertTrue(r.contains("j", "java"), "Contains j, java");
+        assertFalse(r.contains("j", "c"), "Does not contain j, c");
+        assertFalse(r.contains("r", "ruby"), "Does not contain r, ruby");
+        assertEquals(a.length, r.size(), "Size");
+    }
+
+    @Test
+    void getAllMatching() {
+        assertEquals(new TreeSet<>(Set.of("c++", "c#", "c")), new TreeSet<>(r.getAllMatchingX("c")), "Matching x");
+        assertEquals(Set.of("c", "k"), r.getAllMatchingY("c"), "Matching y compares equal to any set");
+        assertTrue(r.getAllMatchingX("c").contains("c#"), "Row contains");
+        assertFalse(r.getAllMatchingX("c").contains("java"), "Row does not contain");
+        assertTrue(r.getAllMatchingX("r").isEmpty(), "No row");
+        assertThrows(UnsupportedOperationException.class, () -> r.getAllMatchingX("c").add("go"), "Rows read only");
+    }
+
+    @Test
+    void immutable() {
+        assertThrows(UnsupportedOperationException.class, () -> r.put("r", "ruby"));
+        assertThrows(UnsupportedOperationException.class, () -> r.remove("j", "java"));
+        assertThrows(UnsupportedOperationException.class, () -> r.removeAllMatchingX("j"));
+        assertThrows(UnsupportedOperationException.class, () -> r.removeAllMatchingY("java"));
+        assertThrows(UnsupportedOperationException.class, () -> r.clear());
+        assertThrows(UnsupportedOperationException.class, () -> r.putAll(Collections.emptyList()));
+
+        source.put("r", "ruby");
+        source.removeAllMatchingX("c");
+        assertFalse(r.contains("r", "ruby"), "Unaffected by later puts");
+        assertTrue(r.contains("c", "c#"), "Unaffected by later removes");
+    }
+
+    @Test
+    void cursorAndStreams() {
+        Set<String> expected = new TreeSet<>();
+        for (int i = 0; i < a.length; i++) {
+            expected.add(a[i] + "=" + b[i]);
+        }
+        Set<String> visited = new TreeSet<>();
+        PairCursor<String, String> cursor = r.cursor();
+        assertThrows(IllegalStateException.class, cursor::y, "Not on a pair yet");
+        while (cursor.advance()) {
+            assertTrue(visited.add(cursor.x() + "=" + cursor.y()), "Each pair visited once");
+        }
+        assertFalse(cursor.advance(), "Stays exhausted");
+        assertEquals(expected, visited, "Cursor visits every pair");
+        assertEquals(expected, r.parallelStream().map(Object::toString).collect(Collectors.toSet()), "Stream pairs");
+        assertTrue(r.toString().contains("(j, java)"), "toString in the format of HashRelation");
+    }
+
+    @Test
+    void matchesHashRelation() {
+        Random random = new Random(3);
+        HashRelation<Integer, Integer> h = new HashRelation<>(16, 0.75, KeyHasher.IDENTITY);
+        for (int i = 0; i < 5000; i++) {
+            //a few heavy keys, many light ones, and x values that collide under the identity hasher
+            int x = random.nextInt(10) == 0 ? random.nextInt(4) : random.nextInt(2000) << 16;
+            h.put(x, random.nextInt(300));
+        }
+        FrozenRelation<Integer, Integer> f = h.freeze();
+        assertEquals(h.size(), f.size(), "Size");
+
+        h.stream().forEach(e -> assertTrue(f.contains(e.getKey(), e.getValue()), "Contains " + e));
+        for (int i = 0; i < 2000; i++) {
+            int x = i << 16;
+            assertEquals(h.getAllMatchingX(x), new TreeSet<>(f.getAllMatchingX(x)), "Partners of " + x);
+        }
+        for (int y = 0; y < 300; y++) {
+            assertEquals(h.getAllMatchingY(y), new TreeSet<>(f.getAllMatchingY(y)), "Partners of " + y);
+            assertFalse(f.contains(7 << 16 | 1, y), "Missing x");
+        }
+        assertSame(f, FrozenRelation.copyOf(f, KeyHasher.IDENTITY), "Already frozen with the same hasher");
+
+        FrozenRelation<Integer, Integer> rehashed = FrozenRelation.copyOf(f);
+        assertEquals(f.stream().map(Map.Entry::toString).collect(Collectors.toSet()),
+                rehashed.stream().map(Map.Entry::toString).collect(Collectors.toSet()), "Copy with another hasher");
+        assertEquals(h.getAllMatchingY(5), new TreeSet<>(rehashed.getAllMatchingY(5)), "Copy readable");
+    }
+
+    @Test
+    void collidingKeys() {
+        HashRelation<String, Integer> h = new HashRelation<>(16, 0.75, key -> 42);
+        for (int i = 0; i < 100; i++) {
+            h.put("k" + (i % 30), i);
+        }
+        FrozenRelation<String, Integer> f = h.freeze();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(f.contains("k" + (i % 30), i), "Contains k" + (i % 30) + ", " + i);
+            assertFalse(f.contains("k" + (i % 30), i + 100), "Does not contain " + (i + 100));
+        }
+        assertEquals(4, f.getAllMatchingX("k1").size(), "Row of a colliding key");
+        assertEquals(Set.of("k1"), f.getAllMatchingY(1), "Y side");
+    }
+}
@@ -1,6 +1,35 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A hash table representation of a Relation
@@ -10,7 +39,20 @@ import java.util.TreeSet;
  * This comes with the overhead of increased memory requirements and increased complexity
  * when adding and removing elements from both tables.
  * <p>
- * Each bucket in the hash tables is stored as a linked list
+ * Each bucket in the hash tables is stored as a linked list of groups, one group per distinct key.
+ * A group holds all of the partners of its key in a small hash set of its own, so looking up a key
+ * only ever visits the other keys that collide with it, never their partners.
+ * A key with a single partner, the common case in sparse relations, keeps it inline in its group,
+ * so a pair between two such keys costs two small objects and no arrays
+ * <p>
+ * Keys are hashed by a pluggable KeyHasher, which by default spreads the bits of hashCode so that keys
+ * with poor hash codes still spread out, and the hash is masked down to a power of two number of buckets.
+ * If a bucket's chain grows long anyway, for instance because many keys share a hash code, and its keys
+ * are all of one Comparable class, the chain is indexed by a balanced tree so lookups in it stay O(log n)
+ * <p>
+ * Both tables grow automatically once the number of distinct keys in either exceeds the load factor.
+ * Growing is incremental: the old tables are kept alongside the new ones and a few old buckets
+ * are moved across on every subsequent put, so no single put pays for rehashing the whole relation
  *
  * @param <X> Type of the first item in a pair
  * @param <Y> Type of the second item in a pair
@@ -19,16 +61,121 @@ import java.util.TreeSet;
 public class HashRelation<X, Y> implements Relation<X, Y> {
 
     /**
-     * Hash table X: Array containing (x, y) pairs, using x as the key
+     * Number of buckets used by the no-argument constructor
+     */
+    public static final int DEFAULT_BUCKET_COUNT = 16;
+
+    /**
+     * Load factor used when none is specified
+     */
+    public static final double DEFAULT_LOAD_FACTOR = 0.75;
+
+    /**
+     * Largest number of buckets in a table, the largest power of two an array can hold
+     */
+    private static final int MAXIMUM_BUCKET_COUNT = 1 << 30;
+
+    /**
+     * Length a chain must exceed before it is indexed by a tree
+     */
+    private static final int TREEIFY_THRESHOLD = 8;
+
+    /**
+     * Size below which the tree indexing a chain is dropped again
+     */
+    private static final int UNTREEIFY_THRESHOLD = 6;
+
+    /**
+     * Number of old buckets (in each of the X and Y tables) moved into the new tables on each put while resizing
+     * <p>
+     * The tables double in size, so any value of at least 2 guarantees a resize finishes well before the next one is due
+     */
+    private static final int REHASH_STEP = 4;
+
+    /**
+     * Number of probes of a batched lookup whose buckets are read before any of their chains is walked,
+     * about the number of cache misses a core can have outstanding at once
+     */
+    private static final int PROBE_WINDOW = 16;
+
+    /**
+     * Number of partitions buildParallel splits its input into for each thread of the pool,
+     * so threads that finish early can take work from slower ones
+     */
+    private static final int BUILD_PARTITIONS_PER_THREAD = 4;
+
+    /**
+     * Number of bits of a hash choosing the register of the distinct key sketch used by buildParallel
+     */
+    private static final int SKETCH_BITS = 10;
+
+    /**
+     * Number of registers in the distinct key sketch, giving estimates within about 3%
+     */
+    private static final int SKETCH_REGISTERS = 1 << SKETCH_BITS;
+
+    /**
+     * The first four bytes of a snapshot, "HRSN" in ASCII
+     */
+    private static final int SNAPSHOT_MAGIC = 0x4852534E;
+
+    /**
+     * Version of the snapshot format, increased whenever the format changes
+     */
+    static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Largest number of distinct keys readSnapshot sizes its tables for before any pairs have been read,
+     * so a corrupt header cannot make it allocate more than the stream holds
+     */
+    private static final int SNAPSHOT_PRESIZE_KEYS = 1 << 16;
+
+    /**
+     * Largest number of partners readSnapshot makes room for in a group before they have been read
+     */
+    private static final int SNAPSHOT_PRESIZE_PARTNERS = 1 << 10;
+
+    /**
+     * Nanoseconds the MXBean reuses a RelationStats snapshot for, so one poll of its attributes walks the tables once
+     */
+    private static final long MXBEAN_SNAPSHOT_NANOS = 1_000_000_000L;
+
+    /**
+     * Number of bytes buffered between a snapshot and its stream
+     */
+    private static final int SNAPSHOT_BLOCK_BYTES = 1 << 16;
+
+    /**
+     * Hash table X: Array of groups of (x, y) pairs, using x as the key
      * This array is used as the primary lookup table when adding or removing elements
      */
-    private Pair<X, Y>[] bucketsX;
+    private Group<X, Y>[] bucketsX;
+
+
+    /**
+     * Hash Table Y: Array of groups of (x, y) pairs, using y as the key
+     */
+    private Group<Y, X>[] bucketsY;
+
+
+    /**
+     * The X table from before the current resize, or null if no resize is in progress
+     * <p>
+     * Buckets below rehashIndex have already been moved into bucketsX and are empty
+     */
+    private Group<X, Y>[] oldBucketsX;
+
+
+    /**
+     * The Y table from before the current resize, or null if no resize is in progress
+     */
+    private Group<Y, X>[] oldBucketsY;
 
 
     /**
-     * Hash Table Y: Array containing (x, y) pairs, using y as the key
+     * Index of the next bucket of the old tables to be moved into the new tables
      */
-    private Pair<Y, X>[] bucketsY;
+    private int rehashIndex;
 
 
     /**
@@ -38,20 +185,126 @@ public class HashRelation<X, Y> implements Relation<X, Y> {
 
 
     /**
-     * Number of items currently stored in one of the hash tables
+     * Ratio of distinct keys to buckets above which the tables are grown
+     */
+    private final double loadFactor;
+
+
+    /**
+     * Hashes keys for both tables
+     */
+    private final KeyHasher hasher;
+
+
+    /**
+     * Number of distinct keys in either table above which a resize is started
+     */
+    private int threshold;
+
+
+    /**
+     * Number of pairs currently stored in the relation
      * <p>
      * Note that this number should always be the same for the x and the y tables
      */
     private int size;
 
 
+    /**
+     * Number of distinct x values, i.e. groups in the X table
+     */
+    private int keyCountX;
+
+
+    /**
+     * Number of distinct y values, i.e. groups in the Y table
+     */
+    private int keyCountY;
+
+
+    /**
+     * Number of times pairs have been added to or removed from the relation, or groups moved between tables,
+     * used by the iterators of live views and by cursors to detect concurrent modification
+     */
+    private int modCount;
+
+
+    /**
+     * Operation counts and latencies, or null if metrics are disabled
+     */
+    private RelationMetrics metrics;
+
+
+    /**
+     * The feed every effective change is recorded in, or null if no feed is attached
+     */
+    private ChangeFeed<X, Y> changeFeed;
+
+
+    /**
+     * The tracker of the x values of highest degree, or null if none is attached
+     */
+    private HeavyHitters<X> heavyHittersX;
+
+
+    /**
+     * The tracker of the y values of highest degree, or null if none is attached
+     */
+    private HeavyHitters<Y> heavyHittersY;
+
+
+    /**
+     * Constructs a HashRelation with the default number of buckets and the default load factor
+     */
+    public HashRelation() {
+        this(DEFAULT_BUCKET_COUNT, DEFAULT_LOAD_FACTOR);
+    }
+
+
     /**
      * Constructs a HashRelation with a specified number of buckets in its X and Y hash tables
+     * and the default load factor
      *
      * @param bucketCount number of buckets in the X and Y hash tables
      */
     public HashRelation(int bucketCount) {
-        this.bucketCount = bucketCount;
+        this(bucketCount, DEFAULT_LOAD_FACTOR);
+    }
+
+
+    /**
+     * Constructs a HashRelation with a specified initial number of buckets and load factor
+     * and the default hasher, KeyHasher.MIX
+     *
+     * @param bucketCount initial number of buckets in the X and Y hash tables, rounded up to a power of two
+     * @param loadFactor  ratio of distinct keys to buckets above which the tables are grown
+     * @throws IllegalArgumentException if bucketCount is not positive or loadFactor is not a positive number
+     */
+    public HashRelation(int bucketCount, double loadFactor) {
+        this(bucketCount, loadFactor, KeyHasher.MIX);
+    }
+
+
+    /**
+     * Constructs a HashRelation with a specified initial number of buckets, load factor and hasher
+     * <p>
+     * Use KeyHasher.randomized() for keys that may be chosen by an attacker
+     *
+     * @param bucketCount initial number of buckets in the X and Y hash tables, rounded up to a power of two
+     * @param loadFactor  ratio of distinct keys to buckets above which the tables are grown
+     * @param hasher      the hash function for keys of both tables
+     * @throws IllegalArgumentException if bucketCount is not positive or loadFactor is not a positive number
+     */
+    public HashRelation(int bucketCount, double loadFactor, KeyHasher hasher) {
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("Bucket count must be positive: " + bucketCount);
+        }
+        if (!(loadFactor > 0)) {
+            throw new IllegalArgumentException("Load factor must be positive: " + loadFactor);
+        }
+        this.bucketCount = tableSizeFor(bucketCount);
+        this.loadFactor = loadFactor;
+        this.hasher = hasher;
 
         //instantiate new buckets
         clear();
@@ -61,12 +314,12 @@ public class HashRelation<X, Y> implements Relation<X, Y> {
     /**
      * Requirement 1
      * Returns true if the relation contains the specified pair (x, y)
-     * Hashes x, looks up the bucket hash(x) in the hash table,
-     * then traverses the linked list in the bucket
+     * Hashes x, looks up the group for x in the X table,
+     * then looks y up in the partners of that group
      * <p>
      * Complexity:
-     * Best case: O(1) (1 item in bucket)
-     * Worst case: O(n) (all items in same bucket, specified item is at the end of the linked list)
+     * Best case: O(1) (x is alone in its bucket)
+     * Worst case: O(n) (all distinct x values in the same bucket)
      *
      * @param x the first part of the pair to be matched
      * @param y the second part of the pair to be matched
@@ -74,20 +327,14 @@ public class HashRelation<X, Y> implements Relation<X, Y> {
      */
     @Override
     public boolean contains(X x, Y y) {
-        int hx = hashX(x);
-        Pair<X, Y> curr = bucketsX[hx];
-
-        //traverse the linked list until the item is found or the end of the list is reached
-        while (curr != null) {
-            if (x.equals(curr.k) && y.equals(curr.v)) {
-                //pair is found
-                return true;
-            }
-            curr = curr.next;
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            Group<X, Y> gx = findX(x);
+            return gx != null && gx.contains(y);
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.CONTAINS, start);
         }
-
-        //pair is not found
-        return false;
     }
 
 
@@ -95,33 +342,32 @@ public class HashRelation<X, Y> implements Relation<X, Y> {
      * Requirement 2
      * Given x, returns a set containing all values y such that the relation contains (x, y)
      * <p>
-     * Hashes x, looks up the bucket hash(x) in the X hash table,
-     * then traverses the linked list in the bucket, adding matching y elements to a set
+     * Hashes x, looks up the group for x in the X table,
+     * then adds every partner in that group to a set
      * <p>
      * Complexity:
-     * Best case: O(1) (one item matches x)
-     * Worst case: O(n) (all items match x, hence are in same bucket)
+     * O(k log k) where k is the number of pairs matching x
      *
      * @param x the element to search for in the first half of a pair
      * @return a set containing all values y such that the relation contains (x, y)
      */
     @Override
     public Set<Y> getAllMatchingX(X x) {
-        int hx = hashX(x);
-        Pair<X, Y> curr = bucketsX[hx];
-
-        //create an empty set to store matched Y elements
-        Set<Y> set = new TreeSet<>();
-
-        //traverse the bucket, adding all matching elements to the set
-        while (curr != null) {
-            if (x.equals(curr.k)) {
-                set.add(curr.v);
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            //create an empty set to store matched Y elements
+            Set<Y> set = new TreeSet<>();
+
+            Group<X, Y> gx = findX(x);
+            if (gx != null) {
+                gx.addPartnersTo(set);
             }
-            curr = curr.next;
-        }
 
-        return set;
+            return set;
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.GET_ALL_MATCHING_X, start);
+        }
     }
 
 
@@ -129,353 +375,3340 @@ public class HashRelation<X, Y> implements Relation<X, Y> {
      * Requirement 3
      * Given y, returns a set containing all values x such that the relation contains (x, y)
      * <p>
-     * Hashes y, looks up the bucket hash(y) in the Y hash table,
-     * then traverses the linked list in the bucket, adding matching x elements to a set
+     * Hashes y, looks up the group for y in the Y table,
+     * then adds every partner in that group to a set
      * <p>
      * Complexity:
-     * Best case: O(1) (one item matches y)
-     * Worst case: O(n) (all items match y, hence are in same bucket)
+     * O(k log k) where k is the number of pairs matching y
      *
      * @param y the element to search for in the second half of a pair
      * @return a set containing all values k such that the relation contains (x, y)
      */
     @Override
     public Set<X> getAllMatchingY(Y y) {
-        int hy = hashY(y);
-        Pair<Y, X> curr = bucketsY[hy];
-
-        //create an empty set to store matched Y elements
-        Set<X> set = new TreeSet<>();
-
-        //traverse the bucket, adding all matching elements to the set
-        while (curr != null) {
-            if (y.equals(curr.k)) {
-                set.add(curr.v);
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            //create an empty set to store matched X elements
+            Set<X> set = new TreeSet<>();
+
+            Group<Y, X> gy = findY(y);
+            if (gy != null) {
+                gy.addPartnersTo(set);
             }
-            curr = curr.next;
-        }
 
-        return set;
+            return set;
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.GET_ALL_MATCHING_Y, start);
+        }
     }
 
+
     /**
-     * Requirement 4
-     * Empties the relation by creating new instances of the X and Y pair arrays
+     * Looks up a batch of pairs, returning for each pair (xs[i], ys[i]) whether the relation contains it
+     * <p>
+     * Every x is hashed first. Large batches are then probed in order of their X bucket, so the table is read
+     * from start to end instead of at random, and in windows of PROBE_WINDOW probes: the buckets of a whole window
+     * are read before any chain is walked, so the processor can have all of their cache misses outstanding
+     * at once rather than waiting for each in turn
      * <p>
      * Complexity:
-     * O(1)
+     * O(m) for a batch of m pairs (assuming keys are spread evenly)
+     *
+     * @param xs the first half of each pair to be matched
+     * @param ys the second half of each pair to be matched
+     * @return an array whose element i is true if the relation contains (xs[i], ys[i])
+     * @throws IllegalArgumentException if the arrays have different lengths
      */
     @Override
-    @SuppressWarnings("unchecked")
-    public void clear() {
-        size = 0;
-        bucketsX = (Pair<X, Y>[]) new Pair<?, ?>[bucketCount];
-        bucketsY = (Pair<Y, X>[]) new Pair<?, ?>[bucketCount];
+    public boolean[] containsAll(X[] xs, Y[] ys) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            if (xs.length != ys.length) {
+                throw new IllegalArgumentException("Arrays of x and y have different lengths: "
+                        + xs.length + " and " + ys.length);
+            }
+            Group<X, Y>[] groups = findAll(bucketsX, oldBucketsX, Arrays.asList(xs));
+            boolean[] found = new boolean[xs.length];
+            for (int i = 0; i < xs.length; i++) {
+                found[i] = groups[i] != null && groups[i].contains(ys[i]);
+            }
+            return found;
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.CONTAINS_ALL, start);
+        }
     }
 
 
     /**
-     * Requirement 5
-     * Adds a given pair (x, y) to the relation
+     * Given a batch of x values, returns for each one the set of all values y such that the relation contains (x, y)
      * <p>
-     * Only need to check if element exists in the X table
-     * If it exists in the X table, no need to check the Y table
-     * If it does not exist in the X table, go ahead and add it to both tables without
-     * checking if it exists in the Y table
+     * The groups of every x are found as in containsAll, then each is copied into a sorted set
      * <p>
-     * Best case: O(1) (nothing in target bucket)
-     * Worst case: O(n) (all items in same bucket, have to traverse full tree to check if pair exists)
+     * Complexity:
+     * O(m + k log k) for m values of x with k matching pairs in all
      *
-     * @param x the first half of the pair to be added
-     * @param y the second half of the pair to be added
+     * @param xs the elements to search for in the first half of a pair
+     * @return a map from each distinct x, in the order given, to the values y matching it, empty if there are none
      */
     @Override
-    public void put(X x, Y y) {
-
-        int hx = hashX(x);
-        Pair<X, Y> curr = bucketsX[hx];
-
-        //traverse the bucket, adding all matching elements to the set
-        while (curr != null) {
-            /*
-             Pair is already in the relation, so return immediately without doing anything
-
-             Check both x and y here in case there is a collision
-             hash(x) == hash(x') for pairs P1<x, y> and P2<x', y>,
-             ensuring P2<x', y> does not overwrite P1<x, y>
-             */
-            if (x.equals(curr.k) && y.equals(curr.v)) {
-                return;
-            }
-
-            //traverse the linked list in bucket hash(k)
-            curr = curr.next;
+    public Map<X, Set<Y>> getAllMatchingEachX(Collection<? extends X> xs) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            return matchingEach(findAll(bucketsX, oldBucketsX, new ArrayList<>(xs)), xs);
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.GET_ALL_MATCHING_EACH_X, start);
         }
-
-        // if the pair wasn't found in the table for X, add it to both X and Y tables
-        int hy = hashY(y);
-
-        //add the new pair to the start of the linked list in the appropriate bucket in the X and Y tables
-        bucketsX[hx] = new Pair<>(x, y, bucketsX[hx]);
-        bucketsY[hy] = new Pair<>(y, x, bucketsY[hy]);
-        size++;
     }
 
 
     /**
-     * Get the number of pairs in the relation
+     * Given a batch of y values, returns for each one the set of all values x such that the relation contains (x, y)
+     * <p>
+     * The groups of every y are found as in containsAll, then each is copied into a sorted set
      * <p>
      * Complexity:
-     * O(1)
+     * O(m + k log k) for m values of y with k matching pairs in all
      *
-     * @return the number of items in the X table (size of X and Y tables are the same)
+     * @param ys the elements to search for in the second half of a pair
+     * @return a map from each distinct y, in the order given, to the values x matching it, empty if there are none
      */
     @Override
-    public int size() {
-        return size;
+    public Map<Y, Set<X>> getAllMatchingEachY(Collection<? extends Y> ys) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            return matchingEach(findAll(bucketsY, oldBucketsY, new ArrayList<>(ys)), ys);
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.GET_ALL_MATCHING_EACH_Y, start);
+        }
     }
 
 
     /**
-     * Requirement 6
-     * Removes a given pair (x, y) to the relation
+     * Given x, performs an action on every value y such that the relation contains (x, y), in no particular order
      * <p>
-     * Check the X table first. If the element is found remove it from both tables
-     * If the element is not found in the X table, no need to check the Y table
+     * Hashes x, looks up the group for x in the X table, then passes each partner in the group to the action.
+     * Nothing is allocated, so unlike getAllMatchingX this creates no garbage. The action must not modify the
+     * relation; if it does, a ConcurrentModificationException is thrown once the walk ends
      * <p>
      * Complexity:
-     * Best case: O(1) (only one item in bucket)
-     * Worst case: O(n) (every item in same bucket)
+     * O(k) where k is the number of pairs matching x
      *
-     * @param x the first half of the pair to be removed
-     * @param y the second half of the pair to be removed
-     * @throws NoSuchElementException when trying to remove an element that isn't in the relation
+     * @param x      the element to search for in the first half of a pair
+     * @param action the action to perform on each partner of x
      */
     @Override
-    public void remove(X x, Y y) throws NoSuchElementException {
-
-        int hx = hashX(x);
-        Pair<X, Y> curr = bucketsX[hx], prev = null;
-
-        //flag indicating if pair to be removed has been found
-        boolean found = false;
-
-        //traverse the linked list in the appropriate bucket of the X table for the pair
-        while (curr != null) {
-            if (x.equals(curr.k) && y.equals(curr.v)) {
-                //item was found, so delete it
-                if (prev == null) {
-                    //item to delete is first item in linked list
-                    bucketsX[hx] = curr.next;
-                } else {
-                    //item is not the first in the list
-                    prev.next = curr.next;
-                }
-                size--;
-                found = true;
-
-                //stop searching once specified element is deleted
-                break;
-            }
-            prev = curr;
-            curr = curr.next;
-        }
-
-        if (!found) {
-            //if pair is not in the relation, throw an exception
-            //no need to check the Y table
-            throw new NoSuchElementException();
-        } else {
-            //pair was found and removed from the X table, so remove from Y table as well
-            int hy = hashY(y);
-            Pair<Y, X> currY = bucketsY[hy], prevY = null;
-
-            //traverse the linked list in the appropriate bucket of the Y table for the pair
-            while (currY != null) {
-                if (x.equals(currY.v) && y.equals(currY.k)) {
-                    if (prevY == null) {
-                        //item to delete is first item in linked list
-                        bucketsY[hy] = currY.next;
-                    } else {
-                        //item is not the first in the list
-                        prevY.next = currY.next;
-                    }
-                }
-                prevY = currY;
-                currY = currY.next;
-            }
+    public void forEachMatchingX(X x, Consumer<? super Y> action) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            forEachPartner(findX(x), action);
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.FOR_EACH_MATCHING_X, start);
         }
     }
 
+
     /**
-     * Requirement 7
-     * Given x, removes all pairs(x, y) from the relation
+     * Given y, performs an action on every value x such that the relation contains (x, y), in no particular order
      * <p>
-     * Find the bucket containing pairs with x, and removes all of them matching x
+     * Hashes y, looks up the group for y in the Y table, then passes each partner in the group to the action.
+     * Nothing is allocated. The action must not modify the relation
      * <p>
      * Complexity:
-     * Best case: O(1) (one item in bucket)
-     * Worst case: O(n) (all items in same bucket)
+     * O(k) where k is the number of pairs matching y
      *
-     * @param x the first part of all pairs to be removed
+     * @param y      the element to search for in the second half of a pair
+     * @param action the action to perform on each partner of y
      */
     @Override
-    public void removeAllMatchingX(X x) {
-
-        int hx = hashX(x);
-        Pair<X, Y> curr = bucketsX[hx];
-
-        while (curr != null) {
-            //check x matches, so as to not delete items with x' hashed to same bucket
-            if (x.equals(curr.k)) {
-                remove(curr.k, curr.v);
-            }
-            curr = curr.next;
+    public void forEachMatchingY(Y y, Consumer<? super X> action) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            forEachPartner(findY(y), action);
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.FOR_EACH_MATCHING_Y, start);
         }
     }
 
 
     /**
-     * Requirement 8
-     * Given y, removes all pairs(x, y) from the relation
+     * Given x, performs an action on values y such that the relation contains (x, y) until the action returns false
      * <p>
-     * Find the bucket containing pairs with y, and removes all of them matching y
+     * Walks the group for x as forEachMatchingX does, stopping at the first partner the action rejects.
+     * Timed as forEachMatchingX
      * <p>
      * Complexity:
-     * Best case: O(1) (one item in bucket)
-     * Worst case: O(n) (all items in same bucket)
+     * O(k) where k is the number of pairs matching x
      *
-     * @param y the second part of all pairs to be removed
+     * @param x      the element to search for in the first half of a pair
+     * @param action the action to perform on each partner of x, returning false to stop
+     * @return true if the action was performed on every partner, false if it stopped early
      */
     @Override
-    public void removeAllMatchingY(Y y) {
-        int hy = hashY(y);
-
-        Pair<Y, X> curr = bucketsY[hy];
-        while (curr != null) {
-            //check y matches, so as to not delete items with y' hashed to same bucket
-            if (y.equals(curr.k)) {
-                remove(curr.v, curr.k);
-            }
-            curr = curr.next;
+    public boolean forEachMatchingXWhile(X x, Predicate<? super Y> action) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            return forEachPartnerWhile(findX(x), action);
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.FOR_EACH_MATCHING_X, start);
         }
     }
 
+
     /**
-     * Requirement 9
-     * Renders the relations contents as a string in a readable format
+     * Given y, performs an action on values x such that the relation contains (x, y) until the action returns false
      * <p>
-     * Prints each bucket in the hash table (even if empty), and each linked list in each bucket
+     * Walks the group for y as forEachMatchingY does, stopping at the first partner the action rejects.
+     * Timed as forEachMatchingY
      * <p>
      * Complexity:
-     * O(n) (has to traverse every item in the relation)
+     * O(k) where k is the number of pairs matching y
      *
-     * @return a string representation of the relation
+     * @param y      the element to search for in the second half of a pair
+     * @param action the action to perform on each partner of y, returning false to stop
+     * @return true if the action was performed on every partner, false if it stopped early
      */
     @Override
-    public String toString() {
-
-        StringBuilder sb = new StringBuilder();
-
-        sb.append("\n-- X table --\n");
-        for (int i = 0; i < bucketCount; i++) {
-            Pair<X, Y> p = bucketsX[i];
-
-            sb.append("Bucket ");
-            sb.append(i);
-            sb.append(": [");
-
-            while (p != null) {
-                sb.append(p.toString());
-                sb.append(", ");
-                p = p.next;
-            }
-
-            sb.append("]\n");
-        }
-
-        sb.append("\n-- Y table --\n");
-        for (int i = 0; i < bucketCount; i++) {
-            Pair<Y, X> p = bucketsY[i];
-
-            sb.append("Bucket ");
-            sb.append(i);
-            sb.append(": [");
-
-            while (p != null) {
-                sb.append(p.toString());
-                sb.append(", ");
-                p = p.next;
-            }
-
-            sb.append("]\n");
+    public boolean forEachMatchingYWhile(Y y, Predicate<? super X> action) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            return forEachPartnerWhile(findY(y), action);
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.FOR_EACH_MATCHING_Y, start);
         }
-
-        return sb.toString();
     }
 
+
     /**
-     * The hash function for x
+     * Given x, returns a live read-only view of all values y such that the relation contains (x, y)
+     * <p>
+     * The view reads the partners straight out of the group for x, so nothing is copied or sorted.
+     * Iterating the view while the relation is modified throws a ConcurrentModificationException
+     * <p>
+     * Complexity:
+     * O(1) to create, O(1) for contains and size, O(k) to iterate
      *
-     * @param x the element to be hashed
-     * @return the hashed representation of x
+     * @param x the element to search for in the first half of a pair
+     * @return a live, unmodifiable set of all values y such that the relation contains (x, y)
      */
-    private int hashX(X x) {
-        return Math.abs(x.hashCode() % bucketCount);
+    @Override
+    public Set<Y> viewMatchingX(final X x) {
+        return new PartnerView<Y>() {
+            @Override
+            Group<?, Y> group() {
+                return findX(x);
+            }
+        };
     }
 
+
     /**
-     * The hash function for y
+     * Given y, returns a live read-only view of all values x such that the relation contains (x, y)
+     * <p>
+     * The view reads the partners straight out of the group for y, so nothing is copied or sorted.
+     * Iterating the view while the relation is modified throws a ConcurrentModificationException
+     * <p>
+     * Complexity:
+     * O(1) to create, O(1) for contains and size, O(k) to iterate
      *
-     * @param y the element to be hashed
-     * @return the hashed representation of y
+     * @param y the element to search for in the second half of a pair
+     * @return a live, unmodifiable set of all values x such that the relation contains (x, y)
      */
-    private int hashY(Y y) {
-        return Math.abs(y.hashCode() % bucketCount);
+    @Override
+    public Set<X> viewMatchingY(final Y y) {
+        return new PartnerView<X>() {
+            @Override
+            Group<?, X> group() {
+                return findY(y);
+            }
+        };
     }
 
+
     /**
-     * Static nested class representing the (x, y) pairs
+     * Given x, returns the number of values y such that the relation contains (x, y)
+     * <p>
+     * Reads the size kept by the group for x, so nothing is allocated
+     * <p>
+     * Complexity:
+     * O(1) (assuming keys are spread evenly)
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return the number of pairs matching x, 0 if there are none
+     */
+    @Override
+    public int degreeX(X x) {
+        Group<X, Y> gx = findX(x);
+        return gx == null ? 0 : gx.size;
+    }
+
+
+    /**
+     * Given y, returns the number of values x such that the relation contains (x, y)
+     * <p>
+     * Reads the size kept by the group for y, so nothing is allocated
+     * <p>
+     * Complexity:
+     * O(1) (assuming keys are spread evenly)
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return the number of pairs matching y, 0 if there are none
+     */
+    @Override
+    public int degreeY(Y y) {
+        Group<Y, X> gy = findY(y);
+        return gy == null ? 0 : gy.size;
+    }
+
+    /**
+     * Requirement 4
+     * Empties the relation by creating new instances of the X and Y group arrays
+     * <p>
+     * The relation keeps its current number of buckets, including any growth since it was constructed
+     * <p>
+     * Complexity:
+     * O(1)
+     */
+    @Override
+    public void clear() {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            boolean empty = size == 0;
+            modCount++;
+            size = 0;
+            keyCountX = 0;
+            keyCountY = 0;
+            bucketsX = newTable(bucketCount);
+            bucketsY = newTable(bucketCount);
+            oldBucketsX = null;
+            oldBucketsY = null;
+            rehashIndex = 0;
+            threshold = thresholdFor(bucketCount);
+            if (changeFeed != null && !empty) {
+                changeFeed.record(ChangeFeed.Kind.CLEAR, null, null);
+            }
+            if (heavyHittersX != null) {
+                heavyHittersX.clear();
+            }
+            if (heavyHittersY != null) {
+                heavyHittersY.clear();
+            }
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.CLEAR, start);
+        }
+    }
+
+
+    /**
+     * Requirement 5
+     * Adds a given pair (x, y) to the relation
+     * <p>
+     * Only need to check if element exists in the group for x
+     * If it exists there, no need to check the Y table
+     * If it does not, go ahead and add it to the groups for x and y,
+     * creating either group if it is the first pair for that key
+     * <p>
+     * If a resize is in progress, a few more buckets of the old tables are moved across first.
+     * If the new pair adds a key that takes either table over its load factor, a resize is started
+     * <p>
+     * Best case: O(1) (nothing else in target buckets)
+     * Worst case: O(n) (all distinct keys in same bucket)
+     *
+     * @param x the first half of the pair to be added
+     * @param y the second half of the pair to be added
+     */
+    @Override
+    public void put(X x, Y y) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            if (oldBucketsX != null) {
+                rehashStep(REHASH_STEP);
+            }
+            add(x, y);
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.PUT, start);
+        }
+    }
+
+
+    /**
+     * Adds every pair in a batch to the relation, skipping pairs that are already present
+     * <p>
+     * The tables are grown once, up front, for the distinct keys of the batch. A batch of at least a quarter
+     * as many pairs as there are buckets is then added in order of its X bucket, so each bucket is visited
+     * in one run rather than at random; a smaller batch is added as by put, moving any resize along a step at a time
+     * <p>
+     * Complexity:
+     * O(m) for a batch of m pairs (assuming keys are spread evenly)
+     *
+     * @param pairs the pairs to add, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs added, not counting those already in the relation or repeated in the batch
+     */
+    @Override
+    public int putAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            List<X> xs = new ArrayList<>();
+            List<Y> ys = new ArrayList<>();
+            split(pairs, xs, ys);
+            return putAll(xs, ys);
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.PUT_ALL, start);
+        }
+    }
+
+
+    /**
+     * Adds the pairs (xs[i], ys[i]) to the relation, skipping pairs that are already present
+     * <p>
+     * The tables are grown once, up front, and a large batch is added in order of its X bucket,
+     * as for a batch of entries
+     * <p>
+     * Complexity:
+     * O(m) for a batch of m pairs (assuming keys are spread evenly)
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @return the number of pairs added, not counting those already in the relation or repeated in the arrays
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    @Override
+    public int putAll(X[] xs, Y[] ys) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            if (xs.length != ys.length) {
+                throw new IllegalArgumentException("Arrays of x and y have different lengths: "
+                        + xs.length + " and " + ys.length);
+            }
+            return putAll(Arrays.asList(xs), Arrays.asList(ys));
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.PUT_ALL, start);
+        }
+    }
+
+
+    /**
+     * Removes every pair in a batch from the relation, skipping pairs that are not present
+     * <p>
+     * Each pair is removed with a single lookup of x and of y. A batch of at least a quarter as many pairs
+     * as there are buckets is removed in order of its X bucket, finishing any resize first;
+     * a smaller batch moves a resize along only a step
+     * <p>
+     * Complexity:
+     * O(m) for a batch of m pairs (assuming keys are spread evenly)
+     *
+     * @param pairs the pairs to remove, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            List<X> xs = new ArrayList<>();
+            List<Y> ys = new ArrayList<>();
+            split(pairs, xs, ys);
+            return removeAll(xs, ys);
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.REMOVE_ALL, start);
+        }
+    }
+
+
+    /**
+     * Removes the pairs (xs[i], ys[i]) from the relation, skipping pairs that are not present
+     * <p>
+     * Complexity:
+     * O(m) for a batch of m pairs (assuming keys are spread evenly)
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @return the number of pairs removed
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    @Override
+    public int removeAll(X[] xs, Y[] ys) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            if (xs.length != ys.length) {
+                throw new IllegalArgumentException("Arrays of x and y have different lengths: "
+                        + xs.length + " and " + ys.length);
+            }
+            return removeAll(Arrays.asList(xs), Arrays.asList(ys));
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.REMOVE_ALL, start);
+        }
+    }
+
+
+    /**
+     * Adds a pair to the relation without advancing an incremental resize
+     *
+     * @param x the first half of the pair to be added
+     * @param y the second half of the pair to be added
+     * @return true if the pair was added, false if it was already in the relation
+     */
+    private boolean add(X x, Y y) {
+        int hx = hasher.hash(x);
+        Group<X, Y> gx = findX(x, hx);
+        if (gx == null) {
+            //first pair for x, so start a new group at the head of its bucket
+            gx = new Group<>(x, hx);
+            insertGroup(bucketsX, gx);
+            keyCountX++;
+        } else if (gx.contains(y)) {
+            //pair is already in the relation, so return immediately without doing anything
+            return false;
+        }
+
+        int hy = hasher.hash(y);
+        Group<Y, X> gy = findY(y, hy);
+        if (gy == null) {
+            gy = new Group<>(y, hy);
+            insertGroup(bucketsY, gy);
+            keyCountY++;
+        }
+
+        gx.add(y);
+        gy.add(x);
+        size++;
+        modCount++;
+        if (changeFeed != null) {
+            changeFeed.record(ChangeFeed.Kind.PUT, x, y);
+        }
+        trackX(x, gx.size);
+        trackY(y, gy.size);
+
+        if ((keyCountX > threshold || keyCountY > threshold) && bucketCount < MAXIMUM_BUCKET_COUNT) {
+            startResize(bucketCount * 2);
+        }
+        return true;
+    }
+
+
+    /**
+     * Get the number of pairs in the relation
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @return the number of pairs (the X and Y tables hold the same number)
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns a cursor over every pair in the relation, walking the groups of the X table bucket by bucket
+     * <p>
+     * The cursor fails fast: advance throws ConcurrentModificationException if the relation has been modified
+     * since the cursor was created
+     * <p>
+     * Complexity:
+     * O(n + b) to visit every pair, where b is the number of buckets
+     *
+     * @return a cursor positioned before the first pair
+     */
+    @Override
+    public PairCursor<X, Y> cursor() {
+        return new BucketCursor(0, bucketsX.length + (oldBucketsX == null ? 0 : oldBucketsX.length));
+    }
+
+
+    /**
+     * Returns a sequential stream of every pair in the relation
+     * <p>
+     * The stream is backed by a spliterator over ranges of buckets of the X table,
+     * so nothing is copied up front; only the entry handed to the stream is allocated per pair
+     *
+     * @return a stream of the pairs
+     * @throws ConcurrentModificationException from the terminal operation if the relation is modified
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> stream() {
+        return StreamSupport.stream(new PairSpliterator(), false);
+    }
+
+
+    /**
+     * Returns a parallel stream of every pair in the relation
+     * <p>
+     * The spliterator splits by halving its range of buckets, so each worker scans a contiguous run of buckets.
+     * The relation must not be modified until the terminal operation completes
+     *
+     * @return a parallel stream of the pairs
+     * @throws ConcurrentModificationException from the terminal operation if the relation is modified
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> parallelStream() {
+        return StreamSupport.stream(new PairSpliterator(), true);
+    }
+
+
+    /**
+     * Get the number of buckets in each of the X and Y tables
+     * <p>
+     * While a resize is in progress this is the size of the new tables
+     *
+     * @return the number of buckets in each of the X and Y tables
+     */
+    public int bucketCount() {
+        return bucketCount;
+    }
+
+
+    /**
+     * Get the load factor above which the tables are grown
+     *
+     * @return the load factor of this relation
+     */
+    public double loadFactor() {
+        return loadFactor;
+    }
+
+
+    /**
+     * Starts or stops counting and timing operations
+     * <p>
+     * Metrics are disabled by default, when they cost a single null check per operation.
+     * Enabling them again after disabling starts from zero
+     *
+     * @param enabled true to record metrics
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        if (!enabled) {
+            metrics = null;
+        } else if (metrics == null) {
+            metrics = new RelationMetrics();
+        }
+    }
+
+
+    /**
+     * Returns true if operations are being counted and timed
+     *
+     * @return true if metrics are enabled
+     */
+    public boolean isMetricsEnabled() {
+        return metrics != null;
+    }
+
+
+    /**
+     * Attaches a feed that every effective change to the relation is recorded in from now on,
+     * replacing any feed already attached
+     * <p>
+     * With no feed attached, the default, recording costs a single null check per change.
+     * Changes are recorded on the thread making them, so a feed must not be attached to more than one relation
+     *
+     * @param feed the feed to record changes in, or null to stop recording
+     */
+    public void setChangeFeed(ChangeFeed<X, Y> feed) {
+        changeFeed = feed;
+    }
+
+
+    /**
+     * Get the feed changes to the relation are being recorded in
+     *
+     * @return the attached feed, or null if there is none
+     */
+    public ChangeFeed<X, Y> getChangeFeed() {
+        return changeFeed;
+    }
+
+
+    /**
+     * Attaches a tracker of the x values of highest degree, replacing any tracker already attached
+     * <p>
+     * The tracker is emptied and seeded with the degree of every x in the relation, then told the new degree
+     * of x on every change that alters it. With no tracker attached, the default, this costs a single null check
+     * per change
+     * <p>
+     * Complexity:
+     * O(k) to attach, where k is the number of distinct x values
+     *
+     * @param tracker the tracker to update, or null to stop tracking
+     */
+    public void setHeavyHittersX(HeavyHitters<X> tracker) {
+        heavyHittersX = seed(tracker, bucketsX, oldBucketsX);
+    }
+
+
+    /**
+     * Get the tracker of the x values of highest degree
+     *
+     * @return the attached tracker, or null if there is none
+     */
+    public HeavyHitters<X> getHeavyHittersX() {
+        return heavyHittersX;
+    }
+
+
+    /**
+     * Attaches a tracker of the y values of highest degree, replacing any tracker already attached
+     * <p>
+     * The tracker is emptied and seeded with the degree of every y in the relation, as for setHeavyHittersX
+     *
+     * @param tracker the tracker to update, or null to stop tracking
+     */
+    public void setHeavyHittersY(HeavyHitters<Y> tracker) {
+        heavyHittersY = seed(tracker, bucketsY, oldBucketsY);
+    }
+
+
+    /**
+     * Get the tracker of the y values of highest degree
+     *
+     * @return the attached tracker, or null if there is none
+     */
+    public HeavyHitters<Y> getHeavyHittersY() {
+        return heavyHittersY;
+    }
+
+
+    /**
+     * Sets every operation count and latency back to zero, if metrics are enabled
+     */
+    public void resetMetrics() {
+        if (metrics != null) {
+            metrics.reset();
+        }
+    }
+
+
+    /**
+     * Takes a snapshot of the shape of the tables and, if metrics are enabled, of the operation metrics
+     * <p>
+     * Complexity:
+     * O(b + k) where b is the number of buckets and k the number of distinct keys
+     *
+     * @return the statistics of the relation
+     */
+    public RelationStats stats() {
+        return new RelationStats(size, bucketCount, loadFactor, keyCountX, keyCountY, oldBucketsX != null,
+                chainLengths(bucketsX), chainLengths(bucketsY), metrics == null ? null : metrics.copy());
+    }
+
+
+    /**
+     * Returns a management interface for the relation, to be registered with an MBeanServer
+     * <p>
+     * For example:
+     * <pre>
+     * ManagementFactory.getPlatformMBeanServer().registerMBean(relation.mxBean(),
+     *         new ObjectName("relations:type=HashRelation,name=edges"));
+     * </pre>
+     *
+     * @return an MXBean reading the statistics of this relation
+     */
+    public HashRelationMXBean mxBean() {
+        return new MXBean();
+    }
+
+
+    /**
+     * Writes every pair in the relation to a stream in a compact binary format, to be loaded again by readSnapshot
+     * <p>
+     * Each pair is written once, grouped by x: every distinct x is followed by the number of its partners
+     * and then the partners themselves, with keys in the fixed width encodings given by the codecs.
+     * A header records the format version, the key widths and the number of pairs and distinct keys,
+     * so a reader can size its tables up front. The stream is not closed
+     * <p>
+     * Complexity:
+     * O(n)
+     *
+     * @param out    the stream to write to
+     * @param codecX the encoding of the first item in a pair
+     * @param codecY the encoding of the second item in a pair
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeSnapshot(OutputStream out, KeyCodec<X> codecX, KeyCodec<Y> codecY) throws IOException {
+        SnapshotOutput o = new SnapshotOutput(out, Math.max(codecX.width(), codecY.width()));
+        o.putInt(SNAPSHOT_MAGIC);
+        o.putInt(SNAPSHOT_VERSION);
+        o.putInt(codecX.width());
+        o.putInt(codecY.width());
+        o.putInt(size);
+        o.putInt(keyCountX);
+        o.putInt(keyCountY);
+
+        writeGroups(o, bucketsX, codecX, codecY);
+        if (oldBucketsX != null) {
+            writeGroups(o, oldBucketsX, codecX, codecY);
+        }
+        o.flush();
+    }
+
+
+    /**
+     * Loads a relation written by writeSnapshot
+     * <p>
+     * The tables are sized from the counts in the header, up to a bound, and filled in a single pass,
+     * growing as keys arrive once the bound is passed, so a header claiming more than the stream holds
+     * cannot make the reader allocate for it.
+     * Each y is checked only against the partners of the x it follows, which is the one place a repeated pair
+     * can hide: every x is checked to appear once, so a pair repeated anywhere else would repeat its x
+     * <p>
+     * Complexity:
+     * O(n)
+     *
+     * @param in     the stream to read from; it may be read past the end of the snapshot
+     * @param codecX the encoding of the first item in a pair
+     * @param codecY the encoding of the second item in a pair
+     * @param <X>    Type of the first item in a pair
+     * @param <Y>    Type of the second item in a pair
+     * @return a new relation holding the pairs of the snapshot, with the default load factor
+     * @throws IOException if the stream cannot be read,
+     *                     or does not hold a snapshot written with codecs of the same widths
+     */
+    public static <X, Y> HashRelation<X, Y> readSnapshot(InputStream in, KeyCodec<X> codecX, KeyCodec<Y> codecY)
+            throws IOException {
+        SnapshotInput i = new SnapshotInput(in, Math.max(codecX.width(), codecY.width()));
+        if (i.getInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a relation snapshot");
+        }
+        int version = i.getInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported relation snapshot version " + version);
+        }
+        int widthX = i.getInt(), widthY = i.getInt();
+        if (widthX != codecX.width() || widthY != codecY.width()) {
+            throw new IOException("Relation snapshot was written with keys of " + widthX + " and " + widthY + " bytes");
+        }
+        int size = i.getInt(), keyCountX = i.getInt(), keyCountY = i.getInt();
+        if (size < 0 || keyCountX < 0 || keyCountY < 0 || keyCountX > size || keyCountY > size) {
+            throw new IOException("Relation snapshot is corrupt");
+        }
+
+        //size the tables so every key of a snapshot of moderate size fits without a resize
+        int keys = Math.min(Math.max(keyCountX, keyCountY), SNAPSHOT_PRESIZE_KEYS);
+        HashRelation<X, Y> r = new HashRelation<>(bucketsFor(keys, DEFAULT_LOAD_FACTOR));
+
+        int pairs = 0;
+        for (int k = 0; k < keyCountX; k++) {
+            X x = codecX.read(i.buffer, i.take(widthX));
+            int degree = i.getInt();
+            int hx = r.hasher.hash(x);
+            if (degree <= 0 || degree > size - pairs || r.findX(x, hx) != null) {
+                throw new IOException("Relation snapshot is corrupt");
+            }
+
+            Group<X, Y> gx = new Group<>(x, hx);
+            insertGroup(r.bucketsX, gx);
+            r.keyCountX++;
+            if (r.keyCountX > r.threshold && r.bucketCount < MAXIMUM_BUCKET_COUNT) {
+                r.startResize(r.bucketCount * 2);
+            }
+            gx.reserve(Math.min(degree, SNAPSHOT_PRESIZE_PARTNERS));
+            for (int d = 0; d < degree; d++) {
+                Y y = codecY.read(i.buffer, i.take(widthY));
+                int hy = r.hasher.hash(y);
+                Group<Y, X> gy = r.findY(y, hy);
+                if (gy == null) {
+                    gy = new Group<>(y, hy);
+                    insertGroup(r.bucketsY, gy);
+                    r.keyCountY++;
+                    if (r.keyCountY > r.threshold && r.bucketCount < MAXIMUM_BUCKET_COUNT) {
+                        r.startResize(r.bucketCount * 2);
+                    }
+                }
+                if (!gx.add(y)) {
+                    throw new IOException("Relation snapshot is corrupt");
+                }
+                gy.append(x);
+            }
+            pairs += degree;
+        }
+        if (pairs != size || r.keyCountY != keyCountY) {
+            throw new IOException("Relation snapshot is corrupt");
+        }
+
+        r.size = size;
+        return r;
+    }
+
+
+    /**
+     * Builds a relation from the pairs (xs[i], ys[i]) on the common fork-join pool,
+     * with the default load factor and hasher
+     *
+     * @param xs  the first half of each pair
+     * @param ys  the second half of each pair
+     * @param <X> Type of the first item in a pair
+     * @param <Y> Type of the second item in a pair
+     * @return a new relation holding every distinct pair
+     * @throws IllegalArgumentException if the arrays have different lengths
+     * @throws NullPointerException     if any element of either array is null
+     * @see #buildParallel(Object[], Object[], double, KeyHasher, ForkJoinPool)
+     */
+    public static <X, Y> HashRelation<X, Y> buildParallel(X[] xs, Y[] ys) {
+        return buildParallel(xs, ys, DEFAULT_LOAD_FACTOR, KeyHasher.MIX, ForkJoinPool.commonPool());
+    }
+
+
+    /**
+     * Builds a relation from the pairs (xs[i], ys[i]) using every thread of a fork-join pool
+     * <p>
+     * The pairs are partitioned by the low bits of their hashes. Because the number of buckets is a power of two
+     * at least the number of partitions, each partition owns a disjoint set of buckets, so the partitions are
+     * grouped straight into the tables by separate tasks with no locking. The build makes three parallel passes:
+     * <ol>
+     * <li>hashing every key, counting the pairs of each partition and sketching the number of distinct keys</li>
+     * <li>scattering the pairs into partition order</li>
+     * <li>adding the pairs of each partition of the X and Y tables at once, dropping duplicate pairs</li>
+     * </ol>
+     * The tables are sized from the sketch, which is accurate to a few percent, so they are rarely
+     * more than slightly over the load factor; if they are, an ordinary incremental resize is started
+     * <p>
+     * The result is an ordinary HashRelation, holding the same pairs as one built by putting each pair in turn
+     * <p>
+     * Complexity:
+     * O(n / p) for n pairs on p threads (assuming keys are spread evenly), with O(n) temporary memory
+     *
+     * @param xs         the first half of each pair
+     * @param ys         the second half of each pair
+     * @param loadFactor the load factor of the new relation
+     * @param hasher     the hasher of the new relation
+     * @param pool       the pool to run the build on
+     * @param <X>        Type of the first item in a pair
+     * @param <Y>        Type of the second item in a pair
+     * @return a new relation holding every distinct pair
+     * @throws IllegalArgumentException if the arrays have different lengths or loadFactor is not a positive number
+     * @throws NullPointerException     if any element of either array is null
+     */
+    public static <X, Y> HashRelation<X, Y> buildParallel(final X[] xs, final Y[] ys, double loadFactor,
+                                                          final KeyHasher hasher, ForkJoinPool pool) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("Arrays of x and y have different lengths: "
+                    + xs.length + " and " + ys.length);
+        }
+        if (!(loadFactor > 0)) {
+            throw new IllegalArgumentException("Load factor must be positive: " + loadFactor);
+        }
+        final int n = xs.length;
+        final int partitions = tableSizeFor(pool.getParallelism() * BUILD_PARTITIONS_PER_THREAD);
+        final int mask = partitions - 1;
+
+        //pass 1: hash every key, counting how many pairs of each input chunk fall in each partition
+        final int[] hashesX = new int[n];
+        final int[] hashesY = new int[n];
+        final int[][] countsX = new int[partitions][];
+        final int[][] countsY = new int[partitions][];
+        final byte[][] sketchesX = new byte[partitions][];
+        final byte[][] sketchesY = new byte[partitions][];
+        runTasks(pool, partitions, c -> {
+            int[] cx = new int[partitions];
+            int[] cy = new int[partitions];
+            byte[] sx = new byte[SKETCH_REGISTERS];
+            byte[] sy = new byte[SKETCH_REGISTERS];
+            for (int i = chunkStart(c, n, partitions); i < chunkStart(c + 1, n, partitions); i++) {
+                int hx = hashesX[i] = hasher.hash(xs[i]);
+                int hy = hashesY[i] = hasher.hash(ys[i]);
+                cx[hx & mask]++;
+                cy[hy & mask]++;
+                sketch(sx, hx);
+                sketch(sy, hy);
+            }
+            countsX[c] = cx;
+            countsY[c] = cy;
+            sketchesX[c] = sx;
+            sketchesY[c] = sy;
+        });
+
+        //pass 2: scatter the pairs into partition order, each chunk writing to its own slice of each partition
+        final int[] startsX = toOffsets(countsX);
+        final int[] startsY = toOffsets(countsY);
+        final int[] orderX = new int[n];
+        final int[] orderY = new int[n];
+        runTasks(pool, partitions, c -> {
+            int[] offsetsX = countsX[c];
+            int[] offsetsY = countsY[c];
+            for (int i = chunkStart(c, n, partitions); i < chunkStart(c + 1, n, partitions); i++) {
+                orderX[offsetsX[hashesX[i] & mask]++] = i;
+                orderY[offsetsY[hashesY[i] & mask]++] = i;
+            }
+        });
+
+        //pass 3: add each partition of the X side and of the Y side straight into the tables
+        long keys = Math.max(distinctEstimate(sketchesX), distinctEstimate(sketchesY));
+        final HashRelation<X, Y> r = new HashRelation<>(
+                Math.max(partitions, bucketsFor(Math.min(keys, n), loadFactor)), loadFactor, hasher);
+        final int[] keyCounts = new int[2 * partitions];
+        final int[] pairCounts = new int[partitions];
+        runTasks(pool, 2 * partitions, t -> {
+            if (t < partitions) {
+                pairCounts[t] = addPartition(r.bucketsX, xs, ys, hashesX, orderX, startsX[t], startsX[t + 1],
+                        keyCounts, t);
+            } else {
+                int p = t - partitions;
+                addPartition(r.bucketsY, ys, xs, hashesY, orderY, startsY[p], startsY[p + 1], keyCounts, t);
+            }
+        });
+
+        for (int p = 0; p < partitions; p++) {
+            r.keyCountX += keyCounts[p];
+            r.keyCountY += keyCounts[partitions + p];
+            r.size += pairCounts[p];
+        }
+        if ((r.keyCountX > r.threshold || r.keyCountY > r.threshold) && r.bucketCount < MAXIMUM_BUCKET_COUNT) {
+            r.startResize(r.bucketCount * 2);
+        }
+        return r;
+    }
+
+
+    /**
+     * Copies the relation into an immutable FrozenRelation laid out for fast reads
+     * <p>
+     * The frozen copy uses the same hasher and is unaffected by later changes to this relation
+     * <p>
+     * Complexity:
+     * O(n log n)
+     *
+     * @return an immutable copy of the relation
+     */
+    public FrozenRelation<X, Y> freeze() {
+        return FrozenRelation.copyOf(this, hasher);
+    }
+
+
+    /**
+     * Composes the relation with another, giving every pair (x, z) such that this relation contains (x, y)
+     * and the other contains (y, z) for some y
+     * <p>
+     * The groups of the Y table already hold every x for each y, so this is a hash join with no build phase:
+     * each distinct y is looked up once in the other relation's index by x, and its partners are paired with
+     * every z found
+     * <p>
+     * Complexity:
+     * O(n + m) for n pairs in this relation and m pairs in the result, plus one lookup per distinct y
+     *
+     * @param other the relation to follow this one with
+     * @param <Z>   the type of the second half of the pairs of the other relation
+     * @return a new relation holding the composition
+     */
+    @Override
+    public <Z> HashRelation<X, Z> compose(Relation<Y, Z> other) {
+        HashRelation<X, Z> result = new HashRelation<>(DEFAULT_BUCKET_COUNT, loadFactor, hasher);
+        for (int i = 0; i < bucketsY.length; i++) {
+            composeBucket(bucketsY, i, other, result::put);
+        }
+        if (oldBucketsY != null) {
+            for (int i = 0; i < oldBucketsY.length; i++) {
+                composeBucket(oldBucketsY, i, other, result::put);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Composes the relation with another using every thread of a fork-join pool
+     * <p>
+     * The buckets of the Y table are split between the threads, each joining its own buckets against the other
+     * relation as in {@link #compose(Relation)}. The pairs found are then built into the result with
+     * {@link #buildParallel(Object[], Object[], double, KeyHasher, ForkJoinPool)}.
+     * The other relation is read from several threads at once, so it must be safe for concurrent reads
+     * (as HashRelation is while nothing modifies it), and neither relation may be modified meanwhile
+     * <p>
+     * Complexity:
+     * O((n + m) / p) for n pairs in this relation and m pairs in the result on p threads,
+     * with O(m) temporary memory
+     *
+     * @param other the relation to follow this one with
+     * @param pool  the pool to run the composition on
+     * @param <Z>   the type of the second half of the pairs of the other relation
+     * @return a new relation holding the composition
+     */
+    public <Z> HashRelation<X, Z> compose(final Relation<Y, Z> other, ForkJoinPool pool) {
+        final List<Group<Y, X>[]> tables = new ArrayList<>(2);
+        tables.add(bucketsY);
+        if (oldBucketsY != null) {
+            tables.add(oldBucketsY);
+        }
+        final int tasks = pool.getParallelism() * BUILD_PARTITIONS_PER_THREAD;
+        final List<List<Object>> found = new ArrayList<>(Collections.nCopies(tasks, null));
+        runTasks(pool, tasks, t -> {
+            //pairs are collected flat, x then z, to avoid an entry per pair
+            List<Object> pairs = new ArrayList<>();
+            for (Group<Y, X>[] table : tables) {
+                for (int i = chunkStart(t, table.length, tasks); i < chunkStart(t + 1, table.length, tasks); i++) {
+                    composeBucket(table, i, other, (x, z) -> {
+                        pairs.add(x);
+                        pairs.add(z);
+                    });
+                }
+            }
+            found.set(t, pairs);
+        });
+
+        int n = 0;
+        for (List<Object> pairs : found) {
+            n += pairs.size() / 2;
+        }
+        X[] xs = cast(new Object[n]);
+        Z[] zs = cast(new Object[n]);
+        int k = 0;
+        for (List<Object> pairs : found) {
+            for (int j = 0; j < pairs.size(); j += 2, k++) {
+                xs[k] = cast(pairs.get(j));
+                zs[k] = cast(pairs.get(j + 1));
+            }
+        }
+        return buildParallel(xs, zs, loadFactor, hasher, pool);
+    }
+
+
+    /**
+     * Requirement 6
+     * Removes a given pair (x, y) to the relation
+     * <p>
+     * Check the group for x first. If the pair is found remove it from the groups for x and y,
+     * dropping either group if it becomes empty.
+     * If the pair is not found in the group for x, no need to check the Y table
+     * <p>
+     * Complexity:
+     * Best case: O(1) (x and y alone in their buckets)
+     * Worst case: O(n) (all distinct keys in same bucket)
+     *
+     * @param x the first half of the pair to be removed
+     * @param y the second half of the pair to be removed
+     * @throws NoSuchElementException when trying to remove an element that isn't in the relation
+     */
+    @Override
+    public void remove(X x, Y y) throws NoSuchElementException {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            if (!delete(x, y)) {
+                throw new NoSuchElementException();
+            }
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.REMOVE, start);
+        }
+    }
+
+    /**
+     * Requirement 7
+     * Given x, removes all pairs(x, y) from the relation
+     * <p>
+     * Detaches the group for x from the X table in a single walk of its bucket,
+     * then removes x from the group of each of its partners in the Y table.
+     * Each partner costs one walk of its Y bucket, with no rescanning of the X table
+     * <p>
+     * Complexity:
+     * O(k) where k is the number of pairs matching x (assuming keys are spread evenly)
+     *
+     * @param x the first part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingX(X x) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            int hx = hasher.hash(x);
+            Group<X, Y> gx = detach(bucketsX, x, hx);
+            if (gx == null && oldBucketsX != null) {
+                gx = detach(oldBucketsX, x, hx);
+            }
+            if (gx == null) {
+                return 0;
+            }
+            keyCountX--;
+
+            for (int i = 0; i < gx.slotCount(); i++) {
+                Object y = gx.slot(i);
+                if (y != null) {
+                    removePartnerY(HashRelation.<Y>cast(y), x);
+                }
+            }
+            size -= gx.size;
+            modCount++;
+            if (changeFeed != null) {
+                changeFeed.record(ChangeFeed.Kind.REMOVE_ALL_MATCHING_X, x, null);
+            }
+            trackX(x, 0);
+            return gx.size;
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.REMOVE_ALL_MATCHING_X, start);
+        }
+    }
+
+
+    /**
+     * Requirement 8
+     * Given y, removes all pairs(x, y) from the relation
+     * <p>
+     * Detaches the group for y from the Y table in a single walk of its bucket,
+     * then removes y from the group of each of its partners in the X table.
+     * Each partner costs one walk of its X bucket, with no rescanning of the Y table
+     * <p>
+     * Complexity:
+     * O(k) where k is the number of pairs matching y (assuming keys are spread evenly)
+     *
+     * @param y the second part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingY(Y y) {
+        RelationMetrics m = metrics;
+        long start = startTimer(m);
+        try {
+            int hy = hasher.hash(y);
+            Group<Y, X> gy = detach(bucketsY, y, hy);
+            if (gy == null && oldBucketsY != null) {
+                gy = detach(oldBucketsY, y, hy);
+            }
+            if (gy == null) {
+                return 0;
+            }
+            keyCountY--;
+
+            for (int i = 0; i < gy.slotCount(); i++) {
+                Object x = gy.slot(i);
+                if (x != null) {
+                    removePartnerX(HashRelation.<X>cast(x), y);
+                }
+            }
+            size -= gy.size;
+            modCount++;
+            if (changeFeed != null) {
+                changeFeed.record(ChangeFeed.Kind.REMOVE_ALL_MATCHING_Y, null, y);
+            }
+            trackY(y, 0);
+            return gy.size;
+        } finally {
+            stopTimer(m, RelationMetrics.Operation.REMOVE_ALL_MATCHING_Y, start);
+        }
+    }
+
+    /**
+     * Requirement 9
+     * Renders the relations contents as a string in a readable format
+     * <p>
+     * Prints each bucket in the hash table (even if empty), and each pair in each group in each bucket.
+     * While a resize is in progress the old tables are printed as well
+     * <p>
+     * Complexity:
+     * O(n) (has to traverse every item in the relation)
+     *
+     * @return a string representation of the relation
+     */
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder();
+
+        appendTable(sb, "X table", bucketsX);
+        if (oldBucketsX != null) {
+            appendTable(sb, "X table (resizing)", oldBucketsX);
+        }
+
+        appendTable(sb, "Y table", bucketsY);
+        if (oldBucketsY != null) {
+            appendTable(sb, "Y table (resizing)", oldBucketsY);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Reads the clock if metrics were enabled when an operation started
+     * <p>
+     * Callers read the metrics field once and pass the same value to stopTimer, so an operation is timed
+     * against one clock reading even if metrics are enabled or disabled while it runs
+     *
+     * @param m the metrics of the relation when the operation started, or null if they were disabled
+     * @return the current time in nanoseconds, or 0 if m is null
+     */
+    private static long startTimer(RelationMetrics m) {
+        return m == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Records an operation started at a given time, if metrics were enabled when it started
+     *
+     * @param m     the metrics passed to startTimer
+     * @param op    the operation
+     * @param start the time returned by startTimer
+     */
+    private static void stopTimer(RelationMetrics m, RelationMetrics.Operation op, long start) {
+        if (m != null) {
+            m.record(op, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Tells the tracker of x values the new degree of x, if a tracker is attached
+     *
+     * @param x      the key whose degree changed
+     * @param degree the number of partners x now has
+     */
+    private void trackX(X x, int degree) {
+        if (heavyHittersX != null) {
+            heavyHittersX.update(x, degree);
+        }
+    }
+
+    /**
+     * Tells the tracker of y values the new degree of y, if a tracker is attached
+     *
+     * @param y      the key whose degree changed
+     * @param degree the number of partners y now has
+     */
+    private void trackY(Y y, int degree) {
+        if (heavyHittersY != null) {
+            heavyHittersY.update(y, degree);
+        }
+    }
+
+    /**
+     * Empties a tracker and seeds it with the degree of every key in a table
+     *
+     * @param tracker  the tracker, or null
+     * @param table    the table
+     * @param oldTable the old table if a resize is in progress, or null
+     * @param <K>      the type of the key of the groups
+     * @return the tracker
+     */
+    private static <K> HeavyHitters<K> seed(HeavyHitters<K> tracker, Group<K, ?>[] table, Group<K, ?>[] oldTable) {
+        if (tracker != null) {
+            tracker.clear();
+            int buckets = table.length + (oldTable == null ? 0 : oldTable.length);
+            for (int i = 0; i < buckets; i++) {
+                Group<K, ?> g = i < table.length ? table[i] : oldTable[i - table.length];
+                for (; g != null; g = g.next) {
+                    tracker.update(g.key, g.size);
+                }
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * Counts the buckets of a table by the number of groups chained in them
+     *
+     * @param table the table
+     * @return an array whose element i is the number of buckets holding exactly i groups,
+     * with the longest chain at the last index
+     */
+    private static long[] chainLengths(Group<?, ?>[] table) {
+        long[] counts = new long[1];
+        for (Group<?, ?> g : table) {
+            int length = 0;
+            for (; g != null; g = g.next) {
+                length++;
+            }
+            if (length >= counts.length) {
+                counts = Arrays.copyOf(counts, length + 1);
+            }
+            counts[length]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Writes every group of a table of X groups to a snapshot
+     *
+     * @param o      the snapshot to write to
+     * @param table  the table to write
+     * @param codecX the encoding of the first item in a pair
+     * @param codecY the encoding of the second item in a pair
+     * @param <X>    Type of the first item in a pair
+     * @param <Y>    Type of the second item in a pair
+     * @throws IOException if the stream cannot be written
+     */
+    private static <X, Y> void writeGroups(SnapshotOutput o, Group<X, Y>[] table, KeyCodec<X> codecX,
+                                           KeyCodec<Y> codecY) throws IOException {
+        for (Group<X, Y> g : table) {
+            for (; g != null; g = g.next) {
+                codecX.write(o.buffer, o.take(codecX.width()), g.key);
+                o.putInt(g.size);
+                for (int i = 0; i < g.slotCount(); i++) {
+                    Object partner = g.slot(i);
+                    if (partner != null) {
+                        codecY.write(o.buffer, o.take(codecY.width()), HashRelation.<Y>cast(partner));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs an action on every pair in the relation, in no particular order
+     * <p>
+     * Walks the chains of the X table, and of the old X table during a resize, allocating nothing.
+     * The action must not modify the relation; if it does, a ConcurrentModificationException is thrown
+     * once the walk ends
+     * <p>
+     * Complexity:
+     * O(n + m) for n pairs in m buckets
+     *
+     * @param action the action to perform on each pair
+     */
+    @Override
+    public void forEachPair(BiConsumer<? super X, ? super Y> action) {
+        int expectedModCount = modCount;
+        forEachPair(bucketsX, action);
+        if (oldBucketsX != null) {
+            forEachPair(oldBucketsX, action);
+        }
+        if (modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+    }
+
+    /**
+     * Performs an action on pairs in the relation, in no particular order, until the action returns false
+     * <p>
+     * Walks the tables as forEachPair does, stopping at the first pair the action rejects
+     * <p>
+     * Complexity:
+     * O(n + m) for n pairs in m buckets
+     *
+     * @param action the action to perform on each pair, returning false to stop
+     * @return true if the action was performed on every pair, false if it stopped early
+     */
+    @Override
+    public boolean forEachPairWhile(BiPredicate<? super X, ? super Y> action) {
+        int expectedModCount = modCount;
+        boolean completed = forEachPairWhile(bucketsX, action)
+                && (oldBucketsX == null || forEachPairWhile(oldBucketsX, action));
+        if (modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+        return completed;
+    }
+
+    /**
+     * Performs an action on every partner in a group
+     *
+     * @param g      the group, or null if the key has no partners
+     * @param action the action to perform on each partner
+     * @param <K>    Type of the key of the group
+     * @param <V>    Type of the partners of the key
+     */
+    private <K, V> void forEachPartner(Group<K, V> g, Consumer<? super V> action) {
+        if (g == null) {
+            return;
+        }
+        int expectedModCount = modCount;
+        for (int i = 0; i < g.slotCount(); i++) {
+            Object partner = g.slot(i);
+            if (partner != null) {
+                action.accept(HashRelation.<V>cast(partner));
+            }
+        }
+        if (modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+    }
+
+    /**
+     * Performs an action on partners in a group until the action returns false
+     *
+     * @param g      the group, or null if the key has no partners
+     * @param action the action to perform on each partner, returning false to stop
+     * @param <K>    Type of the key of the group
+     * @param <V>    Type of the partners of the key
+     * @return true if the action was performed on every partner, false if it stopped early
+     */
+    private <K, V> boolean forEachPartnerWhile(Group<K, V> g, Predicate<? super V> action) {
+        if (g == null) {
+            return true;
+        }
+        int expectedModCount = modCount;
+        boolean completed = true;
+        for (int i = 0; completed && i < g.slotCount(); i++) {
+            Object partner = g.slot(i);
+            if (partner != null) {
+                completed = action.test(HashRelation.<V>cast(partner));
+            }
+        }
+        if (modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+        return completed;
+    }
+
+    /**
+     * Performs an action on every pair held in the groups of one table
+     *
+     * @param table  the table to walk
+     * @param action the action to perform on each pair
+     * @param <K>    Type of the keys of the table
+     * @param <V>    Type of the partners of the keys
+     */
+    private static <K, V> void forEachPair(Group<K, V>[] table, BiConsumer<? super K, ? super V> action) {
+        for (Group<K, V> g : table) {
+            for (; g != null; g = g.next) {
+                for (int i = 0; i < g.slotCount(); i++) {
+                    Object partner = g.slot(i);
+                    if (partner != null) {
+                        action.accept(g.key, HashRelation.<V>cast(partner));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Performs an action on pairs held in the groups of one table until the action returns false
+     *
+     * @param table  the table to walk
+     * @param action the action to perform on each pair, returning false to stop
+     * @param <K>    Type of the keys of the table
+     * @param <V>    Type of the partners of the keys
+     * @return true if the action was performed on every pair, false if it stopped early
+     */
+    private static <K, V> boolean forEachPairWhile(Group<K, V>[] table, BiPredicate<? super K, ? super V> action) {
+        for (Group<K, V> g : table) {
+            for (; g != null; g = g.next) {
+                for (int i = 0; i < g.slotCount(); i++) {
+                    Object partner = g.slot(i);
+                    if (partner != null && !action.test(g.key, HashRelation.<V>cast(partner))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Joins the groups of one bucket of a Y table against another relation, passing on every pair (x, z)
+     * such that some y of the bucket has partner x and is paired with z by the other relation
+     *
+     * @param table  the Y table
+     * @param i      the index of the bucket
+     * @param other  the relation to look each y up in by x
+     * @param action the action to perform on each pair (x, z) found
+     * @param <X>    Type of the partners in the table
+     * @param <Y>    Type of the keys of the table
+     * @param <Z>    Type of the second half of the pairs of the other relation
+     */
+    private static <X, Y, Z> void composeBucket(Group<Y, X>[] table, int i, Relation<Y, Z> other,
+                                                BiConsumer<? super X, ? super Z> action) {
+        for (Group<Y, X> g = table[i]; g != null; g = g.next) {
+            Set<Z> zs = other.viewMatchingX(g.key);
+            if (zs.isEmpty()) {
+                continue;
+            }
+            for (int s = 0; s < g.slotCount(); s++) {
+                Object partner = g.slot(s);
+                if (partner != null) {
+                    X x = cast(partner);
+                    for (Z z : zs) {
+                        action.accept(x, z);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends every bucket of a table to a string builder, one bucket per line
+     *
+     * @param sb    the string builder to append to
+     * @param title the heading printed above the table
+     * @param table the table to print
+     */
+    private static void appendTable(StringBuilder sb, String title, Group<?, ?>[] table) {
+        sb.append("\n-- ");
+        sb.append(title);
+        sb.append(" --\n");
+        for (int i = 0; i < table.length; i++) {
+            Group<?, ?> g = table[i];
+
+            sb.append("Bucket ");
+            sb.append(i);
+            sb.append(": [");
+
+            while (g != null) {
+                for (int j = 0; j < g.slotCount(); j++) {
+                    Object partner = g.slot(j);
+                    if (partner != null) {
+                        sb.append("(");
+                        sb.append(g.key);
+                        sb.append(", ");
+                        sb.append(partner);
+                        sb.append("), ");
+                    }
+                }
+                g = g.next;
+            }
+
+            sb.append("]\n");
+        }
+    }
+
+    /**
+     * Finds the group for x in the X table, checking the old X table as well if a resize is in progress
+     *
+     * @param x the key of the group
+     * @return the group for x, or null if the relation has no pairs matching x
+     */
+    private Group<X, Y> findX(X x) {
+        return findX(x, hasher.hash(x));
+    }
+
+    /**
+     * Finds the group for x given its hash, checking the old X table as well if a resize is in progress
+     *
+     * @param x    the key of the group
+     * @param hash the hash of x
+     * @return the group for x, or null if the relation has no pairs matching x
+     */
+    private Group<X, Y> findX(X x, int hash) {
+        Group<X, Y> g = find(bucketsX, x, hash);
+        if (g == null && oldBucketsX != null) {
+            g = find(oldBucketsX, x, hash);
+        }
+        return g;
+    }
+
+    /**
+     * Finds the group for y in the Y table, checking the old Y table as well if a resize is in progress
+     *
+     * @param y the key of the group
+     * @return the group for y, or null if the relation has no pairs matching y
+     */
+    private Group<Y, X> findY(Y y) {
+        return findY(y, hasher.hash(y));
+    }
+
+    /**
+     * Finds the group for y given its hash, checking the old Y table as well if a resize is in progress
+     *
+     * @param y    the key of the group
+     * @param hash the hash of y
+     * @return the group for y, or null if the relation has no pairs matching y
+     */
+    private Group<Y, X> findY(Y y, int hash) {
+        Group<Y, X> g = find(bucketsY, y, hash);
+        if (g == null && oldBucketsY != null) {
+            g = find(oldBucketsY, y, hash);
+        }
+        return g;
+    }
+
+    /**
+     * Finds the groups for a batch of keys in one side of the relation
+     * <p>
+     * The keys are probed in order of their bucket in the new table, PROBE_WINDOW at a time: the heads of
+     * the buckets of a window are all read into an array before any chain is walked, so their loads are
+     * independent of each other and can miss the cache at the same time
+     *
+     * @param table    the table of the side
+     * @param oldTable the old table of the side if a resize is in progress, or null
+     * @param keys     the keys to look up
+     * @param <K>      the type of the key of the groups
+     * @param <V>      the type of the partners in the groups
+     * @return an array whose element i is the group for keys[i], or null if the side has no group for it
+     */
+    private <K, V> Group<K, V>[] findAll(Group<K, V>[] table, Group<K, V>[] oldTable, List<? extends K> keys) {
+        int n = keys.size();
+        int[] hashes = new int[n];
+        for (int i = 0; i < n; i++) {
+            hashes[i] = hasher.hash(keys.get(i));
+        }
+        int[] order = orderByBucket(hashes, n, table.length);
+
+        Group<K, V>[] groups = newTable(n);
+        Group<K, V>[] heads = newTable(PROBE_WINDOW);
+        for (int w = 0; w < n; w += PROBE_WINDOW) {
+            int end = Math.min(w + PROBE_WINDOW, n);
+            for (int j = w; j < end; j++) {
+                heads[j - w] = table[indexFor(hashes[order[j]], table.length)];
+            }
+            for (int j = w; j < end; j++) {
+                int i = order[j];
+                Group<K, V> g = findInChain(heads[j - w], keys.get(i), hashes[i]);
+                if (g == null && oldTable != null) {
+                    g = find(oldTable, keys.get(i), hashes[i]);
+                }
+                groups[i] = g;
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Copies the partners of each group found for a batch of keys into a sorted set
+     *
+     * @param groups the group for each key, or null where there is none
+     * @param keys   the keys, in the order the groups were found in
+     * @param <K>    the type of the key of the groups
+     * @param <V>    the type of the partners in the groups
+     * @return a map from each distinct key, in the order given, to its partners
+     */
+    private static <K, V> Map<K, Set<V>> matchingEach(Group<K, V>[] groups, Collection<? extends K> keys) {
+        Map<K, Set<V>> matches = new LinkedHashMap<>();
+        int i = 0;
+        for (K k : keys) {
+            Group<K, V> g = groups[i++];
+            if (!matches.containsKey(k)) {
+                Set<V> set = new TreeSet<>();
+                if (g != null) {
+                    g.addPartnersTo(set);
+                }
+                matches.put(k, set);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Removes y from the group for x in the X table, dropping the group if it becomes empty
+     * <p>
+     * The pair must be in the relation
+     *
+     * @param x the key of the group
+     * @param y the partner to remove
+     */
+    private void removePartnerX(X x, Y y) {
+        int hx = hasher.hash(x);
+        Group<X, Y> gx = removePartner(bucketsX, x, hx, y);
+        if (gx == null) {
+            gx = removePartner(oldBucketsX, x, hx, y);
+        }
+        if (gx.size == 0) {
+            keyCountX--;
+        }
+        trackX(x, gx.size);
+    }
+
+    /**
+     * Removes x from the group for y in the Y table, dropping the group if it becomes empty
+     * <p>
+     * The pair must be in the relation
+     *
+     * @param y the key of the group
+     * @param x the partner to remove
+     */
+    private void removePartnerY(Y y, X x) {
+        int hy = hasher.hash(y);
+        Group<Y, X> gy = removePartner(bucketsY, y, hy, x);
+        if (gy == null) {
+            gy = removePartner(oldBucketsY, y, hy, x);
+        }
+        if (gy.size == 0) {
+            keyCountY--;
+        }
+        trackY(y, gy.size);
+    }
+
+    /**
+     * Unlinks a group from whichever of the X tables holds it
+     *
+     * @param g the group to unlink
+     */
+    private void unlinkX(Group<X, Y> g) {
+        //only the group at the head of a bucket needs to know which table it is in
+        boolean inNew = g.prev != null || bucketsX[indexFor(g.hash, bucketsX.length)] == g;
+        removeGroup(inNew ? bucketsX : oldBucketsX, g);
+        keyCountX--;
+    }
+
+    /**
+     * Removes a pair from the relation if it is present
+     *
+     * @param x the first half of the pair to be removed
+     * @param y the second half of the pair to be removed
+     * @return true if the pair was removed, false if it was not in the relation
+     */
+    private boolean delete(X x, Y y) {
+        Group<X, Y> gx = findX(x);
+
+        if (gx == null || !gx.remove(y)) {
+            //pair is not in the relation, so no need to check the Y table
+            return false;
+        }
+        if (gx.size == 0) {
+            unlinkX(gx);
+        }
+
+        //pair was found and removed from the X table, so remove from Y table as well
+        removePartnerY(y, x);
+        size--;
+        modCount++;
+        if (changeFeed != null) {
+            changeFeed.record(ChangeFeed.Kind.REMOVE, x, y);
+        }
+        trackX(x, gx.size);
+        return true;
+    }
+
+    /**
+     * Adds the pairs (xs[i], ys[i]) in order of their X bucket, after growing the tables to hold the whole batch
+     * <p>
+     * A batch that might not fit under the current threshold has the distinct keys on each side estimated
+     * with the same sketch as buildParallel, so a batch of few keys with many partners each
+     * does not grow the tables as if every pair brought a new key
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair, the same length as xs
+     * @return the number of pairs added
+     */
+    private int putAll(List<? extends X> xs, List<? extends Y> ys) {
+        int n = xs.size();
+        long newX = n;
+        long newY = n;
+        if (Math.max(keyCountX, keyCountY) + (long) n > threshold) {
+            byte[][] sketchX = {new byte[SKETCH_REGISTERS]};
+            byte[][] sketchY = {new byte[SKETCH_REGISTERS]};
+            for (int i = 0; i < n; i++) {
+                sketch(sketchX[0], hasher.hash(xs.get(i)));
+                sketch(sketchY[0], hasher.hash(ys.get(i)));
+            }
+            newX = Math.min(distinctEstimate(sketchX), n);
+            newY = Math.min(distinctEstimate(sketchY), n);
+        }
+        reserve(Math.max(keyCountX + newX, keyCountY + newY));
+        settleResize(n);
+
+        int added = 0;
+        for (int i : orderByBucket(xs)) {
+            if (oldBucketsX != null) {
+                rehashStep(REHASH_STEP);
+            }
+            if (add(xs.get(i), ys.get(i))) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Removes the pairs (xs[i], ys[i]) that are present, in order of their X bucket
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair, the same length as xs
+     * @return the number of pairs removed
+     */
+    private int removeAll(List<? extends X> xs, List<? extends Y> ys) {
+        settleResize(xs.size());
+        if (oldBucketsX != null) {
+            rehashStep(REHASH_STEP);
+        }
+
+        int removed = 0;
+        for (int i : orderByBucket(xs)) {
+            if (delete(xs.get(i), ys.get(i))) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Splits a batch of pairs into parallel lists of their halves
+     *
+     * @param pairs the pairs, each given as an entry whose key is x and whose value is y
+     * @param xs    the list to add the first half of each pair to
+     * @param ys    the list to add the second half of each pair to
+     * @param <X>   Type of the first item in a pair
+     * @param <Y>   Type of the second item in a pair
+     */
+    private static <X, Y> void split(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs,
+                                     List<X> xs, List<Y> ys) {
+        for (Map.Entry<? extends X, ? extends Y> pair : pairs) {
+            xs.add(pair.getKey());
+            ys.add(pair.getValue());
+        }
+    }
+
+    /**
+     * Orders the indices of a batch of keys by the bucket of the X table each key hashes to
+     * <p>
+     * Uses a counting sort, so is only worthwhile when the batch is not much smaller than the table;
+     * smaller batches are left in their original order. A batch large enough to be sorted must not be ordered
+     * while a resize is in progress; see settleResize
+     *
+     * @param xs the keys
+     * @return the indices of xs, ordered by bucket
+     */
+    private int[] orderByBucket(List<? extends X> xs) {
+        int n = xs.size();
+        if (n < bucketCount / 4) {
+            return orderByBucket(null, n, bucketCount);
+        }
+        int[] hashes = new int[n];
+        for (int i = 0; i < n; i++) {
+            hashes[i] = hasher.hash(xs.get(i));
+        }
+        return orderByBucket(hashes, n, bucketCount);
+    }
+
+    /**
+     * Orders the indices of a batch of hashes by the bucket each hash falls in, in a table of a given size
+     * <p>
+     * Uses a counting sort, so is only worthwhile when the batch is not much smaller than the table;
+     * smaller batches are left in their original order
+     *
+     * @param hashes  the hashes, or null if the batch is known to be small
+     * @param n       the number of hashes
+     * @param buckets the number of buckets in the table
+     * @return the indices of hashes, ordered by bucket
+     */
+    private static int[] orderByBucket(int[] hashes, int n, int buckets) {
+        int[] order = new int[n];
+        if (hashes == null || n < buckets / 4) {
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            return order;
+        }
+
+        int[] bucket = new int[n];
+        int[] start = new int[buckets + 1];
+        for (int i = 0; i < n; i++) {
+            bucket[i] = indexFor(hashes[i], buckets);
+            start[bucket[i] + 1]++;
+        }
+        for (int b = 0; b < buckets; b++) {
+            start[b + 1] += start[b];
+        }
+        for (int i = 0; i < n; i++) {
+            order[start[bucket[i]]++] = i;
+        }
+        return order;
+    }
+
+    /**
+     * Starts growing the tables so they can hold a number of distinct keys on each side without resizing again
+     * <p>
+     * The new tables are filled incrementally, as by put, rather than all at once
+     *
+     * @param keys the number of distinct keys to make room for
+     */
+    private void reserve(long keys) {
+        if (keys <= threshold) {
+            return;
+        }
+
+        int buckets = bucketsFor(keys, loadFactor);
+        if (buckets > bucketCount) {
+            startResize(buckets);
+        }
+    }
+
+    /**
+     * Finishes any resize in progress before a batch large enough to be ordered by bucket
+     * <p>
+     * A batch of at least a quarter as many pairs as there are buckets already costs as much as moving every
+     * old bucket, so finishing the resize at once adds no more than a constant factor to it.
+     * Smaller batches leave the resize to advance a step at a time
+     *
+     * @param n the number of pairs in the batch
+     */
+    private void settleResize(int n) {
+        if (oldBucketsX != null && n >= bucketCount / 4) {
+            rehashStep(oldBucketsX.length);
+        }
+    }
+
+    /**
+     * Grows the tables to a given number of buckets, keeping the current tables as the old tables
+     * to be moved across incrementally by later puts
+     * <p>
+     * If the previous resize has not finished yet it is completed first
+     *
+     * @param buckets the new number of buckets
+     */
+    private void startResize(int buckets) {
+        if (oldBucketsX != null) {
+            rehashStep(oldBucketsX.length);
+        }
+
+        oldBucketsX = bucketsX;
+        oldBucketsY = bucketsY;
+        rehashIndex = 0;
+
+        bucketCount = buckets;
+        bucketsX = newTable(bucketCount);
+        bucketsY = newTable(bucketCount);
+        threshold = thresholdFor(bucketCount);
+    }
+
+    /**
+     * Moves up to a given number of buckets from each of the old tables into the new tables
+     * <p>
+     * The groups are relinked rather than copied, so nothing new is allocated.
+     * Once every old bucket has been moved the old tables are discarded
+     *
+     * @param buckets the maximum number of old buckets to move
+     */
+    private void rehashStep(int buckets) {
+        int end = Math.min(rehashIndex + buckets, oldBucketsX.length);
+        for (int i = rehashIndex; i < end; i++) {
+            transfer(oldBucketsX, i, bucketsX);
+            transfer(oldBucketsY, i, bucketsY);
+        }
+        if (end > rehashIndex) {
+            modCount++;
+        }
+        rehashIndex = end;
+
+        if (rehashIndex == oldBucketsX.length) {
+            oldBucketsX = null;
+            oldBucketsY = null;
+            rehashIndex = 0;
+        }
+    }
+
+    /**
+     * Moves every group in one bucket of a table into the bucket it hashes to in another table
+     * <p>
+     * Any tree indexing the bucket is dropped; the groups are indexed again in their new buckets if needed
+     *
+     * @param from the table to move the groups from
+     * @param i    the index of the bucket to empty
+     * @param to   the table to move the groups into
+     * @param <K>  the type of the key of the groups
+     * @param <V>  the type of the partners in the groups
+     */
+    private static <K, V> void transfer(Group<K, V>[] from, int i, Group<K, V>[] to) {
+        Group<K, V> curr = from[i];
+        from[i] = null;
+
+        while (curr != null) {
+            Group<K, V> next = curr.next;
+            curr.tree = null;
+            insertGroup(to, curr);
+            curr = next;
+        }
+    }
+
+    /**
+     * Finds the group for a key in a table
+     *
+     * @param table the table to search
+     * @param k     the key of the group
+     * @param hash  the hash of k
+     * @param <K>   the type of the key of the groups
+     * @param <V>   the type of the partners in the groups
+     * @return the matching group, or null if the table does not contain it
+     */
+    private static <K, V> Group<K, V> find(Group<K, V>[] table, K k, int hash) {
+        return findInChain(table[indexFor(hash, table.length)], k, hash);
+    }
+
+    /**
+     * Finds the group for a key in the chain of a bucket
+     *
+     * @param curr the group at the head of the bucket, or null if the bucket is empty
+     * @param k    the key of the group
+     * @param hash the hash of k
+     * @param <K>  the type of the key of the groups
+     * @param <V>  the type of the partners in the groups
+     * @return the matching group, or null if the chain does not contain it
+     */
+    private static <K, V> Group<K, V> findInChain(Group<K, V> curr, K k, int hash) {
+        if (curr != null && curr.tree != null) {
+            return curr.tree.get(k);
+        }
+
+        //traverse the linked list until the group is found or the end of the list is reached
+        while (curr != null) {
+            if (curr.hash == hash && k.equals(curr.key)) {
+                return curr;
+            }
+            curr = curr.next;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the group for a key in a table and unlinks it from its bucket
+     *
+     * @param table the table to remove the group from
+     * @param k     the key of the group
+     * @param hash  the hash of k
+     * @param <K>   the type of the key of the groups
+     * @param <V>   the type of the partners in the groups
+     * @return the group that was removed, or null if the table has no group for k
+     */
+    private static <K, V> Group<K, V> detach(Group<K, V>[] table, K k, int hash) {
+        Group<K, V> g = find(table, k, hash);
+        if (g != null) {
+            removeGroup(table, g);
+        }
+        return g;
+    }
+
+    /**
+     * Removes a partner from the group for a key in a table, unlinking the group if it becomes empty
+     *
+     * @param table the table holding the group
+     * @param k     the key of the group
+     * @param hash  the hash of k
+     * @param v     the partner to remove
+     * @param <K>   the type of the key of the groups
+     * @param <V>   the type of the partners in the groups
+     * @return the group for k, or null if the table has no group for k
+     */
+    private static <K, V> Group<K, V> removePartner(Group<K, V>[] table, K k, int hash, V v) {
+        Group<K, V> g = find(table, k, hash);
+        if (g != null) {
+            g.remove(v);
+            if (g.size == 0) {
+                removeGroup(table, g);
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Links a group in at the head of the bucket it hashes to
+     * <p>
+     * If the bucket is indexed by a tree the group is added to the tree. Otherwise, if the chain has grown
+     * past TREEIFY_THRESHOLD, a tree is built for it
+     *
+     * @param table the table to add the group to
+     * @param g     the group, not in any table
+     * @param <K>   the type of the key of the groups
+     * @param <V>   the type of the partners in the groups
+     */
+    private static <K, V> void insertGroup(Group<K, V>[] table, Group<K, V> g) {
+        int h = indexFor(g.hash, table.length);
+        Group<K, V> head = table[h];
+        g.prev = null;
+        g.next = head;
+        table[h] = g;
+        if (head == null) {
+            return;
+        }
+        head.prev = g;
+
+        if (head.tree != null) {
+            if (!head.tree.add(g)) {
+                //the new key cannot be ordered with the others, so fall back to walking the chain
+                head.tree.drop();
+            }
+            return;
+        }
+
+        int length = 0;
+        for (Group<K, V> curr = g; curr != null && length <= TREEIFY_THRESHOLD; curr = curr.next) {
+            length++;
+        }
+        if (length > TREEIFY_THRESHOLD) {
+            TreeIndex.build(g);
+        }
+    }
+
+    /**
+     * Unlinks a group from its bucket in O(1), dropping the tree indexing the bucket once it gets small
+     *
+     * @param table the table holding the group, only used if the group is at the head of its bucket
+     * @param g     the group to remove
+     * @param <K>   the type of the key of the groups
+     * @param <V>   the type of the partners in the groups
+     */
+    private static <K, V> void removeGroup(Group<K, V>[] table, Group<K, V> g) {
+        if (g.tree != null) {
+            g.tree.remove(g);
+        }
+
+        if (g.prev == null) {
+            table[indexFor(g.hash, table.length)] = g.next;
+        } else {
+            g.prev.next = g.next;
+        }
+        if (g.next != null) {
+            g.next.prev = g.prev;
+        }
+        g.next = null;
+        g.prev = null;
+    }
+
+    /**
+     * Creates a new empty table with a given number of buckets
+     *
+     * @param buckets the number of buckets in the table
+     * @param <K>     the type of the key of the groups
+     * @param <V>     the type of the partners in the groups
+     * @return an empty table
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> Group<K, V>[] newTable(int buckets) {
+        return (Group<K, V>[]) new Group<?, ?>[buckets];
+    }
+
+    /**
+     * Calculates the number of distinct keys above which tables of a given size should be grown
+     *
+     * @param buckets the number of buckets in each table
+     * @return the resize threshold
+     */
+    private int thresholdFor(int buckets) {
+        return (int) Math.min(buckets * loadFactor, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Calculates the number of buckets needed to hold a number of distinct keys without exceeding a load factor
+     *
+     * @param keys       the number of distinct keys
+     * @param loadFactor the load factor
+     * @return a power of two number of buckets, at least DEFAULT_BUCKET_COUNT
+     */
+    private static int bucketsFor(long keys, double loadFactor) {
+        return tableSizeFor((int) Math.min(MAXIMUM_BUCKET_COUNT,
+                Math.max(DEFAULT_BUCKET_COUNT, (long) Math.ceil(keys / loadFactor))));
+    }
+
+    /**
+     * Rounds a number of buckets up to a power of two
+     *
+     * @param buckets the number of buckets, at least 1
+     * @return the smallest power of two at least buckets, capped at MAXIMUM_BUCKET_COUNT
+     */
+    private static int tableSizeFor(int buckets) {
+        if (buckets >= MAXIMUM_BUCKET_COUNT) {
+            return MAXIMUM_BUCKET_COUNT;
+        }
+        return buckets <= 1 ? 1 : Integer.highestOneBit(buckets - 1) << 1;
+    }
+
+    /**
+     * Maps a hash to a bucket in a table of a given size
+     *
+     * @param hash    the hash of the key
+     * @param buckets the number of buckets in the table, a power of two
+     * @return the index of the bucket the key belongs in
+     */
+    private static int indexFor(int hash, int buckets) {
+        return hash & (buckets - 1);
+    }
+
+    /**
+     * Runs a number of tasks on a fork-join pool and waits for them all to finish
+     *
+     * @param pool  the pool to run the tasks on
+     * @param tasks the number of tasks
+     * @param task  the task, given the number of the task from 0 to tasks - 1
+     */
+    private static void runTasks(ForkJoinPool pool, int tasks, final IntConsumer task) {
+        final List<ForkJoinTask<?>> all = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            final int id = t;
+            all.add(ForkJoinTask.adapt(() -> task.accept(id)));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(all)));
+    }
+
+    /**
+     * Finds the start of one of a number of equal chunks of an input
+     *
+     * @param chunk  the number of the chunk, or chunks for the end of the input
+     * @param n      the length of the input
+     * @param chunks the number of chunks
+     * @return the index of the first element of the chunk
+     */
+    private static int chunkStart(int chunk, int n, int chunks) {
+        return (int) ((long) n * chunk / chunks);
+    }
+
+    /**
+     * Turns the number of elements each chunk has in each partition into the offset each chunk writes its
+     * elements of each partition from, with the partitions laid out one after another
+     *
+     * @param counts counts[c][p] is the number of elements chunk c has in partition p; replaced by the offsets
+     * @return the offset of the start of each partition, with the total number of elements appended
+     */
+    private static int[] toOffsets(int[][] counts) {
+        int partitions = counts.length;
+        int[] starts = new int[partitions + 1];
+        int offset = 0;
+        for (int p = 0; p < partitions; p++) {
+            starts[p] = offset;
+            for (int[] chunk : counts) {
+                int count = chunk[p];
+                chunk[p] = offset;
+                offset += count;
+            }
+        }
+        starts[partitions] = offset;
+        return starts;
+    }
+
+    /**
+     * Adds a slice of the pairs of a parallel build to one table, whose buckets for the slice
+     * are not touched by any other task
+     *
+     * @param table     the table to add to
+     * @param keys      the key of each pair
+     * @param partners  the partner of each pair
+     * @param hashes    the hash of each key
+     * @param order     the indexes of the pairs, in partition order
+     * @param from      the start of the slice of order
+     * @param to        the end of the slice of order
+     * @param keyCounts receives the number of new groups created, at index task
+     * @param task      the number of the task
+     * @param <K>       the type of the key of the groups
+     * @param <V>       the type of the partners in the groups
+     * @return the number of pairs added, not counting repeated pairs
+     */
+    private static <K, V> int addPartition(Group<K, V>[] table, K[] keys, V[] partners, int[] hashes, int[] order,
+                                           int from, int to, int[] keyCounts, int task) {
+        int groups = 0;
+        int added = 0;
+        for (int k = from; k < to; k++) {
+            int i = order[k];
+            Group<K, V> g = find(table, keys[i], hashes[i]);
+            if (g == null) {
+                g = new Group<>(keys[i], hashes[i]);
+                insertGroup(table, g);
+                groups++;
+            }
+            if (g.add(Objects.requireNonNull(partners[i]))) {
+                added++;
+            }
+        }
+        keyCounts[task] = groups;
+        return added;
+    }
+
+    /**
+     * Records a hash in a HyperLogLog sketch of the number of distinct keys
+     *
+     * @param registers the registers of the sketch, SKETCH_REGISTERS long
+     * @param hash      the hash of a key
+     */
+    private static void sketch(byte[] registers, int hash) {
+        //mix again so hashers that leave the high bits unspread still fill every register
+        int w = KeyHasher.mix(hash);
+        int register = w >>> (32 - SKETCH_BITS);
+        int rank = Integer.numberOfLeadingZeros((w << SKETCH_BITS) | (1 << (SKETCH_BITS - 1))) + 1;
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+    }
+
+    /**
+     * Estimates the number of distinct keys recorded in a set of HyperLogLog sketches
+     *
+     * @param sketches the sketches, each SKETCH_REGISTERS long
+     * @return the estimated number of distinct keys across all of the sketches
+     */
+    private static long distinctEstimate(byte[][] sketches) {
+        int m = SKETCH_REGISTERS;
+        double sum = 0;
+        int zeros = 0;
+        for (int j = 0; j < m; j++) {
+            int rank = 0;
+            for (byte[] s : sketches) {
+                rank = Math.max(rank, s[j]);
+            }
+            sum += Math.scalb(1.0, -rank);
+            if (rank == 0) {
+                zeros++;
+            }
+        }
+        double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            //small counts: count the empty registers instead
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return (long) Math.ceil(estimate);
+    }
+
+    /**
+     * Inner class for the live views returned by viewMatchingX and viewMatchingY
+     * <p>
+     * The group is looked up again on every call rather than held on to,
+     * since groups are dropped when they become empty and recreated when a key is added back
+     *
+     * @param <V> Type of the partners in the view
+     */
+    private abstract class PartnerView<V> extends AbstractSet<V> {
+
+        /**
+         * Finds the group the view reads from
+         *
+         * @return the group, or null if the relation currently has no pairs for the key
+         */
+        abstract Group<?, V> group();
+
+        @Override
+        public boolean contains(Object o) {
+            Group<?, V> g = group();
+            return o != null && g != null && g.contains(HashRelation.<V>cast(o));
+        }
+
+        @Override
+        public int size() {
+            Group<?, V> g = group();
+            return g == null ? 0 : g.size;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            final Group<?, V> g = group();
+            final int slots = g == null ? 0 : g.slotCount();
+            final int expectedModCount = modCount;
+
+            return new Iterator<V>() {
+                /**
+                 * Index of the next occupied slot, or slots once there are none left
+                 */
+                private int i = advance(0);
+
+                @Override
+                public boolean hasNext() {
+                    return i < slots;
+                }
+
+                @Override
+                public V next() {
+                    if (modCount != expectedModCount) {
+                        throw new ConcurrentModificationException();
+                    }
+                    if (i >= slots) {
+                        throw new NoSuchElementException();
+                    }
+                    V v = cast(g.slot(i));
+                    i = advance(i + 1);
+                    return v;
+                }
+
+                /**
+                 * Finds the first occupied slot at or after an index
+                 *
+                 * @param from the index to start searching from
+                 * @return the index of the slot, or slots if there is none
+                 */
+                private int advance(int from) {
+                    while (from < slots && g.slot(from) == null) {
+                        from++;
+                    }
+                    return from;
+                }
+            };
+        }
+    }
+
+    /**
+     * Casts an object taken from the partner slots of a group back to the type of the partners
+     *
+     * @param o   the object to cast
+     * @param <T> the type to cast to
+     * @return the object as a T
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object o) {
+        return (T) o;
+    }
+
+    /**
+     * Inner class for cursors over a range of buckets
+     * <p>
+     * The buckets of the X table and, while a resize is in progress, of the old X table are numbered as one range,
+     * the new table first. The tables are captured when the cursor is created; moving a group between them
+     * counts as a modification, so a cursor never misses or repeats a pair without failing.
+     * A cursor split off another keeps the other's tables and modCount, so both fail on the same modifications
+     */
+    private class BucketCursor implements PairCursor<X, Y> {
+        /**
+         * The X table when the cursor was created
+         */
+        private final Group<X, Y>[] table;
+
+        /**
+         * The old X table when the cursor was created, or null if no resize was in progress
+         */
+        private final Group<X, Y>[] oldTable;
+
+        /**
+         * The number of the bucket after the last one to visit
+         */
+        private final int end;
+
+        /**
+         * The modCount the relation must still have for the cursor to carry on
+         */
+        private final int expectedModCount;
+
+        /**
+         * The number of the next bucket to visit
+         */
+        private int bucket;
+
+        /**
+         * The group the cursor is in, or null before the first pair and between buckets
+         */
+        private Group<X, Y> group;
+
+        /**
+         * The slot of the group holding the current pair
+         */
+        private int slot;
+
+        /**
+         * The second half of the current pair, or null if the cursor is not on a pair
+         */
+        private Y y;
+
+        /**
+         * Constructs a cursor over a range of buckets
+         *
+         * @param start the number of the first bucket to visit
+         * @param end   the number of the bucket after the last one to visit
+         */
+        private BucketCursor(int start, int end) {
+            this.table = bucketsX;
+            this.oldTable = oldBucketsX;
+            this.expectedModCount = modCount;
+            this.bucket = start;
+            this.end = end;
+        }
+
+        /**
+         * Constructs a cursor over a range of buckets of the tables another cursor was created over
+         *
+         * @param origin the cursor whose tables and modCount to keep
+         * @param start  the number of the first bucket to visit
+         * @param end    the number of the bucket after the last one to visit
+         */
+        private BucketCursor(BucketCursor origin, int start, int end) {
+            this.table = origin.table;
+            this.oldTable = origin.oldTable;
+            this.expectedModCount = origin.expectedModCount;
+            this.bucket = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean advance() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            while (true) {
+                if (group != null) {
+                    //look for the next partner in the current group, then move along the chain
+                    for (slot++; slot < group.slotCount(); slot++) {
+                        Object partner = group.slot(slot);
+                        if (partner != null) {
+                            y = cast(partner);
+                            return true;
+                        }
+                    }
+                    group = group.next;
+                } else if (bucket < end) {
+                    group = bucket < table.length ? table[bucket] : oldTable[bucket - table.length];
+                    bucket++;
+                } else {
+                    y = null;
+                    return false;
+                }
+                slot = -1;
+            }
+        }
+
+        @Override
+        public X x() {
+            if (y == null) {
+                throw new IllegalStateException("Cursor is not on a pair");
+            }
+            return group.key;
+        }
+
+        @Override
+        public Y y() {
+            if (y == null) {
+                throw new IllegalStateException("Cursor is not on a pair");
+            }
+            return y;
+        }
+    }
+
+    /**
+     * Inner class for the spliterators behind stream and parallelStream, covering a range of buckets
+     * <p>
+     * Splitting halves the range of buckets that has not been visited yet. Buckets hold similar numbers of keys
+     * when keys are spread evenly, so the estimated size of a split is the size of the relation scaled by
+     * the share of the buckets it covers
+     */
+    private class PairSpliterator implements Spliterator<Map.Entry<X, Y>> {
+        /**
+         * The cursor over this spliterator's range of buckets
+         */
+        private BucketCursor cursor;
+
+        /**
+         * The number of the first bucket of the range
+         */
+        private int start;
+
+        /**
+         * The number of the bucket after the last one of the range
+         */
+        private final int end;
+
+        /**
+         * The estimated number of pairs in the range
+         */
+        private long estimate;
+
+        /**
+         * True if the range covers the whole relation, so its size is exact
+         */
+        private boolean whole;
+
+        /**
+         * True once traversal has begun, after which the range can no longer be split
+         */
+        private boolean started;
+
+        /**
+         * Constructs a spliterator over every bucket
+         */
+        private PairSpliterator() {
+            this.cursor = (BucketCursor) cursor();
+            this.start = 0;
+            this.end = cursor.end;
+            this.estimate = size;
+            this.whole = true;
+        }
+
+        /**
+         * Constructs a spliterator over a range of buckets split off another spliterator
+         *
+         * @param origin   the cursor of the spliterator being split
+         * @param start    the number of the first bucket of the range
+         * @param end      the number of the bucket after the last one of the range
+         * @param estimate the estimated number of pairs in the range
+         */
+        private PairSpliterator(BucketCursor origin, int start, int end, long estimate) {
+            this.cursor = new BucketCursor(origin, start, end);
+            this.start = start;
+            this.end = end;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<X, Y>> action) {
+            started = true;
+            if (!cursor.advance()) {
+                return false;
+            }
+            action.accept(new AbstractMap.SimpleImmutableEntry<>(cursor.x(), cursor.y()));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Map.Entry<X, Y>> action) {
+            started = true;
+            while (cursor.advance()) {
+                action.accept(new AbstractMap.SimpleImmutableEntry<>(cursor.x(), cursor.y()));
+            }
+        }
+
+        @Override
+        public Spliterator<Map.Entry<X, Y>> trySplit() {
+            int mid = (start + end) >>> 1;
+            if (started || mid == start) {
+                return null;
+            }
+            if (cursor.expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            long half = estimate / 2;
+            PairSpliterator prefix = new PairSpliterator(cursor, start, mid, estimate - half);
+            start = mid;
+            cursor = new BucketCursor(cursor, start, end);
+            estimate = half;
+            whole = false;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.DISTINCT | Spliterator.NONNULL | (whole ? Spliterator.SIZED : 0);
+        }
+    }
+
+    /**
+     * Inner class for the MXBean returned by mxBean, reading the attributes of each poll from one shared snapshot
+     */
+    private class MXBean implements HashRelationMXBean {
+        /**
+         * The snapshot the attributes of the current poll are read from, or null if it must be taken again
+         */
+        private RelationStats snapshot;
+
+        /**
+         * When the snapshot was taken, by System.nanoTime
+         */
+        private long takenAt;
+
+        /**
+         * Returns the snapshot of the current poll, taking a new one if the last is older than MXBEAN_SNAPSHOT_NANOS
+         * <p>
+         * Taking a snapshot walks both tables, so a poll reading every attribute walks them once rather than
+         * once per attribute
+         *
+         * @return a recent snapshot of the statistics of the relation
+         */
+        private synchronized RelationStats snapshot() {
+            long now = System.nanoTime();
+            if (snapshot == null || now - takenAt > MXBEAN_SNAPSHOT_NANOS) {
+                snapshot = stats();
+                takenAt = now;
+            }
+            return snapshot;
+        }
+
+        /**
+         * Drops the snapshot, so metrics changed over JMX are seen by the next read
+         */
+        private synchronized void invalidate() {
+            snapshot = null;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public int getBucketCount() {
+            return bucketCount;
+        }
+
+        @Override
+        public double getLoadFactor() {
+            return loadFactor;
+        }
+
+        @Override
+        public double getLoadX() {
+            return snapshot().loadX();
+        }
+
+        @Override
+        public double getLoadY() {
+            return snapshot().loadY();
+        }
+
+        @Override
+        public int getMaxChainLengthX() {
+            return snapshot().maxChainLengthX();
+        }
+
+        @Override
+        public int getMaxChainLengthY() {
+            return snapshot().maxChainLengthY();
+        }
+
+        @Override
+        public long[] getChainLengthsX() {
+            return snapshot().chainLengthsX();
+        }
+
+        @Override
+        public long[] getChainLengthsY() {
+            return snapshot().chainLengthsY();
+        }
+
+        @Override
+        public boolean isMetricsEnabled() {
+            return HashRelation.this.isMetricsEnabled();
+        }
+
+        @Override
+        public void setMetricsEnabled(boolean enabled) {
+            HashRelation.this.setMetricsEnabled(enabled);
+            invalidate();
+        }
+
+        @Override
+        public Map<String, Long> getOperationCounts() {
+            return snapshot().operationCounts();
+        }
+
+        @Override
+        public Map<String, Double> getMeanLatencyNanos() {
+            return snapshot().meanLatencyNanos();
+        }
+
+        @Override
+        public Map<String, Long> getP99LatencyNanos() {
+            return snapshot().latencyPercentileNanos(0.99);
+        }
+
+        @Override
+        public void resetMetrics() {
+            HashRelation.this.resetMetrics();
+            invalidate();
+        }
+
+        @Override
+        public Map<String, Integer> getHeavyHittersX() {
+            return byName(heavyHittersX);
+        }
+
+        @Override
+        public Map<String, Integer> getHeavyHittersY() {
+            return byName(heavyHittersY);
+        }
+
+        /**
+         * Lists the keys of a tracker by their string forms
+         *
+         * @param tracker the tracker, or null
+         * @return the degree of each tracked key, highest first, keyed by the key's string form
+         */
+        private Map<String, Integer> byName(HeavyHitters<?> tracker) {
+            Map<String, Integer> top = new LinkedHashMap<>();
+            if (tracker != null) {
+                for (Map.Entry<?, Integer> e : tracker.top()) {
+                    top.put(String.valueOf(e.getKey()), e.getValue());
+                }
+            }
+            return top;
+        }
+    }
+
+    /**
+     * Buffers the bytes of a snapshot on their way to a stream
+     */
+    private static final class SnapshotOutput {
+        /**
+         * The stream being written to
+         */
+        private final OutputStream out;
+
+        /**
+         * Bytes not yet written to the stream, in little endian order
+         */
+        final ByteBuffer buffer;
+
+        /**
+         * Constructs a buffer for writing to a stream
+         *
+         * @param out     the stream to write to
+         * @param maxItem the largest number of bytes taken at once
+         */
+        SnapshotOutput(OutputStream out, int maxItem) {
+            this.out = out;
+            this.buffer = ByteBuffer.allocate(Math.max(SNAPSHOT_BLOCK_BYTES, maxItem)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Reserves space for an item at the end of the buffer, flushing the buffer first if it is too full
+         *
+         * @param bytes the size of the item
+         * @return the index in the buffer to write the item at
+         * @throws IOException if the stream cannot be written
+         */
+        int take(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            int at = buffer.position();
+            buffer.position(at + bytes);
+            return at;
+        }
+
+        /**
+         * Appends an int to the buffer
+         *
+         * @param value the int to append
+         * @throws IOException if the stream cannot be written
+         */
+        void putInt(int value) throws IOException {
+            buffer.putInt(take(Integer.BYTES), value);
+        }
+
+        /**
+         * Writes everything in the buffer to the stream
+         *
+         * @throws IOException if the stream cannot be written
+         */
+        void flush() throws IOException {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Buffers the bytes of a snapshot read from a stream
+     */
+    private static final class SnapshotInput {
+        /**
+         * The stream being read from
+         */
+        private final InputStream in;
+
+        /**
+         * Bytes read from the stream, in little endian order; those before the position have been used
+         */
+        final ByteBuffer buffer;
+
+        /**
+         * Constructs a buffer for reading from a stream
+         *
+         * @param in      the stream to read from
+         * @param maxItem the largest number of bytes taken at once
+         */
+        SnapshotInput(InputStream in, int maxItem) {
+            this.in = in;
+            this.buffer = ByteBuffer.allocate(Math.max(SNAPSHOT_BLOCK_BYTES, maxItem)).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.limit(0);
+        }
+
+        /**
+         * Takes the next item from the buffer, reading more of the stream first if the item is not all there
+         *
+         * @param bytes the size of the item
+         * @return the index in the buffer to read the item from
+         * @throws IOException if the stream cannot be read
+         * @throws EOFException if the stream ends before the item
+         */
+        int take(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                buffer.compact();
+                while (buffer.position() < bytes) {
+                    int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                    if (n < 0) {
+                        throw new EOFException("Relation snapshot is truncated");
+                    }
+                    buffer.position(buffer.position() + n);
+                }
+                buffer.flip();
+            }
+            int at = buffer.position();
+            buffer.position(at + bytes);
+            return at;
+        }
+
+        /**
+         * Takes the next int from the buffer
+         *
+         * @return the int
+         * @throws IOException if the stream cannot be read
+         */
+        int getInt() throws IOException {
+            return buffer.getInt(take(Integer.BYTES));
+        }
+    }
+
+    /**
+     * A balanced tree indexing the groups of one long chain by key, so finding a group in it is O(log n)
+     * <p>
+     * The chain stays linked as before, so everything that walks buckets is unaffected;
+     * the tree is only consulted to find a group. Every group in the chain points to the tree.
+     * Only built when every key in the chain is of the same Comparable class
+     *
+     * @param <K> the type of the key of the groups
+     * @param <V> the type of the partners in the groups
+     */
+    private static final class TreeIndex<K, V> {
+        /**
+         * The class of every key in the tree
+         */
+        private final Class<?> keyClass;
+
+        /**
+         * The groups of the chain, ordered by the natural ordering of their keys
+         */
+        private final TreeMap<Object, Group<K, V>> groups = new TreeMap<>();
+
+        /**
+         * Constructs an empty tree for keys of one class
+         *
+         * @param keyClass the class of every key
+         */
+        private TreeIndex(Class<?> keyClass) {
+            this.keyClass = keyClass;
+        }
+
+        /**
+         * Builds a tree over a chain, if every key in it is of the same Comparable class
+         * and no two keys compare as equal without being equal
+         *
+         * @param head the first group of the chain
+         * @param <K>  the type of the key of the groups
+         * @param <V>  the type of the partners in the groups
+         */
+        static <K, V> void build(Group<K, V> head) {
+            Class<?> c = head.key.getClass();
+            if (!Comparable.class.isAssignableFrom(c)) {
+                return;
+            }
+            TreeIndex<K, V> t = new TreeIndex<>(c);
+            for (Group<K, V> g = head; g != null; g = g.next) {
+                if (!t.add(g)) {
+                    t.drop();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Adds a group to the tree
+         *
+         * @param g the group
+         * @return true if the group was added, false if its key cannot be ordered with the others
+         */
+        boolean add(Group<K, V> g) {
+            if (g.key.getClass() != keyClass) {
+                return false;
+            }
+            Group<K, V> clash = groups.putIfAbsent(g.key, g);
+            if (clash != null) {
+                //the key compares equal to another key without being equal to it
+                return false;
+            }
+            g.tree = this;
+            return true;
+        }
+
+        /**
+         * Finds the group for a key
+         *
+         * @param k the key
+         * @return the group, or null if the chain has no group for k
+         */
+        Group<K, V> get(Object k) {
+            if (k.getClass() != keyClass) {
+                return null;
+            }
+            Group<K, V> g = groups.get(k);
+            return g != null && g.key.equals(k) ? g : null;
+        }
+
+        /**
+         * Removes a group from the tree, dropping the tree once the chain is short again
+         *
+         * @param g the group
+         */
+        void remove(Group<K, V> g) {
+            groups.remove(g.key);
+            g.tree = null;
+            if (groups.size() < UNTREEIFY_THRESHOLD) {
+                drop();
+            }
+        }
+
+        /**
+         * Stops indexing the chain, leaving its groups to be found by walking it
+         */
+        void drop() {
+            for (Group<K, V> g : groups.values()) {
+                g.tree = null;
+            }
+            groups.clear();
+        }
+    }
+
+    /**
+     * Static nested class representing all of the pairs sharing one key
+     * <p>
+     * The partners of the key are kept in an open addressing hash set using linear probing,
+     * so membership tests, additions and removals are O(1) on average however many partners the key has.
+     * The set is only allocated once the group gets a second partner; until then its only partner is held
+     * in a field of the group. Code outside the group walks the partners with slotCount and slot,
+     * which cover both layouts
      *
-     * @param <X> Type of the first item in the pair
-     * @param <Y> Type of the second item in the pair
+     * @param <K> Type of the key shared by the pairs
+     * @param <V> Type of the partners of the key
      */
-    private static class Pair<X, Y> {
+    private static class Group<K, V> {
+        /**
+         * Number of slots in the partner set allocated when a group gets its second partner
+         */
+        private static final int INITIAL_CAPACITY = 4;
+
+        /**
+         * The key shared by every pair in the group
+         */
+        final K key;
+
+        /**
+         * The hash of the key, kept so the group can be moved and unlinked without hashing the key again
+         */
+        final int hash;
+
+        /**
+         * The next group in the linked list
+         */
+        Group<K, V> next;
+
+        /**
+         * The previous group in the linked list, or null if this group is at the head of its bucket
+         */
+        Group<K, V> prev;
+
+        /**
+         * The tree indexing every group in this group's bucket, or null if the bucket is not indexed by a tree
+         */
+        TreeIndex<K, V> tree;
+
+        /**
+         * The only partner of the key while the partner set is unallocated, or null if it has none
+         */
+        private Object single;
+
+        /**
+         * Slots of the partner set, or null until the group has had two partners; empty slots are null.
+         * The length is always a power of two
+         */
+        private Object[] partners;
+
+        /**
+         * Number of partners in the group
+         */
+        int size;
+
+        /**
+         * Constructs an empty group for a key, not yet linked into a table
+         *
+         * @param key  the key shared by the pairs in the group
+         * @param hash the hash of the key
+         */
+        private Group(K key, int hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+
+        /**
+         * Returns true if the group contains a partner
+         *
+         * @param v the partner to look for
+         * @return true if (key, v) is in the group
+         */
+        boolean contains(V v) {
+            if (partners == null) {
+                return v.equals(single);
+            }
+            return slotOf(v) >= 0;
+        }
+
+        /**
+         * Get the number of slots that may hold partners
+         *
+         * @return the number of slots, each of which may be empty
+         */
+        int slotCount() {
+            return partners == null ? 1 : partners.length;
+        }
+
+        /**
+         * Get the partner in a slot
+         *
+         * @param i the index of the slot, less than slotCount
+         * @return the partner, or null if the slot is empty
+         */
+        Object slot(int i) {
+            return partners == null ? single : partners[i];
+        }
+
+        /**
+         * Adds a partner to the group, growing the partner set if it would become more than three quarters full
+         *
+         * @param v the partner to add
+         * @return true if the partner was added, false if it was already in the group
+         */
+        boolean add(V v) {
+            if (contains(v)) {
+                return false;
+            }
+            append(v);
+            return true;
+        }
+
+        /**
+         * Grows the partner set so it can hold a number of partners without growing again
+         *
+         * @param capacity the number of partners to make room for
+         */
+        void reserve(int capacity) {
+            if (partners == null && capacity <= 1) {
+                return;
+            }
+            int current = partners == null ? 0 : partners.length;
+            int slots = Math.max(current, INITIAL_CAPACITY);
+            while (capacity * 4L > slots * 3L) {
+                slots *= 2;
+            }
+            if (slots != current) {
+                resize(slots);
+            }
+        }
+
+        /**
+         * Adds a partner known not to be in the group yet, skipping the membership test add makes
+         *
+         * @param v the partner to add
+         */
+        void append(V v) {
+            if (partners == null) {
+                if (single == null) {
+                    single = v;
+                    size++;
+                    return;
+                }
+                resize(INITIAL_CAPACITY);
+            } else if ((size + 1) * 4 > partners.length * 3) {
+                grow();
+            }
+            insert(partners, v);
+            size++;
+        }
+
+        /**
+         * Removes a partner from the group
+         * <p>
+         * Later entries in the same probe sequence are shifted back into the freed slot,
+         * so lookups never need to skip over deleted slots
+         *
+         * @param v the partner to remove
+         * @return true if the partner was removed, false if it was not in the group
+         */
+        boolean remove(V v) {
+            if (partners == null) {
+                if (!v.equals(single)) {
+                    return false;
+                }
+                single = null;
+                size--;
+                return true;
+            }
+
+            int i = slotOf(v);
+            if (i < 0) {
+                return false;
+            }
+
+            int mask = partners.length - 1;
+            int gap = i;
+            int j = (i + 1) & mask;
+            while (partners[j] != null) {
+                int home = slotFor(partners[j], mask);
+                //move the entry at j into the gap unless its home slot lies cyclically in (gap, j]
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    partners[gap] = partners[j];
+                    gap = j;
+                }
+                j = (j + 1) & mask;
+            }
+            partners[gap] = null;
+            size--;
+            return true;
+        }
+
+        /**
+         * Adds every partner in the group to a set
+         *
+         * @param set the set to add the partners to
+         */
+        void addPartnersTo(Set<V> set) {
+            for (int i = 0; i < slotCount(); i++) {
+                Object p = slot(i);
+                if (p != null) {
+                    set.add(cast(p));
+                }
+            }
+        }
+
         /**
-         * The first item in the pair
+         * Finds the slot holding a partner
+         *
+         * @param v the partner to look for
+         * @return the index of the slot holding v, or -1 if v is not in the group
          */
-        X k;
+        private int slotOf(Object v) {
+            int mask = partners.length - 1;
+            int i = slotFor(v, mask);
+            Object p;
+            while ((p = partners[i]) != null) {
+                if (v.equals(p)) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
 
         /**
-         * The second item in the pair
+         * Doubles the number of slots in the partner set
          */
-        Y v;
+        private void grow() {
+            resize(partners.length * 2);
+        }
 
         /**
-         * The next item in the linked list
+         * Rehashes the partners into a given number of slots, moving an inline partner into the partner set
+         *
+         * @param slots the new number of slots, a power of two
          */
-        Pair<X, Y> next;
+        private void resize(int slots) {
+            Object[] old = partners;
+            partners = new Object[slots];
+            if (old == null) {
+                if (single != null) {
+                    insert(partners, single);
+                    single = null;
+                }
+                return;
+            }
+            for (Object p : old) {
+                if (p != null) {
+                    insert(partners, p);
+                }
+            }
+        }
 
         /**
-         * Constructs a pair with the specified elements
+         * Inserts a partner into the first free slot of its probe sequence
          *
-         * @param k    the first item in the pair
-         * @param v    the second item in the pair
-         * @param next the next item in the linked list
+         * @param slots the slots to insert into
+         * @param v     the partner to insert
          */
-        private Pair(X k, Y v, Pair<X, Y> next) {
-            this.k = k;
-            this.v = v;
-            this.next = next;
+        private static void insert(Object[] slots, Object v) {
+            int mask = slots.length - 1;
+            int i = slotFor(v, mask);
+            while (slots[i] != null) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = v;
         }
 
         /**
-         * Returns a string representation of the pair
+         * The home slot of a partner, spreading the high bits of its hash code into the low bits
          *
-         * @return a string representation of the pair
+         * @param v    the partner
+         * @param mask the number of slots minus one
+         * @return the index of the first slot to probe for v
          */
-        public String toString() {
-            return "(" + k.toString() + ", " + v.toString() + ")";
+        private static int slotFor(Object v, int mask) {
+            int h = v.hashCode();
+            return (h ^ (h >>> 16)) & mask;
         }
     }
 }
@@ -0,0 +1,105 @@
+import java.util.Map;
+
+/**
+ * Management interface exposing the statistics of a HashRelation over JMX
+ * <p>
+ * Obtain one from HashRelation.mxBean() and register it with an MBeanServer. The attributes other than the size
+ * and bucket count are read from a RelationStats snapshot that is reused for up to a second, so a monitoring poll
+ * reading every attribute walks the tables once and sees one consistent snapshot; changing the metrics through
+ * this interface takes a new one. HashRelation is not thread safe, so values read while another thread is
+ * modifying the relation are approximate
+ *
+ * @author Matthew Smith
+ * @see RelationStats
+ */
+public interface HashRelationMXBean {
+
+    /**
+     * @return the number of pairs in the relation
+     */
+    int getSize();
+
+    /**
+     * @return the number of buckets in each of the X and Y tables
+     */
+    int getBucketCount();
+
+    /**
+     * @return the load factor the tables are grown at
+     */
+    double getLoadFactor();
+
+    /**
+     * @return the number of distinct x values per bucket
+     */
+    double getLoadX();
+
+    /**
+     * @return the number of distinct y values per bucket
+     */
+    double getLoadY();
+
+    /**
+     * @return the most distinct x values in any one bucket
+     */
+    int getMaxChainLengthX();
+
+    /**
+     * @return the most distinct y values in any one bucket
+     */
+    int getMaxChainLengthY();
+
+    /**
+     * @return element i is the number of X buckets holding exactly i distinct x values
+     */
+    long[] getChainLengthsX();
+
+    /**
+     * @return element i is the number of Y buckets holding exactly i distinct y values
+     */
+    long[] getChainLengthsY();
+
+    /**
+     * @return true if operations are being counted and timed
+     */
+    boolean isMetricsEnabled();
+
+    /**
+     * Starts or stops counting and timing operations
+     *
+     * @param enabled true to record metrics
+     */
+    void setMetricsEnabled(boolean enabled);
+
+    /**
+     * @return the number of times each operation has been performed
+     */
+    Map<String, Long> getOperationCounts();
+
+    /**
+     * @return the mean latency of each operation in nanoseconds
+     */
+    Map<String, Double> getMeanLatencyNanos();
+
+    /**
+     * @return an upper bound on the 99th percentile latency of each operation in nanoseconds
+     */
+    Map<String, Long> getP99LatencyNanos();
+
+    /**
+     * Sets every operation count and latency back to zero
+     */
+    void resetMetrics();
+
+    /**
+     * @return the x values of highest degree, in descending order of degree, each given by its string form;
+     * empty if no tracker is attached
+     */
+    Map<String, Integer> getHeavyHittersX();
+
+    /**
+     * @return the y values of highest degree, in descending order of degree, each given by its string form;
+     * empty if no tracker is attached
+     */
+    Map<String, Integer> getHeavyHittersY();
+}
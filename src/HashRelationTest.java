@@ -1,9 +1,33 @@
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -81,10 +105,12 @@ class HashRelationTest {
         assertTrue(r.contains("j", "javascript"), "RemoveAllWithX before 2");
         assertTrue(r.contains("c", "c"), "RemoveAllWithX before 3");
 
-        r.removeAllMatchingX("j");
+        assertEquals(2, r.removeAllMatchingX("j"), "RemoveAllWithX count");
         assertFalse(r.contains("j", "java"), "RemoveAllWithX after");
         assertFalse(r.contains("j", "javascript"), "RemoveAllWithX after 2");
         assertTrue(r.contains("c", "c"), "RemoveAllWithX after 3");
+        assertEquals(0, r.removeAllMatchingX("j"), "RemoveAllWithX count nothing matches");
+        assertEquals(a.length - 2, r.size(), "RemoveAllWithX size");
     }
 
     @Test
@@ -93,10 +119,12 @@ class HashRelationTest {
         assertTrue(r.contains("k", "java"), "RemoveAllWithY before 2");
         assertTrue(r.contains("c", "c"), "RemoveAllWithY before 3");
 
-        r.removeAllMatchingY("java");
+        assertEquals(2, r.removeAllMatchingY("java"), "RemoveAllWithY count");
         assertFalse(r.contains("j", "java"), "RemoveAllWithY before");
         assertFalse(r.contains("k", "java"), "RemoveAllWithY before 2");
         assertTrue(r.contains("c", "c"), "RemoveAllWithY after 3");
+        assertEquals(0, r.removeAllMatchingY("java"), "RemoveAllWithY count nothing matches");
+        assertEquals(a.length - 2, r.size(), "RemoveAllWithY size");
     }
 
     @Test
@@ -109,4 +137,822 @@ class HashRelationTest {
         r.remove("g", "groovy");
         assertEquals(r.size(), a.length, "Size - 1");
     }
+
+    @Test
+    void smallBatchesKeepResizeIncremental() {
+        HashRelation<Integer, Integer> h = new HashRelation<>(1024);
+        for (int i = 0; i < 760; i++) {
+            h.put(i, i);
+        }
+        assertFalse(h.stats().isResizing(), "Within threshold");
+        Integer[] xs = new Integer[20];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = 1000 + i;
+        }
+        assertEquals(20, h.putAll(xs, xs), "Small batch added");
+        assertTrue(h.stats().isResizing(), "Growth for a small batch is left to finish incrementally");
+        assertEquals(0, h.removeAll(new Integer[]{-1}, new Integer[]{-1}), "Nothing to remove");
+        assertTrue(h.stats().isResizing(), "Small removal only steps the resize");
+        assertTrue(h.contains(5, 5) && h.contains(1019, 1019), "Pairs found on both sides of the resize");
+
+        Integer[] large = new Integer[h.bucketCount() / 4];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = i;
+        }
+        assertEquals(large.length, h.removeAll(large, large), "Large batch removed");
+        assertFalse(h.stats().isResizing(), "Resize finished before a batch ordered by bucket");
+        assertEquals(780 - large.length, h.size(), "Size after batches");
+    }
+
+    @Test
+    void growsPastLoadFactor() {
+        HashRelation<Integer, Integer> h = new HashRelation<>(2, 0.75);
+        int n = 10000;
+        for (int i = 0; i < n; i++) {
+            h.put(i, i % 7);
+        }
+
+        assertEquals(n, h.size(), "Size after growth");
+        assertTrue(h.bucketCount() * h.loadFactor() >= n, "Buckets grown to load factor");
+        for (int i = 0; i < n; i++) {
+            assertTrue(h.contains(i, i % 7), "Contains after growth " + i);
+        }
+        assertEquals(n / 7 + 1, h.getAllMatchingY(0).size(), "getAllMatchingY after growth");
+
+        for (int i = 0; i < n; i += 2) {
+            h.remove(i, i % 7);
+        }
+        assertEquals(n / 2, h.size(), "Size after removing during growth");
+        assertFalse(h.contains(0, 0), "Removed during growth");
+        assertTrue(h.contains(1, 1), "Kept during growth");
+    }
+
+    @Test
+    void invalidConstructorArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new HashRelation<String, String>(0));
+        assertThrows(IllegalArgumentException.class, () -> new HashRelation<String, String>(16, 0));
+    }
+
+    @Test
+    void highDegreeKeys() {
+        HashRelation<Integer, Integer> h = new HashRelation<>();
+        int n = 5000;
+        for (int i = 0; i < n; i++) {
+            h.put(-1, i);
+            h.put(i, -2);
+        }
+        h.put(-1, -2);
+
+        assertEquals(2 * n + 1, h.size(), "Size with high degree keys");
+        assertEquals(n + 1, h.getAllMatchingX(-1).size(), "getAllMatchingX high degree");
+        assertTrue(h.contains(-1, n - 1), "Contains high degree x");
+        assertFalse(h.contains(-1, n), "Does not contain high degree x");
+
+        assertEquals(n + 1, h.removeAllMatchingX(-1), "Removed count high degree x");
+        assertEquals(n, h.size(), "Size after removing high degree x");
+        assertTrue(h.getAllMatchingY(0).isEmpty(), "Partner group dropped");
+        assertEquals(n, h.getAllMatchingY(-2).size(), "Other high degree key untouched");
+
+        for (int i = 0; i < n; i += 3) {
+            h.remove(i, -2);
+        }
+        for (int i = 0; i < n; i++) {
+            assertEquals(i % 3 != 0, h.contains(i, -2), "Contains after removal " + i);
+        }
+    }
+
+    @Test
+    void viewMatchingX() {
+        Set<String> view = r.viewMatchingX("j");
+        Set<String> s = new TreeSet<>();
+        s.add("java");
+        s.add("javascript");
+        assertEquals(s, view, "viewMatchingX equal");
+
+        r.put("j", "jython");
+        assertTrue(view.contains("jython"), "viewMatchingX is live");
+        assertEquals(3, view.size(), "viewMatchingX live size");
+
+        r.removeAllMatchingX("j");
+        assertTrue(view.isEmpty(), "viewMatchingX empty after removal");
+        assertThrows(UnsupportedOperationException.class, () -> view.add("java"), "viewMatchingX read only");
+    }
+
+    @Test
+    void viewMatchingY() {
+        Set<String> view = r.viewMatchingY("node");
+        Set<String> s = new TreeSet<>();
+        s.add("n");
+        s.add("k");
+        assertEquals(s, view, "viewMatchingY equal");
+        assertTrue(r.viewMatchingY("ruby").isEmpty(), "viewMatchingY no matches");
+
+        Iterator<String> it = view.iterator();
+        it.next();
+        r.put("z", "node");
+        assertThrows(ConcurrentModificationException.class, it::next, "viewMatchingY fails fast");
+    }
+
+    @Test
+    void snapshotMatchingX() {
+        Relation<Object, Object> h = new HashRelation<>();
+        Object a = new Object(), b = new Object();
+        h.put(a, b);
+
+        Set<Object> snapshot = h.snapshotMatchingX(a);
+        assertTrue(snapshot.contains(b), "snapshotMatchingX without Comparable");
+
+        h.remove(a, b);
+        assertEquals(1, snapshot.size(), "snapshotMatchingX is a copy");
+    }
+
+    @Test
+    void snapshotRoundTrip() throws IOException {
+        HashRelation<Integer, Integer> h = new HashRelation<>(2);
+        for (int i = 0; i < 5000; i++) {
+            h.put(i % 37, i % 101);
+        }
+        h.remove(0, 0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        h.writeSnapshot(out, KeyCodec.INT, KeyCodec.INT);
+        byte[] bytes = out.toByteArray();
+        assertEquals(28 + 37 * 8 + h.size() * 4, bytes.length, "Each pair written once");
+
+        HashRelation<Integer, Integer> loaded = HashRelation.readSnapshot(new ByteArrayInputStream(bytes),
+                KeyCodec.INT, KeyCodec.INT);
+        assertEquals(h.size(), loaded.size(), "Size after load");
+        for (int x = 0; x < 37; x++) {
+            assertEquals(h.getAllMatchingX(x), loaded.getAllMatchingX(x), "getAllMatchingX after load");
+        }
+        for (int y = 0; y < 101; y++) {
+            assertEquals(h.getAllMatchingY(y), loaded.getAllMatchingY(y), "getAllMatchingY after load");
+        }
+        assertFalse(loaded.contains(0, 0), "Removed pair not loaded");
+
+        loaded.put(0, 0);
+        loaded.remove(1, 1);
+        assertTrue(loaded.contains(0, 0) && !loaded.contains(1, 1), "Loaded relation can be modified");
+
+        //more keys than the tables are sized for up front, so they grow while loading
+        HashRelation<Integer, Integer> big = new HashRelation<>();
+        for (int i = 0; i < 200000; i++) {
+            big.put(i, i % 3 == 0 ? -1 : i);
+        }
+        out.reset();
+        big.writeSnapshot(out, KeyCodec.INT, KeyCodec.INT);
+        HashRelation<Integer, Integer> bigLoaded = HashRelation.readSnapshot(
+                new ByteArrayInputStream(out.toByteArray()), KeyCodec.INT, KeyCodec.INT);
+        assertEquals(big.size(), bigLoaded.size(), "Size of large snapshot");
+        assertEquals(big.degreeY(-1), bigLoaded.degreeY(-1), "High degree y of large snapshot");
+        assertTrue(bigLoaded.contains(199999, 199999) && bigLoaded.contains(3, -1), "Pairs of large snapshot");
+        assertTrue(bigLoaded.bucketCount() * bigLoaded.loadFactor() >= 200000, "Tables grew while loading");
+    }
+
+    @Test
+    void snapshotRejectsBadInput() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((HashRelation<String, String>) r).writeSnapshot(out, KeyCodec.utf8(4), KeyCodec.utf8(16));
+        byte[] bytes = out.toByteArray();
+
+        Relation<String, String> loaded = HashRelation.readSnapshot(new ByteArrayInputStream(bytes),
+                KeyCodec.utf8(4), KeyCodec.utf8(16));
+        assertEquals(r.size(), loaded.size(), "Size after load");
+        for (String x : a) {
+            assertEquals(r.getAllMatchingX(x), loaded.getAllMatchingX(x), "String keys");
+        }
+
+        assertThrows(IOException.class, () -> HashRelation.readSnapshot(new ByteArrayInputStream(bytes),
+                KeyCodec.utf8(8), KeyCodec.utf8(16)), "Different key widths");
+        assertThrows(EOFException.class, () -> HashRelation.readSnapshot(
+                new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)),
+                KeyCodec.utf8(4), KeyCodec.utf8(16)), "Truncated");
+        bytes[0]++;
+        assertThrows(IOException.class, () -> HashRelation.readSnapshot(new ByteArrayInputStream(bytes),
+                KeyCodec.utf8(4), KeyCodec.utf8(16)), "Bad magic");
+
+        //a row listing the same partner twice, with a header that agrees with it
+        ByteBuffer twice = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        twice.putInt(0x4852534E).putInt(HashRelation.SNAPSHOT_VERSION).putInt(4).putInt(4);
+        twice.putInt(2).putInt(1).putInt(1);
+        twice.putInt(1).putInt(2).putInt(2).putInt(2);
+        assertThrows(IOException.class, () -> HashRelation.readSnapshot(new ByteArrayInputStream(twice.array()),
+                KeyCodec.INT, KeyCodec.INT), "Repeated pair");
+
+        //a bare header claiming the largest relation it can describe
+        ByteBuffer huge = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+        huge.putInt(0x4852534E).putInt(HashRelation.SNAPSHOT_VERSION).putInt(4).putInt(4);
+        huge.putInt(Integer.MAX_VALUE).putInt(Integer.MAX_VALUE).putInt(Integer.MAX_VALUE);
+        assertThrows(EOFException.class, () -> HashRelation.readSnapshot(new ByteArrayInputStream(huge.array()),
+                KeyCodec.INT, KeyCodec.INT), "Header counts are not trusted for allocation");
+        huge.putInt(20, 1);
+        huge.putInt(24, 1);
+        ByteBuffer wide = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN).put(huge.array());
+        wide.putInt(7).putInt(Integer.MAX_VALUE);
+        assertThrows(EOFException.class, () -> HashRelation.readSnapshot(new ByteArrayInputStream(wide.array()),
+                KeyCodec.INT, KeyCodec.INT), "Degree is not trusted for allocation");
+    }
+
+    @Test
+    void putAll() {
+        assertEquals(2, r.putAll(new String[]{"j", "r", "r"}, new String[]{"java", "ruby", "rust"}),
+                "putAll arrays skips existing pair");
+        assertTrue(r.contains("r", "rust"), "putAll arrays added pair");
+        assertThrows(IllegalArgumentException.class, () -> r.putAll(new String[]{"a"}, new String[0]));
+
+        List<Map.Entry<String, String>> pairs = new ArrayList<>();
+        pairs.add(new AbstractMap.SimpleEntry<>("g", "go"));
+        pairs.add(new AbstractMap.SimpleEntry<>("g", "go"));
+        assertEquals(1, r.putAll(pairs), "putAll iterable skips repeated pair");
+        assertEquals(a.length + 3, r.size(), "Size after putAll");
+
+        HashRelation<Integer, Integer> h = new HashRelation<>();
+        assertEquals(10000, h.putAll(IntStream.range(0, 10000)
+                .mapToObj(i -> new AbstractMap.SimpleEntry<>(i % 1000, i))), "putAll stream");
+        assertEquals(10, h.getAllMatchingX(7).size(), "Partners after putAll stream");
+        assertEquals(1, h.getAllMatchingY(7007).size(), "Partners after putAll stream");
+        assertTrue(h.bucketCount() * h.loadFactor() >= 1000, "Tables grown for batch");
+
+        HashRelation<Integer, Integer> dense = new HashRelation<>();
+        assertEquals(400, dense.putAll(IntStream.range(0, 20000)
+                .mapToObj(i -> new AbstractMap.SimpleEntry<>(i % 10, i / 10 % 40))), "putAll of few keys");
+        assertTrue(dense.bucketCount() < 1000, "Tables sized for distinct keys, not pairs: " + dense.bucketCount());
+    }
+
+    @Test
+    void removeAll() {
+        assertEquals(1, r.removeAll(new String[]{"j", "j", "r"}, new String[]{"java", "java", "ruby"}),
+                "removeAll arrays skips missing pairs");
+        assertFalse(r.getAllMatchingY("java").contains("j"), "Removed from Y index");
+
+        List<Map.Entry<String, String>> pairs = new ArrayList<>();
+        pairs.add(new AbstractMap.SimpleEntry<>("c", "c"));
+        pairs.add(new AbstractMap.SimpleEntry<>("k", "c"));
+        pairs.add(new AbstractMap.SimpleEntry<>("k", "c"));
+        assertEquals(2, r.removeAll(pairs), "removeAll iterable");
+        assertEquals(1, r.removeAll(pairs.stream().map(p -> new AbstractMap.SimpleEntry<>("n", "node"))),
+                "removeAll stream");
+        assertTrue(r.getAllMatchingY("c").isEmpty(), "Removed from Y index");
+        assertEquals(a.length - 4, r.size(), "Size after removeAll");
+    }
+
+    @Test
+    void stats() {
+        HashRelation<Integer, Integer> h = new HashRelation<>(8, 0.75, KeyHasher.IDENTITY);
+        for (int i = 0; i < 4; i++) {
+            h.put(i * 8, i);
+        }
+
+        RelationStats stats = h.stats();
+        assertFalse(stats.hasMetrics(), "Metrics disabled by default");
+        assertTrue(stats.operationCounts().isEmpty(), "No counts without metrics");
+        assertEquals(4, stats.size(), "Size");
+        assertEquals(4, stats.maxChainLengthX(), "Colliding x values share a chain");
+        assertArrayEquals(new long[]{7, 0, 0, 0, 1}, stats.chainLengthsX(), "X chain lengths");
+        assertEquals(1, stats.maxChainLengthY(), "Y values spread out");
+        assertEquals(0.5, stats.loadY(), 1e-9, "Y load");
+
+        h.setMetricsEnabled(true);
+        h.put(1, 1);
+        h.put(1, 1);
+        h.contains(1, 1);
+        assertThrows(NoSuchElementException.class, () -> h.remove(2, 2));
+        stats = h.stats();
+        assertEquals(2L, stats.operationCounts().get("put"), "put counted");
+        assertEquals(1L, stats.operationCounts().get("remove"), "Failed remove counted");
+        assertEquals(0L, stats.operationCounts().get("clear"), "clear not counted");
+        assertTrue(stats.latencyPercentileNanos(0.99).get("put") > 0, "put latency recorded");
+        assertEquals(2, Arrays.stream(stats.latencyHistogram("put")).sum(), "put histogram");
+
+        h.resetMetrics();
+        assertEquals(0L, h.stats().operationCounts().get("put"), "Reset");
+
+        //lookups record too, and may come from several threads at once
+        ForkJoinPool pool = new ForkJoinPool(8);
+        try {
+            pool.submit(() -> IntStream.range(0, 80000).parallel().forEach(i -> h.contains(i % 5, 1))).join();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(80000L, h.stats().operationCounts().get("contains"), "No concurrent lookup lost");
+        assertEquals(80000, Arrays.stream(h.stats().latencyHistogram("contains")).sum(), "Histogram complete");
+        h.setMetricsEnabled(false);
+        assertFalse(h.stats().hasMetrics(), "Metrics disabled");
+    }
+
+    @Test
+    void mxBean() throws Exception {
+        HashRelation<String, String> h = (HashRelation<String, String>) r;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("relations:type=HashRelation,name=test");
+        server.registerMBean(h.mxBean(), name);
+        try {
+            assertEquals(a.length, server.getAttribute(name, "Size"), "Size attribute");
+            server.setAttribute(name, new Attribute("MetricsEnabled", true));
+            assertTrue(h.isMetricsEnabled(), "Metrics enabled over JMX");
+            h.contains("j", "java");
+            assertNotNull(server.getAttribute(name, "OperationCounts"), "OperationCounts attribute");
+            assertTrue((Integer) server.getAttribute(name, "MaxChainLengthX") >= 1, "MaxChainLengthX attribute");
+            HashRelationMXBean bean = h.mxBean();
+            assertEquals(1L, bean.getOperationCounts().get("contains"), "Counts read from the snapshot");
+            h.contains("j", "java");
+            assertEquals(1L, bean.getOperationCounts().get("contains"), "A poll shares one snapshot");
+            bean.resetMetrics();
+            assertEquals(0L, bean.getOperationCounts().get("contains"), "Resetting metrics takes a new snapshot");
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    void hashing() {
+        //keys differing only in their high bits collide under the raw hashCode but not once mixed
+        HashRelation<Integer, Integer> mixed = new HashRelation<>(1024, 1.0);
+        HashRelation<Integer, Integer> raw = new HashRelation<>(1024, 1.0, KeyHasher.IDENTITY);
+        for (int i = 0; i < 512; i++) {
+            mixed.put(i << 16, i);
+            raw.put(i << 16, i);
+        }
+        assertEquals(512, raw.stats().maxChainLengthX(), "Raw hash codes share a bucket");
+        assertTrue(mixed.stats().maxChainLengthX() < 8, "Mixed hash codes spread out");
+        assertEquals(1024, new HashRelation<>(1000).stats().bucketCount(), "Bucket count rounded to a power of two");
+
+        KeyHasher a = KeyHasher.seeded(1);
+        KeyHasher b = KeyHasher.seeded(2);
+        assertEquals(a.hash("key"), a.hash(new String("key")), "Seeded hash is stable");
+        assertNotEquals(a.hash("key"), b.hash("key"), "Seed changes the hash");
+        assertNotEquals(a.hash("Aa"), a.hash("BB"), "Seeded strings hashed from their characters");
+
+        HashRelation<String, Integer> seeded = new HashRelation<>(16, 0.75, KeyHasher.randomized());
+        for (int i = 0; i < 100; i++) {
+            seeded.put("k" + i, i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(seeded.contains("k" + i, i), "Contains k" + i);
+        }
+    }
+
+    @Test
+    void treeBins() {
+        //every key collides, so once a chain is long it is indexed by a tree
+        HashRelation<Collider, Integer> h = new HashRelation<>(16);
+        for (int i = 0; i < 200; i++) {
+            h.put(new Collider(i), i);
+            h.put(new Collider(i), i + 1000);
+        }
+        assertEquals(400, h.size(), "Size");
+        assertEquals(200, h.stats().maxChainLengthX(), "All keys in one chain");
+        for (int i = 0; i < 200; i++) {
+            assertEquals(new TreeSet<>(Arrays.asList(i, i + 1000)), new TreeSet<>(h.getAllMatchingX(new Collider(i))),
+                    "Partners of " + i);
+        }
+        assertFalse(h.contains(new Collider(200), 200), "Missing key");
+
+        for (int i = 0; i < 200; i += 2) {
+            h.removeAllMatchingX(new Collider(i));
+        }
+        for (int i = 1; i < 200; i += 2) {
+            h.remove(new Collider(i), i);
+        }
+        assertEquals(100, h.size(), "Size after removes");
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i % 2 == 1, h.contains(new Collider(i), i + 1000), "Contains " + i);
+        }
+
+        //shrinking back below the threshold drops the tree without losing keys
+        for (int i = 1; i < 195; i += 2) {
+            h.removeAllMatchingX(new Collider(i));
+        }
+        assertEquals(3, h.size(), "Size after shrinking");
+        assertTrue(h.contains(new Collider(197), 1197), "Remaining key found");
+
+        //keys that are not all Comparable fall back to walking the chain
+        HashRelation<Object, Integer> mixedKeys = new HashRelation<>(16);
+        for (int i = 0; i < 20; i++) {
+            mixedKeys.put(new Collider(i), i);
+        }
+        mixedKeys.put(new Object() {
+            @Override
+            public int hashCode() {
+                return 0;
+            }
+        }, -1);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(mixedKeys.contains(new Collider(i), i), "Contains " + i + " after untreeify");
+        }
+    }
+
+    @Test
+    void singlePartnerGroups() {
+        HashRelation<String, Integer> h = new HashRelation<>();
+        h.put("a", 1);
+        Set<Integer> view = h.viewMatchingX("a");
+        assertEquals(Set.of(1), new TreeSet<>(view), "Inline partner in view");
+        assertTrue(h.contains("a", 1), "Inline partner found");
+        assertFalse(h.contains("a", 2), "Other partner not found");
+
+        //a second partner moves both into a partner set
+        h.put("a", 2);
+        h.put("a", 1);
+        assertEquals(2, h.size(), "Duplicate not added");
+        assertEquals(Set.of(1, 2), new TreeSet<>(view), "Both partners in view");
+
+        h.remove("a", 1);
+        h.remove("a", 2);
+        assertTrue(view.isEmpty(), "Group emptied");
+        assertThrows(NoSuchElementException.class, () -> h.remove("a", 2));
+
+        h.put("b", 3);
+        h.remove("b", 3);
+        assertFalse(h.contains("b", 3), "Inline partner removed");
+        assertTrue(h.getAllMatchingY(3).isEmpty(), "Removed from Y index");
+        assertEquals(0, h.size(), "Empty");
+    }
+
+    @Test
+    void cursorAndStreams() {
+        Set<String> expected = new TreeSet<>();
+        for (int i = 0; i < a.length; i++) {
+            expected.add(a[i] + "=" + b[i]);
+        }
+        Set<String> visited = new TreeSet<>();
+        PairCursor<String, String> cursor = r.cursor();
+        assertThrows(IllegalStateException.class, cursor::x, "Not on a pair yet");
+        while (cursor.advance()) {
+            assertTrue(visited.add(cursor.x() + "=" + cursor.y()), "Each pair visited once");
+        }
+        assertEquals(expected, visited, "Cursor visits every pair");
+        assertEquals(expected, r.stream().map(Object::toString).collect(Collectors.toSet()), "Stream pairs");
+
+        //a large relation, checked mid resize so the old table is covered too
+        HashRelation<Integer, Integer> h = new HashRelation<>(16);
+        long expectedSum = 0;
+        for (int i = 0; !h.stats().isResizing() || i < 5000; i++) {
+            h.put(i, i % 7);
+            expectedSum += (long) i * (i % 7);
+        }
+        assertTrue(h.stats().isResizing(), "Resize in progress");
+        assertEquals(h.size(), h.stream().count(), "Stream count");
+        assertEquals(expectedSum, h.parallelStream().mapToLong(e -> (long) e.getKey() * e.getValue()).sum(),
+                "Parallel sum");
+        assertEquals(h.size(), h.parallelStream().map(Map.Entry::getKey).distinct().count(), "Parallel distinct");
+
+        PairCursor<Integer, Integer> stale = h.cursor();
+        h.put(-1, -1);
+        assertThrows(ConcurrentModificationException.class, stale::advance, "Cursor fails fast");
+
+        Spliterator<Map.Entry<Integer, Integer>> suffix = h.stream().spliterator();
+        Spliterator<Map.Entry<Integer, Integer>> prefix = suffix.trySplit();
+        Spliterator<Map.Entry<Integer, Integer>> first = prefix.trySplit();
+        h.put(-2, -2);
+        assertThrows(ConcurrentModificationException.class, () -> suffix.forEachRemaining(e -> { }),
+                "Split spliterator fails fast");
+        assertThrows(ConcurrentModificationException.class, () -> first.tryAdvance(e -> { }),
+                "Spliterator split off a split fails fast");
+        Stream<Map.Entry<Integer, Integer>> pending = h.parallelStream();
+        h.put(-3, -3);
+        assertThrows(ConcurrentModificationException.class, () -> pending.mapToLong(Map.Entry::getKey).sum(),
+                "Parallel stream fails fast");
+    }
+
+    @Test
+    void buildParallel() {
+        int n = 20000;
+        Integer[] xs = new Integer[n];
+        Integer[] ys = new Integer[n];
+        HashRelation<Integer, Integer> expected = new HashRelation<>();
+        Random random = new Random(7);
+        for (int i = 0; i < n; i++) {
+            //plenty of repeated keys and repeated pairs
+            xs[i] = random.nextInt(n / 4);
+            ys[i] = random.nextInt(n / 8);
+            expected.put(xs[i], ys[i]);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            HashRelation<Integer, Integer> built = HashRelation.buildParallel(xs, ys, 0.75, KeyHasher.MIX, pool);
+            assertEquals(expected.size(), built.size(), "Repeated pairs dropped");
+            for (int x = 0; x < n / 4; x++) {
+                assertEquals(expected.getAllMatchingX(x), built.getAllMatchingX(x), "Partners of x " + x);
+            }
+            for (int y = 0; y < n / 8; y++) {
+                assertEquals(expected.getAllMatchingY(y), built.getAllMatchingY(y), "Partners of y " + y);
+            }
+            RelationStats stats = built.stats();
+            assertEquals(expected.stats().keyCountX(), stats.keyCountX(), "Distinct x");
+            assertEquals(expected.stats().keyCountY(), stats.keyCountY(), "Distinct y");
+            assertTrue(stats.loadX() <= 0.75 || stats.isResizing(), "Tables sized from the key sketch");
+
+            //still an ordinary relation afterwards
+            built.put(-1, -1);
+            built.remove(xs[0], ys[0]);
+            assertTrue(built.contains(-1, -1), "Put after build");
+            assertFalse(built.contains(xs[0], ys[0]), "Remove after build");
+        } finally {
+            pool.shutdown();
+        }
+
+        Collider[] colliding = new Collider[100];
+        String[] partners = new String[100];
+        for (int i = 0; i < 100; i++) {
+            colliding[i] = new Collider(i);
+            partners[i] = "p" + (i % 10);
+        }
+        HashRelation<Collider, String> trees = HashRelation.buildParallel(colliding, partners);
+        assertEquals(100, trees.size(), "Size with colliding keys");
+        assertTrue(trees.contains(new Collider(42), "p2"), "Colliding key found");
+        assertEquals(10, trees.getAllMatchingY("p3").size(), "Y side");
+
+        assertEquals(0, HashRelation.buildParallel(new String[0], new String[0]).size(), "Empty build");
+        assertThrows(IllegalArgumentException.class, () -> HashRelation.buildParallel(new String[1], new String[2]));
+        assertThrows(NullPointerException.class, () -> HashRelation.buildParallel(new String[]{"a"}, new String[1]));
+    }
+
+    @Test
+    void compose() {
+        HashRelation<String, String> groups = new HashRelation<>();
+        groups.put("ann", "admin");
+        groups.put("ann", "dev");
+        groups.put("bob", "dev");
+        groups.put("cat", "guest");
+        HashRelation<String, String> permissions = new HashRelation<>();
+        permissions.put("admin", "write");
+        permissions.put("admin", "read");
+        permissions.put("dev", "read");
+        permissions.put("dev", "deploy");
+
+        HashRelation<String, String> granted = groups.compose(permissions);
+        assertEquals(Set.of("write", "read", "deploy"), granted.getAllMatchingX("ann"), "Through both groups");
+        assertEquals(Set.of("read", "deploy"), granted.getAllMatchingX("bob"), "Through one group");
+        assertTrue(granted.getAllMatchingX("cat").isEmpty(), "Group with no permissions");
+        assertEquals(5, granted.size(), "Pairs reached by two paths counted once");
+
+        Relation<String, String> viaDefault = permissions.inverse().compose(groups.inverse());
+        assertEquals(Set.of("ann", "bob"), viaDefault.getAllMatchingX("read"), "Default hash join");
+        assertEquals(granted.size(), viaDefault.size(), "Default join gives the inverse composition");
+
+        HashRelation<Integer, Integer> big = new HashRelation<>();
+        HashRelation<Integer, Integer> next = new HashRelation<>();
+        Random random = new Random(5);
+        for (int i = 0; i < 3000; i++) {
+            big.put(random.nextInt(500), random.nextInt(200));
+            next.put(random.nextInt(200), random.nextInt(400));
+        }
+        HashRelation<Integer, Integer> sequential = big.compose(next);
+        HashRelation<Integer, Integer> parallel = big.compose(next, new ForkJoinPool(3));
+        assertEquals(sequential.size(), parallel.size(), "Parallel size");
+        assertEquals(sequential.stream().map(Object::toString).collect(Collectors.toSet()),
+                parallel.stream().map(Object::toString).collect(Collectors.toSet()), "Parallel pairs");
+    }
+
+    @Test
+    void inverse() {
+        Relation<String, String> inv = r.inverse();
+        assertTrue(inv.contains("java", "j"), "Pairs swapped");
+        assertEquals(Set.of("j", "k"), inv.getAllMatchingX("java"), "Lookup uses the Y index");
+        assertEquals(r.size(), inv.size(), "Size");
+        assertSame(r, inv.inverse(), "Inverse of the inverse");
+
+        inv.put("ruby", "r");
+        assertTrue(r.contains("r", "ruby"), "Puts through the view");
+        r.remove("j", "java");
+        assertFalse(inv.contains("java", "j"), "View is live");
+        assertEquals(3, inv.removeAllMatchingY("k"), "Removes through the view");
+
+        Set<String> pairs = new TreeSet<>();
+        PairCursor<String, String> cursor = inv.cursor();
+        while (cursor.advance()) {
+            pairs.add(cursor.y() + "=" + cursor.x());
+        }
+        assertEquals(r.stream().map(Object::toString).collect(Collectors.toSet()), pairs, "Cursor swaps");
+        assertEquals(pairs.size(), inv.parallelStream().count(), "Stream");
+    }
+
+    @Test
+    void setOperations() {
+        HashRelation<String, String> other = new HashRelation<>();
+        other.put("j", "java");
+        other.put("r", "ruby");
+        other.put("c", "c");
+
+        Relation<String, String> union = r.union(other);
+        assertEquals(a.length + 1, union.size(), "Union");
+        assertTrue(union.contains("r", "ruby") && union.contains("p", "python"), "Union has both");
+
+        Relation<String, String> intersection = r.intersection(other);
+        assertEquals(2, intersection.size(), "Intersection");
+        assertTrue(intersection.contains("j", "java") && intersection.contains("c", "c"), "Intersection pairs");
+        assertEquals(2, other.intersection(r).size(), "Intersection is symmetric");
+
+        Relation<String, String> difference = r.difference(other);
+        assertEquals(a.length - 2, difference.size(), "Difference");
+        assertFalse(difference.contains("j", "java"), "Common pair removed");
+        assertEquals(Set.of("ruby"), other.difference(r).getAllMatchingX("r"), "Other way round");
+        assertEquals(a.length, r.size(), "Operands unchanged");
+    }
+
+    @Test
+    void transitiveClosure() {
+        HashRelation<Integer, Integer> chain = new HashRelation<>();
+        for (int i = 0; i < 5; i++) {
+            chain.put(i, i + 1);
+        }
+        Relation<Integer, Integer> closed = Relation.transitiveClosure(chain);
+        assertEquals(15, closed.size(), "Every later node reachable along a chain");
+        assertEquals(Set.of(1, 2, 3, 4, 5), closed.getAllMatchingX(0), "Reachable from the start");
+        assertEquals(Set.of(0, 1, 2, 3, 4), closed.getAllMatchingY(5), "Reaching the end");
+
+        HashRelation<Integer, Integer> cycle = new HashRelation<>();
+        cycle.put(1, 2);
+        cycle.put(2, 3);
+        cycle.put(3, 1);
+        cycle.put(3, 4);
+        Relation<Integer, Integer> closedCycle = Relation.transitiveClosure(cycle);
+        assertEquals(Set.of(1, 2, 3, 4), closedCycle.getAllMatchingX(2), "A node on a cycle reaches itself");
+        assertTrue(closedCycle.getAllMatchingX(4).isEmpty(), "Sink reaches nothing");
+        assertEquals(12, closedCycle.size(), "Closure size");
+        assertEquals(0, Relation.transitiveClosure(new HashRelation<Integer, Integer>()).size(), "Empty");
+    }
+
+    @Test
+    void batchLookups() throws Exception {
+        assertArrayEquals(new boolean[]{true, false, true, false},
+                r.containsAll(new String[]{"j", "j", "k", "xx"}, new String[]{"java", "c", "c", "c"}), "containsAll");
+        assertArrayEquals(new boolean[0], r.containsAll(new String[0], new String[0]), "Empty batch");
+        assertThrows(IllegalArgumentException.class, () -> r.containsAll(new String[1], new String[2]),
+                "Lengths differ");
+
+        Map<String, Set<String>> matching = r.getAllMatchingEachX(List.of("k", "xx", "j", "k"));
+        assertEquals(List.of("k", "xx", "j"), new ArrayList<>(matching.keySet()), "Distinct keys in order");
+        assertEquals(Set.of("java", "node", "c"), matching.get("k"), "Matching k");
+        assertEquals(Set.of(), matching.get("xx"), "Missing x");
+        assertEquals(Set.of("j", "k"), r.getAllMatchingEachY(List.of("java")).get("java"), "Matching java");
+        assertEquals(Set.of("j", "k"), r.inverse().getAllMatchingEachX(List.of("java")).get("java"), "Inverse");
+        assertArrayEquals(new boolean[]{true, false},
+                r.inverse().containsAll(new String[]{"c", "c"}, new String[]{"k", "j"}), "Inverse containsAll");
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            assertArrayEquals(new boolean[]{true}, r.containsAllAsync(new String[]{"p"}, new String[]{"python"}, pool)
+                    .get(), "containsAllAsync");
+            assertEquals(Set.of("node"), r.getAllMatchingEachXAsync(List.of("n"), pool).get().get("n"),
+                    "getAllMatchingEachXAsync");
+            assertEquals(Set.of("c", "k"), r.getAllMatchingEachYAsync(List.of("c"), pool).get().get("c"),
+                    "getAllMatchingEachYAsync");
+        } finally {
+            pool.shutdown();
+        }
+
+        //a batch large enough to be sorted by bucket, checked mid resize so the old table is covered too
+        HashRelation<Integer, Integer> h = new HashRelation<>(16);
+        for (int i = 0; !h.stats().isResizing() || i < 5000; i++) {
+            h.put(i, i % 7);
+        }
+        assertTrue(h.stats().isResizing(), "Resize in progress");
+        int n = h.size() + 100;
+        Integer[] xs = new Integer[n], ys = new Integer[n];
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            xs[i] = i;
+            ys[i] = i % 2 == 0 ? i % 7 : i % 7 + 1;
+            keys.add(n - 1 - i);
+        }
+        boolean[] found = h.containsAll(xs, ys);
+        Map<Integer, Set<Integer>> all = h.getAllMatchingEachX(keys);
+        for (int i = 0; i < n; i++) {
+            assertEquals(h.contains(xs[i], ys[i]), found[i], "containsAll of " + i);
+            assertEquals(h.getAllMatchingX(i), all.get(i), "getAllMatchingEachX of " + i);
+        }
+        assertEquals(keys, new ArrayList<>(all.keySet()), "Keys in the order given");
+
+        h.setMetricsEnabled(true);
+        h.containsAll(xs, ys);
+        h.getAllMatchingEachY(List.of(1, 2));
+        assertEquals(1L, h.stats().operationCounts().get("containsAll"), "containsAll counted once per batch");
+        assertEquals(1L, h.stats().operationCounts().get("getAllMatchingEachY"), "getAllMatchingEachY counted");
+    }
+
+    @Test
+    void forEachLookups() {
+        List<String> visited = new ArrayList<>();
+        r.forEachMatchingX("k", visited::add);
+        assertEquals(Set.of("java", "node", "c"), new TreeSet<>(visited), "Partners of k");
+        visited.clear();
+        r.forEachMatchingY("c", visited::add);
+        assertEquals(Set.of("c", "k"), new TreeSet<>(visited), "Partners of c");
+        r.forEachMatchingX("xx", y -> fail("Missing x has no partners"));
+
+        visited.clear();
+        assertFalse(r.forEachMatchingXWhile("c", y -> visited.add(y) && visited.size() < 2), "Stopped early");
+        assertEquals(2, visited.size(), "Stopped after the second partner");
+        assertTrue(r.forEachMatchingYWhile("java", x -> true), "Visited every partner");
+        assertTrue(r.inverse().forEachMatchingXWhile("java", x -> !x.equals("c")), "Inverse swaps the sides");
+
+        Set<String> pairs = new TreeSet<>();
+        r.forEachPair((x, y) -> pairs.add(x + "=" + y));
+        assertEquals(a.length, pairs.size(), "Every pair visited");
+        int[] count = {0};
+        assertFalse(r.forEachPairWhile((x, y) -> ++count[0] < 3), "forEachPairWhile stops");
+        assertEquals(3, count[0], "Stopped at the third pair");
+        r.inverse().forEachPair((y, x) -> assertTrue(r.contains(x, y), "Inverse pair"));
+        assertThrows(ConcurrentModificationException.class, () -> r.forEachMatchingX("j", y -> r.put("j", y + "!")),
+                "Modifying while walking fails fast");
+
+        //a large relation, walked mid resize so the old table is covered too
+        HashRelation<Integer, Integer> h = new HashRelation<>(16);
+        for (int i = 0; !h.stats().isResizing() || i < 5000; i++) {
+            h.put(i, i % 7);
+        }
+        assertTrue(h.stats().isResizing(), "Resize in progress");
+        long[] sum = {0, 0};
+        h.forEachPair((x, y) -> sum[0]++);
+        assertEquals(h.size(), sum[0], "forEachPair visits every pair once");
+        h.forEachMatchingY(3, x -> sum[1] += x);
+        assertEquals(h.getAllMatchingY(3).stream().mapToLong(Integer::longValue).sum(), sum[1], "Partners of 3");
+
+        IntIntRelation ints = new IntIntRelation();
+        ints.put(1, 2);
+        ints.put(1, 3);
+        Set<Integer> boxed = new TreeSet<>();
+        ints.forEachMatchingX(Integer.valueOf(1), boxed::add);
+        assertEquals(Set.of(2, 3), boxed, "Boxed forEachMatchingX");
+
+        ConcurrentHashRelation<String, String> concurrent = new ConcurrentHashRelation<>();
+        concurrent.put("a", "b");
+        visited.clear();
+        concurrent.forEachMatchingY("b", visited::add);
+        assertEquals(List.of("a"), visited, "Concurrent forEachMatchingY");
+    }
+
+    @Test
+    void degrees() {
+        assertEquals(3, r.degreeX("c"), "Degree of c");
+        assertEquals(3, r.degreeX("k"), "Degree of k");
+        assertEquals(2, r.degreeY("java"), "Degree of java");
+        assertEquals(0, r.degreeX("xx"), "Missing x");
+        assertEquals(0, r.degreeY("xx"), "Missing y");
+        assertEquals(2, r.inverse().degreeX("java"), "Inverse swaps the sides");
+
+        r.remove("c", "c");
+        assertEquals(2, r.degreeX("c"), "Degree after remove");
+        assertEquals(1, r.degreeY("c"), "Partner degree after remove");
+        r.removeAllMatchingY("node");
+        assertEquals(0, r.degreeY("node"), "Degree after removeAllMatchingY");
+        assertEquals(2, r.degreeX("k"), "Partner degree after removeAllMatchingY");
+
+        IntIntRelation ints = new IntIntRelation();
+        ints.put(1, 2);
+        ints.put(1, 3);
+        assertEquals(2, ints.degreeX(1), "Primitive degree");
+        assertEquals(1, ints.degreeY(Integer.valueOf(3)), "Boxed degree");
+    }
+
+    @Test
+    void heavyHitters() {
+        HashRelation<String, String> h = (HashRelation<String, String>) r;
+        HeavyHitters<String> top = new HeavyHitters<>(2);
+        h.setHeavyHittersX(top);
+        assertEquals(Set.of("c", "k"), top.top().stream().map(Map.Entry::getKey).collect(Collectors.toSet()),
+                "Seeded from the relation");
+
+        h.put("j", "go");
+        h.put("j", "rust");
+        assertEquals("j", top.top().get(0).getKey(), "j overtakes as it grows");
+        assertEquals(4, top.degree("j"), "Exact degree of j");
+
+        h.removeAllMatchingX("j");
+        assertEquals(0, top.degree("j"), "j leaves once it has no partners");
+        h.clear();
+        assertTrue(top.top().isEmpty(), "Clear empties the tracker");
+        h.setHeavyHittersX(null);
+        h.put("z", "z");
+        assertTrue(top.top().isEmpty(), "Detached tracker is not updated");
+    }
+
+    /**
+     * Comparable key whose hash codes all collide
+     */
+    private static final class Collider implements Comparable<Collider> {
+        private final int value;
+
+        Collider(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Collider && ((Collider) o).value == value;
+        }
+
+        @Override
+        public int compareTo(Collider o) {
+            return Integer.compare(value, o.value);
+        }
+    }
 }
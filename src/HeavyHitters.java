@@ -0,0 +1,219 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the keys of highest degree on one side of a relation, for dashboards of hot keys and load shedding
+ * <p>
+ * A relation with a tracker attached reports the new degree of a key every time a change alters it.
+ * The tracker keeps a table of at most k keys with their degrees: a key already in the table has its degree
+ * updated, and a key outside it replaces the key of lowest degree if its own degree is higher.
+ * Keys whose degree falls to zero leave the table, freeing their place for the next key to change.
+ * <p>
+ * Since the relation reports exact degrees, the degrees in the table are exact. Which keys are in the table
+ * is approximate only after degrees fall: a key is considered again only when its own degree changes, so
+ * once keys in the table lose partners, a key outside it that has more partners but is not being changed
+ * is not picked up until its next change. Attaching a tracker to a HashRelation seeds it with every key
+ * already in the relation, so it starts exact.
+ * <p>
+ * An update of a key in the table is O(1) and allocates nothing. A key outside the table is compared with
+ * a lower bound on the lowest degree in the table, and the table is only scanned when the key's degree
+ * exceeds it, so updates of the long tail of low degree keys are also O(1).
+ * <p>
+ * The relation updates the tracker from the thread modifying it. Every method is synchronized,
+ * so top may be called from any thread, for example by a monitoring thread
+ *
+ * @param <K> Type of the keys tracked
+ * @author Matthew Smith
+ */
+public class HeavyHitters<K> {
+
+    /**
+     * The largest number of keys kept in the table
+     */
+    private final int capacity;
+
+
+    /**
+     * The keys in the table, each with its degree
+     */
+    private final Map<K, Entry<K>> entries;
+
+
+    /**
+     * A lower bound on the lowest degree in the table while it is full
+     * <p>
+     * Lowered whenever a degree in the table falls below it, and only raised to the true minimum
+     * when the table is scanned, so it may be stale but is never too high
+     */
+    private int floor;
+
+
+    /**
+     * Constructs a tracker of the k keys of highest degree
+     *
+     * @param k the number of keys to track
+     * @throws IllegalArgumentException if k is not positive
+     */
+    public HeavyHitters(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("Number of keys must be positive: " + k);
+        }
+        this.capacity = k;
+        this.entries = new HashMap<>(k * 2);
+    }
+
+
+    /**
+     * Get the number of keys tracked
+     *
+     * @return k, the largest number of keys in the table
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Returns the keys in the table, highest degree first
+     * <p>
+     * The list is a copy, taken under the tracker's lock
+     * <p>
+     * Complexity:
+     * O(k log k)
+     *
+     * @return entries whose key is a tracked key and whose value is its degree, in descending order of degree
+     */
+    public synchronized List<Map.Entry<K, Integer>> top() {
+        List<Map.Entry<K, Integer>> top = new ArrayList<>(entries.size());
+        for (Entry<K> e : entries.values()) {
+            top.add(new AbstractMap.SimpleImmutableEntry<>(e.key, e.degree));
+        }
+        top.sort(Map.Entry.<K, Integer>comparingByValue(Comparator.reverseOrder()));
+        return top;
+    }
+
+
+    /**
+     * Get the degree of a key, if it is in the table
+     *
+     * @param key the key
+     * @return the degree of key, or 0 if it is not in the table
+     */
+    public synchronized int degree(K key) {
+        Entry<K> e = entries.get(key);
+        return e == null ? 0 : e.degree;
+    }
+
+
+    /**
+     * Empties the table
+     */
+    public synchronized void clear() {
+        entries.clear();
+        floor = 0;
+    }
+
+
+    /**
+     * Records the new degree of a key
+     * <p>
+     * Called by the relation the tracker is attached to whenever a change alters the degree of a key
+     *
+     * @param key    the key
+     * @param degree the number of partners the key now has, 0 if it has none
+     */
+    synchronized void update(K key, int degree) {
+        Entry<K> e = entries.get(key);
+        if (e != null) {
+            if (degree == 0) {
+                entries.remove(key);
+            } else {
+                e.degree = degree;
+                floor = Math.min(floor, degree);
+            }
+            return;
+        }
+
+        if (degree == 0) {
+            return;
+        }
+        if (entries.size() < capacity) {
+            entries.put(key, new Entry<>(key, degree));
+            if (entries.size() == capacity) {
+                floor = lowest().degree;
+            }
+            return;
+        }
+        if (degree <= floor) {
+            return;
+        }
+
+        //the floor may be stale, so find the true lowest degree before evicting
+        Entry<K> lowest = lowest();
+        floor = lowest.degree;
+        if (degree <= floor) {
+            return;
+        }
+        entries.remove(lowest.key);
+        entries.put(key, new Entry<>(key, degree));
+        floor = lowest().degree;
+    }
+
+
+    /**
+     * Finds the key of lowest degree in the table
+     * <p>
+     * Complexity:
+     * O(k)
+     *
+     * @return the entry of lowest degree; the table must not be empty
+     */
+    private Entry<K> lowest() {
+        Entry<K> lowest = null;
+        for (Entry<K> e : entries.values()) {
+            if (lowest == null || e.degree < lowest.degree) {
+                lowest = e;
+            }
+        }
+        return lowest;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return top().toString();
+    }
+
+
+    /**
+     * Static nested class holding a key in the table and its degree, updated in place
+     *
+     * @param <K> Type of the key
+     */
+    private static final class Entry<K> {
+        /**
+         * The key
+         */
+        final K key;
+
+        /**
+         * The number of partners of the key when it last changed
+         */
+        int degree;
+
+        /**
+         * Constructs an entry for a key
+         *
+         * @param key    the key
+         * @param degree the degree of the key
+         */
+        Entry(K key, int degree) {
+            this.key = key;
+            this.degree = degree;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeavyHittersTest {
+
+    @Test
+    void keepsHighestDegrees() {
+        HeavyHitters<String> top = new HeavyHitters<>(3);
+        for (int d = 1; d <= 5; d++) {
+            top.update("a", d);
+        }
+        top.update("b", 2);
+        top.update("c", 1);
+        top.update("d", 1);
+        assertEquals(3, top.top().size(), "Table holds k keys");
+        assertEquals(0, top.degree("d"), "Low degree key does not displace an equal one");
+
+        top.update("d", 3);
+        List<Map.Entry<String, Integer>> list = top.top();
+        assertEquals("a", list.get(0).getKey(), "Highest first");
+        assertEquals(5, (int) list.get(0).getValue(), "Degree of a");
+        assertEquals("d", list.get(1).getKey(), "d displaced the lowest key");
+        assertEquals(0, top.degree("c"), "c evicted");
+    }
+
+    @Test
+    void staleFloor() {
+        HeavyHitters<String> top = new HeavyHitters<>(2);
+        top.update("a", 1);
+        top.update("b", 1);
+        //raising both keys leaves the floor at 1 until the table is scanned
+        top.update("a", 10);
+        top.update("b", 10);
+        top.update("c", 2);
+        assertEquals(0, top.degree("c"), "c is below every tracked degree");
+        top.update("c", 11);
+        assertEquals(11, top.degree("c"), "c is above the lowest tracked degree");
+    }
+
+    @Test
+    void removal() {
+        HeavyHitters<String> top = new HeavyHitters<>(1);
+        top.update("a", 4);
+        top.update("a", 0);
+        assertTrue(top.top().isEmpty(), "Key with no partners leaves");
+        top.update("b", 1);
+        assertEquals(1, top.degree("b"), "Freed place is taken by the next key");
+        assertThrows(IllegalArgumentException.class, () -> new HeavyHitters<String>(0), "k must be positive");
+    }
+}
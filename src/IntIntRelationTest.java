@@ -0,0 +1,135 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntIntRelationTest {
+
+    private IntIntRelation r;
+    private int[] a = {1, 1, 2, 2, 2, 3, 4, 5, 5, 5};
+    private int[] b = {10, 11, 20, 21, 22, 30, 40, 10, 40, 22};
+
+    @BeforeEach
+    void setUp() {
+        r = new IntIntRelation(4);
+
+        for (int i = 0; i < a.length; i++) {
+            r.put(a[i], b[i]);
+        }
+    }
+
+    @Test
+    void contains() {
+        assertTrue(r.contains(1, 10), "Contains 1, 10");
+        assertFalse(r.contains(1, 20), "Does not contain 1, 20");
+        assertTrue(r.contains(Integer.valueOf(5), Integer.valueOf(40)), "Contains boxed 5, 40");
+    }
+
+    @Test
+    void getAllMatching() {
+        Set<Integer> s = new TreeSet<>();
+        s.add(10);
+        s.add(11);
+        assertEquals(s, r.getAllMatchingX(1), "getAllMatchingX set equal");
+        assertEquals(s, r.viewMatchingX(1), "viewMatchingX set equal");
+
+        s.clear();
+        s.add(2);
+        s.add(5);
+        assertEquals(s, r.getAllMatchingY(22), "getAllMatchingY set equal");
+        assertTrue(r.getAllMatchingY(99).isEmpty(), "getAllMatchingY no matches");
+    }
+
+    @Test
+    void iteratorMatchingX() {
+        Set<Integer> seen = new HashSet<>();
+        PrimitiveIterator.OfInt it = r.iteratorMatchingX(2);
+        while (it.hasNext()) {
+            seen.add(it.nextInt());
+        }
+        assertEquals(r.getAllMatchingX(2), seen, "iteratorMatchingX visits every partner");
+
+        int[] sum = {0};
+        r.forEachMatchingY(10, x -> sum[0] += x);
+        assertEquals(6, sum[0], "forEachMatchingY visits every partner");
+    }
+
+    @Test
+    void removeAndSize() {
+        r.put(1, 10);
+        assertEquals(a.length, r.size(), "Duplicate put ignored");
+
+        r.remove(1, 10);
+        assertFalse(r.contains(1, 10), "Remove after");
+        assertEquals(a.length - 1, r.size(), "Size after remove");
+        assertThrows(NoSuchElementException.class, () -> r.remove(1, 10));
+
+        assertEquals(3, r.removeAllMatchingX(2), "removeAllMatchingX count");
+        assertEquals(1, r.getAllMatchingY(22).size(), "Mirrored pair removed");
+        assertEquals(2, r.removeAllMatchingY(40), "removeAllMatchingY count");
+        assertEquals(a.length - 6, r.size(), "Size after removeAll");
+
+        r.clear();
+        assertEquals(0, r.size(), "Size empty");
+        assertFalse(r.contains(5, 10), "Clear doesn't contain anything");
+    }
+
+    @Test
+    void matchesHashRelation() {
+        Relation<Integer, Integer> expected = new HashRelation<>();
+        IntIntRelation actual = new IntIntRelation();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 50000; i++) {
+            int x = random.nextInt(200), y = random.nextInt(50);
+            int op = random.nextInt(100);
+            if (op < 70) {
+                expected.put(x, y);
+                actual.put(x, y);
+            } else if (op < 95) {
+                assertEquals(expected.contains(x, y), actual.contains(x, y), "contains " + x + ", " + y);
+                if (expected.contains(x, y)) {
+                    expected.remove(x, y);
+                    actual.remove(x, y);
+                }
+            } else if (op < 98) {
+                assertEquals(expected.removeAllMatchingX(x), actual.removeAllMatchingX(x), "removeAllMatchingX " + x);
+            } else {
+                assertEquals(expected.removeAllMatchingY(y), actual.removeAllMatchingY(y), "removeAllMatchingY " + y);
+            }
+        }
+
+        assertEquals(expected.size(), actual.size(), "Size");
+        for (int x = 0; x < 200; x++) {
+            assertEquals(expected.getAllMatchingX(x), actual.getAllMatchingX(x), "getAllMatchingX " + x);
+        }
+        for (int y = 0; y < 50; y++) {
+            assertEquals(expected.getAllMatchingY(y), actual.getAllMatchingY(y), "getAllMatchingY " + y);
+        }
+    }
+
+    @Test
+    void cursor() {
+        r.remove(2, 21);
+        Set<String> expected = new TreeSet<>();
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != 2 || b[i] != 21) {
+                expected.add(a[i] + "=" + b[i]);
+            }
+        }
+        Set<String> visited = new TreeSet<>();
+        PairCursor<Integer, Integer> cursor = r.cursor();
+        while (cursor.advance()) {
+            assertTrue(visited.add(cursor.x() + "=" + cursor.y()), "Each pair visited once");
+        }
+        assertEquals(expected, visited, "Cursor visits every pair");
+        assertEquals(a.length - 1, r.parallelStream().count(), "Stream count");
+    }
+}
@@ -0,0 +1,300 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * A live view of a relation with the halves of every pair swapped, returned by Relation.inverse()
+ * <p>
+ * Nothing is copied: the X side of the view is the Y side of the relation it inverts and vice versa,
+ * so every lookup uses the index of the underlying relation for that side, and changes through either
+ * are seen by both
+ *
+ * @param <X> Type of the first item in a pair of the view, the second item of the underlying relation
+ * @param <Y> Type of the second item in a pair of the view, the first item of the underlying relation
+ * @author Matthew Smith
+ */
+class InverseRelation<X, Y> implements Relation<X, Y> {
+
+    /**
+     * The relation this is the inverse of
+     */
+    private final Relation<Y, X> relation;
+
+
+    /**
+     * Constructs the inverse view of a relation
+     *
+     * @param relation the relation to invert
+     */
+    InverseRelation(Relation<Y, X> relation) {
+        this.relation = relation;
+    }
+
+
+    /**
+     * Returns the relation this view inverts, which is its inverse
+     *
+     * @return the underlying relation
+     */
+    @Override
+    public Relation<Y, X> inverse() {
+        return relation;
+    }
+
+
+    @Override
+    public boolean contains(X x, Y y) {
+        return relation.contains(y, x);
+    }
+
+
+    @Override
+    public Set<Y> getAllMatchingX(X x) {
+        return relation.getAllMatchingY(x);
+    }
+
+
+    @Override
+    public Set<X> getAllMatchingY(Y y) {
+        return relation.getAllMatchingX(y);
+    }
+
+
+    @Override
+    public Set<Y> viewMatchingX(X x) {
+        return relation.viewMatchingY(x);
+    }
+
+
+    @Override
+    public Set<X> viewMatchingY(Y y) {
+        return relation.viewMatchingX(y);
+    }
+
+
+    @Override
+    public Set<Y> snapshotMatchingX(X x) {
+        return relation.snapshotMatchingY(x);
+    }
+
+
+    @Override
+    public Set<X> snapshotMatchingY(Y y) {
+        return relation.snapshotMatchingX(y);
+    }
+
+
+    @Override
+    public boolean[] containsAll(X[] xs, Y[] ys) {
+        return relation.containsAll(ys, xs);
+    }
+
+
+    @Override
+    public Map<X, Set<Y>> getAllMatchingEachX(Collection<? extends X> xs) {
+        return relation.getAllMatchingEachY(xs);
+    }
+
+
+    @Override
+    public Map<Y, Set<X>> getAllMatchingEachY(Collection<? extends Y> ys) {
+        return relation.getAllMatchingEachX(ys);
+    }
+
+
+    @Override
+    public void forEachMatchingX(X x, Consumer<? super Y> action) {
+        relation.forEachMatchingY(x, action);
+    }
+
+
+    @Override
+    public void forEachMatchingY(Y y, Consumer<? super X> action) {
+        relation.forEachMatchingX(y, action);
+    }
+
+
+    @Override
+    public boolean forEachMatchingXWhile(X x, Predicate<? super Y> action) {
+        return relation.forEachMatchingYWhile(x, action);
+    }
+
+
+    @Override
+    public boolean forEachMatchingYWhile(Y y, Predicate<? super X> action) {
+        return relation.forEachMatchingXWhile(y, action);
+    }
+
+
+    @Override
+    public void forEachPair(BiConsumer<? super X, ? super Y> action) {
+        relation.forEachPair((y, x) -> action.accept(x, y));
+    }
+
+
+    @Override
+    public boolean forEachPairWhile(BiPredicate<? super X, ? super Y> action) {
+        return relation.forEachPairWhile((y, x) -> action.test(x, y));
+    }
+
+
+    @Override
+    public int degreeX(X x) {
+        return relation.degreeY(x);
+    }
+
+
+    @Override
+    public int degreeY(Y y) {
+        return relation.degreeX(y);
+    }
+
+
+    @Override
+    public void clear() {
+        relation.clear();
+    }
+
+
+    @Override
+    public void put(X x, Y y) {
+        relation.put(y, x);
+    }
+
+
+    @Override
+    public int putAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        return relation.putAll(swapAll(pairs));
+    }
+
+
+    @Override
+    public int putAll(X[] xs, Y[] ys) {
+        return relation.putAll(ys, xs);
+    }
+
+
+    @Override
+    public void remove(X x, Y y) throws NoSuchElementException {
+        relation.remove(y, x);
+    }
+
+
+    @Override
+    public int removeAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        return relation.removeAll(swapAll(pairs));
+    }
+
+
+    @Override
+    public int removeAll(X[] xs, Y[] ys) {
+        return relation.removeAll(ys, xs);
+    }
+
+
+    @Override
+    public int removeAllMatchingX(X x) {
+        return relation.removeAllMatchingY(x);
+    }
+
+
+    @Override
+    public int removeAllMatchingY(Y y) {
+        return relation.removeAllMatchingX(y);
+    }
+
+
+    /**
+     * Returns a string representation of the view, in the format of HashRelation
+     *
+     * @return a string representation of the inverted pairs
+     */
+    @Override
+    public String toString() {
+        HashRelation<X, Y> copy = new HashRelation<>();
+        PairCursor<X, Y> cursor = cursor();
+        while (cursor.advance()) {
+            copy.put(cursor.x(), cursor.y());
+        }
+        return copy.toString();
+    }
+
+
+    @Override
+    public int size() {
+        return relation.size();
+    }
+
+
+    @Override
+    public PairCursor<X, Y> cursor() {
+        final PairCursor<Y, X> cursor = relation.cursor();
+        return new PairCursor<X, Y>() {
+            @Override
+            public boolean advance() {
+                return cursor.advance();
+            }
+
+            @Override
+            public X x() {
+                return cursor.y();
+            }
+
+            @Override
+            public Y y() {
+                return cursor.x();
+            }
+        };
+    }
+
+
+    @Override
+    public Stream<Map.Entry<X, Y>> stream() {
+        return relation.stream().map(InverseRelation::swap);
+    }
+
+
+    @Override
+    public Stream<Map.Entry<X, Y>> parallelStream() {
+        return relation.parallelStream().map(InverseRelation::swap);
+    }
+
+
+    /**
+     * Swaps the key and value of an entry
+     *
+     * @param e   the entry
+     * @param <K> Type of the key of the entry
+     * @param <V> Type of the value of the entry
+     * @return a new entry whose key is the value of e and whose value is its key
+     */
+    private static <K, V> Map.Entry<V, K> swap(Map.Entry<K, V> e) {
+        return new AbstractMap.SimpleImmutableEntry<>(e.getValue(), e.getKey());
+    }
+
+
+    /**
+     * Swaps the key and value of every entry in a batch, so the batch reaches the underlying relation whole
+     *
+     * @param pairs the entries
+     * @param <K>   Type of the keys of the entries
+     * @param <V>   Type of the values of the entries
+     * @return a new list of entries whose keys are the values of pairs and whose values are their keys
+     */
+    private static <K, V> List<Map.Entry<V, K>> swapAll(Iterable<? extends Map.Entry<? extends K, ? extends V>> pairs) {
+        List<Map.Entry<V, K>> swapped = new ArrayList<>();
+        for (Map.Entry<? extends K, ? extends V> e : pairs) {
+            swapped.add(new AbstractMap.SimpleImmutableEntry<>(e.getValue(), e.getKey()));
+        }
+        return swapped;
+    }
+}
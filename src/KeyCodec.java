@@ -0,0 +1,123 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts keys to and from a fixed number of bytes, so they can be stored outside the Java heap
+ * <p>
+ * Two keys must be equal if and only if their encodings are byte for byte identical,
+ * since stored keys are compared and hashed by their bytes rather than with equals and hashCode
+ *
+ * @param <T> the type of the keys
+ * @author Matthew Smith
+ */
+public interface KeyCodec<T> {
+
+    /**
+     * Encodes Integers as 4 bytes
+     */
+    KeyCodec<Integer> INT = new KeyCodec<Integer>() {
+        @Override
+        public int width() {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, int offset, Integer value) {
+            buffer.putInt(offset, value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer buffer, int offset) {
+            return buffer.getInt(offset);
+        }
+    };
+
+    /**
+     * Encodes Longs as 8 bytes
+     */
+    KeyCodec<Long> LONG = new KeyCodec<Long>() {
+        @Override
+        public int width() {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, int offset, Long value) {
+            buffer.putLong(offset, value);
+        }
+
+        @Override
+        public Long read(ByteBuffer buffer, int offset) {
+            return buffer.getLong(offset);
+        }
+    };
+
+    /**
+     * Get the number of bytes every key is encoded as
+     *
+     * @return the width of an encoded key in bytes
+     */
+    int width();
+
+    /**
+     * Encodes a key into a buffer, writing exactly width() bytes
+     *
+     * @param buffer the buffer to write to; its position is not changed
+     * @param offset the index of the first byte to write
+     * @param value  the key to encode
+     * @throws IllegalArgumentException if the key cannot be encoded in width() bytes
+     */
+    void write(ByteBuffer buffer, int offset, T value);
+
+    /**
+     * Decodes a key from a buffer
+     *
+     * @param buffer the buffer to read from; its position is not changed
+     * @param offset the index of the first byte to read
+     * @return the decoded key
+     */
+    T read(ByteBuffer buffer, int offset);
+
+    /**
+     * Returns a codec encoding Strings as UTF-8, padded with zeros to a fixed number of bytes
+     *
+     * @param maxBytes the largest number of bytes the UTF-8 encoding of a key may take
+     * @return a codec for Strings of up to maxBytes encoded bytes
+     * @throws IllegalArgumentException if maxBytes is negative or too large to record in two bytes
+     */
+    static KeyCodec<String> utf8(final int maxBytes) {
+        if (maxBytes < 0 || maxBytes > 0xFFFF) {
+            throw new IllegalArgumentException("Maximum length must be between 0 and 65535: " + maxBytes);
+        }
+
+        return new KeyCodec<String>() {
+            @Override
+            public int width() {
+                //two bytes of length followed by the padded string
+                return 2 + maxBytes;
+            }
+
+            @Override
+            public void write(ByteBuffer buffer, int offset, String value) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > maxBytes) {
+                    throw new IllegalArgumentException("Key is longer than " + maxBytes + " bytes: " + value);
+                }
+
+                buffer.putShort(offset, (short) bytes.length);
+                for (int i = 0; i < maxBytes; i++) {
+                    buffer.put(offset + 2 + i, i < bytes.length ? bytes[i] : 0);
+                }
+            }
+
+            @Override
+            public String read(ByteBuffer buffer, int offset) {
+                byte[] bytes = new byte[buffer.getShort(offset) & 0xFFFF];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = buffer.get(offset + 2 + i);
+                }
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+}
@@ -0,0 +1,84 @@
+import java.security.SecureRandom;
+
+/**
+ * Turns a key into the hash HashRelation uses to pick its bucket
+ * <p>
+ * HashRelation masks the hash down to a power of two number of buckets, so only its low bits choose the bucket:
+ * a good hasher spreads every bit of the key's hashCode into them. Two keys that are equal must have equal hashes
+ *
+ * @author Matthew Smith
+ */
+@FunctionalInterface
+public interface KeyHasher {
+
+    /**
+     * Uses hashCode unchanged. Only suitable for keys whose hash codes already vary in their low bits
+     */
+    KeyHasher IDENTITY = Object::hashCode;
+
+    /**
+     * Spreads hashCode with the finaliser of MurmurHash3, so keys differing only in their high bits,
+     * such as sequential Longs shifted left or strings sharing a prefix, still land in different buckets.
+     * This is the default
+     */
+    KeyHasher MIX = key -> mix(key.hashCode());
+
+    /**
+     * Hashes a key
+     *
+     * @param key the key, never null
+     * @return the hash of the key
+     */
+    int hash(Object key);
+
+    /**
+     * Returns a hasher whose hashes depend on a secret seed, so keys chosen to collide under one seed
+     * do not collide under another
+     * <p>
+     * Strings and other CharSequences are hashed from their characters, so keys crafted to share a hashCode
+     * are separated too. Other keys are hashed from their hashCode mixed with the seed, which cannot separate
+     * keys with identical hash codes; HashRelation falls back to a balanced tree for those if they are Comparable
+     *
+     * @param seed the seed
+     * @return the seeded hasher
+     */
+    static KeyHasher seeded(final long seed) {
+        return key -> {
+            if (key instanceof CharSequence) {
+                CharSequence s = (CharSequence) key;
+                long h = seed ^ s.length();
+                for (int i = 0; i < s.length(); i++) {
+                    h = (h ^ s.charAt(i)) * 0x9E3779B97F4A7C15L;
+                    h ^= h >>> 29;
+                }
+                return mix((int) (h ^ (h >>> 32)));
+            }
+            return mix(key.hashCode() ^ (int) seed) ^ (int) (seed >>> 32);
+        };
+    }
+
+    /**
+     * Returns a hasher seeded from a secure random number generator,
+     * so the bucket of a key cannot be predicted from outside the process
+     *
+     * @return a seeded hasher with an unpredictable seed
+     */
+    static KeyHasher randomized() {
+        return seeded(new SecureRandom().nextLong());
+    }
+
+    /**
+     * The finaliser of MurmurHash3: every input bit affects every output bit
+     *
+     * @param h the value to mix
+     * @return the mixed value
+     */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,1135 @@
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * A Relation between long values that stores its pairs in primitive arrays
+ * <p>
+ * Unlike HashRelation, nothing is boxed and no object is allocated per pair.
+ * Each pair is stored once, as an entry in a set of parallel arrays, and is threaded onto two doubly linked lists:
+ * one of the entries sharing its x and one of the entries sharing its y.
+ * Three open addressing tables using linear probing index the entries:
+ * one by (x, y) for contains, put and remove, and one each by x and by y holding the head of each key's list.
+ * Removed entries are kept on a free list and reused by later puts
+ * <p>
+ * The Relation methods taking Long arguments are provided for compatibility and unbox to the primitive methods
+ *
+ * @author Matthew Smith
+ */
+public class LongLongRelation implements Relation<Long, Long> {
+
+    /**
+     * Number of pairs the relation can hold before any of its arrays are grown, when none is specified
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Marks the end of a linked list of entries, and an empty slot in the pair table
+     */
+    private static final int NONE = -1;
+
+    /**
+     * Multiplier combining the two halves of a pair before hashing, 2^64 divided by the golden ratio
+     */
+    private static final long PAIR_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Index X: the x of every entry, the lists of entries sharing an x, and the table of distinct x values
+     */
+    private final KeyIndex byX = new KeyIndex();
+
+
+    /**
+     * Index Y: the y of every entry, the lists of entries sharing a y, and the table of distinct y values
+     */
+    private final KeyIndex byY = new KeyIndex();
+
+
+    /**
+     * Pair table: open addressing table of entry numbers, hashed by (x, y); empty slots hold NONE.
+     * The length is always a power of two
+     */
+    private int[] pairSlots;
+
+
+    /**
+     * Number of entries ever allocated, including those now on the free list
+     */
+    private int entryCount;
+
+
+    /**
+     * First entry of the free list, chained through the X links, or NONE if the free list is empty
+     */
+    private int freeEntry;
+
+
+    /**
+     * Number of pairs currently stored in the relation
+     */
+    private int size;
+
+
+    /**
+     * Number of times pairs have been added to or removed from the relation,
+     * used by partner iterators to detect concurrent modification
+     */
+    private int modCount;
+
+
+    /**
+     * Constructs an empty LongLongRelation with the default capacity
+     */
+    public LongLongRelation() {
+        this(DEFAULT_CAPACITY);
+    }
+
+
+    /**
+     * Constructs an empty LongLongRelation able to hold a specified number of pairs before growing
+     *
+     * @param capacity the number of pairs to allocate space for
+     * @throws IllegalArgumentException if capacity is negative
+     */
+    public LongLongRelation(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+        }
+        allocate(Math.max(capacity, 2));
+    }
+
+
+    /**
+     * Returns true if the relation contains the specified pair (x, y)
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the first part of the pair to be matched
+     * @param y the second part of the pair to be matched
+     * @return true if a pair matching (x, y) is found, false otherwise
+     */
+    public boolean contains(long x, long y) {
+        return pairSlotOf(x, y) >= 0;
+    }
+
+
+    /**
+     * Adds a given pair (x, y) to the relation, doing nothing if it is already there
+     * <p>
+     * Complexity:
+     * O(1) amortised
+     *
+     * @param x the first half of the pair to be added
+     * @param y the second half of the pair to be added
+     */
+    public void put(long x, long y) {
+        if (contains(x, y)) {
+            return;
+        }
+        if ((size + 1) * 4L > pairSlots.length * 3L) {
+            growPairSlots();
+        }
+
+        int e = allocateEntry();
+        byX.link(e, x);
+        byY.link(e, y);
+        insertPairSlot(e);
+        size++;
+        modCount++;
+    }
+
+
+    /**
+     * Removes a given pair (x, y) from the relation
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the first half of the pair to be removed
+     * @param y the second half of the pair to be removed
+     * @throws NoSuchElementException when trying to remove a pair that isn't in the relation
+     */
+    public void remove(long x, long y) throws NoSuchElementException {
+        int slot = pairSlotOf(x, y);
+        if (slot < 0) {
+            throw new NoSuchElementException();
+        }
+
+        int e = pairSlots[slot];
+        deletePairSlot(slot);
+        byX.unlink(e);
+        byY.unlink(e);
+        freeEntry(e);
+        size--;
+        modCount++;
+    }
+
+
+    /**
+     * Given x, removes all pairs (x, y) from the relation
+     * <p>
+     * Complexity:
+     * O(k) where k is the number of pairs matching x
+     *
+     * @param x the first part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    public int removeAllMatchingX(long x) {
+        return removeAll(byX, byY, x);
+    }
+
+
+    /**
+     * Given y, removes all pairs (x, y) from the relation
+     * <p>
+     * Complexity:
+     * O(k) where k is the number of pairs matching y
+     *
+     * @param y the second part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    public int removeAllMatchingY(long y) {
+        return removeAll(byY, byX, y);
+    }
+
+
+    /**
+     * Given x, performs an action on every value y such that the relation contains (x, y)
+     * <p>
+     * Walks the list of entries for x, so nothing is allocated or boxed.
+     * The action must not modify the relation
+     *
+     * @param x      the element to search for in the first half of a pair
+     * @param action the action to perform on each matching y
+     */
+    public void forEachMatchingX(long x, LongConsumer action) {
+        forEachPartner(byX, byY, x, action);
+    }
+
+
+    /**
+     * Given y, performs an action on every value x such that the relation contains (x, y)
+     * <p>
+     * Walks the list of entries for y, so nothing is allocated or boxed.
+     * The action must not modify the relation
+     *
+     * @param y      the element to search for in the second half of a pair
+     * @param action the action to perform on each matching x
+     */
+    public void forEachMatchingY(long y, LongConsumer action) {
+        forEachPartner(byY, byX, y, action);
+    }
+
+
+    /**
+     * Given x, returns an iterator over every value y such that the relation contains (x, y)
+     * <p>
+     * The iterator throws a ConcurrentModificationException if the relation is modified while iterating
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return an unboxed iterator over the values y matching x
+     */
+    public PrimitiveIterator.OfLong iteratorMatchingX(long x) {
+        return new PartnerIterator(byX, byY, x);
+    }
+
+
+    /**
+     * Given y, returns an iterator over every value x such that the relation contains (x, y)
+     * <p>
+     * The iterator throws a ConcurrentModificationException if the relation is modified while iterating
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return an unboxed iterator over the values x matching y
+     */
+    public PrimitiveIterator.OfLong iteratorMatchingY(long y) {
+        return new PartnerIterator(byY, byX, y);
+    }
+
+
+    /**
+     * Given x, returns the number of values y such that the relation contains (x, y)
+     * <p>
+     * Reads the degree kept in the key table, so nothing is allocated or boxed
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return the number of pairs matching x, 0 if there are none
+     */
+    public int degreeX(long x) {
+        return byX.degree(x);
+    }
+
+
+    /**
+     * Given y, returns the number of values x such that the relation contains (x, y)
+     * <p>
+     * Reads the degree kept in the key table, so nothing is allocated or boxed
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return the number of pairs matching y, 0 if there are none
+     */
+    public int degreeY(long y) {
+        return byY.degree(y);
+    }
+
+
+    /**
+     * Requirement 1
+     * Returns true if the relation contains the specified pair (x, y)
+     *
+     * @param x the first part of the pair to be matched
+     * @param y the second part of the pair to be matched
+     * @return true if a pair matching (x, y) is found, false otherwise
+     */
+    @Override
+    public boolean contains(Long x, Long y) {
+        return contains(x.longValue(), y.longValue());
+    }
+
+
+    /**
+     * Requirement 2
+     * Given x, returns a set containing all values y such that the relation contains (x, y)
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a set containing all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Long> getAllMatchingX(Long x) {
+        Set<Long> set = new TreeSet<>();
+        forEachMatchingX(x.longValue(), set::add);
+        return set;
+    }
+
+
+    /**
+     * Requirement 3
+     * Given y, returns a set containing all values x such that the relation contains (x, y)
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a set containing all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Long> getAllMatchingY(Long y) {
+        Set<Long> set = new TreeSet<>();
+        forEachMatchingY(y.longValue(), set::add);
+        return set;
+    }
+
+
+    /**
+     * Given x, returns a live read-only view of all values y such that the relation contains (x, y)
+     * <p>
+     * contains and size are O(1); iterating boxes each partner as it is returned
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a live, unmodifiable set of all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Long> viewMatchingX(Long x) {
+        return new PartnerView(byX, byY, x.longValue());
+    }
+
+
+    /**
+     * Given y, returns a live read-only view of all values x such that the relation contains (x, y)
+     * <p>
+     * contains and size are O(1); iterating boxes each partner as it is returned
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a live, unmodifiable set of all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Long> viewMatchingY(Long y) {
+        return new PartnerView(byY, byX, y.longValue());
+    }
+
+
+    /**
+     * Given x, returns the number of values y such that the relation contains (x, y)
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return the number of pairs matching x, 0 if there are none
+     */
+    @Override
+    public int degreeX(Long x) {
+        return degreeX(x.longValue());
+    }
+
+
+    /**
+     * Given y, returns the number of values x such that the relation contains (x, y)
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return the number of pairs matching y, 0 if there are none
+     */
+    @Override
+    public int degreeY(Long y) {
+        return degreeY(y.longValue());
+    }
+
+
+    /**
+     * Given x, performs an action on every value y such that the relation contains (x, y)
+     * <p>
+     * Walks the list of entries for x as forEachMatchingX(long, LongConsumer) does, boxing each partner
+     *
+     * @param x      the element to search for in the first half of a pair
+     * @param action the action to perform on each matching y
+     */
+    @Override
+    public void forEachMatchingX(Long x, Consumer<? super Long> action) {
+        forEachMatchingX(x.longValue(), action::accept);
+    }
+
+
+    /**
+     * Given y, performs an action on every value x such that the relation contains (x, y)
+     * <p>
+     * Walks the list of entries for y as forEachMatchingY(long, LongConsumer) does, boxing each partner
+     *
+     * @param y      the element to search for in the second half of a pair
+     * @param action the action to perform on each matching x
+     */
+    @Override
+    public void forEachMatchingY(Long y, Consumer<? super Long> action) {
+        forEachMatchingY(y.longValue(), action::accept);
+    }
+
+
+    /**
+     * Requirement 4
+     * Empties the relation, shrinking its arrays back to the default capacity
+     */
+    @Override
+    public void clear() {
+        allocate(DEFAULT_CAPACITY);
+        modCount++;
+    }
+
+
+    /**
+     * Requirement 5
+     * Adds a given pair (x, y) to the relation
+     *
+     * @param x the first half of the pair to be added
+     * @param y the second half of the pair to be added
+     */
+    @Override
+    public void put(Long x, Long y) {
+        put(x.longValue(), y.longValue());
+    }
+
+
+    /**
+     * Requirement 6
+     * Removes a given pair (x, y) to the relation
+     *
+     * @param x the first half of the pair to be removed
+     * @param y the second half of the pair to be removed
+     * @throws NoSuchElementException when trying to remove an element that isn't in the relation
+     */
+    @Override
+    public void remove(Long x, Long y) throws NoSuchElementException {
+        remove(x.longValue(), y.longValue());
+    }
+
+
+    /**
+     * Requirement 7
+     * Given x, removes all pairs(x, y) from the relation
+     *
+     * @param x the first part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingX(Long x) {
+        return removeAllMatchingX(x.longValue());
+    }
+
+
+    /**
+     * Requirement 8
+     * Given y, removes all pairs(x, y) from the relation
+     *
+     * @param y the second part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingY(Long y) {
+        return removeAllMatchingY(y.longValue());
+    }
+
+
+    /**
+     * Requirement 9
+     * Renders the relations contents as a string in a readable format
+     * <p>
+     * Prints each distinct x followed by its pairs, then each distinct y followed by its pairs
+     *
+     * @return a string representation of the relation
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        byX.appendTo(sb, "X table", byY);
+        byY.appendTo(sb, "Y table", byX);
+        return sb.toString();
+    }
+
+
+    /**
+     * Get the number of pairs in the relation
+     *
+     * @return the number of pairs in the relation
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns a cursor over every pair in the relation, walking the list of entries of each distinct x
+     * <p>
+     * The cursor boxes x and y only when they are read, and throws a ConcurrentModificationException
+     * from advance if the relation is modified while it is in use
+     *
+     * @return a cursor positioned before the first pair
+     */
+    @Override
+    public PairCursor<Long, Long> cursor() {
+        return new EntryCursor();
+    }
+
+    /**
+     * Replaces every array with empty arrays sized for a given number of pairs
+     *
+     * @param capacity the number of pairs to allocate space for
+     */
+    private void allocate(int capacity) {
+        int slots = tableSizeFor(capacity);
+        pairSlots = new int[slots];
+        Arrays.fill(pairSlots, NONE);
+        byX.allocate(capacity, slots);
+        byY.allocate(capacity, slots);
+        entryCount = 0;
+        freeEntry = NONE;
+        size = 0;
+    }
+
+    /**
+     * Takes an entry from the free list, or the next unused entry if the free list is empty
+     *
+     * @return the number of the entry
+     */
+    private int allocateEntry() {
+        if (freeEntry != NONE) {
+            int e = freeEntry;
+            freeEntry = byX.next[e];
+            return e;
+        }
+        if (entryCount == byX.values.length) {
+            int capacity = entryCount * 2;
+            byX.growEntries(capacity);
+            byY.growEntries(capacity);
+        }
+        return entryCount++;
+    }
+
+    /**
+     * Returns an entry to the free list
+     *
+     * @param e the number of the entry
+     */
+    private void freeEntry(int e) {
+        byX.next[e] = freeEntry;
+        freeEntry = e;
+    }
+
+    /**
+     * Removes every pair matching a key
+     *
+     * @param index  the index of the side the key is on
+     * @param mirror the index of the other side
+     * @param key    the key whose pairs are removed
+     * @return the number of pairs removed
+     */
+    private int removeAll(KeyIndex index, KeyIndex mirror, long key) {
+        int slot = index.slotOf(key);
+        if (slot < 0) {
+            return 0;
+        }
+
+        int removed = index.degrees[slot];
+        int e = index.heads[slot];
+        index.deleteKeySlot(slot);
+        while (e != NONE) {
+            int next = index.next[e];
+            deletePairSlot(pairSlotOf(byX.values[e], byY.values[e]));
+            mirror.unlink(e);
+            freeEntry(e);
+            e = next;
+        }
+
+        size -= removed;
+        modCount++;
+        return removed;
+    }
+
+    /**
+     * Performs an action on the partner of every entry in the list of a key
+     *
+     * @param index  the index of the side the key is on
+     * @param mirror the index of the other side
+     * @param key    the key
+     * @param action the action to perform on each partner
+     */
+    private static void forEachPartner(KeyIndex index, KeyIndex mirror, long key, LongConsumer action) {
+        for (int e = index.head(key); e != NONE; e = index.next[e]) {
+            action.accept(mirror.values[e]);
+        }
+    }
+
+    /**
+     * Finds the slot of the pair table holding the entry for (x, y)
+     *
+     * @param x the first half of the pair
+     * @param y the second half of the pair
+     * @return the index of the slot, or -1 if the pair is not in the relation
+     */
+    private int pairSlotOf(long x, long y) {
+        int mask = pairSlots.length - 1;
+        int i = pairHash(x, y) & mask;
+        int e;
+        while ((e = pairSlots[i]) != NONE) {
+            if (byX.values[e] == x && byY.values[e] == y) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts an entry into the first free slot of its probe sequence in the pair table
+     *
+     * @param e the number of the entry
+     */
+    private void insertPairSlot(int e) {
+        int mask = pairSlots.length - 1;
+        int i = pairHash(byX.values[e], byY.values[e]) & mask;
+        while (pairSlots[i] != NONE) {
+            i = (i + 1) & mask;
+        }
+        pairSlots[i] = e;
+    }
+
+    /**
+     * Empties a slot of the pair table, shifting later entries in the same probe sequence back into it
+     *
+     * @param slot the index of the slot to empty
+     */
+    private void deletePairSlot(int slot) {
+        int mask = pairSlots.length - 1;
+        int gap = slot;
+        int j = (slot + 1) & mask;
+        int e;
+        while ((e = pairSlots[j]) != NONE) {
+            int home = pairHash(byX.values[e], byY.values[e]) & mask;
+            //move the entry at j into the gap unless its home slot lies cyclically in (gap, j]
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                pairSlots[gap] = e;
+                gap = j;
+            }
+            j = (j + 1) & mask;
+        }
+        pairSlots[gap] = NONE;
+    }
+
+    /**
+     * Doubles the number of slots in the pair table
+     */
+    private void growPairSlots() {
+        int[] old = pairSlots;
+        pairSlots = new int[old.length * 2];
+        Arrays.fill(pairSlots, NONE);
+        for (int e : old) {
+            if (e != NONE) {
+                insertPairSlot(e);
+            }
+        }
+    }
+
+    /**
+     * Calculates the number of slots needed to hold a number of entries at most three quarters full
+     *
+     * @param capacity the number of entries
+     * @return a power of two number of slots
+     */
+    private static int tableSizeFor(int capacity) {
+        long needed = Math.max(4L, capacity * 4L / 3 + 1);
+        return (int) Math.min(1 << 30, Long.highestOneBit(needed - 1) << 1);
+    }
+
+    /**
+     * The hash function for a pair
+     *
+     * @param x the first half of the pair
+     * @param y the second half of the pair
+     * @return the hashed representation of (x, y)
+     */
+    private static int pairHash(long x, long y) {
+        return mix(x * PAIR_MULTIPLIER + y);
+    }
+
+    /**
+     * The hash function for a key
+     *
+     * @param key the key to be hashed
+     * @return the hashed representation of the key
+     */
+    private static int hash(long key) {
+        return mix(key);
+    }
+
+    /**
+     * Spreads every bit of a value across the whole hash, using the 64 bit finaliser of MurmurHash3
+     *
+     * @param h the value to mix
+     * @return the mixed hash, folded down to 32 bits
+     */
+    private static int mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Static nested class holding one side of the relation: the key of every entry on this side,
+     * the doubly linked lists of entries sharing each key, and an open addressing table of the distinct keys
+     * <p>
+     * The key table stores each distinct key with the first entry of its list and its degree, the length of the list
+     */
+    private static class KeyIndex {
+        /**
+         * The key on this side of each entry
+         */
+        long[] values;
+
+        /**
+         * The next entry in the list of each entry, or NONE at the end of a list
+         */
+        int[] next;
+
+        /**
+         * The previous entry in the list of each entry, or NONE at the start of a list
+         */
+        int[] prev;
+
+        /**
+         * Key table: the distinct keys
+         */
+        long[] keys;
+
+        /**
+         * Key table: the first entry in the list of each key, or NONE for an empty slot.
+         * The length is always a power of two
+         */
+        int[] heads;
+
+        /**
+         * Key table: the number of entries in the list of each key
+         */
+        int[] degrees;
+
+        /**
+         * Number of distinct keys in the key table
+         */
+        int keyCount;
+
+        /**
+         * Replaces every array with empty arrays
+         *
+         * @param entries the number of entries to allocate space for
+         * @param slots   the number of slots in the key table, a power of two
+         */
+        void allocate(int entries, int slots) {
+            values = new long[entries];
+            next = new int[entries];
+            prev = new int[entries];
+            keys = new long[slots];
+            heads = new int[slots];
+            degrees = new int[slots];
+            Arrays.fill(heads, NONE);
+            keyCount = 0;
+        }
+
+        /**
+         * Grows the per entry arrays, keeping their contents
+         *
+         * @param entries the new number of entries to allocate space for
+         */
+        void growEntries(int entries) {
+            values = Arrays.copyOf(values, entries);
+            next = Arrays.copyOf(next, entries);
+            prev = Arrays.copyOf(prev, entries);
+        }
+
+        /**
+         * Finds the first entry in the list of a key
+         *
+         * @param key the key
+         * @return the first entry, or NONE if the key has no pairs
+         */
+        int head(long key) {
+            int slot = slotOf(key);
+            return slot < 0 ? NONE : heads[slot];
+        }
+
+        /**
+         * Finds the number of entries in the list of a key
+         *
+         * @param key the key
+         * @return the number of pairs with the key on this side
+         */
+        int degree(long key) {
+            int slot = slotOf(key);
+            return slot < 0 ? 0 : degrees[slot];
+        }
+
+        /**
+         * Sets the key of an entry and adds it to the start of the list for that key,
+         * adding the key to the key table if it is new
+         *
+         * @param e   the number of the entry
+         * @param key the key on this side of the entry
+         */
+        void link(int e, long key) {
+            values[e] = key;
+
+            int slot = slotOf(key);
+            if (slot < 0) {
+                if ((keyCount + 1) * 4L > heads.length * 3L) {
+                    growKeys();
+                }
+                slot = insertKeySlot(key);
+                keyCount++;
+            }
+
+            int head = heads[slot];
+            next[e] = head;
+            prev[e] = NONE;
+            if (head != NONE) {
+                prev[head] = e;
+            }
+            heads[slot] = e;
+            degrees[slot]++;
+        }
+
+        /**
+         * Removes an entry from the list for its key, removing the key from the key table if the list becomes empty
+         *
+         * @param e the number of the entry
+         */
+        void unlink(int e) {
+            int slot = slotOf(values[e]);
+            if (--degrees[slot] == 0) {
+                deleteKeySlot(slot);
+                return;
+            }
+
+            if (prev[e] == NONE) {
+                heads[slot] = next[e];
+            } else {
+                next[prev[e]] = next[e];
+            }
+            if (next[e] != NONE) {
+                prev[next[e]] = prev[e];
+            }
+        }
+
+        /**
+         * Finds the slot of the key table holding a key
+         *
+         * @param key the key
+         * @return the index of the slot, or -1 if the key has no pairs
+         */
+        int slotOf(long key) {
+            int mask = heads.length - 1;
+            int i = hash(key) & mask;
+            while (heads[i] != NONE) {
+                if (keys[i] == key) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Puts a key with an empty list into the first free slot of its probe sequence
+         *
+         * @param key the key
+         * @return the index of the slot
+         */
+        private int insertKeySlot(long key) {
+            int mask = heads.length - 1;
+            int i = hash(key) & mask;
+            while (heads[i] != NONE) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            heads[i] = NONE;
+            degrees[i] = 0;
+            return i;
+        }
+
+        /**
+         * Empties a slot of the key table, shifting later keys in the same probe sequence back into it
+         *
+         * @param slot the index of the slot to empty
+         */
+        void deleteKeySlot(int slot) {
+            int mask = heads.length - 1;
+            int gap = slot;
+            int j = (slot + 1) & mask;
+            while (heads[j] != NONE) {
+                int home = hash(keys[j]) & mask;
+                //move the key at j into the gap unless its home slot lies cyclically in (gap, j]
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    heads[gap] = heads[j];
+                    degrees[gap] = degrees[j];
+                    gap = j;
+                }
+                j = (j + 1) & mask;
+            }
+            heads[gap] = NONE;
+            keyCount--;
+        }
+
+        /**
+         * Doubles the number of slots in the key table
+         */
+        private void growKeys() {
+            long[] oldKeys = keys;
+            int[] oldHeads = heads, oldDegrees = degrees;
+
+            keys = new long[oldHeads.length * 2];
+            heads = new int[oldHeads.length * 2];
+            degrees = new int[oldHeads.length * 2];
+            Arrays.fill(heads, NONE);
+            for (int i = 0; i < oldHeads.length; i++) {
+                if (oldHeads[i] != NONE) {
+                    int slot = insertKeySlot(oldKeys[i]);
+                    heads[slot] = oldHeads[i];
+                    degrees[slot] = oldDegrees[i];
+                }
+            }
+        }
+
+        /**
+         * Appends every key and its pairs to a string builder, one key per line
+         *
+         * @param sb     the string builder to append to
+         * @param title  the heading printed above the keys
+         * @param mirror the index of the other side, holding the partners
+         */
+        void appendTo(StringBuilder sb, String title, KeyIndex mirror) {
+            sb.append("\n-- ");
+            sb.append(title);
+            sb.append(" --\n");
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] == NONE) {
+                    continue;
+                }
+                sb.append(keys[i]);
+                sb.append(": [");
+                for (int e = heads[i]; e != NONE; e = next[e]) {
+                    sb.append("(");
+                    sb.append(keys[i]);
+                    sb.append(", ");
+                    sb.append(mirror.values[e]);
+                    sb.append("), ");
+                }
+                sb.append("]\n");
+            }
+        }
+    }
+
+    /**
+     * Inner class iterating over the partners of a key by walking its list of entries
+     */
+    private class PartnerIterator implements PrimitiveIterator.OfLong {
+        /**
+         * The index of the side the key is on, holding the links between entries
+         */
+        private final KeyIndex index;
+
+        /**
+         * The index of the other side, holding the partners
+         */
+        private final KeyIndex mirror;
+
+        /**
+         * The modification count of the relation when the iterator was created
+         */
+        private final int expectedModCount = modCount;
+
+        /**
+         * The next entry to return the partner of, or NONE once there are none left
+         */
+        private int e;
+
+        /**
+         * Constructs an iterator over the partners of a key
+         *
+         * @param index  the index of the side the key is on
+         * @param mirror the index of the other side
+         * @param key    the key
+         */
+        private PartnerIterator(KeyIndex index, KeyIndex mirror, long key) {
+            this.index = index;
+            this.mirror = mirror;
+            this.e = index.head(key);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return e != NONE;
+        }
+
+        @Override
+        public long nextLong() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (e == NONE) {
+                throw new NoSuchElementException();
+            }
+            long partner = mirror.values[e];
+            e = index.next[e];
+            return partner;
+        }
+    }
+
+    /**
+     * Inner class for cursors over every pair, visiting the key table of the X index slot by slot
+     */
+    private class EntryCursor implements PairCursor<Long, Long> {
+        /**
+         * The modification count of the relation when the cursor was created
+         */
+        private final int expectedModCount = modCount;
+
+        /**
+         * The slot of the X key table holding the key of the current entry
+         */
+        private int slot = -1;
+
+        /**
+         * The current entry, or NONE if the cursor is not on a pair
+         */
+        private int e = NONE;
+
+        @Override
+        public boolean advance() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (e != NONE) {
+                e = byX.next[e];
+            }
+            while (e == NONE && ++slot < byX.heads.length) {
+                e = byX.heads[slot];
+            }
+            return e != NONE;
+        }
+
+        @Override
+        public Long x() {
+            if (e == NONE) {
+                throw new IllegalStateException("Cursor is not on a pair");
+            }
+            return byX.values[e];
+        }
+
+        @Override
+        public Long y() {
+            if (e == NONE) {
+                throw new IllegalStateException("Cursor is not on a pair");
+            }
+            return byY.values[e];
+        }
+    }
+
+    /**
+     * Inner class for the live views returned by viewMatchingX and viewMatchingY
+     */
+    private class PartnerView extends AbstractSet<Long> {
+        /**
+         * The index of the side the key is on
+         */
+        private final KeyIndex index;
+
+        /**
+         * The index of the other side, holding the partners
+         */
+        private final KeyIndex mirror;
+
+        /**
+         * The key whose partners are viewed
+         */
+        private final long key;
+
+        /**
+         * Constructs a view of the partners of a key
+         *
+         * @param index  the index of the side the key is on
+         * @param mirror the index of the other side
+         * @param key    the key
+         */
+        private PartnerView(KeyIndex index, KeyIndex mirror, long key) {
+            this.index = index;
+            this.mirror = mirror;
+            this.key = key;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Long)) {
+                return false;
+            }
+            long partner = (Long) o;
+            return index == byX ? LongLongRelation.this.contains(key, partner) : LongLongRelation.this.contains(partner, key);
+        }
+
+        @Override
+        public int size() {
+            return index.degree(key);
+        }
+
+        @Override
+        public Iterator<Long> iterator() {
+            return new PartnerIterator(index, mirror, key);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongLongRelationTest {
+
+    @Test
+    void putContainsRemove() {
+        LongLongRelation r = new LongLongRelation();
+        long big = 1L << 40;
+        for (long i = 0; i < 1000; i++) {
+            r.put(big + i, i % 3);
+        }
+
+        assertEquals(1000, r.size(), "Size");
+        assertTrue(r.contains(big + 4, 1), "Contains large x");
+        assertFalse(r.contains(4, 1), "Does not contain truncated x");
+
+        Set<Long> s = new TreeSet<>();
+        for (long i = 2; i < 1000; i += 3) {
+            s.add(big + i);
+        }
+        assertEquals(s, r.getAllMatchingY(2L), "getAllMatchingY set equal");
+
+        r.remove(big + 4, 1);
+        assertFalse(r.contains(big + 4, 1), "Remove after");
+        assertThrows(NoSuchElementException.class, () -> r.remove(big + 4, 1));
+
+        assertEquals(s.size(), r.removeAllMatchingY(2), "removeAllMatchingY count");
+        assertEquals(999 - s.size(), r.size(), "Size after removeAll");
+    }
+
+    @Test
+    void cursor() {
+        LongLongRelation r = new LongLongRelation();
+        long big = 1L << 40;
+        long expected = 0;
+        for (long i = 0; i < 1000; i++) {
+            r.put(big + i, i);
+            expected += i;
+        }
+
+        long sum = 0;
+        PairCursor<Long, Long> cursor = r.cursor();
+        while (cursor.advance()) {
+            assertEquals(big + cursor.y(), (long) cursor.x(), "Pair halves");
+            sum += cursor.y();
+        }
+        assertEquals(expected, sum, "Cursor visits every pair");
+        assertEquals(expected, r.stream().mapToLong(Map.Entry::getValue).sum(), "Stream sum");
+    }
+}
@@ -0,0 +1,1036 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent Relation kept in a memory mapped file
+ * <p>
+ * The pairs live in two files. The base file holds an OffHeapRelation laid out on disk, which is mapped read only
+ * when the relation is opened: nothing is read up front, and pages of the tables are faulted in as lookups use them,
+ * so a large relation is ready to serve contains and getAllMatchingX as soon as it is opened.
+ * The journal file, next to it with the suffix ".journal", records the changes made since the base was written.
+ * <p>
+ * Changes are held in memory, as pairs added to and removed from the base, until commit is called.
+ * Commit appends them to the journal as a single batch followed by a CRC32 checksum and forces the journal to disk,
+ * so after a crash the relation reopens with every committed batch and none of the uncommitted changes.
+ * A batch torn by a crash fails its checksum and is discarded, along with anything after it.
+ * <p>
+ * Once the changes outweigh a quarter of the base, commit compacts the relation: a new base holding every pair is
+ * written to a temporary file, forced to disk and moved over the old base, and the journal is emptied.
+ * Replaying a journal over a base that already includes it gives the same pairs, since each change sets the state
+ * of a single pair, so a crash between replacing the base and emptying the journal loses nothing.
+ * <p>
+ * Keys are stored in the fixed width encoding given by a KeyCodec, as in OffHeapRelation.
+ * Lookups have no side effects, on the base or on the changes held in memory, so any number of threads may read
+ * the relation at once; modifications, commit and compaction must not overlap with any other use.
+ * The relation must be closed once it is no longer needed, which unmaps the base without committing
+ *
+ * @param <X> Type of the first item in a pair
+ * @param <Y> Type of the second item in a pair
+ * @author Matthew Smith
+ */
+public class MappedRelation<X, Y> implements Relation<X, Y>, AutoCloseable {
+
+    /**
+     * The first four bytes of a journal file, "JRNL" in ASCII
+     */
+    private static final int JOURNAL_MAGIC = 0x4A524E4C;
+
+    /**
+     * Number of bytes in the header of a journal file: magic, version and the two key widths
+     */
+    private static final int JOURNAL_HEADER_BYTES = 16;
+
+    /**
+     * Journal operation: add a pair
+     */
+    private static final byte OP_PUT = 1;
+
+    /**
+     * Journal operation: remove a pair
+     */
+    private static final byte OP_REMOVE = 2;
+
+    /**
+     * Journal operation: remove every pair; the keys of the record are ignored
+     */
+    private static final byte OP_CLEAR = 3;
+
+    /**
+     * Smallest number of changes held over the base that triggers a compaction on commit
+     */
+    private static final int MIN_COMPACTION_CHANGES = 1024;
+
+
+    /**
+     * The base file
+     */
+    private final Path file;
+
+
+    /**
+     * The journal file
+     */
+    private final Path journalFile;
+
+
+    /**
+     * The encoding of the first item in a pair
+     */
+    private final KeyCodec<X> codecX;
+
+
+    /**
+     * The encoding of the second item in a pair
+     */
+    private final KeyCodec<Y> codecY;
+
+
+    /**
+     * Number of bytes in a journal record: the operation followed by the encoded x and y
+     */
+    private final int recordSize;
+
+
+    /**
+     * The pairs in the base file, mapped read only
+     */
+    private OffHeapRelation<X, Y> base;
+
+
+    /**
+     * The journal file, positioned at the end of the last committed batch
+     */
+    private FileChannel journal;
+
+
+    /**
+     * Pairs in the relation that are not in the base
+     */
+    private HashRelation<X, Y> added = new HashRelation<>();
+
+
+    /**
+     * Pairs in the base that have been removed from the relation
+     */
+    private HashRelation<X, Y> removed = new HashRelation<>();
+
+
+    /**
+     * True if the relation has been cleared since the base was written, hiding every pair in the base
+     */
+    private boolean baseCleared;
+
+
+    /**
+     * Journal records of the changes made since the last commit
+     */
+    private ByteBuffer pending;
+
+
+    /**
+     * Number of records in pending
+     */
+    private int pendingCount;
+
+
+    /**
+     * Number of pairs currently stored in the relation
+     */
+    private int size;
+
+
+    /**
+     * Opens the relation stored in a file, creating an empty one if the file does not exist
+     * <p>
+     * Committed batches in the journal are replayed, and a torn batch at the end of the journal is truncated
+     *
+     * @param file   the base file of the relation
+     * @param codecX the encoding of the first item in a pair
+     * @param codecY the encoding of the second item in a pair
+     * @throws IOException if the files cannot be read or written,
+     *                     or hold a relation of a different format or key widths
+     */
+    public MappedRelation(Path file, KeyCodec<X> codecX, KeyCodec<Y> codecY) throws IOException {
+        this.file = file;
+        this.journalFile = file.resolveSibling(file.getFileName() + ".journal");
+        this.codecX = codecX;
+        this.codecY = codecY;
+        this.recordSize = 1 + codecX.width() + codecY.width();
+        this.pending = newRecordBuffer(16);
+
+        if (!Files.exists(file)) {
+            writeBase(0, r -> {
+            });
+        }
+        mapBase();
+        size = base.size();
+
+        journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            replayJournal();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Requirement 1
+     * Returns true if the relation contains the specified pair (x, y)
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the first half of the pair
+     * @param y the second half of the pair
+     * @return true if the relation contains the pair (x, y)
+     */
+    @Override
+    public boolean contains(X x, Y y) {
+        ensureOpen();
+        return added.contains(x, y) || inBase(x, y) && !removed.contains(x, y);
+    }
+
+
+    /**
+     * Requirement 2
+     * Returns the set of all y such that (x, y) is in the relation, sorted and copied out of the file
+     * <p>
+     * Complexity:
+     * O(m log m) where m is the number of matching pairs
+     *
+     * @param x the key to match
+     * @return a new set of the partners of x
+     */
+    @Override
+    public Set<Y> getAllMatchingX(X x) {
+        ensureOpen();
+        Set<Y> s = new TreeSet<>();
+        if (!baseCleared) {
+            s.addAll(base.viewMatchingX(x));
+            s.removeAll(removed.viewMatchingX(x));
+        }
+        s.addAll(added.viewMatchingX(x));
+        return s;
+    }
+
+
+    /**
+     * Requirement 3
+     * Returns the set of all x such that (x, y) is in the relation, sorted and copied out of the file
+     * <p>
+     * Complexity:
+     * O(m log m) where m is the number of matching pairs
+     *
+     * @param y the key to match
+     * @return a new set of the partners of y
+     */
+    @Override
+    public Set<X> getAllMatchingY(Y y) {
+        ensureOpen();
+        Set<X> s = new TreeSet<>();
+        if (!baseCleared) {
+            s.addAll(base.viewMatchingY(y));
+            s.removeAll(removed.viewMatchingY(y));
+        }
+        s.addAll(added.viewMatchingY(y));
+        return s;
+    }
+
+
+    /**
+     * Given x, returns a live read-only view of all values y such that the relation contains (x, y)
+     * <p>
+     * The view walks the partners in the base, skipping removed ones, and then the added ones,
+     * so nothing is copied or sorted. The relation must not be modified or closed while the view is being iterated
+     * <p>
+     * Complexity:
+     * O(1) to create, O(1) for contains and size, O(m) to iterate
+     *
+     * @param x the key to match
+     * @return a live, unmodifiable set of the partners of x
+     */
+    @Override
+    public Set<Y> viewMatchingX(final X x) {
+        ensureOpen();
+        return new MergedView<Y>() {
+            @Override
+            Set<Y> inBase() {
+                return base.viewMatchingX(x);
+            }
+
+            @Override
+            Set<Y> inRemoved() {
+                return removed.viewMatchingX(x);
+            }
+
+            @Override
+            Set<Y> inAdded() {
+                return added.viewMatchingX(x);
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                @SuppressWarnings("unchecked")
+                Y y = (Y) o;
+                return o != null && MappedRelation.this.contains(x, y);
+            }
+
+            @Override
+            public int size() {
+                return degreeX(x);
+            }
+        };
+    }
+
+
+    /**
+     * Given y, returns a live read-only view of all values x such that the relation contains (x, y)
+     * <p>
+     * The view walks the partners in the base, skipping removed ones, and then the added ones,
+     * so nothing is copied or sorted. The relation must not be modified or closed while the view is being iterated
+     * <p>
+     * Complexity:
+     * O(1) to create, O(1) for contains and size, O(m) to iterate
+     *
+     * @param y the key to match
+     * @return a live, unmodifiable set of the partners of y
+     */
+    @Override
+    public Set<X> viewMatchingY(final Y y) {
+        ensureOpen();
+        return new MergedView<X>() {
+            @Override
+            Set<X> inBase() {
+                return base.viewMatchingY(y);
+            }
+
+            @Override
+            Set<X> inRemoved() {
+                return removed.viewMatchingY(y);
+            }
+
+            @Override
+            Set<X> inAdded() {
+                return added.viewMatchingY(y);
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                @SuppressWarnings("unchecked")
+                X x = (X) o;
+                return o != null && MappedRelation.this.contains(x, y);
+            }
+
+            @Override
+            public int size() {
+                return degreeY(y);
+            }
+        };
+    }
+
+
+    /**
+     * Given x, returns the number of values y such that the relation contains (x, y)
+     * <p>
+     * Every pair in the base that has been removed is in the base, and no added pair is,
+     * so the count is the base's degree less the removed degree plus the added degree
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the key to match
+     * @return the number of pairs matching x, 0 if there are none
+     */
+    @Override
+    public int degreeX(X x) {
+        ensureOpen();
+        int degree = added.degreeX(x);
+        if (!baseCleared) {
+            degree += base.degreeX(x) - removed.degreeX(x);
+        }
+        return degree;
+    }
+
+
+    /**
+     * Given y, returns the number of values x such that the relation contains (x, y)
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param y the key to match
+     * @return the number of pairs matching y, 0 if there are none
+     */
+    @Override
+    public int degreeY(Y y) {
+        ensureOpen();
+        int degree = added.degreeY(y);
+        if (!baseCleared) {
+            degree += base.degreeY(y) - removed.degreeY(y);
+        }
+        return degree;
+    }
+
+
+    /**
+     * Requirement 4
+     * Empties the relation. The base file is only replaced at the next compaction
+     */
+    @Override
+    public void clear() {
+        ensureOpen();
+        apply(OP_CLEAR, null, null);
+        log(OP_CLEAR, null, null);
+    }
+
+
+    /**
+     * Requirement 5
+     * Adds a given pair (x, y) to the relation, to be written to the journal at the next commit
+     * <p>
+     * Complexity:
+     * O(1) amortised
+     *
+     * @param x the first half of the pair to be added
+     * @param y the second half of the pair to be added
+     */
+    @Override
+    public void put(X x, Y y) {
+        ensureOpen();
+        if (apply(OP_PUT, x, y)) {
+            log(OP_PUT, x, y);
+        }
+    }
+
+
+    /**
+     * Requirement 6
+     * Removes a given pair (x, y) from the relation, to be written to the journal at the next commit
+     * <p>
+     * Complexity:
+     * O(1) amortised
+     *
+     * @param x the first half of the pair to be removed
+     * @param y the second half of the pair to be removed
+     * @throws NoSuchElementException if the pair is not in the relation
+     */
+    @Override
+    public void remove(X x, Y y) throws NoSuchElementException {
+        ensureOpen();
+        if (!apply(OP_REMOVE, x, y)) {
+            throw new NoSuchElementException("Relation does not contain the pair (" + x + ", " + y + ")");
+        }
+        log(OP_REMOVE, x, y);
+    }
+
+
+    /**
+     * Requirement 7
+     * Removes all pairs matching x from the relation
+     * <p>
+     * Complexity:
+     * O(m log m) where m is the number of matching pairs
+     *
+     * @param x the key of the pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingX(X x) {
+        Set<Y> partners = getAllMatchingX(x);
+        for (Y y : partners) {
+            remove(x, y);
+        }
+        return partners.size();
+    }
+
+
+    /**
+     * Requirement 8
+     * Removes all pairs matching y from the relation
+     * <p>
+     * Complexity:
+     * O(m log m) where m is the number of matching pairs
+     *
+     * @param y the key of the pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingY(Y y) {
+        Set<X> partners = getAllMatchingY(y);
+        for (X x : partners) {
+            remove(x, y);
+        }
+        return partners.size();
+    }
+
+
+    /**
+     * Requirement 9
+     * Returns a string representation of the relation, in the format of HashRelation
+     * <p>
+     * Complexity:
+     * O(n) (has to traverse every item in the relation)
+     *
+     * @return a string representation of the relation
+     */
+    @Override
+    public String toString() {
+        ensureOpen();
+        HashRelation<X, Y> copy = new HashRelation<>();
+        forEachPair(copy::put);
+        return copy.toString();
+    }
+
+
+    /**
+     * Returns the number of pairs in the relation, committed or not
+     * <p>
+     * The count is the pairs of the base, less those removed from it, plus those added since it was written,
+     * or only those added if the relation has been cleared since. It is kept up to date by every change as it is
+     * applied, including changes replayed from the journal on opening, so nothing is merged or scanned here.
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @return the number of pairs in the relation
+     * @throws IllegalStateException if the relation has been closed
+     */
+    @Override
+    public int size() {
+        ensureOpen();
+        return size;
+    }
+
+
+    /**
+     * Returns a cursor over every pair in the relation: the pairs of the base that have not been removed,
+     * then the pairs added since the last compaction
+     * <p>
+     * The relation must not be modified or closed while the cursor is in use
+     *
+     * @return a cursor positioned before the first pair
+     */
+    @Override
+    public PairCursor<X, Y> cursor() {
+        ensureOpen();
+        final PairCursor<X, Y> inBase = baseCleared ? null : base.cursor();
+        final PairCursor<X, Y> inAdded = added.cursor();
+        return new PairCursor<X, Y>() {
+            /**
+             * The cursor the current pair was read from, or null if the cursor is not on a pair
+             */
+            private PairCursor<X, Y> current;
+
+            /**
+             * True once every pair of the base has been visited
+             */
+            private boolean baseDone = inBase == null;
+
+            @Override
+            public boolean advance() {
+                ensureOpen();
+                while (!baseDone) {
+                    if (!inBase.advance()) {
+                        baseDone = true;
+                    } else if (!removed.contains(inBase.x(), inBase.y())) {
+                        current = inBase;
+                        return true;
+                    }
+                }
+                current = inAdded.advance() ? inAdded : null;
+                return current != null;
+            }
+
+            @Override
+            public X x() {
+                if (current == null) {
+                    throw new IllegalStateException("Cursor is not on a pair");
+                }
+                return current.x();
+            }
+
+            @Override
+            public Y y() {
+                if (current == null) {
+                    throw new IllegalStateException("Cursor is not on a pair");
+                }
+                return current.y();
+            }
+        };
+    }
+
+
+    /**
+     * Appends every change made since the last commit to the journal as one batch, and forces it to disk
+     * <p>
+     * Compacts the relation afterwards if the changes held over the base have grown large
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    public void commit() throws IOException {
+        ensureOpen();
+        appendPending();
+
+        int changes = added.size() + removed.size();
+        if (baseCleared || changes > Math.max(MIN_COMPACTION_CHANGES, base.size() / 4)) {
+            compact();
+        }
+    }
+
+
+    /**
+     * Commits any pending changes, then rewrites the base file to hold every pair and empties the journal
+     *
+     * @throws IOException if the files cannot be written
+     */
+    public void compact() throws IOException {
+        ensureOpen();
+        appendPending();
+
+        writeBase(size, this::forEachPair);
+        base.close();
+        mapBase();
+
+        journal.truncate(JOURNAL_HEADER_BYTES);
+        journal.position(JOURNAL_HEADER_BYTES);
+        journal.force(true);
+
+        added = new HashRelation<>();
+        removed = new HashRelation<>();
+        baseCleared = false;
+    }
+
+
+    /**
+     * Unmaps the base file and closes the journal, discarding any changes made since the last commit
+     * <p>
+     * The relation must not be used afterwards; closing it again does nothing
+     *
+     * @throws IOException if the journal cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (base != null) {
+            base.close();
+            base = null;
+        }
+        if (journal != null) {
+            FileChannel j = journal;
+            journal = null;
+            j.close();
+        }
+    }
+
+    /**
+     * Changes the pairs held in memory for one journal operation, keeping the size up to date
+     *
+     * @param op the operation
+     * @param x  the first half of the pair, ignored by OP_CLEAR
+     * @param y  the second half of the pair, ignored by OP_CLEAR
+     * @return true if the relation changed
+     */
+    private boolean apply(byte op, X x, Y y) {
+        switch (op) {
+            case OP_PUT:
+                if (contains(x, y)) {
+                    return false;
+                }
+                //re-adding a pair removed from the base just cancels the removal
+                if (removed.contains(x, y)) {
+                    removed.remove(x, y);
+                } else {
+                    added.put(x, y);
+                }
+                size++;
+                return true;
+            case OP_REMOVE:
+                if (added.contains(x, y)) {
+                    added.remove(x, y);
+                } else if (inBase(x, y) && !removed.contains(x, y)) {
+                    removed.put(x, y);
+                } else {
+                    return false;
+                }
+                size--;
+                return true;
+            case OP_CLEAR:
+                added.clear();
+                removed.clear();
+                baseCleared = true;
+                size = 0;
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown journal operation " + op);
+        }
+    }
+
+    /**
+     * Appends a record of a change to the pending batch
+     *
+     * @param op the operation
+     * @param x  the first half of the pair, ignored by OP_CLEAR
+     * @param y  the second half of the pair, ignored by OP_CLEAR
+     */
+    private void log(byte op, X x, Y y) {
+        if (pending.remaining() < recordSize) {
+            ByteBuffer grown = newRecordBuffer(pending.capacity() / recordSize * 2);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+
+        int at = pending.position();
+        pending.put(at, op);
+        if (op != OP_CLEAR) {
+            codecX.write(pending, at + 1, x);
+            codecY.write(pending, at + 1 + codecX.width(), y);
+        } else {
+            for (int i = 1; i < recordSize; i++) {
+                pending.put(at + i, (byte) 0);
+            }
+        }
+        pending.position(at + recordSize);
+        pendingCount++;
+    }
+
+    /**
+     * Writes the pending batch to the end of the journal, followed by its checksum, and forces the journal to disk
+     * <p>
+     * If the batch cannot be written, the journal is cut back to where it ended and the changes stay pending,
+     * so a later commit can write them again
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    private void appendPending() throws IOException {
+        if (pendingCount == 0) {
+            return;
+        }
+
+        ByteBuffer batch = ByteBuffer.allocate(Integer.BYTES + pending.position() + Long.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        batch.putInt(pendingCount);
+        //copy through a duplicate so the pending records are left as they are if the write fails
+        ByteBuffer records = pending.duplicate();
+        records.flip();
+        batch.put(records);
+        CRC32 crc = new CRC32();
+        crc.update(batch.array(), 0, batch.position());
+        batch.putLong(crc.getValue());
+        batch.flip();
+
+        appendBatch(journal, batch);
+
+        pending.clear();
+        pendingCount = 0;
+    }
+
+    /**
+     * Writes a batch at the position of a journal and forces it to disk, or leaves the journal as it was
+     * <p>
+     * A write or force that fails part way may leave some of the batch in the file with the position moved past it.
+     * Since replay stops at the first batch that fails its checksum, a later batch written after those torn bytes
+     * would be lost on reopening, so on failure the journal is truncated back to where the batch began
+     * and its position reset there before the exception is rethrown
+     *
+     * @param channel the journal, positioned at the end of its last committed batch
+     * @param batch   the batch, between its position and limit
+     * @throws IOException if the batch cannot be written; any failure to roll back is added as suppressed
+     */
+    static void appendBatch(FileChannel channel, ByteBuffer batch) throws IOException {
+        long start = channel.position();
+        try {
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            try {
+                channel.position(start);
+                channel.truncate(start);
+            } catch (IOException rollback) {
+                e.addSuppressed(rollback);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the header of the journal, writing one if the journal is empty, then applies every committed batch
+     * and truncates anything after the last one
+     *
+     * @throws IOException if the journal cannot be read or was written with codecs of different widths
+     */
+    private void replayJournal() throws IOException {
+        long length = journal.size();
+        if (length < JOURNAL_HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(JOURNAL_MAGIC).putInt(OffHeapRelation.FILE_VERSION)
+                    .putInt(codecX.width()).putInt(codecY.width()).flip();
+            journal.truncate(0);
+            journal.write(header, 0);
+            journal.force(true);
+            journal.position(JOURNAL_HEADER_BYTES);
+            return;
+        }
+
+        ByteBuffer header = read(0, JOURNAL_HEADER_BYTES);
+        if (header.getInt(0) != JOURNAL_MAGIC) {
+            throw new IOException("Not a relation journal: " + journalFile);
+        }
+        if (header.getInt(4) != OffHeapRelation.FILE_VERSION) {
+            throw new IOException("Unsupported relation journal version " + header.getInt(4));
+        }
+        if (header.getInt(8) != codecX.width() || header.getInt(12) != codecY.width()) {
+            throw new IOException("Relation journal was written with keys of " + header.getInt(8) + " and "
+                    + header.getInt(12) + " bytes");
+        }
+
+        long position = JOURNAL_HEADER_BYTES;
+        while (length - position >= Integer.BYTES) {
+            int count = read(position, Integer.BYTES).getInt(0);
+            long batchBytes = Integer.BYTES + (long) count * recordSize + Long.BYTES;
+            if (count <= 0 || length - position < batchBytes || batchBytes > Integer.MAX_VALUE) {
+                break;
+            }
+
+            ByteBuffer batch = read(position, (int) batchBytes);
+            int end = (int) batchBytes - Long.BYTES;
+            CRC32 crc = new CRC32();
+            crc.update(batch.array(), 0, end);
+            if (crc.getValue() != batch.getLong(end)) {
+                break;
+            }
+
+            for (int at = Integer.BYTES; at < end; at += recordSize) {
+                byte op = batch.get(at);
+                if (op == OP_CLEAR) {
+                    apply(op, null, null);
+                } else {
+                    apply(op, codecX.read(batch, at + 1), codecY.read(batch, at + 1 + codecX.width()));
+                }
+            }
+            position += batchBytes;
+        }
+
+        //anything past the last whole batch was torn by a crash while it was being committed
+        if (position < length) {
+            journal.truncate(position);
+            journal.force(true);
+        }
+        journal.position(position);
+    }
+
+    /**
+     * Reads a region of the journal into a heap buffer
+     *
+     * @param position the offset within the journal of the first byte
+     * @param bytes    the number of bytes to read
+     * @return a buffer holding the bytes, in little endian order
+     * @throws IOException if the journal cannot be read or ends early
+     */
+    private ByteBuffer read(long position, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (journal.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of journal: " + journalFile);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Writes a new base file holding the given pairs, replacing the current one once it is safely on disk
+     *
+     * @param capacity the number of pairs to make room for
+     * @param source   called with an action to perform on every pair of the new base
+     * @throws IOException if the file cannot be written or moved into place
+     */
+    private void writeBase(int capacity, Consumer<BiConsumer<X, Y>> source) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            OffHeapRelation<X, Y> r = OffHeapRelation.createFile(channel, codecX, codecY, capacity);
+            try {
+                source.accept(r::put);
+                r.sync();
+            } finally {
+                r.close();
+            }
+        }
+
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory();
+    }
+
+    /**
+     * Forces the directory holding the base file to disk, so a move into it survives a crash
+     * <p>
+     * Some platforms cannot open a directory, in which case this does nothing
+     */
+    private void forceDirectory() {
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //not supported on this platform
+        }
+    }
+
+    /**
+     * Maps the base file read only
+     *
+     * @throws IOException if the file cannot be mapped or is not a valid relation file
+     */
+    private void mapBase() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            base = OffHeapRelation.mapFile(channel, codecX, codecY, false);
+        }
+    }
+
+    /**
+     * Performs an action on every pair in the relation, in no particular order
+     * <p>
+     * Walks the base and the pairs added since it was written, without building either into a set.
+     * The action must not modify the relation
+     *
+     * @param action the action to perform on each pair
+     */
+    @Override
+    public void forEachPair(BiConsumer<? super X, ? super Y> action) {
+        ensureOpen();
+        if (!baseCleared) {
+            base.forEachPair((x, y) -> {
+                if (!removed.contains(x, y)) {
+                    action.accept(x, y);
+                }
+            });
+        }
+        added.forEachPair(action);
+    }
+
+    /**
+     * Returns true if the base holds a pair and has not been cleared
+     *
+     * @param x the first half of the pair
+     * @param y the second half of the pair
+     * @return true if the pair is visible in the base
+     */
+    private boolean inBase(X x, Y y) {
+        return !baseCleared && base.contains(x, y);
+    }
+
+    /**
+     * Allocates a heap buffer for journal records
+     *
+     * @param records the number of records to make room for
+     * @return the buffer, in little endian order
+     */
+    private ByteBuffer newRecordBuffer(int records) {
+        return ByteBuffer.allocate(records * recordSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Throws an exception if the relation has been closed
+     *
+     * @throws IllegalStateException if close has been called
+     */
+    private void ensureOpen() {
+        if (base == null) {
+            throw new IllegalStateException("Relation has been closed");
+        }
+    }
+
+    /**
+     * Inner class for the live views returned by viewMatchingX and viewMatchingY
+     * <p>
+     * The views of the base and the changes are fetched again for each iterator,
+     * since compaction replaces the base and clear empties the changes
+     *
+     * @param <V> Type of the partners in the view
+     */
+    private abstract class MergedView<V> extends AbstractSet<V> {
+
+        /**
+         * Get the partners of the key in the base, including any since removed
+         *
+         * @return a live view of the partners in the base
+         */
+        abstract Set<V> inBase();
+
+        /**
+         * Get the partners of the key removed from the base since the last compaction
+         *
+         * @return a live view of the removed partners
+         */
+        abstract Set<V> inRemoved();
+
+        /**
+         * Get the partners of the key added since the last compaction
+         *
+         * @return a live view of the added partners
+         */
+        abstract Set<V> inAdded();
+
+        @Override
+        public Iterator<V> iterator() {
+            ensureOpen();
+            final Iterator<V> fromBase = baseCleared ? Collections.<V>emptyIterator() : inBase().iterator();
+            final Set<V> skip = inRemoved();
+            final Iterator<V> fromAdded = inAdded().iterator();
+            return new Iterator<V>() {
+                /**
+                 * The partner next returns, or null once every partner has been returned
+                 */
+                private V upcoming = advance();
+
+                /**
+                 * Finds the next partner still in the relation
+                 *
+                 * @return the partner, or null if there are none left
+                 */
+                private V advance() {
+                    while (fromBase.hasNext()) {
+                        V v = fromBase.next();
+                        if (!skip.contains(v)) {
+                            return v;
+                        }
+                    }
+                    return fromAdded.hasNext() ? fromAdded.next() : null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return upcoming != null;
+                }
+
+                @Override
+                public V next() {
+                    if (upcoming == null) {
+                        throw new NoSuchElementException();
+                    }
+                    V v = upcoming;
+                    upcoming = advance();
+                    return v;
+                }
+            };
+        }
+    }
+}
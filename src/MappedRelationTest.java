@@ -0,0 +1,416 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedRelationTest {
+
+    @TempDir
+    Path dir;
+
+    private Path file;
+    private MappedRelation<String, String> r;
+    private String[] a = {"j", "j", "c", "c", "c", "p", "n", "k", "k", "k"};
+    private String[] b = {"java", "javascript", "c++", "c#", "c", "python", "node", "java", "node", "c"};
+
+    @BeforeEach
+    void setUp() throws IOException {
+        file = dir.resolve("relation");
+        r = open();
+
+        for (int i = 0; i < a.length; i++) {
+            r.put(a[i], b[i]);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        r.close();
+    }
+
+    private MappedRelation<String, String> open() throws IOException {
+        return new MappedRelation<>(file, KeyCodec.utf8(4), KeyCodec.utf8(16));
+    }
+
+    @Test
+    void containsAndGetAllMatching() {
+        assertTrue(r.contains("j", "java"), "Contains j, java");
+        assertFalse(r.contains("r", "ruby"), "Does not contain r, ruby");
+
+        Set<String> s = new TreeSet<>();
+        s.add("j");
+        s.add("k");
+        assertEquals(s, r.getAllMatchingY("java"), "getAllMatchingY set equal");
+        assertEquals(a.length, r.size(), "Size");
+    }
+
+    @Test
+    void views() throws IOException {
+        r.commit();
+        r.compact();
+        r.remove("c", "c");
+        r.put("c", "cobol");
+        Set<String> cs = r.viewMatchingX("c");
+        Set<String> javas = r.viewMatchingY("java");
+        assertEquals(Set.of("c++", "c#", "cobol"), new HashSet<>(cs), "Base less removed plus added");
+        assertEquals(3, cs.size(), "Size");
+        assertTrue(cs.contains("cobol"), "Contains added pair");
+        assertFalse(cs.contains("c"), "Does not contain removed pair");
+        assertEquals(Set.of("j", "k"), new HashSet<>(javas), "viewMatchingY");
+
+        r.put("c", "c");
+        assertEquals(Set.of("c++", "c#", "c", "cobol"), new HashSet<>(cs), "View is live");
+        r.clear();
+        r.put("c", "x");
+        assertEquals(Set.of("x"), new HashSet<>(cs), "View after clear");
+        assertTrue(javas.isEmpty(), "Cleared base is hidden");
+        r.close();
+        assertThrows(IllegalStateException.class, cs::size, "Closed");
+        r = open();
+    }
+
+    @Test
+    void uncommittedChangesAreLost() throws IOException {
+        r.close();
+        r = open();
+        assertEquals(0, r.size(), "Nothing committed");
+        assertFalse(r.contains("j", "java"), "Nothing committed");
+    }
+
+    @Test
+    void reopenReplaysJournal() throws IOException {
+        r.commit();
+        r.remove("j", "java");
+        assertEquals(2, r.removeAllMatchingY("node"), "removeAllMatchingY count");
+        r.commit();
+        r.close();
+
+        r = open();
+        assertEquals(a.length - 3, r.size(), "Size after reopen");
+        assertFalse(r.contains("j", "java"), "Removal replayed");
+        assertTrue(r.contains("k", "java"), "Committed pair kept");
+        assertTrue(r.getAllMatchingX("n").isEmpty(), "removeAll replayed");
+        assertThrows(NoSuchElementException.class, () -> r.remove("j", "java"));
+    }
+
+    @Test
+    void compact() throws IOException {
+        r.commit();
+        r.compact();
+        r.remove("c", "c");
+        r.put("r", "ruby");
+        r.put("c", "c");
+        r.commit();
+        r.close();
+
+        r = open();
+        assertEquals(a.length + 1, r.size(), "Size after compaction");
+        assertTrue(r.contains("c", "c"), "Re-added pair");
+        assertTrue(r.contains("r", "ruby"), "Journal applied over compacted base");
+
+        r.compact();
+        assertEquals(16, Files.size(dir.resolve("relation.journal")), "Journal emptied");
+        r.clear();
+        r.put("x", "y");
+        r.commit();
+        r.close();
+
+        r = open();
+        assertEquals(1, r.size(), "Clear replayed");
+        assertEquals("[y]", r.getAllMatchingX("x").toString(), "Pair after clear");
+    }
+
+    @Test
+    void tornJournal() throws IOException {
+        r.commit();
+        r.put("r", "ruby");
+        r.commit();
+        r.close();
+
+        //chop the checksum off the last batch, as if the process died while committing it
+        Path journal = dir.resolve("relation.journal");
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        r = open();
+        assertEquals(a.length, r.size(), "Torn batch discarded");
+        assertFalse(r.contains("r", "ruby"), "Torn batch discarded");
+
+        r.put("p", "perl");
+        r.commit();
+        r.close();
+        r = open();
+        assertTrue(r.contains("p", "perl"), "Journal usable after truncation");
+    }
+
+    @Test
+    void failedAppendLeavesJournalAsItWas() throws IOException {
+        Path journal = dir.resolve("append.journal");
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[16]));
+
+            //a write that fails after part of the batch reached the file
+            assertThrows(IOException.class, () -> MappedRelation.appendBatch(new FailingChannel(channel, 5, false),
+                    ByteBuffer.wrap(new byte[20])), "Write fails");
+            assertEquals(16, channel.size(), "Torn bytes truncated");
+            assertEquals(16, channel.position(), "Position reset");
+
+            //a force that fails after the whole batch was written
+            assertThrows(IOException.class, () -> MappedRelation.appendBatch(new FailingChannel(channel, 100, true),
+                    ByteBuffer.wrap(new byte[20])), "Force fails");
+            assertEquals(16, channel.size(), "Unforced batch truncated");
+
+            byte[] next = {1, 2, 3, 4, 5, 6, 7, 8};
+            MappedRelation.appendBatch(channel, ByteBuffer.wrap(next));
+            assertEquals(24, channel.size(), "Next batch follows the last committed one");
+            ByteBuffer read = ByteBuffer.allocate(8);
+            channel.read(read, 16);
+            assertArrayEquals(next, read.array(), "Next batch written where the failed one began");
+        }
+    }
+
+    @Test
+    void rejectsOtherFormats() throws IOException {
+        r.close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), 0);
+        }
+        assertThrows(IOException.class, this::open, "Bad magic");
+
+        Files.delete(file);
+        r = open();
+        r.close();
+        assertThrows(IOException.class,
+                () -> new MappedRelation<>(file, KeyCodec.INT, KeyCodec.INT), "Different key widths");
+        r = open();
+    }
+
+    @Test
+    void manyPairs() throws IOException {
+        MappedRelation<Integer, Integer> m = new MappedRelation<>(dir.resolve("ints"), KeyCodec.INT, KeyCodec.INT);
+        try {
+            for (int i = 0; i < 5000; i++) {
+                m.put(i % 97, i);
+            }
+            m.commit();
+        } finally {
+            m.close();
+        }
+
+        m = new MappedRelation<>(dir.resolve("ints"), KeyCodec.INT, KeyCodec.INT);
+        try {
+            assertEquals(5000, m.size(), "Size after reopen");
+            assertEquals(16, Files.size(dir.resolve("ints.journal")), "Compacted on commit");
+            assertEquals((5000 + 96) / 97, m.getAllMatchingX(0).size(), "Partners of 0");
+            assertTrue(m.contains(13, 4960), "Contains after reopen");
+        } finally {
+            m.close();
+        }
+    }
+
+    @Test
+    void concurrentReads() throws Exception {
+        final int threads = 8, n = 100000;
+        MappedRelation<Integer, Integer> m = new MappedRelation<>(dir.resolve("reads"), KeyCodec.INT, KeyCodec.INT);
+        try {
+            for (int i = 0; i < n; i++) {
+                m.put(i, i % 1000);
+            }
+            m.commit();
+        } finally {
+            m.close();
+        }
+
+        final MappedRelation<Integer, Integer> mapped =
+                new MappedRelation<>(dir.resolve("reads"), KeyCodec.INT, KeyCodec.INT);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            mapped.remove(0, 0);
+            mapped.put(0, -1);
+            List<Callable<Integer>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                tasks.add(() -> {
+                    int misses = 0;
+                    for (int i = id + 1; i < n; i += 3) {
+                        if (!mapped.contains(i, i % 1000) || mapped.contains(i, i % 1000 + 1)
+                                || mapped.degreeX(i) != 1 || !mapped.viewMatchingY(i % 1000).contains(i)) {
+                            misses++;
+                        }
+                    }
+                    if (mapped.contains(0, 0) || !mapped.getAllMatchingX(0).equals(Set.of(-1))) {
+                        misses++;
+                    }
+                    return misses;
+                });
+            }
+            for (Future<Integer> f : pool.invokeAll(tasks)) {
+                assertEquals(0, f.get().intValue(), "Readers of the mapped base do not disturb each other");
+            }
+        } finally {
+            pool.shutdown();
+            mapped.close();
+        }
+    }
+
+    @Test
+    void cursor() throws IOException {
+        r.commit();
+        r.compact();
+        r.remove("c", "c");
+        r.put("r", "ruby");
+
+        Set<String> expected = new TreeSet<>();
+        for (int i = 0; i < a.length; i++) {
+            expected.add(a[i] + "=" + b[i]);
+        }
+        expected.remove("c=c");
+        expected.add("r=ruby");
+
+        Set<String> visited = new TreeSet<>();
+        PairCursor<String, String> cursor = r.cursor();
+        while (cursor.advance()) {
+            assertTrue(visited.add(cursor.x() + "=" + cursor.y()), "Each pair visited once");
+        }
+        assertEquals(expected, visited, "Cursor merges the base with the changes");
+        assertEquals(expected.size(), r.stream().count(), "Stream count");
+    }
+
+    /**
+     * Channel that passes a limited number of bytes on to a real channel and then fails, as a full disk would
+     */
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        private int allowed;
+        private final boolean failForce;
+
+        FailingChannel(FileChannel channel, int allowed, boolean failForce) {
+            this.channel = channel;
+            this.allowed = allowed;
+            this.failForce = failForce;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (allowed == 0) {
+                throw new IOException("No space left on device");
+            }
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + Math.min(allowed, part.remaining()));
+            int written = channel.write(part);
+            src.position(src.position() + written);
+            allowed -= written;
+            return written;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (failForce) {
+                throw new IOException("I/O error");
+            }
+            channel.force(metaData);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            //the real channel is closed by its owner
+        }
+    }
+}
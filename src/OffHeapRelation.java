@@ -0,0 +1,1443 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+
+/**
+ * A Relation that stores its pairs outside the Java heap
+ * <p>
+ * The layout is the same as IntIntRelation's, with every array replaced by a RecordBuffer of direct memory:
+ * each pair is stored once, as an entry threaded onto a doubly linked list for its x and one for its y,
+ * and three open addressing tables index the entries by (x, y), by x and by y.
+ * Keys are stored in the fixed width encoding given by a KeyCodec and compared and hashed by their bytes,
+ * so the heap only holds a handful of objects however many pairs the relation contains.
+ * <p>
+ * Lookups encode their keys into a scratch buffer of the calling thread, so reads have no side effects and
+ * any number of threads may read the relation at once. Modifications must not overlap with any other use.
+ * <p>
+ * The memory is not tied to the garbage collector: call close once the relation is no longer needed.
+ * Any use of a closed relation throws an IllegalStateException.
+ * <p>
+ * The tables can also be laid out in a file and memory mapped, which is how MappedRelation stores its pairs.
+ * The file starts with a header recording a format version, the key widths and the size of every table,
+ * followed by each table in turn. A relation mapped from a file has a fixed capacity and never grows
+ *
+ * @param <X> Type of the first item in a pair
+ * @param <Y> Type of the second item in a pair
+ * @author Matthew Smith
+ */
+public class OffHeapRelation<X, Y> implements Relation<X, Y>, AutoCloseable {
+
+    /**
+     * Number of pairs the relation can hold before any of its tables are grown, when none is specified
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Marks the end of a linked list of entries
+     */
+    private static final int NONE = -1;
+
+    /**
+     * Pair table: offset of the entry number plus one, so zeroed memory is an empty slot
+     */
+    private static final int PAIR_ENTRY = 0;
+
+    /**
+     * Pair table: offset of the hash of the pair in the slot
+     */
+    private static final int PAIR_HASH = 4;
+
+    /**
+     * Number of bytes in a slot of the pair table
+     */
+    private static final int PAIR_SLOT_SIZE = 8;
+
+    /**
+     * The first four bytes of a relation file, "JREL" in ASCII
+     */
+    private static final int FILE_MAGIC = 0x4A52454C;
+
+    /**
+     * Version of the layout of relation files, increased whenever the layout changes
+     */
+    static final int FILE_VERSION = 1;
+
+    /**
+     * Number of bytes reserved for the header at the start of a relation file
+     */
+    private static final int HEADER_BYTES = 4096;
+
+    /**
+     * Index X: the x of every entry, the lists of entries sharing an x, and the table of distinct x values
+     */
+    private final KeyIndex<X> byX;
+
+
+    /**
+     * Index Y: the y of every entry, the lists of entries sharing a y, and the table of distinct y values
+     */
+    private final KeyIndex<Y> byY;
+
+
+    /**
+     * Pair table: open addressing table of entries, hashed by (x, y)
+     */
+    private RecordBuffer pairSlots;
+
+
+    /**
+     * Number of slots in the pair table, always a power of two
+     */
+    private int pairSlotCount;
+
+
+    /**
+     * Number of entries ever allocated, including those now on the free list
+     */
+    private int entryCount;
+
+
+    /**
+     * First entry of the free list, chained through the X links, or NONE if the free list is empty
+     */
+    private int freeEntry;
+
+
+    /**
+     * Number of pairs currently stored in the relation
+     */
+    private int size;
+
+
+    /**
+     * True once close has been called
+     */
+    private boolean closed;
+
+
+    /**
+     * The header of the file the tables are mapped from, or null if they are not mapped from a file
+     */
+    private MappedByteBuffer header;
+
+
+    /**
+     * Constructs an empty OffHeapRelation with the default capacity
+     *
+     * @param codecX the encoding of the first item in a pair
+     * @param codecY the encoding of the second item in a pair
+     */
+    public OffHeapRelation(KeyCodec<X> codecX, KeyCodec<Y> codecY) {
+        this(codecX, codecY, DEFAULT_CAPACITY);
+    }
+
+
+    /**
+     * Constructs an empty OffHeapRelation able to hold a specified number of pairs before growing
+     *
+     * @param codecX   the encoding of the first item in a pair
+     * @param codecY   the encoding of the second item in a pair
+     * @param capacity the number of pairs to allocate space for
+     * @throws IllegalArgumentException if capacity is negative
+     */
+    public OffHeapRelation(KeyCodec<X> codecX, KeyCodec<Y> codecY, int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+        }
+        byX = new KeyIndex<>(codecX);
+        byY = new KeyIndex<>(codecY);
+        allocate(capacity);
+    }
+
+
+    /**
+     * Constructs a relation with no tables allocated, for the tables to be mapped from a file
+     *
+     * @param codecX the encoding of the first item in a pair
+     * @param codecY the encoding of the second item in a pair
+     * @param header the header of the file
+     */
+    private OffHeapRelation(KeyCodec<X> codecX, KeyCodec<Y> codecY, MappedByteBuffer header) {
+        byX = new KeyIndex<>(codecX);
+        byY = new KeyIndex<>(codecY);
+        this.header = header;
+    }
+
+
+    /**
+     * Lays out an empty relation with room for a given number of pairs in a file, and maps it read write
+     * <p>
+     * The relation cannot grow: adding more than capacity pairs throws an IllegalStateException.
+     * Changes are only guaranteed to reach the file once sync has been called
+     *
+     * @param channel  the file to lay the relation out in, which should be empty
+     * @param codecX   the encoding of the first item in a pair
+     * @param codecY   the encoding of the second item in a pair
+     * @param capacity the number of pairs to make room for
+     * @param <X>      Type of the first item in a pair
+     * @param <Y>      Type of the second item in a pair
+     * @return the relation
+     * @throws IOException if the file cannot be mapped
+     */
+    static <X, Y> OffHeapRelation<X, Y> createFile(FileChannel channel, KeyCodec<X> codecX, KeyCodec<Y> codecY,
+                                                   int capacity) throws IOException {
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+
+        OffHeapRelation<X, Y> r = new OffHeapRelation<>(codecX, codecY, header);
+        int slotCount = tableSizeFor(capacity);
+        r.mapTables(channel, FileChannel.MapMode.READ_WRITE, capacity, slotCount, slotCount, slotCount);
+        r.entryCount = 0;
+        r.freeEntry = NONE;
+        r.size = 0;
+        r.writeHeader(capacity);
+        return r;
+    }
+
+
+    /**
+     * Maps a relation previously laid out in a file by createFile
+     * <p>
+     * Only the header is read; the pages of the tables are read from the file as they are first used
+     *
+     * @param channel  the file holding the relation
+     * @param codecX   the encoding of the first item in a pair
+     * @param codecY   the encoding of the second item in a pair
+     * @param writable true to map the file read write, false to map it read only
+     * @param <X>      Type of the first item in a pair
+     * @param <Y>      Type of the second item in a pair
+     * @return the relation
+     * @throws IOException if the file cannot be mapped, is not a relation file, has an unsupported version,
+     *                     or was written with codecs of different widths
+     */
+    static <X, Y> OffHeapRelation<X, Y> mapFile(FileChannel channel, KeyCodec<X> codecX, KeyCodec<Y> codecY,
+                                                boolean writable) throws IOException {
+        if (channel.size() < HEADER_BYTES) {
+            throw new IOException("File is too short to be a relation file");
+        }
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        MappedByteBuffer header = channel.map(mode, 0, HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (header.getInt(0) != FILE_MAGIC) {
+            throw new IOException("Not a relation file");
+        }
+        if (header.getInt(4) != FILE_VERSION) {
+            throw new IOException("Unsupported relation file version " + header.getInt(4));
+        }
+        if (header.getInt(8) != codecX.width() || header.getInt(12) != codecY.width()) {
+            throw new IOException("Relation file was written with keys of " + header.getInt(8) + " and "
+                    + header.getInt(12) + " bytes");
+        }
+
+        OffHeapRelation<X, Y> r = new OffHeapRelation<>(codecX, codecY, header);
+        r.mapTables(channel, mode, header.getInt(16), header.getInt(20), header.getInt(36), header.getInt(44));
+        r.entryCount = header.getInt(24);
+        r.freeEntry = header.getInt(28);
+        r.size = header.getInt(32);
+        r.byX.keyCount = header.getInt(40);
+        r.byY.keyCount = header.getInt(48);
+        return r;
+    }
+
+
+    /**
+     * Records the counts of the relation in the header of its file,
+     * then writes every change to the file out to the storage device holding it
+     *
+     * @throws IllegalStateException if the relation is not mapped from a file
+     */
+    void sync() {
+        ensureOpen();
+        if (header == null) {
+            throw new IllegalStateException("Relation is not mapped from a file");
+        }
+        writeHeader(header.getInt(16));
+        pairSlots.force();
+        byX.force();
+        byY.force();
+        header.force();
+    }
+
+
+    /**
+     * Performs an action on every pair in the relation, in no particular order
+     * <p>
+     * The action must not modify the relation
+     *
+     * @param action the action to perform on each pair
+     */
+    @Override
+    public void forEachPair(BiConsumer<? super X, ? super Y> action) {
+        ensureOpen();
+        for (int i = 0; i < byX.slotCount; i++) {
+            if (byX.slots.getInt(i, KeyIndex.HEAD) == 0) {
+                continue;
+            }
+            int e = byX.head(i);
+            X x = byX.decode(e);
+            for (; e != NONE; e = byX.next(e)) {
+                action.accept(x, byY.decode(e));
+            }
+        }
+    }
+
+
+    /**
+     * Requirement 1
+     * Returns true if the relation contains the specified pair (x, y)
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the first part of the pair to be matched
+     * @param y the second part of the pair to be matched
+     * @return true if a pair matching (x, y) is found, false otherwise
+     */
+    @Override
+    public boolean contains(X x, Y y) {
+        ensureOpen();
+        return pairSlotOf(byX.encode(x), byY.encode(y)) >= 0;
+    }
+
+
+    /**
+     * Requirement 2
+     * Given x, returns a set containing all values y such that the relation contains (x, y)
+     * <p>
+     * Complexity:
+     * O(k log k) where k is the number of pairs matching x
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a set containing all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Y> getAllMatchingX(X x) {
+        ensureOpen();
+        Set<Y> set = new TreeSet<>();
+        int slot = byX.slotOf(byX.encode(x));
+        if (slot >= 0) {
+            for (int e = byX.head(slot); e != NONE; e = byX.next(e)) {
+                set.add(byY.decode(e));
+            }
+        }
+        return set;
+    }
+
+
+    /**
+     * Requirement 3
+     * Given y, returns a set containing all values x such that the relation contains (x, y)
+     * <p>
+     * Complexity:
+     * O(k log k) where k is the number of pairs matching y
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a set containing all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<X> getAllMatchingY(Y y) {
+        ensureOpen();
+        Set<X> set = new TreeSet<>();
+        int slot = byY.slotOf(byY.encode(y));
+        if (slot >= 0) {
+            for (int e = byY.head(slot); e != NONE; e = byY.next(e)) {
+                set.add(byX.decode(e));
+            }
+        }
+        return set;
+    }
+
+
+    /**
+     * Given x, returns a live read-only view of all values y such that the relation contains (x, y)
+     * <p>
+     * The view decodes each partner as the iterator reaches it, so nothing is copied or sorted.
+     * The relation must not be modified or closed while the view is being iterated
+     * <p>
+     * Complexity:
+     * O(1) to create, O(1) for contains and size, O(k) to iterate
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a live, unmodifiable set of all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Y> viewMatchingX(X x) {
+        ensureOpen();
+        return new PartnerView<>(byX, byY, x);
+    }
+
+
+    /**
+     * Given y, returns a live read-only view of all values x such that the relation contains (x, y)
+     * <p>
+     * The view decodes each partner as the iterator reaches it, so nothing is copied or sorted.
+     * The relation must not be modified or closed while the view is being iterated
+     * <p>
+     * Complexity:
+     * O(1) to create, O(1) for contains and size, O(k) to iterate
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a live, unmodifiable set of all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<X> viewMatchingY(Y y) {
+        ensureOpen();
+        return new PartnerView<>(byY, byX, y);
+    }
+
+
+    /**
+     * Given x, returns the number of values y such that the relation contains (x, y)
+     * <p>
+     * Reads the degree kept in the key table, without decoding any partners
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return the number of pairs matching x, 0 if there are none
+     */
+    @Override
+    public int degreeX(X x) {
+        ensureOpen();
+        int slot = byX.slotOf(byX.encode(x));
+        return slot < 0 ? 0 : byX.degree(slot);
+    }
+
+
+    /**
+     * Given y, returns the number of values x such that the relation contains (x, y)
+     * <p>
+     * Reads the degree kept in the key table, without decoding any partners
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return the number of pairs matching y, 0 if there are none
+     */
+    @Override
+    public int degreeY(Y y) {
+        ensureOpen();
+        int slot = byY.slotOf(byY.encode(y));
+        return slot < 0 ? 0 : byY.degree(slot);
+    }
+
+
+    /**
+     * Requirement 4
+     * Empties the relation, freeing its memory and shrinking its tables back to the default capacity.
+     * A relation mapped from a file keeps its tables, which are emptied in place
+     */
+    @Override
+    public void clear() {
+        ensureOpen();
+        if (header != null) {
+            for (int i = 0; i < pairSlotCount; i++) {
+                pairSlots.putInt(i, PAIR_ENTRY, 0);
+            }
+            byX.clearSlots();
+            byY.clearSlots();
+            entryCount = 0;
+            freeEntry = NONE;
+            size = 0;
+            return;
+        }
+        free();
+        allocate(DEFAULT_CAPACITY);
+    }
+
+
+    /**
+     * Requirement 5
+     * Adds a given pair (x, y) to the relation
+     * <p>
+     * Complexity:
+     * O(1) amortised
+     *
+     * @param x the first half of the pair to be added
+     * @param y the second half of the pair to be added
+     */
+    @Override
+    public void put(X x, Y y) {
+        ensureOpen();
+        int hx = byX.encode(x), hy = byY.encode(y);
+        if (pairSlotOf(hx, hy) >= 0) {
+            return;
+        }
+        if (header != null && size >= header.getInt(16)) {
+            throw new IllegalStateException("Relation is mapped from a file and cannot grow past " + size + " pairs");
+        }
+        if ((size + 1) * 4L > pairSlotCount * 3L) {
+            growPairSlots();
+        }
+
+        int e = allocateEntry();
+        byX.link(e, hx);
+        byY.link(e, hy);
+        insertPairSlot(e, pairHash(hx, hy));
+        size++;
+    }
+
+
+    /**
+     * Requirement 6
+     * Removes a given pair (x, y) to the relation
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the first half of the pair to be removed
+     * @param y the second half of the pair to be removed
+     * @throws NoSuchElementException when trying to remove an element that isn't in the relation
+     */
+    @Override
+    public void remove(X x, Y y) throws NoSuchElementException {
+        ensureOpen();
+        int slot = pairSlotOf(byX.encode(x), byY.encode(y));
+        if (slot < 0) {
+            throw new NoSuchElementException();
+        }
+
+        int e = pairSlots.getInt(slot, PAIR_ENTRY) - 1;
+        deletePairSlot(slot);
+        byX.unlink(e);
+        byY.unlink(e);
+        freeEntry(e);
+        size--;
+    }
+
+
+    /**
+     * Requirement 7
+     * Given x, removes all pairs(x, y) from the relation
+     * <p>
+     * Complexity:
+     * O(k) where k is the number of pairs matching x
+     *
+     * @param x the first part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingX(X x) {
+        ensureOpen();
+        return removeAll(byX, byY, byX.encode(x));
+    }
+
+
+    /**
+     * Requirement 8
+     * Given y, removes all pairs(x, y) from the relation
+     * <p>
+     * Complexity:
+     * O(k) where k is the number of pairs matching y
+     *
+     * @param y the second part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingY(Y y) {
+        ensureOpen();
+        return removeAll(byY, byX, byY.encode(y));
+    }
+
+
+    /**
+     * Requirement 9
+     * Renders the relations contents as a string in a readable format
+     * <p>
+     * Prints each distinct x followed by its pairs, then each distinct y followed by its pairs
+     *
+     * @return a string representation of the relation
+     */
+    @Override
+    public String toString() {
+        ensureOpen();
+        StringBuilder sb = new StringBuilder();
+        byX.appendTo(sb, "X table", byY);
+        byY.appendTo(sb, "Y table", byX);
+        return sb.toString();
+    }
+
+
+    /**
+     * Get the number of pairs in the relation
+     *
+     * @return the number of pairs in the relation
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns a cursor over every pair in the relation, walking the list of entries of each distinct x
+     * <p>
+     * Each x is decoded once for all of its pairs and each y when the cursor reaches it.
+     * The relation must not be modified or closed while the cursor is in use
+     *
+     * @return a cursor positioned before the first pair
+     */
+    @Override
+    public PairCursor<X, Y> cursor() {
+        ensureOpen();
+        return new PairCursor<X, Y>() {
+            /**
+             * The slot of the X key table holding the key of the current entry
+             */
+            private int slot = -1;
+
+            /**
+             * The current entry, or NONE if the cursor is not on a pair
+             */
+            private int e = NONE;
+
+            /**
+             * The decoded key of the current slot
+             */
+            private X x;
+
+            /**
+             * The decoded partner of the current entry
+             */
+            private Y y;
+
+            @Override
+            public boolean advance() {
+                ensureOpen();
+                if (e != NONE) {
+                    e = byX.next(e);
+                }
+                while (e == NONE && ++slot < byX.slotCount) {
+                    if (byX.slots.getInt(slot, KeyIndex.HEAD) != 0) {
+                        e = byX.head(slot);
+                        x = byX.decode(e);
+                    }
+                }
+                if (e == NONE) {
+                    x = null;
+                    y = null;
+                    return false;
+                }
+                y = byY.decode(e);
+                return true;
+            }
+
+            @Override
+            public X x() {
+                if (e == NONE) {
+                    throw new IllegalStateException("Cursor is not on a pair");
+                }
+                return x;
+            }
+
+            @Override
+            public Y y() {
+                if (e == NONE) {
+                    throw new IllegalStateException("Cursor is not on a pair");
+                }
+                return y;
+            }
+        };
+    }
+
+
+    /**
+     * Get the amount of memory outside the heap held by the relation
+     *
+     * @return the number of bytes of direct memory allocated to the relation
+     */
+    public long offHeapBytes() {
+        ensureOpen();
+        return pairSlots.bytes() + byX.bytes() + byY.bytes();
+    }
+
+
+    /**
+     * Frees the memory held by the relation
+     * <p>
+     * The relation must not be used afterwards; closing it again does nothing
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            free();
+            header = null;
+            size = 0;
+        }
+    }
+
+    /**
+     * Allocates empty tables sized for a given number of pairs
+     *
+     * @param capacity the number of pairs to allocate space for
+     */
+    private void allocate(int capacity) {
+        pairSlotCount = tableSizeFor(capacity);
+        pairSlots = new RecordBuffer(PAIR_SLOT_SIZE, pairSlotCount);
+        byX.allocate(capacity, pairSlotCount);
+        byY.allocate(capacity, pairSlotCount);
+        entryCount = 0;
+        freeEntry = NONE;
+        size = 0;
+    }
+
+    /**
+     * Maps every table from consecutive regions of a file, following the header
+     *
+     * @param channel    the file to map
+     * @param mode       whether to map the file read only or read write
+     * @param capacity   the number of entries in the file
+     * @param pairSlots  the number of slots in the pair table
+     * @param slotCountX the number of slots in the X key table
+     * @param slotCountY the number of slots in the Y key table
+     * @throws IOException if the file cannot be mapped
+     */
+    private void mapTables(FileChannel channel, FileChannel.MapMode mode, int capacity, int pairSlots,
+                           int slotCountX, int slotCountY) throws IOException {
+        long position = HEADER_BYTES;
+        this.pairSlotCount = pairSlots;
+        this.pairSlots = RecordBuffer.map(channel, mode, position, PAIR_SLOT_SIZE, pairSlots);
+        position += (long) PAIR_SLOT_SIZE * pairSlots;
+        position = byX.map(channel, mode, position, capacity, slotCountX);
+        byY.map(channel, mode, position, capacity, slotCountY);
+    }
+
+    /**
+     * Writes the layout and counts of the relation into the header of its file
+     *
+     * @param capacity the number of entries in the file
+     */
+    private void writeHeader(int capacity) {
+        header.putInt(0, FILE_MAGIC);
+        header.putInt(4, FILE_VERSION);
+        header.putInt(8, byX.width);
+        header.putInt(12, byY.width);
+        header.putInt(16, capacity);
+        header.putInt(20, pairSlotCount);
+        header.putInt(24, entryCount);
+        header.putInt(28, freeEntry);
+        header.putInt(32, size);
+        header.putInt(36, byX.slotCount);
+        header.putInt(40, byX.keyCount);
+        header.putInt(44, byY.slotCount);
+        header.putInt(48, byY.keyCount);
+    }
+
+    /**
+     * Frees every table
+     */
+    private void free() {
+        pairSlots.close();
+        byX.close();
+        byY.close();
+    }
+
+    /**
+     * Checks the relation has not been closed
+     *
+     * @throws IllegalStateException if the relation has been closed
+     */
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Relation has been closed");
+        }
+    }
+
+    /**
+     * Takes an entry from the free list, or the next unused entry if the free list is empty
+     *
+     * @return the number of the entry
+     */
+    private int allocateEntry() {
+        if (freeEntry != NONE) {
+            int e = freeEntry;
+            freeEntry = byX.next(e);
+            return e;
+        }
+        byX.entries.ensureCapacity(entryCount + 1);
+        byY.entries.ensureCapacity(entryCount + 1);
+        return entryCount++;
+    }
+
+    /**
+     * Returns an entry to the free list
+     *
+     * @param e the number of the entry
+     */
+    private void freeEntry(int e) {
+        byX.setNext(e, freeEntry);
+        freeEntry = e;
+    }
+
+    /**
+     * Removes every pair matching the key last encoded by an index
+     *
+     * @param index  the index of the side the key is on
+     * @param mirror the index of the other side
+     * @param hash   the hash of the key
+     * @return the number of pairs removed
+     */
+    private int removeAll(KeyIndex<?> index, KeyIndex<?> mirror, int hash) {
+        int slot = index.slotOf(hash);
+        if (slot < 0) {
+            return 0;
+        }
+
+        int removed = index.degree(slot);
+        int e = index.head(slot);
+        index.deleteKeySlot(slot);
+        while (e != NONE) {
+            int next = index.next(e);
+            deletePairSlot(pairSlotOf(byX.load(e), byY.load(e)));
+            mirror.unlink(e);
+            freeEntry(e);
+            e = next;
+        }
+
+        size -= removed;
+        return removed;
+    }
+
+    /**
+     * Finds the slot of the pair table holding the pair last encoded or loaded by the X and Y indexes
+     *
+     * @param hx the hash of x
+     * @param hy the hash of y
+     * @return the index of the slot, or -1 if the pair is not in the relation
+     */
+    private int pairSlotOf(int hx, int hy) {
+        int hash = pairHash(hx, hy);
+        int mask = pairSlotCount - 1;
+        int i = hash & mask;
+        int stored;
+        while ((stored = pairSlots.getInt(i, PAIR_ENTRY)) != 0) {
+            int e = stored - 1;
+            if (pairSlots.getInt(i, PAIR_HASH) == hash && byX.matches(e) && byY.matches(e)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts an entry into the first free slot of its probe sequence in the pair table
+     *
+     * @param e    the number of the entry
+     * @param hash the hash of the pair held by the entry
+     */
+    private void insertPairSlot(int e, int hash) {
+        int mask = pairSlotCount - 1;
+        int i = hash & mask;
+        while (pairSlots.getInt(i, PAIR_ENTRY) != 0) {
+            i = (i + 1) & mask;
+        }
+        pairSlots.putInt(i, PAIR_ENTRY, e + 1);
+        pairSlots.putInt(i, PAIR_HASH, hash);
+    }
+
+    /**
+     * Empties a slot of the pair table, shifting later entries in the same probe sequence back into it
+     *
+     * @param slot the index of the slot to empty
+     */
+    private void deletePairSlot(int slot) {
+        int mask = pairSlotCount - 1;
+        int gap = slot;
+        int j = (slot + 1) & mask;
+        int stored;
+        while ((stored = pairSlots.getInt(j, PAIR_ENTRY)) != 0) {
+            int hash = pairSlots.getInt(j, PAIR_HASH);
+            int home = hash & mask;
+            //move the entry at j into the gap unless its home slot lies cyclically in (gap, j]
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                pairSlots.putInt(gap, PAIR_ENTRY, stored);
+                pairSlots.putInt(gap, PAIR_HASH, hash);
+                gap = j;
+            }
+            j = (j + 1) & mask;
+        }
+        pairSlots.putInt(gap, PAIR_ENTRY, 0);
+    }
+
+    /**
+     * Doubles the number of slots in the pair table
+     */
+    private void growPairSlots() {
+        RecordBuffer old = pairSlots;
+        int oldCount = pairSlotCount;
+
+        pairSlotCount = oldCount * 2;
+        pairSlots = new RecordBuffer(PAIR_SLOT_SIZE, pairSlotCount);
+        for (int i = 0; i < oldCount; i++) {
+            int stored = old.getInt(i, PAIR_ENTRY);
+            if (stored != 0) {
+                insertPairSlot(stored - 1, old.getInt(i, PAIR_HASH));
+            }
+        }
+        old.close();
+    }
+
+    /**
+     * Calculates the number of slots needed to hold a number of entries at most three quarters full
+     *
+     * @param capacity the number of entries
+     * @return a power of two number of slots
+     */
+    private static int tableSizeFor(int capacity) {
+        long needed = Math.max(4L, capacity * 4L / 3 + 1);
+        return (int) Math.min(1 << 30, Long.highestOneBit(needed - 1) << 1);
+    }
+
+    /**
+     * The hash function for a pair, combining the hashes of its halves
+     *
+     * @param hx the hash of x
+     * @param hy the hash of y
+     * @return the hashed representation of (x, y)
+     */
+    private static int pairHash(int hx, int hy) {
+        int h = hx * 0x9E3779B9 + hy;
+        //finaliser of MurmurHash3
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Inner class for the live views returned by viewMatchingX and viewMatchingY
+     * <p>
+     * The key is looked up again on every call rather than its slot held on to,
+     * since slots move when the key table grows and are freed when the key loses its last pair
+     *
+     * @param <K> Type of the key of the view
+     * @param <V> Type of the partners in the view
+     */
+    private final class PartnerView<K, V> extends AbstractSet<V> {
+        /**
+         * The side of the relation the key is on
+         */
+        private final KeyIndex<K> keys;
+
+        /**
+         * The side of the relation the partners are on
+         */
+        private final KeyIndex<V> partners;
+
+        /**
+         * The key whose partners are viewed
+         */
+        private final K key;
+
+        /**
+         * Constructs a view of the partners of a key
+         *
+         * @param keys     the side of the relation the key is on
+         * @param partners the side of the relation the partners are on
+         * @param key      the key
+         */
+        private PartnerView(KeyIndex<K> keys, KeyIndex<V> partners, K key) {
+            this.keys = keys;
+            this.partners = partners;
+            this.key = key;
+        }
+
+        /**
+         * Finds the slot of the key
+         *
+         * @return the slot of the key table holding the key, or -1 if the key has no pairs
+         */
+        private int slot() {
+            ensureOpen();
+            return keys.slotOf(keys.encode(key));
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (o == null) {
+                return false;
+            }
+            ensureOpen();
+            @SuppressWarnings("unchecked")
+            V partner = (V) o;
+            int hk = keys.encode(key), hp = partners.encode(partner);
+            return (keys == byX ? pairSlotOf(hk, hp) : pairSlotOf(hp, hk)) >= 0;
+        }
+
+        @Override
+        public int size() {
+            int slot = slot();
+            return slot < 0 ? 0 : keys.degree(slot);
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            int slot = slot();
+            final int first = slot < 0 ? NONE : keys.head(slot);
+            return new Iterator<V>() {
+                /**
+                 * The entry holding the next partner, or NONE at the end of the list
+                 */
+                private int e = first;
+
+                @Override
+                public boolean hasNext() {
+                    return e != NONE;
+                }
+
+                @Override
+                public V next() {
+                    if (e == NONE) {
+                        throw new NoSuchElementException();
+                    }
+                    ensureOpen();
+                    V partner = partners.decode(e);
+                    e = keys.next(e);
+                    return partner;
+                }
+            };
+        }
+    }
+
+    /**
+     * Static nested class holding one side of the relation: the key of every entry on this side,
+     * the doubly linked lists of entries sharing each key, and an open addressing table of the distinct keys
+     * <p>
+     * Keys are looked up by first encoding them into a scratch buffer, the probe,
+     * whose bytes are then compared with the stored encodings. Each thread has a probe of its own,
+     * so lookups write nothing shared and any number of threads can read the index at once
+     *
+     * @param <K> Type of the keys on this side
+     */
+    private static class KeyIndex<K> implements AutoCloseable {
+        /**
+         * Entry: offset of the next entry in the list
+         */
+        private static final int NEXT = 0;
+
+        /**
+         * Entry: offset of the previous entry in the list
+         */
+        private static final int PREV = 4;
+
+        /**
+         * Entry: offset of the encoded key
+         */
+        private static final int ENTRY_KEY = 8;
+
+        /**
+         * Key table: offset of the first entry in the list of the key plus one, so zeroed memory is an empty slot
+         */
+        static final int HEAD = 0;
+
+        /**
+         * Key table: offset of the number of entries in the list of the key
+         */
+        private static final int DEGREE = 4;
+
+        /**
+         * Key table: offset of the hash of the key
+         */
+        private static final int HASH = 8;
+
+        /**
+         * Key table: offset of the encoded key
+         */
+        private static final int SLOT_KEY = 12;
+
+        /**
+         * The encoding of the keys
+         */
+        private final KeyCodec<K> codec;
+
+        /**
+         * Number of bytes in an encoded key
+         */
+        final int width;
+
+        /**
+         * Scratch buffer of each thread, holding the encoding of the key that thread is looking up
+         */
+        private final ThreadLocal<ByteBuffer> probes;
+
+        /**
+         * The key on this side of each entry, and the links between entries in the list of each key
+         */
+        RecordBuffer entries;
+
+        /**
+         * Key table: open addressing table of the distinct keys
+         */
+        RecordBuffer slots;
+
+        /**
+         * Number of slots in the key table, always a power of two
+         */
+        int slotCount;
+
+        /**
+         * Number of distinct keys in the key table
+         */
+        int keyCount;
+
+        /**
+         * Constructs an index with no tables allocated
+         *
+         * @param codec the encoding of the keys
+         */
+        private KeyIndex(KeyCodec<K> codec) {
+            this.codec = codec;
+            this.width = codec.width();
+            this.probes = ThreadLocal.withInitial(() -> ByteBuffer.allocate(width).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        /**
+         * Get the probe of the calling thread
+         *
+         * @return the scratch buffer the calling thread encodes keys into
+         */
+        private ByteBuffer probe() {
+            return probes.get();
+        }
+
+        /**
+         * Allocates empty tables
+         *
+         * @param entryCapacity the number of entries to allocate space for
+         * @param slotCount     the number of slots in the key table, a power of two
+         */
+        void allocate(int entryCapacity, int slotCount) {
+            entries = new RecordBuffer(ENTRY_KEY + width, entryCapacity);
+            slots = new RecordBuffer(SLOT_KEY + width, slotCount);
+            this.slotCount = slotCount;
+            keyCount = 0;
+        }
+
+        /**
+         * Maps the tables from consecutive regions of a file
+         *
+         * @param channel       the file to map
+         * @param mode          whether to map the file read only or read write
+         * @param position      the offset within the file of the first table
+         * @param entryCapacity the number of entries in the file
+         * @param slotCount     the number of slots in the key table
+         * @return the offset within the file just past the last table
+         * @throws IOException if the file cannot be mapped
+         */
+        long map(FileChannel channel, FileChannel.MapMode mode, long position, int entryCapacity, int slotCount)
+                throws IOException {
+            entries = RecordBuffer.map(channel, mode, position, ENTRY_KEY + width, entryCapacity);
+            position += (long) (ENTRY_KEY + width) * entryCapacity;
+            slots = RecordBuffer.map(channel, mode, position, SLOT_KEY + width, slotCount);
+            this.slotCount = slotCount;
+            keyCount = 0;
+            return position + (long) (SLOT_KEY + width) * slotCount;
+        }
+
+        /**
+         * Empties every slot of the key table
+         */
+        void clearSlots() {
+            for (int i = 0; i < slotCount; i++) {
+                slots.putInt(i, HEAD, 0);
+            }
+            keyCount = 0;
+        }
+
+        /**
+         * Writes any changes to tables mapped from a file out to the storage device holding the file
+         */
+        void force() {
+            entries.force();
+            slots.force();
+        }
+
+        /**
+         * Get the amount of memory held by the index
+         *
+         * @return the number of bytes of direct memory allocated to the index
+         */
+        long bytes() {
+            return entries.bytes() + slots.bytes();
+        }
+
+        /**
+         * Encodes a key into the probe
+         *
+         * @param key the key
+         * @return the hash of the key
+         */
+        int encode(K key) {
+            ByteBuffer probe = probe();
+            codec.write(probe, 0, key);
+            return RecordBuffer.hashBytes(probe, width);
+        }
+
+        /**
+         * Copies the key of an entry into the probe
+         *
+         * @param e the number of the entry
+         * @return the hash of the key
+         */
+        int load(int e) {
+            ByteBuffer probe = probe();
+            entries.getBytes(e, ENTRY_KEY, probe, width);
+            return RecordBuffer.hashBytes(probe, width);
+        }
+
+        /**
+         * Decodes the key of an entry
+         *
+         * @param e the number of the entry
+         * @return the key on this side of the entry
+         */
+        K decode(int e) {
+            return codec.read(entries.page(e), entries.offset(e, ENTRY_KEY));
+        }
+
+        /**
+         * Checks whether the key of an entry is the key in the probe
+         *
+         * @param e the number of the entry
+         * @return true if the encodings are identical
+         */
+        boolean matches(int e) {
+            return entries.equalBytes(e, ENTRY_KEY, probe(), width);
+        }
+
+        /**
+         * Get the next entry in the list of an entry
+         *
+         * @param e the number of the entry
+         * @return the next entry, or NONE at the end of the list
+         */
+        int next(int e) {
+            return entries.getInt(e, NEXT);
+        }
+
+        /**
+         * Set the next entry in the list of an entry
+         *
+         * @param e    the number of the entry
+         * @param next the next entry, or NONE
+         */
+        void setNext(int e, int next) {
+            entries.putInt(e, NEXT, next);
+        }
+
+        /**
+         * Get the first entry in the list of the key in a slot
+         *
+         * @param slot the index of the slot
+         * @return the first entry
+         */
+        int head(int slot) {
+            return slots.getInt(slot, HEAD) - 1;
+        }
+
+        /**
+         * Get the number of entries in the list of the key in a slot
+         *
+         * @param slot the index of the slot
+         * @return the number of pairs with the key on this side
+         */
+        int degree(int slot) {
+            return slots.getInt(slot, DEGREE);
+        }
+
+        /**
+         * Sets the key of an entry to the key in the probe and adds it to the start of the list for that key,
+         * adding the key to the key table if it is new
+         *
+         * @param e    the number of the entry
+         * @param hash the hash of the key in the probe
+         */
+        void link(int e, int hash) {
+            entries.putBytes(e, ENTRY_KEY, probe(), width);
+
+            int slot = slotOf(hash);
+            if (slot < 0) {
+                if ((keyCount + 1) * 4L > slotCount * 3L) {
+                    growKeys();
+                }
+                slot = insertKeySlot(hash);
+                keyCount++;
+            }
+
+            int head = head(slot);
+            entries.putInt(e, NEXT, head);
+            entries.putInt(e, PREV, NONE);
+            if (head != NONE) {
+                entries.putInt(head, PREV, e);
+            }
+            slots.putInt(slot, HEAD, e + 1);
+            slots.putInt(slot, DEGREE, degree(slot) + 1);
+        }
+
+        /**
+         * Removes an entry from the list for its key, removing the key from the key table if the list becomes empty
+         * <p>
+         * Overwrites the probe with the key of the entry
+         *
+         * @param e the number of the entry
+         */
+        void unlink(int e) {
+            int slot = slotOf(load(e));
+            int degree = degree(slot) - 1;
+            if (degree == 0) {
+                deleteKeySlot(slot);
+                return;
+            }
+            slots.putInt(slot, DEGREE, degree);
+
+            int prev = entries.getInt(e, PREV), next = entries.getInt(e, NEXT);
+            if (prev == NONE) {
+                slots.putInt(slot, HEAD, next + 1);
+            } else {
+                entries.putInt(prev, NEXT, next);
+            }
+            if (next != NONE) {
+                entries.putInt(next, PREV, prev);
+            }
+        }
+
+        /**
+         * Finds the slot of the key table holding the key in the probe
+         *
+         * @param hash the hash of the key in the probe
+         * @return the index of the slot, or -1 if the key has no pairs
+         */
+        int slotOf(int hash) {
+            int mask = slotCount - 1;
+            int i = hash & mask;
+            while (slots.getInt(i, HEAD) != 0) {
+                if (slots.getInt(i, HASH) == hash && slots.equalBytes(i, SLOT_KEY, probe(), width)) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Puts the key in the probe, with an empty list, into the first free slot of its probe sequence
+         *
+         * @param hash the hash of the key in the probe
+         * @return the index of the slot
+         */
+        private int insertKeySlot(int hash) {
+            int i = freeSlotFor(hash);
+            slots.putBytes(i, SLOT_KEY, probe(), width);
+            slots.putInt(i, HASH, hash);
+            slots.putInt(i, DEGREE, 0);
+            return i;
+        }
+
+        /**
+         * Finds the first free slot in the probe sequence of a hash
+         *
+         * @param hash the hash
+         * @return the index of the slot
+         */
+        private int freeSlotFor(int hash) {
+            int mask = slotCount - 1;
+            int i = hash & mask;
+            while (slots.getInt(i, HEAD) != 0) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        /**
+         * Empties a slot of the key table, shifting later keys in the same probe sequence back into it
+         *
+         * @param slot the index of the slot to empty
+         */
+        void deleteKeySlot(int slot) {
+            int mask = slotCount - 1;
+            int gap = slot;
+            int j = (slot + 1) & mask;
+            while (slots.getInt(j, HEAD) != 0) {
+                int home = slots.getInt(j, HASH) & mask;
+                //move the key at j into the gap unless its home slot lies cyclically in (gap, j]
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    slots.copyBytes(j, 0, slots, gap, 0, SLOT_KEY + width);
+                    gap = j;
+                }
+                j = (j + 1) & mask;
+            }
+            slots.putInt(gap, HEAD, 0);
+            keyCount--;
+        }
+
+        /**
+         * Doubles the number of slots in the key table
+         */
+        private void growKeys() {
+            RecordBuffer old = slots;
+            int oldCount = slotCount;
+
+            slotCount = oldCount * 2;
+            slots = new RecordBuffer(SLOT_KEY + width, slotCount);
+            for (int i = 0; i < oldCount; i++) {
+                if (old.getInt(i, HEAD) != 0) {
+                    old.copyBytes(i, 0, slots, freeSlotFor(old.getInt(i, HASH)), 0, SLOT_KEY + width);
+                }
+            }
+            old.close();
+        }
+
+        /**
+         * Appends every key and its pairs to a string builder, one key per line
+         *
+         * @param sb     the string builder to append to
+         * @param title  the heading printed above the keys
+         * @param mirror the index of the other side, holding the partners
+         */
+        void appendTo(StringBuilder sb, String title, KeyIndex<?> mirror) {
+            sb.append("\n-- ");
+            sb.append(title);
+            sb.append(" --\n");
+            for (int i = 0; i < slotCount; i++) {
+                if (slots.getInt(i, HEAD) == 0) {
+                    continue;
+                }
+                K key = decode(head(i));
+                sb.append(key);
+                sb.append(": [");
+                for (int e = head(i); e != NONE; e = next(e)) {
+                    sb.append("(");
+                    sb.append(key);
+                    sb.append(", ");
+                    sb.append(mirror.decode(e));
+                    sb.append("), ");
+                }
+                sb.append("]\n");
+            }
+        }
+
+        /**
+         * Frees the memory held by the index
+         */
+        @Override
+        public void close() {
+            entries.close();
+            slots.close();
+        }
+    }
+}
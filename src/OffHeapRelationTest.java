@@ -0,0 +1,188 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapRelationTest {
+
+    private OffHeapRelation<String, String> r;
+    private String[] a = {"j", "j", "c", "c", "c", "p", "n", "k", "k", "k"};
+    private String[] b = {"java", "javascript", "c++", "c#", "c", "python", "node", "java", "node", "c"};
+
+    @BeforeEach
+    void setUp() {
+        r = new OffHeapRelation<>(KeyCodec.utf8(4), KeyCodec.utf8(16));
+
+        for (int i = 0; i < a.length; i++) {
+            r.put(a[i], b[i]);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        r.close();
+    }
+
+    @Test
+    void contains() {
+        assertTrue(r.contains("j", "java"), "Contains j, java");
+        assertFalse(r.contains("j", "jav"), "Does not contain prefix");
+        assertFalse(r.contains("r", "ruby"), "Does not contain r, ruby");
+    }
+
+    @Test
+    void getAllMatching() {
+        Set<String> s = new TreeSet<>();
+        s.add("java");
+        s.add("javascript");
+        assertEquals(s, r.getAllMatchingX("j"), "getAllMatchingX set equal");
+
+        s.clear();
+        s.add("j");
+        s.add("k");
+        assertEquals(s, r.getAllMatchingY("java"), "getAllMatchingY set equal");
+    }
+
+    @Test
+    void removeAndSize() {
+        r.put("j", "java");
+        assertEquals(a.length, r.size(), "Duplicate put ignored");
+
+        r.remove("j", "java");
+        assertFalse(r.contains("j", "java"), "Remove after");
+        assertThrows(NoSuchElementException.class, () -> r.remove("j", "java"));
+
+        assertEquals(3, r.removeAllMatchingX("c"), "removeAllMatchingX count");
+        assertEquals(2, r.removeAllMatchingY("node"), "removeAllMatchingY count");
+        assertEquals(a.length - 6, r.size(), "Size after removeAll");
+        assertThrows(IllegalArgumentException.class, () -> r.put("too long", "x"), "Key wider than codec");
+    }
+
+    @Test
+    void views() {
+        Set<String> js = r.viewMatchingX("j");
+        Set<String> cs = r.viewMatchingY("c");
+        assertEquals(Set.of("java", "javascript"), new HashSet<>(js), "viewMatchingX iterates the partners");
+        assertEquals(Set.of("c", "k"), new HashSet<>(cs), "viewMatchingY iterates the partners");
+        assertTrue(js.contains("java"), "View contains");
+        assertFalse(js.contains("c"), "View does not contain");
+        assertFalse(js.contains(null), "View does not contain null");
+
+        r.put("j", "jython");
+        for (int i = 0; i < 100; i++) {
+            r.put("z" + i, "c");
+        }
+        assertEquals(3, js.size(), "View is live");
+        assertTrue(js.contains("jython"), "View sees added pair");
+        assertEquals(102, cs.size(), "View is live across growth of the tables");
+        r.removeAllMatchingX("j");
+        assertTrue(js.isEmpty(), "View of a key with no pairs left");
+        assertFalse(js.iterator().hasNext(), "Nothing to iterate");
+        assertThrows(UnsupportedOperationException.class, () -> cs.add("x"), "Read only");
+    }
+
+    @Test
+    void concurrentReads() throws Exception {
+        final int threads = 8, n = 100000;
+        try (OffHeapRelation<Integer, Integer> big = new OffHeapRelation<>(KeyCodec.INT, KeyCodec.INT)) {
+            for (int i = 0; i < n; i++) {
+                big.put(i, i % 1000);
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Callable<Integer>> tasks = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    final int id = t;
+                    tasks.add(() -> {
+                        int misses = 0;
+                        for (int i = id; i < n; i += 3) {
+                            if (!big.contains(i, i % 1000) || big.contains(i, i % 1000 + 1)
+                                    || big.degreeX(i) != 1 || !big.viewMatchingY(i % 1000).contains(i)) {
+                                misses++;
+                            }
+                        }
+                        return misses;
+                    });
+                }
+                for (Future<Integer> f : pool.invokeAll(tasks)) {
+                    assertEquals(0, f.get().intValue(), "Readers do not disturb each other's lookups");
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Test
+    void close() {
+        assertTrue(r.offHeapBytes() > 0, "Memory allocated");
+        r.close();
+        assertThrows(IllegalStateException.class, () -> r.contains("j", "java"), "Closed");
+        r.close();
+    }
+
+    @Test
+    void matchesHashRelation() {
+        Relation<Long, Integer> expected = new HashRelation<>();
+        try (OffHeapRelation<Long, Integer> actual = new OffHeapRelation<>(KeyCodec.LONG, KeyCodec.INT)) {
+            Random random = new Random(7);
+
+            for (int i = 0; i < 50000; i++) {
+                long x = random.nextInt(300) * 1000003L;
+                int y = random.nextInt(40) - 20;
+                int op = random.nextInt(100);
+                if (op < 70) {
+                    expected.put(x, y);
+                    actual.put(x, y);
+                } else if (op < 95) {
+                    assertEquals(expected.contains(x, y), actual.contains(x, y), "contains " + x + ", " + y);
+                    if (expected.contains(x, y)) {
+                        expected.remove(x, y);
+                        actual.remove(x, y);
+                    }
+                } else if (op < 98) {
+                    assertEquals(expected.removeAllMatchingX(x), actual.removeAllMatchingX(x), "removeAllMatchingX " + x);
+                } else {
+                    assertEquals(expected.removeAllMatchingY(y), actual.removeAllMatchingY(y), "removeAllMatchingY " + y);
+                }
+            }
+
+            assertEquals(expected.size(), actual.size(), "Size");
+            for (int y = -20; y < 20; y++) {
+                assertEquals(expected.getAllMatchingY(y), actual.getAllMatchingY(y), "getAllMatchingY " + y);
+            }
+            for (long i = 0; i < 300; i++) {
+                assertEquals(expected.getAllMatchingX(i * 1000003L), actual.getAllMatchingX(i * 1000003L), "getAllMatchingX " + i);
+            }
+        }
+    }
+
+    @Test
+    void cursor() {
+        Set<String> expected = new TreeSet<>();
+        for (int i = 0; i < a.length; i++) {
+            expected.add(a[i] + "=" + b[i]);
+        }
+        Set<String> visited = new TreeSet<>();
+        PairCursor<String, String> cursor = r.cursor();
+        while (cursor.advance()) {
+            assertTrue(visited.add(cursor.x() + "=" + cursor.y()), "Each pair visited once");
+        }
+        assertEquals(expected, visited, "Cursor visits every pair");
+        assertEquals(a.length, r.stream().count(), "Stream count");
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * A cursor over the pairs of a relation, visiting each pair once in no particular order
+ * <p>
+ * Unlike an iterator of entries, a cursor allocates nothing per pair: advance moves it onto the next pair
+ * and x and y read the halves of the pair it is on. The relation must not be modified while a cursor is in use,
+ * except where the implementation documents otherwise
+ *
+ * @param <X> Type of the first item in a pair
+ * @param <Y> Type of the second item in a pair
+ * @author Matthew Smith
+ */
+public interface PairCursor<X, Y> {
+
+    /**
+     * Moves the cursor onto the next pair
+     *
+     * @return true if the cursor is on a pair, false if every pair has been visited
+     * @throws java.util.ConcurrentModificationException if the relation was modified and the implementation detects it
+     */
+    boolean advance();
+
+    /**
+     * Get the first half of the pair the cursor is on
+     *
+     * @return x of the current pair
+     * @throws IllegalStateException if advance has not returned true
+     */
+    X x();
+
+    /**
+     * Get the second half of the pair the cursor is on
+     *
+     * @return y of the current pair
+     * @throws IllegalStateException if advance has not returned true
+     */
+    Y y();
+}
@@ -0,0 +1,440 @@
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * An array of fixed size records stored outside the Java heap
+ * <p>
+ * The records are split across pages of direct ByteBuffers, so the array can hold more than the 2GB a single buffer
+ * can address. Every page but the first holds the same power of two number of records, so finding a record is a
+ * shift and a mask. The first page starts small and is reallocated as it grows until it reaches the full page size;
+ * from then on growing only ever adds pages, and records never move.
+ * <p>
+ * Newly allocated memory is always zeroed. Memory is freed by close rather than waiting for the garbage collector.
+ * <p>
+ * A buffer can also be mapped from a region of a file, in which case it is fixed in size and close unmaps it
+ *
+ * @author Matthew Smith
+ */
+class RecordBuffer implements AutoCloseable {
+
+    /**
+     * Largest number of bytes in a page
+     */
+    private static final int MAX_PAGE_BYTES = 1 << 26;
+
+    /**
+     * Number of records the first page has room for when the buffer is empty
+     */
+    private static final int MIN_RECORDS = 16;
+
+    /**
+     * Method freeing the memory of a direct buffer immediately, or null if this JVM does not provide one
+     */
+    private static final Method INVOKE_CLEANER;
+
+    /**
+     * The instance of sun.misc.Unsafe that INVOKE_CLEANER is called on
+     */
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //fall back to letting the garbage collector free buffers
+            invokeCleaner = null;
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * Number of bytes in each record
+     */
+    private final int recordSize;
+
+    /**
+     * log2 of the number of records in a full page
+     */
+    private final int pageShift;
+
+    /**
+     * The number of records in a full page minus one
+     */
+    private final int pageMask;
+
+    /**
+     * The pages, or null once the buffer has been closed
+     */
+    private ByteBuffer[] pages;
+
+    /**
+     * Number of records the pages currently have room for
+     */
+    private int capacity;
+
+    /**
+     * True if the pages are mapped from a file, in which case the buffer cannot grow
+     */
+    private boolean mapped;
+
+    /**
+     * Constructs a zeroed buffer with room for at least a given number of records
+     *
+     * @param recordSize the number of bytes in each record
+     * @param records    the number of records to allocate space for
+     * @throws IllegalArgumentException if recordSize is not positive or too large for a page, or records is negative
+     */
+    RecordBuffer(int recordSize, int records) {
+        this(recordSize);
+        if (records < 0) {
+            throw new IllegalArgumentException("Number of records must not be negative: " + records);
+        }
+        ensureCapacity(Math.max(records, MIN_RECORDS));
+    }
+
+    /**
+     * Constructs a buffer with no pages
+     *
+     * @param recordSize the number of bytes in each record
+     * @throws IllegalArgumentException if recordSize is not positive or too large for a page
+     */
+    private RecordBuffer(int recordSize) {
+        if (recordSize <= 0 || recordSize > MAX_PAGE_BYTES) {
+            throw new IllegalArgumentException("Record size must be between 1 and " + MAX_PAGE_BYTES + ": " + recordSize);
+        }
+        this.recordSize = recordSize;
+        this.pageShift = 31 - Integer.numberOfLeadingZeros(MAX_PAGE_BYTES / recordSize);
+        this.pageMask = (1 << pageShift) - 1;
+        this.pages = new ByteBuffer[0];
+    }
+
+    /**
+     * Maps a buffer of records from a region of a file
+     * <p>
+     * In READ_WRITE mode the file is extended if it is shorter than the region.
+     * The buffer cannot grow, and if the mode is READ_ONLY any attempt to write to it throws a ReadOnlyBufferException
+     *
+     * @param channel    the file to map
+     * @param mode       whether to map the file read only or read write
+     * @param position   the offset within the file of the first record
+     * @param recordSize the number of bytes in each record
+     * @param records    the number of records in the region
+     * @return the mapped buffer
+     * @throws IOException if the file cannot be mapped
+     */
+    static RecordBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, int recordSize, int records)
+            throws IOException {
+        RecordBuffer buffer = new RecordBuffer(recordSize);
+        buffer.mapped = true;
+
+        long pageBytes = (long) recordSize << buffer.pageShift;
+        long end = position + (long) recordSize * records;
+        int pageCount = (int) ((end - position + pageBytes - 1) / pageBytes);
+        buffer.pages = new ByteBuffer[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            long start = position + i * pageBytes;
+            buffer.pages[i] = channel.map(mode, start, Math.min(pageBytes, end - start)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.capacity = records;
+        return buffer;
+    }
+
+    /**
+     * Writes any changes to a buffer mapped from a file out to the storage device holding the file
+     * <p>
+     * Does nothing for a buffer that is not mapped from a file
+     */
+    void force() {
+        ensureOpen();
+        if (mapped) {
+            for (ByteBuffer page : pages) {
+                ((MappedByteBuffer) page).force();
+            }
+        }
+    }
+
+    /**
+     * Get the number of records the buffer has room for without growing
+     *
+     * @return the capacity of the buffer in records
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of bytes of memory held by the buffer
+     *
+     * @return the total size of the pages in bytes
+     */
+    long bytes() {
+        long bytes = 0;
+        for (ByteBuffer page : pages) {
+            bytes += page.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Grows the buffer until it has room for at least a given number of records, keeping its contents
+     *
+     * @param records the number of records to make room for
+     * @throws IllegalStateException if the buffer needs to grow but is mapped from a file
+     */
+    void ensureCapacity(int records) {
+        ensureOpen();
+        if (records <= capacity) {
+            return;
+        }
+        if (mapped) {
+            throw new IllegalStateException("Buffer is mapped from a file and cannot grow past " + capacity + " records");
+        }
+
+        int pageRecords = 1 << pageShift;
+        if (pages.length <= 1 && capacity < pageRecords) {
+            //the first page is still growing towards its full size
+            int first = (int) Math.min(pageRecords, Math.max(2L * capacity, records));
+            ByteBuffer page = allocate(first * recordSize);
+            if (pages.length == 1) {
+                ByteBuffer old = pages[0].duplicate();
+                old.clear();
+                page.put(old);
+                page.clear();
+                free(pages[0]);
+                pages[0] = page;
+            } else {
+                pages = new ByteBuffer[]{page};
+            }
+            capacity = first;
+        }
+
+        while (capacity < records) {
+            pages = Arrays.copyOf(pages, pages.length + 1);
+            pages[pages.length - 1] = allocate(pageRecords * recordSize);
+            capacity += pageRecords;
+        }
+    }
+
+    /**
+     * Reads an int from a record
+     *
+     * @param record the index of the record
+     * @param field  the offset of the int within the record
+     * @return the int
+     */
+    int getInt(int record, int field) {
+        return pages[record >>> pageShift].getInt(offset(record, field));
+    }
+
+    /**
+     * Writes an int into a record
+     *
+     * @param record the index of the record
+     * @param field  the offset of the int within the record
+     * @param value  the int to write
+     */
+    void putInt(int record, int field, int value) {
+        pages[record >>> pageShift].putInt(offset(record, field), value);
+    }
+
+    /**
+     * Get the page holding a record, for reading or writing encoded keys with a KeyCodec
+     *
+     * @param record the index of the record
+     * @return the page holding the record
+     */
+    ByteBuffer page(int record) {
+        return pages[record >>> pageShift];
+    }
+
+    /**
+     * Get the position of a field of a record within its page
+     *
+     * @param record the index of the record
+     * @param field  the offset of the field within the record
+     * @return the index within page(record) of the first byte of the field
+     */
+    int offset(int record, int field) {
+        return (record & pageMask) * recordSize + field;
+    }
+
+    /**
+     * Copies bytes from the start of a buffer into a record
+     *
+     * @param record the index of the record
+     * @param field  the offset within the record to copy to
+     * @param src    the buffer to copy from, starting at index 0
+     * @param length the number of bytes to copy
+     */
+    void putBytes(int record, int field, ByteBuffer src, int length) {
+        ByteBuffer page = page(record);
+        int at = offset(record, field);
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            page.putLong(at + i, src.getLong(i));
+        }
+        for (; i < length; i++) {
+            page.put(at + i, src.get(i));
+        }
+    }
+
+    /**
+     * Copies bytes from a record to the start of a buffer
+     *
+     * @param record the index of the record
+     * @param field  the offset within the record to copy from
+     * @param dst    the buffer to copy into, starting at index 0
+     * @param length the number of bytes to copy
+     */
+    void getBytes(int record, int field, ByteBuffer dst, int length) {
+        ByteBuffer page = page(record);
+        int at = offset(record, field);
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            dst.putLong(i, page.getLong(at + i));
+        }
+        for (; i < length; i++) {
+            dst.put(i, page.get(at + i));
+        }
+    }
+
+    /**
+     * Copies bytes from one record into another record, which may be in another buffer
+     *
+     * @param record   the index of the record to copy from
+     * @param field    the offset within the record to copy from
+     * @param to       the buffer to copy into
+     * @param toRecord the index of the record to copy into
+     * @param toField  the offset within that record to copy to
+     * @param length   the number of bytes to copy
+     */
+    void copyBytes(int record, int field, RecordBuffer to, int toRecord, int toField, int length) {
+        ByteBuffer page = page(record), toPage = to.page(toRecord);
+        int at = offset(record, field), toAt = to.offset(toRecord, toField);
+        for (int i = 0; i < length; i++) {
+            toPage.put(toAt + i, page.get(at + i));
+        }
+    }
+
+    /**
+     * Compares bytes in a record with bytes at the start of a buffer
+     *
+     * @param record the index of the record
+     * @param field  the offset within the record to compare from
+     * @param other  the buffer to compare with, starting at index 0
+     * @param length the number of bytes to compare
+     * @return true if the bytes are identical
+     */
+    boolean equalBytes(int record, int field, ByteBuffer other, int length) {
+        ByteBuffer page = page(record);
+        int at = offset(record, field);
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (page.getLong(at + i) != other.getLong(i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (page.get(at + i) != other.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hashes bytes at the start of a buffer
+     * <p>
+     * The result depends only on the bytes, so it is the same in every JVM
+     *
+     * @param buffer the buffer to hash, starting at index 0
+     * @param length the number of bytes to hash
+     * @return the hash of the bytes
+     */
+    static int hashBytes(ByteBuffer buffer, int length) {
+        long h = length;
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            h = (h ^ buffer.getLong(i)) * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+        }
+        for (; i < length; i++) {
+            h = (h ^ buffer.get(i)) * 0x9E3779B97F4A7C15L;
+        }
+
+        //64 bit finaliser of MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Frees the memory held by the buffer, or unmaps it if it is mapped from a file
+     * <p>
+     * The buffer must not be used afterwards; closing it again does nothing
+     */
+    @Override
+    public void close() {
+        if (pages == null) {
+            return;
+        }
+        for (ByteBuffer page : pages) {
+            free(page);
+        }
+        pages = null;
+        capacity = 0;
+    }
+
+    /**
+     * Allocates a page of zeroed memory
+     *
+     * @param bytes the size of the page
+     * @return the page
+     */
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Frees the memory of a page straight away if the JVM allows it, otherwise leaves it to the garbage collector
+     *
+     * @param page the page to free
+     */
+    private static void free(ByteBuffer page) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, page);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //the page is still freed once it is garbage collected
+        }
+    }
+
+    /**
+     * Checks the buffer has not been closed
+     *
+     * @throws IllegalStateException if the buffer has been closed
+     */
+    private void ensureOpen() {
+        if (pages == null) {
+            throw new IllegalStateException("Buffer has been closed");
+        }
+    }
+}
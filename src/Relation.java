@@ -1,5 +1,30 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A collection of pairs (x, y), that contains no duplicate pairs
@@ -24,7 +49,8 @@ public interface Relation<X, Y> {
      * Requirement 2
      * Given x, returns a set containing all values y such that the relation contains (x, y)
      *
-     * If no pairs matching x are found, returns an empty set
+     * If no pairs matching x are found, returns an empty set.
+     * The set is a sorted copy; see viewMatchingX and snapshotMatchingX for cheaper alternatives
      *
      * @param x the element to search for in the first half of a pair
      * @return a set containing all values y such that the relation contains (x, y)
@@ -35,13 +61,293 @@ public interface Relation<X, Y> {
      * Requirement 3
      * Given y, returns a set containing all values x such that the relation contains (x, y)
      *
-     * If no pairs matching y are found, returns an empty set
+     * If no pairs matching y are found, returns an empty set.
+     * The set is a sorted copy; see viewMatchingY and snapshotMatchingY for cheaper alternatives
      *
      * @param y the element to search for in the second half of a pair
      * @return a set containing all values x such that the relation contains (x, y)
      */
     Set<X> getAllMatchingY(Y y);
 
+    /**
+     * Given x, returns a read-only view of all values y such that the relation contains (x, y)
+     *
+     * The view is live: it reflects later changes to the relation without being fetched again.
+     * Unlike getAllMatchingX it is not sorted and does not require Y to be Comparable.
+     * Implementations backed by an index return the view without copying any elements;
+     * this default recomputes the matches on every call to the view
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a live, unmodifiable set of all values y such that the relation contains (x, y)
+     */
+    default Set<Y> viewMatchingX(final X x) {
+        return new AbstractSet<Y>() {
+            @Override
+            public boolean contains(Object o) {
+                @SuppressWarnings("unchecked")
+                Y y = (Y) o;
+                return o != null && Relation.this.contains(x, y);
+            }
+
+            @Override
+            public Iterator<Y> iterator() {
+                return Collections.unmodifiableSet(getAllMatchingX(x)).iterator();
+            }
+
+            @Override
+            public int size() {
+                return getAllMatchingX(x).size();
+            }
+        };
+    }
+
+    /**
+     * Given y, returns a read-only view of all values x such that the relation contains (x, y)
+     *
+     * The view is live: it reflects later changes to the relation without being fetched again.
+     * Unlike getAllMatchingY it is not sorted and does not require X to be Comparable.
+     * Implementations backed by an index return the view without copying any elements;
+     * this default recomputes the matches on every call to the view
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a live, unmodifiable set of all values x such that the relation contains (x, y)
+     */
+    default Set<X> viewMatchingY(final Y y) {
+        return new AbstractSet<X>() {
+            @Override
+            public boolean contains(Object o) {
+                @SuppressWarnings("unchecked")
+                X x = (X) o;
+                return o != null && Relation.this.contains(x, y);
+            }
+
+            @Override
+            public Iterator<X> iterator() {
+                return Collections.unmodifiableSet(getAllMatchingY(y)).iterator();
+            }
+
+            @Override
+            public int size() {
+                return getAllMatchingY(y).size();
+            }
+        };
+    }
+
+    /**
+     * Given x, returns an unsorted copy of all values y such that the relation contains (x, y)
+     *
+     * The copy is independent of the relation, but does not require Y to be Comparable
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a new set containing all values y such that the relation contains (x, y)
+     */
+    default Set<Y> snapshotMatchingX(X x) {
+        return new HashSet<>(viewMatchingX(x));
+    }
+
+    /**
+     * Given y, returns an unsorted copy of all values x such that the relation contains (x, y)
+     *
+     * The copy is independent of the relation, but does not require X to be Comparable
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a new set containing all values x such that the relation contains (x, y)
+     */
+    default Set<X> snapshotMatchingY(Y y) {
+        return new HashSet<>(viewMatchingY(y));
+    }
+
+    /**
+     * Given x, returns the number of values y such that the relation contains (x, y), without building a set
+     *
+     * Implementations that keep a count per key answer in O(1); this default takes the size of viewMatchingX
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return the number of pairs matching x, 0 if there are none
+     */
+    default int degreeX(X x) {
+        return viewMatchingX(x).size();
+    }
+
+    /**
+     * Given y, returns the number of values x such that the relation contains (x, y), without building a set
+     *
+     * Implementations that keep a count per key answer in O(1); this default takes the size of viewMatchingY
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return the number of pairs matching y, 0 if there are none
+     */
+    default int degreeY(Y y) {
+        return viewMatchingY(y).size();
+    }
+
+    /**
+     * Given x, performs an action on every value y such that the relation contains (x, y), in no particular order
+     *
+     * Implementations backed by an index walk it directly and allocate nothing;
+     * this default iterates viewMatchingX. The action must not modify the relation
+     *
+     * @param x      the element to search for in the first half of a pair
+     * @param action the action to perform on each partner of x
+     */
+    default void forEachMatchingX(X x, Consumer<? super Y> action) {
+        for (Y y : viewMatchingX(x)) {
+            action.accept(y);
+        }
+    }
+
+    /**
+     * Given y, performs an action on every value x such that the relation contains (x, y), in no particular order
+     *
+     * Implementations backed by an index walk it directly and allocate nothing;
+     * this default iterates viewMatchingY. The action must not modify the relation
+     *
+     * @param y      the element to search for in the second half of a pair
+     * @param action the action to perform on each partner of y
+     */
+    default void forEachMatchingY(Y y, Consumer<? super X> action) {
+        for (X x : viewMatchingY(y)) {
+            action.accept(x);
+        }
+    }
+
+    /**
+     * Given x, performs an action on values y such that the relation contains (x, y) until the action returns false
+     *
+     * The variant of forEachMatchingX for searches that can stop early, such as finding whether any partner
+     * passes a test. The action must not modify the relation
+     *
+     * @param x      the element to search for in the first half of a pair
+     * @param action the action to perform on each partner of x, returning false to stop
+     * @return true if the action was performed on every partner, false if it stopped early
+     */
+    default boolean forEachMatchingXWhile(X x, Predicate<? super Y> action) {
+        for (Y y : viewMatchingX(x)) {
+            if (!action.test(y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Given y, performs an action on values x such that the relation contains (x, y) until the action returns false
+     *
+     * The variant of forEachMatchingY for searches that can stop early.
+     * The action must not modify the relation
+     *
+     * @param y      the element to search for in the second half of a pair
+     * @param action the action to perform on each partner of y, returning false to stop
+     * @return true if the action was performed on every partner, false if it stopped early
+     */
+    default boolean forEachMatchingYWhile(Y y, Predicate<? super X> action) {
+        for (X x : viewMatchingY(y)) {
+            if (!action.test(x)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks up a batch of pairs, returning for each pair (xs[i], ys[i]) whether the relation contains it
+     *
+     * Implementations may reorder the probes to visit their tables in order and overlap their memory accesses;
+     * this default calls contains for each pair in turn
+     *
+     * @param xs the first half of each pair to be matched
+     * @param ys the second half of each pair to be matched
+     * @return an array whose element i is true if the relation contains (xs[i], ys[i])
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    default boolean[] containsAll(X[] xs, Y[] ys) {
+        checkLengths(xs, ys);
+        boolean[] found = new boolean[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            found[i] = contains(xs[i], ys[i]);
+        }
+        return found;
+    }
+
+    /**
+     * Given a batch of x values, returns for each one the set of all values y such that the relation contains (x, y)
+     *
+     * Each set is sorted, as returned by getAllMatchingX. Repeated values of x are looked up once
+     *
+     * @param xs the elements to search for in the first half of a pair
+     * @return a map from each distinct x, in the order given, to the values y matching it, empty if there are none
+     */
+    default Map<X, Set<Y>> getAllMatchingEachX(Collection<? extends X> xs) {
+        Map<X, Set<Y>> matches = new LinkedHashMap<>();
+        for (X x : xs) {
+            if (!matches.containsKey(x)) {
+                matches.put(x, getAllMatchingX(x));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Given a batch of y values, returns for each one the set of all values x such that the relation contains (x, y)
+     *
+     * Each set is sorted, as returned by getAllMatchingY. Repeated values of y are looked up once
+     *
+     * @param ys the elements to search for in the second half of a pair
+     * @return a map from each distinct y, in the order given, to the values x matching it, empty if there are none
+     */
+    default Map<Y, Set<X>> getAllMatchingEachY(Collection<? extends Y> ys) {
+        Map<Y, Set<X>> matches = new LinkedHashMap<>();
+        for (Y y : ys) {
+            if (!matches.containsKey(y)) {
+                matches.put(y, getAllMatchingY(y));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Runs containsAll on an executor, for callers that must not block
+     *
+     * The batch runs as a single task, so a whole request's probes cost one hand-off rather than one per probe.
+     * Passing an executor of virtual threads, such as Executors.newVirtualThreadPerTaskExecutor(), is safe for
+     * implementations that do not hold a monitor while looking up pairs.
+     * The relation must not be modified by another thread while the task runs, unless it is thread safe
+     *
+     * @param xs       the first half of each pair to be matched
+     * @param ys       the second half of each pair to be matched
+     * @param executor the executor to run the lookup on
+     * @return a future completed with the result of containsAll
+     */
+    default CompletableFuture<boolean[]> containsAllAsync(X[] xs, Y[] ys, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> containsAll(xs, ys), executor);
+    }
+
+    /**
+     * Runs getAllMatchingEachX on an executor, for callers that must not block
+     *
+     * @param xs       the elements to search for in the first half of a pair
+     * @param executor the executor to run the lookup on
+     * @return a future completed with the result of getAllMatchingEachX
+     * @see #containsAllAsync(Object[], Object[], Executor)
+     */
+    default CompletableFuture<Map<X, Set<Y>>> getAllMatchingEachXAsync(Collection<? extends X> xs,
+                                                                       Executor executor) {
+        return CompletableFuture.supplyAsync(() -> getAllMatchingEachX(xs), executor);
+    }
+
+    /**
+     * Runs getAllMatchingEachY on an executor, for callers that must not block
+     *
+     * @param ys       the elements to search for in the second half of a pair
+     * @param executor the executor to run the lookup on
+     * @return a future completed with the result of getAllMatchingEachY
+     * @see #containsAllAsync(Object[], Object[], Executor)
+     */
+    default CompletableFuture<Map<Y, Set<X>>> getAllMatchingEachYAsync(Collection<? extends Y> ys,
+                                                                       Executor executor) {
+        return CompletableFuture.supplyAsync(() -> getAllMatchingEachY(ys), executor);
+    }
+
     /**
      * Requirement 4
      * Empties the relation
@@ -67,21 +373,132 @@ public interface Relation<X, Y> {
      */
     void remove(X x, Y y) throws NoSuchElementException;
 
+    /**
+     * Adds every pair in a batch to the relation, skipping pairs that are already present
+     *
+     * Implementations may size their storage for the whole batch up front and reorder the work
+     * to visit their tables in order; this default puts each pair in turn
+     *
+     * @param pairs the pairs to add, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs added, not counting those already in the relation or repeated in the batch
+     */
+    default int putAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        int before = size();
+        for (Map.Entry<? extends X, ? extends Y> pair : pairs) {
+            put(pair.getKey(), pair.getValue());
+        }
+        return size() - before;
+    }
+
+    /**
+     * Adds every pair in a stream to the relation, skipping pairs that are already present
+     *
+     * @param pairs the pairs to add, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs added, not counting those already in the relation or repeated in the stream
+     */
+    default int putAll(Stream<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        Stream<Map.Entry<? extends X, ? extends Y>> widened = pairs.map(pair -> pair);
+        return putAll(widened::iterator);
+    }
+
+    /**
+     * Adds the pairs (xs[i], ys[i]) to the relation, skipping pairs that are already present
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @return the number of pairs added, not counting those already in the relation or repeated in the arrays
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    default int putAll(X[] xs, Y[] ys) {
+        checkLengths(xs, ys);
+        int before = size();
+        for (int i = 0; i < xs.length; i++) {
+            put(xs[i], ys[i]);
+        }
+        return size() - before;
+    }
+
+    /**
+     * Removes every pair in a batch from the relation, skipping pairs that are not present
+     *
+     * Unlike remove, a missing pair is not an error
+     *
+     * @param pairs the pairs to remove, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs removed
+     */
+    default int removeAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        int removed = 0;
+        for (Map.Entry<? extends X, ? extends Y> pair : pairs) {
+            if (contains(pair.getKey(), pair.getValue())) {
+                remove(pair.getKey(), pair.getValue());
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every pair in a stream from the relation, skipping pairs that are not present
+     *
+     * @param pairs the pairs to remove, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs removed
+     */
+    default int removeAll(Stream<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        Stream<Map.Entry<? extends X, ? extends Y>> widened = pairs.map(pair -> pair);
+        return removeAll(widened::iterator);
+    }
+
+    /**
+     * Removes the pairs (xs[i], ys[i]) from the relation, skipping pairs that are not present
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @return the number of pairs removed
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    default int removeAll(X[] xs, Y[] ys) {
+        checkLengths(xs, ys);
+        int removed = 0;
+        for (int i = 0; i < xs.length; i++) {
+            if (contains(xs[i], ys[i])) {
+                remove(xs[i], ys[i]);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Checks that the parallel arrays of a batch hold the same number of elements
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    private static void checkLengths(Object[] xs, Object[] ys) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("Arrays of x and y have different lengths: "
+                    + xs.length + " and " + ys.length);
+        }
+    }
+
     /**
      * Requirement 7
      * Given x, removes all pairs(x, y) from the relation
      *
      * @param x the first part of all pairs to be removed
+     * @return the number of pairs removed, 0 if no pairs matched x
      */
-    void removeAllMatchingX(X x);
+    int removeAllMatchingX(X x);
 
     /**
      * Requirement 8
      * Given y, removes all pairs(x, y) from the relation
      *
      * @param y the second part of all pairs to be removed
+     * @return the number of pairs removed, 0 if no pairs matched y
      */
-    void removeAllMatchingY(Y y);
+    int removeAllMatchingY(Y y);
 
     /**
      * Requirement 9
@@ -97,4 +514,247 @@ public interface Relation<X, Y> {
      * @return the number of pairs stored in the relation
      */
     int size();
+
+    /**
+     * Returns a cursor over every pair in the relation, allocating nothing per pair
+     *
+     * @return a cursor positioned before the first pair
+     */
+    PairCursor<X, Y> cursor();
+
+    /**
+     * Performs an action on every pair in the relation, in no particular order
+     *
+     * Implementations may walk their storage directly; this default reads the pairs from a cursor,
+     * so neither allocates per pair. The action must not modify the relation
+     *
+     * @param action the action to perform on each pair
+     */
+    default void forEachPair(BiConsumer<? super X, ? super Y> action) {
+        PairCursor<X, Y> cursor = cursor();
+        while (cursor.advance()) {
+            action.accept(cursor.x(), cursor.y());
+        }
+    }
+
+    /**
+     * Performs an action on pairs in the relation, in no particular order, until the action returns false
+     *
+     * The action must not modify the relation
+     *
+     * @param action the action to perform on each pair, returning false to stop
+     * @return true if the action was performed on every pair, false if it stopped early
+     */
+    default boolean forEachPairWhile(BiPredicate<? super X, ? super Y> action) {
+        PairCursor<X, Y> cursor = cursor();
+        while (cursor.advance()) {
+            if (!action.test(cursor.x(), cursor.y())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a sequential stream of every pair in the relation, each given as an entry whose key is x
+     * and whose value is y
+     * <p>
+     * The relation must not be modified while the stream is in use.
+     * Implementations that can split their storage should override this;
+     * this default reads the pairs from a cursor
+     *
+     * @return a stream of the pairs
+     */
+    default Stream<Map.Entry<X, Y>> stream() {
+        final PairCursor<X, Y> cursor = cursor();
+        Iterator<Map.Entry<X, Y>> pairs = new Iterator<Map.Entry<X, Y>>() {
+            /**
+             * True if the cursor is on a pair that has not been returned yet
+             */
+            private boolean ready;
+
+            /**
+             * True once the cursor has run out of pairs
+             */
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                if (!ready && !done) {
+                    ready = cursor.advance();
+                    done = !ready;
+                }
+                return ready;
+            }
+
+            @Override
+            public Map.Entry<X, Y> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ready = false;
+                return new AbstractMap.SimpleImmutableEntry<>(cursor.x(), cursor.y());
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliterator(pairs, size(),
+                Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Returns a possibly parallel stream of every pair in the relation
+     * <p>
+     * This default parallelises the stream of the cursor, handing out batches of pairs to worker threads
+     *
+     * @return a parallel stream of the pairs
+     */
+    default Stream<Map.Entry<X, Y>> parallelStream() {
+        return stream().parallel();
+    }
+
+    /**
+     * Returns a live view of the inverse of the relation, which contains (y, x) for every pair (x, y) in it
+     * <p>
+     * Nothing is copied: lookups by x on the view use the relation's index by y and vice versa,
+     * and changes through either are seen by both
+     *
+     * @return the inverse view
+     */
+    default Relation<Y, X> inverse() {
+        return new InverseRelation<>(this);
+    }
+
+    /**
+     * Composes the relation with another, giving every pair (x, z) such that this relation contains (x, y)
+     * and the other contains (y, z) for some y
+     * <p>
+     * This default is a hash join: the pairs of this relation are grouped by y, then each distinct y is looked up
+     * once in the other relation's index by x
+     *
+     * @param other the relation to follow this one with
+     * @param <Z>   the type of the second half of the pairs of the other relation
+     * @return a new relation holding the composition
+     */
+    default <Z> Relation<X, Z> compose(Relation<Y, Z> other) {
+        Map<Y, List<X>> byY = new HashMap<>();
+        PairCursor<X, Y> cursor = cursor();
+        while (cursor.advance()) {
+            byY.computeIfAbsent(cursor.y(), y -> new ArrayList<>()).add(cursor.x());
+        }
+
+        HashRelation<X, Z> result = new HashRelation<>();
+        for (Map.Entry<Y, List<X>> e : byY.entrySet()) {
+            Set<Z> zs = other.viewMatchingX(e.getKey());
+            if (!zs.isEmpty()) {
+                for (X x : e.getValue()) {
+                    for (Z z : zs) {
+                        result.put(x, z);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new relation holding every pair in this relation or the other
+     *
+     * @param other the relation to combine with this one
+     * @return a new relation holding the union
+     */
+    default Relation<X, Y> union(Relation<X, Y> other) {
+        HashRelation<X, Y> result = new HashRelation<>();
+        for (Relation<X, Y> r : Arrays.asList(this, other)) {
+            PairCursor<X, Y> cursor = r.cursor();
+            while (cursor.advance()) {
+                result.put(cursor.x(), cursor.y());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new relation holding every pair in both this relation and the other
+     * <p>
+     * Walks the smaller relation and probes the larger one
+     *
+     * @param other the relation to intersect with this one
+     * @return a new relation holding the intersection
+     */
+    default Relation<X, Y> intersection(Relation<X, Y> other) {
+        Relation<X, Y> smaller = size() <= other.size() ? this : other;
+        Relation<X, Y> larger = smaller == this ? other : this;
+        HashRelation<X, Y> result = new HashRelation<>();
+        PairCursor<X, Y> cursor = smaller.cursor();
+        while (cursor.advance()) {
+            if (larger.contains(cursor.x(), cursor.y())) {
+                result.put(cursor.x(), cursor.y());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new relation holding every pair in this relation that is not in the other
+     *
+     * @param other the relation whose pairs are left out
+     * @return a new relation holding the difference
+     */
+    default Relation<X, Y> difference(Relation<X, Y> other) {
+        HashRelation<X, Y> result = new HashRelation<>();
+        PairCursor<X, Y> cursor = cursor();
+        while (cursor.advance()) {
+            if (!other.contains(cursor.x(), cursor.y())) {
+                result.put(cursor.x(), cursor.y());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the transitive closure of a relation: every pair (a, b) such that b can be reached from a
+     * by following one or more pairs of the relation
+     * <p>
+     * Each distinct a is searched breadth first in turn. Once a has been searched its row of the closure is
+     * complete, so a later search reaching a takes the whole row at once instead of searching through it again
+     * <p>
+     * Complexity:
+     * O(v * (v + e)) in the worst case, for v distinct values and e pairs
+     *
+     * @param relation the relation to close, which must not be modified during the computation
+     * @param <T>      the type of both halves of the pairs
+     * @return a new relation holding the closure
+     */
+    static <T> Relation<T, T> transitiveClosure(Relation<T, T> relation) {
+        Set<T> sources = new LinkedHashSet<>();
+        PairCursor<T, T> cursor = relation.cursor();
+        while (cursor.advance()) {
+            sources.add(cursor.x());
+        }
+
+        HashRelation<T, T> closure = new HashRelation<>();
+        Set<T> done = new HashSet<>();
+        Deque<T> frontier = new ArrayDeque<>();
+        for (T source : sources) {
+            frontier.add(source);
+            while (!frontier.isEmpty()) {
+                T t = frontier.poll();
+                for (T next : relation.viewMatchingX(t)) {
+                    if (closure.contains(source, next)) {
+                        continue;
+                    }
+                    closure.put(source, next);
+                    if (done.contains(next)) {
+                        //everything reachable from next is already in its row
+                        for (T reached : new ArrayList<>(closure.viewMatchingX(next))) {
+                            closure.put(source, reached);
+                        }
+                    } else {
+                        frontier.add(next);
+                    }
+                }
+            }
+            done.add(source);
+        }
+        return closure;
+    }
 }
@@ -0,0 +1,540 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Contains the main method for benchmarking the Relation implementations
+ * <p>
+ * Every operation is run against every combination of implementation, key type, degree distribution,
+ * relation size and load factor. Each run is warmed up first, then measured over several timed iterations,
+ * and reports the mean throughput with its standard deviation and the bytes allocated per operation.
+ * <p>
+ * Every dimension can be narrowed with a command line option taking a comma separated list, for example
+ * <pre>
+ * java RelationBenchmark -ops put,contains -impls hash -sizes 100000 -dists zipf
+ * </pre>
+ * The options are -ops, -impls (hash, concurrent), -keys (int, long, string), -dists (uniform, zipf),
+ * -sizes and -loadFactors, plus -warmup and -iterations (counts) and -time (milliseconds per iteration).
+ * Run with a fixed heap, e.g. -Xms2g -Xmx2g, so collections do not vary between runs
+ *
+ * @see Relation
+ */
+public class RelationBenchmark {
+
+    /**
+     * Exponent of the Zipfian distribution of degrees: the k-th most common key has weight 1/k^s
+     */
+    private static final double ZIPF_EXPONENT = 1.0;
+
+    /**
+     * Number of pairs per distinct x in the generated data
+     */
+    private static final int PAIRS_PER_KEY = 4;
+
+    /**
+     * Number of pairs looked up in each call of containsAll, about the fan-out of one request
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Written by every operation so the JIT cannot discard the work it measures
+     */
+    private static volatile long sink;
+
+    /**
+     * Number of partners counted by forEachMatchingX
+     */
+    private static long partners;
+
+    /**
+     * The action forEachMatchingX runs on each partner, shared so the loop measured allocates nothing itself
+     */
+    private static final Consumer<Object> COUNT_PARTNER = y -> partners++;
+
+    /**
+     * A benchmarked operation
+     */
+    private enum Operation {
+        PUT("put") {
+            @Override
+            long run(Relation<Object, Object> r, Dataset d) {
+                for (int i = 0; i < d.xs.length; i++) {
+                    r.put(d.xs[i], d.ys[i]);
+                }
+                return d.xs.length;
+            }
+        },
+        CONTAINS("contains") {
+            @Override
+            long run(Relation<Object, Object> r, Dataset d) {
+                long hits = 0;
+                for (int i : d.lookupOrder) {
+                    //every other lookup misses, pairing an x with the y of a different pair
+                    if (r.contains(d.xs[i], d.ys[(i & 1) == 0 ? i : d.ys.length - 1 - i])) {
+                        hits++;
+                    }
+                }
+                sink += hits;
+                return d.lookupOrder.length;
+            }
+        },
+        CONTAINS_ALL("containsAll") {
+            @Override
+            long run(Relation<Object, Object> r, Dataset d) {
+                long hits = 0;
+                //the same probes as contains, in batches of BATCH_SIZE sliced before the clock starts
+                for (int b = 0; b < d.batchXs.length; b++) {
+                    for (boolean found : r.containsAll(d.batchXs[b], d.batchYs[b])) {
+                        if (found) {
+                            hits++;
+                        }
+                    }
+                }
+                sink += hits;
+                return d.lookupOrder.length;
+            }
+        },
+        GET_ALL_MATCHING_X("getAllMatchingX") {
+            @Override
+            long run(Relation<Object, Object> r, Dataset d) {
+                long total = 0;
+                for (Object x : d.distinctXs) {
+                    total += r.getAllMatchingX(x).size();
+                }
+                sink += total;
+                return d.distinctXs.length;
+            }
+        },
+        FOR_EACH_MATCHING_X("forEachMatchingX") {
+            @Override
+            long run(Relation<Object, Object> r, Dataset d) {
+                for (Object x : d.distinctXs) {
+                    r.forEachMatchingX(x, COUNT_PARTNER);
+                }
+                sink += partners;
+                return d.distinctXs.length;
+            }
+        },
+        GET_ALL_MATCHING_Y("getAllMatchingY") {
+            @Override
+            long run(Relation<Object, Object> r, Dataset d) {
+                long total = 0;
+                for (Object y : d.distinctYs) {
+                    total += r.getAllMatchingY(y).size();
+                }
+                sink += total;
+                return d.distinctYs.length;
+            }
+        },
+        REMOVE("remove") {
+            @Override
+            long run(Relation<Object, Object> r, Dataset d) {
+                for (int i : d.lookupOrder) {
+                    r.remove(d.xs[i], d.ys[i]);
+                }
+                return d.lookupOrder.length;
+            }
+        },
+        REMOVE_ALL_MATCHING_X("removeAllMatchingX") {
+            @Override
+            long run(Relation<Object, Object> r, Dataset d) {
+                long total = 0;
+                for (Object x : d.distinctXs) {
+                    total += r.removeAllMatchingX(x);
+                }
+                sink += total;
+                return d.distinctXs.length;
+            }
+        },
+        REMOVE_ALL_MATCHING_Y("removeAllMatchingY") {
+            @Override
+            long run(Relation<Object, Object> r, Dataset d) {
+                long total = 0;
+                for (Object y : d.distinctYs) {
+                    total += r.removeAllMatchingY(y);
+                }
+                sink += total;
+                return d.distinctYs.length;
+            }
+        },
+        CLEAR("clear") {
+            @Override
+            long run(Relation<Object, Object> r, Dataset d) {
+                r.clear();
+                return 1;
+            }
+        };
+
+        /**
+         * The name of the operation on the command line and in the results
+         */
+        final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Returns true if the operation runs against a relation already holding the dataset
+         *
+         * @return false for put, which starts from an empty relation
+         */
+        boolean prefilled() {
+            return this != PUT;
+        }
+
+        /**
+         * Returns true if the operation leaves the relation changed, so it must be refilled before the next run
+         *
+         * @return true for operations that add or remove pairs
+         */
+        boolean mutates() {
+            return this != CONTAINS && this != CONTAINS_ALL && this != GET_ALL_MATCHING_X
+                    && this != FOR_EACH_MATCHING_X && this != GET_ALL_MATCHING_Y;
+        }
+
+        /**
+         * Runs the operation once over the dataset
+         *
+         * @param r the relation to run against
+         * @param d the dataset
+         * @return the number of operations performed
+         */
+        abstract long run(Relation<Object, Object> r, Dataset d);
+    }
+
+    /**
+     * The pairs a run works with, along with the order to look them up in
+     */
+    private static final class Dataset {
+        /**
+         * The first half of each pair
+         */
+        final Object[] xs;
+
+        /**
+         * The second half of each pair
+         */
+        final Object[] ys;
+
+        /**
+         * Every distinct x
+         */
+        final Object[] distinctXs;
+
+        /**
+         * Every distinct y
+         */
+        final Object[] distinctYs;
+
+        /**
+         * A shuffled permutation of the pair indices, so lookups do not follow insertion order
+         */
+        final int[] lookupOrder;
+
+        /**
+         * The first half of each pair probed by containsAll, in lookup order and split into batches of BATCH_SIZE
+         */
+        final Object[][] batchXs;
+
+        /**
+         * The second half of each pair probed by containsAll, in the batches of batchXs,
+         * every other one a miss as for contains
+         */
+        final Object[][] batchYs;
+
+        /**
+         * Generates a dataset of distinct pairs
+         * <p>
+         * There is one distinct x for every PAIRS_PER_KEY pairs. With the uniform distribution each pair picks its x
+         * uniformly; with the Zipfian distribution a few keys take most of the pairs and most keys have only one
+         *
+         * @param size the number of pairs
+         * @param keys the type of key to generate
+         * @param zipf true for Zipfian degrees, false for uniform degrees
+         * @param seed the seed of the random numbers
+         */
+        Dataset(int size, String keys, boolean zipf, long seed) {
+            Random random = new Random(seed);
+            int keyCount = Math.max(1, size / PAIRS_PER_KEY);
+            double[] cdf = zipf ? zipfCdf(keyCount) : null;
+
+            xs = new Object[size];
+            ys = new Object[size];
+            Set<Long> seen = new HashSet<>();
+            Set<Object> xSet = new LinkedHashSet<>(), ySet = new LinkedHashSet<>();
+            for (int i = 0; i < size; ) {
+                int x = zipf ? sample(cdf, random.nextDouble()) : random.nextInt(keyCount);
+                int y = random.nextInt(size);
+                if (seen.add(((long) x << 32) | y)) {
+                    xs[i] = key(keys, x);
+                    ys[i] = key(keys, y);
+                    xSet.add(xs[i]);
+                    ySet.add(ys[i]);
+                    i++;
+                }
+            }
+            distinctXs = xSet.toArray();
+            distinctYs = ySet.toArray();
+
+            lookupOrder = new int[size];
+            for (int i = 0; i < size; i++) {
+                lookupOrder[i] = i;
+            }
+            for (int i = size - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int t = lookupOrder[i];
+                lookupOrder[i] = lookupOrder[j];
+                lookupOrder[j] = t;
+            }
+
+            int batches = (size + BATCH_SIZE - 1) / BATCH_SIZE;
+            batchXs = new Object[batches][];
+            batchYs = new Object[batches][];
+            for (int b = 0; b < batches; b++) {
+                int start = b * BATCH_SIZE;
+                batchXs[b] = new Object[Math.min(BATCH_SIZE, size - start)];
+                batchYs[b] = new Object[batchXs[b].length];
+                for (int k = 0; k < batchXs[b].length; k++) {
+                    int i = lookupOrder[start + k];
+                    batchXs[b][k] = xs[i];
+                    batchYs[b][k] = ys[(i & 1) == 0 ? i : ys.length - 1 - i];
+                }
+            }
+        }
+
+        /**
+         * Creates a key of a given type
+         *
+         * @param keys the type of key: int, long or string
+         * @param n    the number the key is made from
+         * @return the key
+         */
+        private static Object key(String keys, int n) {
+            switch (keys) {
+                case "int":
+                    return n;
+                case "long":
+                    return (long) n * 0x9E3779B97F4A7C15L;
+                case "string":
+                    return "key-" + n;
+                default:
+                    throw new IllegalArgumentException("Unknown key type: " + keys);
+            }
+        }
+
+        /**
+         * Builds the cumulative distribution function of a Zipfian distribution
+         *
+         * @param n the number of outcomes
+         * @return the probability that an outcome is at most each index
+         */
+        private static double[] zipfCdf(int n) {
+            double[] cdf = new double[n];
+            double total = 0;
+            for (int k = 0; k < n; k++) {
+                total += 1 / Math.pow(k + 1, ZIPF_EXPONENT);
+                cdf[k] = total;
+            }
+            for (int k = 0; k < n; k++) {
+                cdf[k] /= total;
+            }
+            return cdf;
+        }
+
+        /**
+         * Samples an outcome from a cumulative distribution function
+         *
+         * @param cdf the cumulative distribution function
+         * @param u   a uniform random number in [0, 1)
+         * @return the first outcome whose cumulative probability exceeds u
+         */
+        private static int sample(double[] cdf, double u) {
+            int i = Arrays.binarySearch(cdf, u);
+            return Math.min(i < 0 ? -i - 1 : i + 1, cdf.length - 1);
+        }
+    }
+
+    public static void main(String[] args) {
+        List<String> ops = option(args, "-ops", "put,contains,containsAll,getAllMatchingX,forEachMatchingX,"
+                + "getAllMatchingY,remove,removeAllMatchingX,removeAllMatchingY,clear");
+        List<String> impls = option(args, "-impls", "hash,concurrent");
+        List<String> keys = option(args, "-keys", "int,string");
+        List<String> dists = option(args, "-dists", "uniform,zipf");
+        List<String> sizes = option(args, "-sizes", "1000,100000");
+        List<String> loadFactors = option(args, "-loadFactors", "0.75,4");
+        int warmup = Integer.parseInt(option(args, "-warmup", "3").get(0));
+        int iterations = Integer.parseInt(option(args, "-iterations", "5").get(0));
+        long time = Long.parseLong(option(args, "-time", "500").get(0)) * 1_000_000L;
+
+        System.out.printf(Locale.ROOT, "%-20s %-11s %-7s %-8s %8s %6s %14s %14s %10s%n",
+                "Benchmark", "impl", "keys", "dist", "size", "lf", "ops/s", "error", "B/op");
+        for (String key : keys) {
+            for (String dist : dists) {
+                for (String size : sizes) {
+                    Dataset d = new Dataset(Integer.parseInt(size), key, dist.equals("zipf"), 42);
+                    for (String impl : impls) {
+                        for (String lf : loadFactors) {
+                            //load factor only applies to HashRelation
+                            if (!impl.equals("hash") && !lf.equals(loadFactors.get(0))) {
+                                continue;
+                            }
+                            for (String op : ops) {
+                                Operation o = operation(op);
+                                double[] result = measure(o, impl, Double.parseDouble(lf), d, warmup, iterations, time);
+                                System.out.printf(Locale.ROOT, "%-20s %-11s %-7s %-8s %8s %6s %14.1f %14.1f %10.1f%n",
+                                        o.label, impl, key, dist, size, impl.equals("hash") ? lf : "-",
+                                        result[0], result[1], result[2]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the warmup and measured iterations of one benchmark
+     *
+     * @param o          the operation
+     * @param impl       the relation implementation
+     * @param loadFactor the load factor of a HashRelation
+     * @param d          the dataset
+     * @param warmup     the number of warmup iterations, whose results are discarded
+     * @param iterations the number of measured iterations
+     * @param time       the length of each iteration in nanoseconds
+     * @return the mean throughput in operations per second, its standard deviation and the bytes allocated per operation
+     */
+    private static double[] measure(Operation o, String impl, double loadFactor, Dataset d,
+                                    int warmup, int iterations, long time) {
+        for (int i = 0; i < warmup; i++) {
+            iteration(o, impl, loadFactor, d, time);
+        }
+
+        double[] throughput = new double[iterations];
+        double bytes = 0, ops = 0;
+        for (int i = 0; i < iterations; i++) {
+            double[] result = iteration(o, impl, loadFactor, d, time);
+            throughput[i] = result[0] / result[1] * 1e9;
+            ops += result[0];
+            bytes += result[2];
+        }
+
+        double mean = 0;
+        for (double t : throughput) {
+            mean += t / iterations;
+        }
+        double variance = 0;
+        for (double t : throughput) {
+            variance += (t - mean) * (t - mean) / Math.max(1, iterations - 1);
+        }
+        return new double[]{mean, Math.sqrt(variance), bytes / ops};
+    }
+
+    /**
+     * Runs an operation repeatedly for at least a given time, timing only the operation itself
+     * <p>
+     * Filling the relation for operations that need it is done outside the timed region
+     *
+     * @param o          the operation
+     * @param impl       the relation implementation
+     * @param loadFactor the load factor of a HashRelation
+     * @param d          the dataset
+     * @param time       the minimum time to spend in the operation, in nanoseconds
+     * @return the number of operations, the nanoseconds spent on them and the bytes they allocated
+     */
+    private static double[] iteration(Operation o, String impl, double loadFactor, Dataset d, long time) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Relation<Object, Object> r = null;
+        long ops = 0, elapsed = 0, allocated = 0;
+
+        while (elapsed < time) {
+            if (r == null || o.mutates()) {
+                r = create(impl, loadFactor);
+                if (o.prefilled()) {
+                    Operation.PUT.run(r, d);
+                }
+            }
+
+            long bytesBefore = allocatedBytes(threads);
+            long start = System.nanoTime();
+            ops += o.run(r, d);
+            elapsed += System.nanoTime() - start;
+            allocated += allocatedBytes(threads) - bytesBefore;
+        }
+        return new double[]{ops, elapsed, allocated};
+    }
+
+    /**
+     * Creates an empty relation
+     *
+     * @param impl       the implementation: hash or concurrent
+     * @param loadFactor the load factor of a HashRelation
+     * @return the relation
+     */
+    private static Relation<Object, Object> create(String impl, double loadFactor) {
+        switch (impl) {
+            case "hash":
+                return new HashRelation<>(HashRelation.DEFAULT_BUCKET_COUNT, loadFactor);
+            case "concurrent":
+                return new ConcurrentHashRelation<>();
+            default:
+                throw new IllegalArgumentException("Unknown implementation: " + impl);
+        }
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread so far
+     *
+     * @param threads the thread management bean
+     * @return the number of bytes, or 0 if the JVM does not track allocation
+     */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Finds the operation with a given label
+     *
+     * @param label the label, as printed in the results
+     * @return the operation
+     * @throws IllegalArgumentException if there is no such operation
+     */
+    private static Operation operation(String label) {
+        for (Operation o : Operation.values()) {
+            if (o.label.equals(label)) {
+                return o;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation: " + label);
+    }
+
+    /**
+     * Reads a comma separated command line option
+     *
+     * @param args         the command line arguments
+     * @param name         the name of the option
+     * @param defaultValue the value to use if the option is not given
+     * @return the values of the option
+     */
+    private static List<String> option(String[] args, String name, String defaultValue) {
+        String value = defaultValue;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) {
+                value = args[i + 1];
+            }
+        }
+        return new ArrayList<>(Arrays.asList(value.split(",")));
+    }
+}
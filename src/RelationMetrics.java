@@ -0,0 +1,179 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts and times the operations performed on a relation
+ * <p>
+ * Latencies are kept in a histogram with one bucket per power of two nanoseconds,
+ * so recording an operation costs an increment and a few bit operations, and percentiles are accurate to within
+ * a factor of two.
+ * <p>
+ * Lookups record into the metrics as well as modifications, and a relation may be read from several threads
+ * at once, so every counter is updated atomically and none is lost. Each counter is exact, but a copy taken
+ * while operations are being recorded may see one counter of an operation updated before the others
+ *
+ * @author Matthew Smith
+ */
+class RelationMetrics {
+
+    /**
+     * The operations that are counted and timed
+     */
+    enum Operation {
+        CONTAINS("contains"),
+        GET_ALL_MATCHING_X("getAllMatchingX"),
+        GET_ALL_MATCHING_Y("getAllMatchingY"),
+        CONTAINS_ALL("containsAll"),
+        GET_ALL_MATCHING_EACH_X("getAllMatchingEachX"),
+        GET_ALL_MATCHING_EACH_Y("getAllMatchingEachY"),
+        FOR_EACH_MATCHING_X("forEachMatchingX"),
+        FOR_EACH_MATCHING_Y("forEachMatchingY"),
+        CLEAR("clear"),
+        PUT("put"),
+        PUT_ALL("putAll"),
+        REMOVE("remove"),
+        REMOVE_ALL("removeAll"),
+        REMOVE_ALL_MATCHING_X("removeAllMatchingX"),
+        REMOVE_ALL_MATCHING_Y("removeAllMatchingY");
+
+        /**
+         * The name of the method the operation is performed by
+         */
+        final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * Number of latency buckets: bucket i holds latencies below 2^i nanoseconds and at least 2^(i-1)
+     */
+    static final int LATENCY_BUCKETS = 64;
+
+    /**
+     * Number of times each operation has been performed
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(Operation.values().length);
+
+    /**
+     * Total nanoseconds spent in each operation
+     */
+    private final AtomicLongArray totalNanos = new AtomicLongArray(Operation.values().length);
+
+    /**
+     * Latency histogram of each operation, the LATENCY_BUCKETS buckets of operation i starting at i * LATENCY_BUCKETS
+     */
+    private final AtomicLongArray latencies = new AtomicLongArray(Operation.values().length * LATENCY_BUCKETS);
+
+    /**
+     * Records one performance of an operation
+     *
+     * @param op    the operation
+     * @param nanos how long it took
+     */
+    void record(Operation op, long nanos) {
+        int i = op.ordinal();
+        counts.incrementAndGet(i);
+        totalNanos.addAndGet(i, nanos);
+        latencies.incrementAndGet(i * LATENCY_BUCKETS
+                + Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos))));
+    }
+
+    /**
+     * Get the number of times an operation has been performed
+     *
+     * @param op the operation
+     * @return the count
+     */
+    long count(Operation op) {
+        return counts.get(op.ordinal());
+    }
+
+    /**
+     * Get the mean latency of an operation
+     *
+     * @param op the operation
+     * @return the mean latency in nanoseconds, or 0 if the operation has not been performed
+     */
+    double meanNanos(Operation op) {
+        long n = counts.get(op.ordinal());
+        return n == 0 ? 0 : (double) totalNanos.get(op.ordinal()) / n;
+    }
+
+    /**
+     * Get an upper bound on a percentile of the latency of an operation
+     *
+     * @param op       the operation
+     * @param fraction the percentile as a fraction, such as 0.99
+     * @return the smallest power of two nanoseconds that at least the given fraction of latencies are below,
+     * or 0 if the operation has not been performed
+     */
+    long percentileNanos(Operation op, double fraction) {
+        long n = counts.get(op.ordinal());
+        if (n == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(n * fraction);
+        long seen = 0;
+        long[] histogram = histogram(op);
+        for (int b = 0; b < LATENCY_BUCKETS; b++) {
+            seen += histogram[b];
+            if (seen >= target) {
+                return b == LATENCY_BUCKETS - 1 ? Long.MAX_VALUE : 1L << b;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Get the latency histogram of an operation
+     *
+     * @param op the operation
+     * @return a copy of the histogram, where element i counts the latencies in [2^(i-1), 2^i) nanoseconds
+     */
+    long[] histogram(Operation op) {
+        long[] histogram = new long[LATENCY_BUCKETS];
+        int from = op.ordinal() * LATENCY_BUCKETS;
+        for (int b = 0; b < LATENCY_BUCKETS; b++) {
+            histogram[b] = latencies.get(from + b);
+        }
+        return histogram;
+    }
+
+    /**
+     * Makes an independent copy of the metrics
+     *
+     * @return the copy
+     */
+    RelationMetrics copy() {
+        RelationMetrics m = new RelationMetrics();
+        copy(counts, m.counts);
+        copy(totalNanos, m.totalNanos);
+        copy(latencies, m.latencies);
+        return m;
+    }
+
+    /**
+     * Sets every count and histogram back to zero
+     */
+    void reset() {
+        for (AtomicLongArray counters : new AtomicLongArray[]{counts, totalNanos, latencies}) {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * Copies every counter of one array into another of the same length
+     *
+     * @param from the counters to copy
+     * @param to   the counters to overwrite
+     */
+    private static void copy(AtomicLongArray from, AtomicLongArray to) {
+        for (int i = 0; i < from.length(); i++) {
+            to.set(i, from.get(i));
+        }
+    }
+}
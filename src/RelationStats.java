@@ -0,0 +1,283 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A point in time snapshot of the shape and performance of a HashRelation, returned by HashRelation.stats()
+ * <p>
+ * The shape of the tables is always available. A chain is the list of groups in one bucket, so its length is
+ * the number of distinct keys that collide there; lookups of a key walk its chain, so long chains are slow.
+ * Operation counts and latencies are only available if metrics were enabled on the relation
+ *
+ * @author Matthew Smith
+ */
+public final class RelationStats {
+
+    /**
+     * Number of pairs in the relation
+     */
+    private final int size;
+
+    /**
+     * Number of buckets in each table
+     */
+    private final int bucketCount;
+
+    /**
+     * Load factor the tables are grown at
+     */
+    private final double loadFactor;
+
+    /**
+     * Number of distinct x values
+     */
+    private final int keyCountX;
+
+    /**
+     * Number of distinct y values
+     */
+    private final int keyCountY;
+
+    /**
+     * True if an incremental resize was in progress
+     */
+    private final boolean resizing;
+
+    /**
+     * Element i is the number of buckets of the X table whose chain is i groups long
+     */
+    private final long[] chainLengthsX;
+
+    /**
+     * Element i is the number of buckets of the Y table whose chain is i groups long
+     */
+    private final long[] chainLengthsY;
+
+    /**
+     * Operation counts and latencies, or null if metrics were not enabled
+     */
+    private final RelationMetrics metrics;
+
+    /**
+     * Constructs a snapshot
+     *
+     * @param size          number of pairs in the relation
+     * @param bucketCount   number of buckets in each table
+     * @param loadFactor    load factor the tables are grown at
+     * @param keyCountX     number of distinct x values
+     * @param keyCountY     number of distinct y values
+     * @param resizing      true if an incremental resize was in progress
+     * @param chainLengthsX chain length histogram of the X table
+     * @param chainLengthsY chain length histogram of the Y table
+     * @param metrics       a copy of the operation metrics, or null if metrics were not enabled
+     */
+    RelationStats(int size, int bucketCount, double loadFactor, int keyCountX, int keyCountY, boolean resizing,
+                  long[] chainLengthsX, long[] chainLengthsY, RelationMetrics metrics) {
+        this.size = size;
+        this.bucketCount = bucketCount;
+        this.loadFactor = loadFactor;
+        this.keyCountX = keyCountX;
+        this.keyCountY = keyCountY;
+        this.resizing = resizing;
+        this.chainLengthsX = chainLengthsX;
+        this.chainLengthsY = chainLengthsY;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the number of pairs in the relation
+     *
+     * @return the number of pairs
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of buckets in each of the X and Y tables
+     *
+     * @return the number of buckets
+     */
+    public int bucketCount() {
+        return bucketCount;
+    }
+
+    /**
+     * Get the load factor the tables are grown at
+     *
+     * @return the configured load factor
+     */
+    public double loadFactor() {
+        return loadFactor;
+    }
+
+    /**
+     * Get the number of distinct x values
+     *
+     * @return the number of keys in the X table
+     */
+    public int keyCountX() {
+        return keyCountX;
+    }
+
+    /**
+     * Get the number of distinct y values
+     *
+     * @return the number of keys in the Y table
+     */
+    public int keyCountY() {
+        return keyCountY;
+    }
+
+    /**
+     * Get the actual load of the X table
+     *
+     * @return the number of distinct x values per bucket
+     */
+    public double loadX() {
+        return (double) keyCountX / bucketCount;
+    }
+
+    /**
+     * Get the actual load of the Y table
+     *
+     * @return the number of distinct y values per bucket
+     */
+    public double loadY() {
+        return (double) keyCountY / bucketCount;
+    }
+
+    /**
+     * Returns true if an incremental resize was in progress, in which case the chain lengths only cover
+     * the keys already moved into the new tables
+     *
+     * @return true if the relation was resizing
+     */
+    public boolean isResizing() {
+        return resizing;
+    }
+
+    /**
+     * Get the distribution of chain lengths in the X table
+     *
+     * @return an array whose element i is the number of buckets holding exactly i distinct x values
+     */
+    public long[] chainLengthsX() {
+        return chainLengthsX.clone();
+    }
+
+    /**
+     * Get the distribution of chain lengths in the Y table
+     *
+     * @return an array whose element i is the number of buckets holding exactly i distinct y values
+     */
+    public long[] chainLengthsY() {
+        return chainLengthsY.clone();
+    }
+
+    /**
+     * Get the length of the longest chain in the X table
+     *
+     * @return the most distinct x values in any one bucket
+     */
+    public int maxChainLengthX() {
+        return chainLengthsX.length - 1;
+    }
+
+    /**
+     * Get the length of the longest chain in the Y table
+     *
+     * @return the most distinct y values in any one bucket
+     */
+    public int maxChainLengthY() {
+        return chainLengthsY.length - 1;
+    }
+
+    /**
+     * Returns true if the relation had metrics enabled, so operation counts and latencies are available
+     *
+     * @return true if metrics were enabled
+     */
+    public boolean hasMetrics() {
+        return metrics != null;
+    }
+
+    /**
+     * Get the number of times each operation has been performed since metrics were enabled or reset
+     *
+     * @return a map from method name to count, in a fixed order; empty if metrics were not enabled
+     */
+    public Map<String, Long> operationCounts() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        if (metrics != null) {
+            for (RelationMetrics.Operation op : RelationMetrics.Operation.values()) {
+                m.put(op.label, metrics.count(op));
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Get the mean latency of each operation
+     *
+     * @return a map from method name to mean latency in nanoseconds; empty if metrics were not enabled
+     */
+    public Map<String, Double> meanLatencyNanos() {
+        Map<String, Double> m = new LinkedHashMap<>();
+        if (metrics != null) {
+            for (RelationMetrics.Operation op : RelationMetrics.Operation.values()) {
+                m.put(op.label, metrics.meanNanos(op));
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Get an upper bound on a percentile of the latency of each operation, accurate to within a factor of two
+     *
+     * @param fraction the percentile as a fraction, such as 0.99
+     * @return a map from method name to latency in nanoseconds; empty if metrics were not enabled
+     * @throws IllegalArgumentException if fraction is not between 0 and 1
+     */
+    public Map<String, Long> latencyPercentileNanos(double fraction) {
+        if (!(fraction >= 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 1: " + fraction);
+        }
+        Map<String, Long> m = new LinkedHashMap<>();
+        if (metrics != null) {
+            for (RelationMetrics.Operation op : RelationMetrics.Operation.values()) {
+                m.put(op.label, metrics.percentileNanos(op, fraction));
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Get the latency histogram of an operation
+     *
+     * @param operation the name of the method, such as "put"
+     * @return an array whose element i counts the latencies in [2^(i-1), 2^i) nanoseconds;
+     * empty if metrics were not enabled
+     * @throws IllegalArgumentException if there is no such operation
+     */
+    public long[] latencyHistogram(String operation) {
+        for (RelationMetrics.Operation op : RelationMetrics.Operation.values()) {
+            if (op.label.equals(operation)) {
+                return metrics == null ? new long[0] : metrics.histogram(op);
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation: " + operation);
+    }
+
+    /**
+     * Returns a short summary of the statistics
+     *
+     * @return a one line summary
+     */
+    @Override
+    public String toString() {
+        return "RelationStats[size=" + size + ", buckets=" + bucketCount
+                + ", loadX=" + String.format("%.3f", loadX()) + ", loadY=" + String.format("%.3f", loadY())
+                + ", maxChainX=" + maxChainLengthX() + ", maxChainY=" + maxChainLengthY()
+                + (resizing ? ", resizing" : "") + (metrics != null ? ", ops=" + operationCounts() : "") + "]";
+    }
+}
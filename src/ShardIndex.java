@@ -0,0 +1,539 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * The pairs one index of a loopback shard holds, indexed by x only
+ * <p>
+ * A ShardedRelation only asks the X index of a shard about x, and the loopback transport gives the Y index
+ * as the inverse of one of these keyed by y, so each index needs the one hash table rather than the two of
+ * HashRelation and every pair is stored twice across the shards rather than four times.
+ * The methods looking pairs up by y scan every key; they exist to complete the Relation interface.
+ * <p>
+ * As in ConcurrentHashRelation, the index is a concurrent hash map whose partner sets are themselves concurrent,
+ * so reads never lock or block. Every write to the partners of a key is made while computing its entry,
+ * which serialises the writes to each key and drops a key as soon as it has no partners left
+ *
+ * @param <X> Type of the first item in a pair, the key of the index
+ * @param <Y> Type of the second item in a pair
+ * @author Matthew Smith
+ * @see ShardTransport#loopback(int)
+ */
+class ShardIndex<X, Y> implements Relation<X, Y> {
+
+    /**
+     * Maps each x to the set of all y such that the index contains (x, y)
+     */
+    private final ConcurrentMap<X, Set<Y>> index = new ConcurrentHashMap<>();
+
+
+    /**
+     * Number of pairs currently stored in the index
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+
+    /**
+     * Requirement 1
+     * Returns true if the index contains the specified pair (x, y)
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the first part of the pair to be matched
+     * @param y the second part of the pair to be matched
+     * @return true if a pair matching (x, y) is found, false otherwise
+     */
+    @Override
+    public boolean contains(X x, Y y) {
+        Set<Y> partners = index.get(x);
+        return partners != null && partners.contains(y);
+    }
+
+
+    /**
+     * Requirement 2
+     * Given x, returns a set containing all values y such that the index contains (x, y)
+     * <p>
+     * Complexity:
+     * O(k log k) where k is the number of pairs matching x
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a set containing all values y such that the index contains (x, y)
+     */
+    @Override
+    public Set<Y> getAllMatchingX(X x) {
+        Set<Y> set = new TreeSet<>();
+        forEachMatchingX(x, set::add);
+        return set;
+    }
+
+
+    /**
+     * Requirement 3
+     * Given y, returns a set containing all values x such that the index contains (x, y)
+     * <p>
+     * There is no index by y, so every key is checked
+     * <p>
+     * Complexity:
+     * O(m) where m is the number of distinct x
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a set containing all values x such that the index contains (x, y)
+     */
+    @Override
+    public Set<X> getAllMatchingY(Y y) {
+        Set<X> set = new TreeSet<>();
+        index.forEach((x, partners) -> {
+            if (partners.contains(y)) {
+                set.add(x);
+            }
+        });
+        return set;
+    }
+
+
+    /**
+     * Given x, returns a live read-only view of all values y such that the index contains (x, y)
+     * <p>
+     * The view looks the partners of x up again on every call, without locking or sorting
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a live, unmodifiable set of all values y such that the index contains (x, y)
+     */
+    @Override
+    public Set<Y> viewMatchingX(final X x) {
+        return new AbstractSet<Y>() {
+            @Override
+            public boolean contains(Object o) {
+                Set<Y> partners = index.get(x);
+                return partners != null && partners.contains(o);
+            }
+
+            @Override
+            public Iterator<Y> iterator() {
+                return Collections.unmodifiableSet(index.getOrDefault(x, Collections.emptySet())).iterator();
+            }
+
+            @Override
+            public int size() {
+                return degreeX(x);
+            }
+        };
+    }
+
+
+    /**
+     * Given x, returns an unsorted copy of all values y such that the index contains (x, y)
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a new set containing all values y such that the index contains (x, y)
+     */
+    @Override
+    public Set<Y> snapshotMatchingX(X x) {
+        Set<Y> set = new HashSet<>();
+        forEachMatchingX(x, set::add);
+        return set;
+    }
+
+
+    /**
+     * Given x, returns the number of values y such that the index contains (x, y)
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return the number of pairs matching x, 0 if there are none
+     */
+    @Override
+    public int degreeX(X x) {
+        Set<Y> partners = index.get(x);
+        return partners == null ? 0 : partners.size();
+    }
+
+
+    /**
+     * Given x, performs an action on every value y such that the index contains (x, y), in no particular order
+     * <p>
+     * Walks the partner set of x without locking or copying it
+     *
+     * @param x      the element to search for in the first half of a pair
+     * @param action the action to perform on each partner of x
+     */
+    @Override
+    public void forEachMatchingX(X x, Consumer<? super Y> action) {
+        Set<Y> partners = index.get(x);
+        if (partners != null) {
+            partners.forEach(action);
+        }
+    }
+
+
+    /**
+     * Given x, performs an action on the values y such that the index contains (x, y) until the action returns false
+     *
+     * @param x      the element to search for in the first half of a pair
+     * @param action the action to perform on each partner of x, returning false to stop
+     * @return true if every partner was visited, false if the action stopped early
+     */
+    @Override
+    public boolean forEachMatchingXWhile(X x, Predicate<? super Y> action) {
+        Set<Y> partners = index.get(x);
+        if (partners != null) {
+            for (Y y : partners) {
+                if (!action.test(y)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Requirement 4
+     * Empties the index
+     * <p>
+     * Removes each key in turn, so writes made meanwhile are either removed or kept whole
+     * <p>
+     * Complexity:
+     * O(n)
+     */
+    @Override
+    public void clear() {
+        for (X x : index.keySet()) {
+            removeAllMatchingX(x);
+        }
+    }
+
+
+    /**
+     * Requirement 5
+     * Adds a given pair (x, y) to the index
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the first half of the pair to be added
+     * @param y the second half of the pair to be added
+     */
+    @Override
+    public void put(X x, Y y) {
+        add(x, y);
+    }
+
+
+    /**
+     * Adds every pair in a batch to the index, skipping pairs that are already present
+     *
+     * @param pairs the pairs to add, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs added, not counting those already in the index or repeated in the batch
+     */
+    @Override
+    public int putAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        int added = 0;
+        for (Map.Entry<? extends X, ? extends Y> pair : pairs) {
+            if (add(pair.getKey(), pair.getValue())) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+
+    @Override
+    public int putAll(X[] xs, Y[] ys) {
+        checkLengths(xs, ys);
+        int added = 0;
+        for (int i = 0; i < xs.length; i++) {
+            if (add(xs[i], ys[i])) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+
+    /**
+     * Requirement 6
+     * Removes a given pair (x, y) from the index
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the first half of the pair to be removed
+     * @param y the second half of the pair to be removed
+     * @throws NoSuchElementException when trying to remove an element that isn't in the index
+     */
+    @Override
+    public void remove(X x, Y y) throws NoSuchElementException {
+        if (!delete(x, y)) {
+            throw new NoSuchElementException();
+        }
+    }
+
+
+    /**
+     * Removes every pair in a batch from the index, skipping pairs that are not present
+     *
+     * @param pairs the pairs to remove, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        int removed = 0;
+        for (Map.Entry<? extends X, ? extends Y> pair : pairs) {
+            if (delete(pair.getKey(), pair.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+
+    @Override
+    public int removeAll(X[] xs, Y[] ys) {
+        checkLengths(xs, ys);
+        int removed = 0;
+        for (int i = 0; i < xs.length; i++) {
+            if (delete(xs[i], ys[i])) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+
+    /**
+     * Requirement 7
+     * Given x, removes all pairs(x, y) from the index
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the first part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingX(X x) {
+        //once the key is gone no write can reach its partner set, so its size is final
+        Set<Y> partners = index.remove(x);
+        if (partners == null) {
+            return 0;
+        }
+        size.addAndGet(-partners.size());
+        return partners.size();
+    }
+
+
+    /**
+     * Requirement 8
+     * Given y, removes all pairs(x, y) from the index
+     * <p>
+     * There is no index by y, so y is removed from the partners of every key
+     * <p>
+     * Complexity:
+     * O(m) where m is the number of distinct x
+     *
+     * @param y the second part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingY(Y y) {
+        int removed = 0;
+        for (X x : index.keySet()) {
+            if (delete(x, y)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+
+    /**
+     * Requirement 9
+     * Renders the index as a string in a readable format
+     * <p>
+     * Prints every key along with its pairs
+     * <p>
+     * Complexity:
+     * O(n)
+     *
+     * @return a string representation of the index
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("\n-- X index --\n");
+        for (Map.Entry<X, Set<Y>> e : index.entrySet()) {
+            sb.append(e.getKey());
+            sb.append(": [");
+            for (Y partner : e.getValue()) {
+                sb.append("(");
+                sb.append(e.getKey());
+                sb.append(", ");
+                sb.append(partner);
+                sb.append("), ");
+            }
+            sb.append("]\n");
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Get the number of pairs in the index
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @return the number of pairs in the index
+     */
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+
+    /**
+     * Returns a cursor over every pair in the index
+     * <p>
+     * The cursor is weakly consistent, like the iterators of the index: it never throws
+     * ConcurrentModificationException and may or may not show writes made while it is in use
+     *
+     * @return a cursor positioned before the first pair
+     */
+    @Override
+    public PairCursor<X, Y> cursor() {
+        final Iterator<Map.Entry<X, Set<Y>>> keys = index.entrySet().iterator();
+        return new PairCursor<X, Y>() {
+            /**
+             * The x of the partners being walked, or null before the first pair
+             */
+            private X x;
+
+            /**
+             * The partners of x not visited yet
+             */
+            private Iterator<Y> partners = Collections.emptyIterator();
+
+            /**
+             * The current y, or null if the cursor is not on a pair
+             */
+            private Y y;
+
+            @Override
+            public boolean advance() {
+                while (!partners.hasNext()) {
+                    if (!keys.hasNext()) {
+                        y = null;
+                        return false;
+                    }
+                    Map.Entry<X, Set<Y>> e = keys.next();
+                    x = e.getKey();
+                    partners = e.getValue().iterator();
+                }
+                y = partners.next();
+                return true;
+            }
+
+            @Override
+            public X x() {
+                if (y == null) {
+                    throw new IllegalStateException("Cursor is not on a pair");
+                }
+                return x;
+            }
+
+            @Override
+            public Y y() {
+                if (y == null) {
+                    throw new IllegalStateException("Cursor is not on a pair");
+                }
+                return y;
+            }
+        };
+    }
+
+
+    /**
+     * Returns a sequential stream of every pair in the index, weakly consistent like cursor
+     *
+     * @return a stream of the pairs
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> stream() {
+        return index.entrySet().stream().flatMap(e -> e.getValue().stream()
+                .map(y -> new AbstractMap.SimpleImmutableEntry<>(e.getKey(), y)));
+    }
+
+
+    /**
+     * Adds a pair unless it is already present, creating the partner set of x if needed
+     *
+     * @param x the first half of the pair
+     * @param y the second half of the pair
+     * @return true if the pair was added
+     */
+    private boolean add(X x, Y y) {
+        boolean[] added = new boolean[1];
+        index.compute(x, (k, partners) -> {
+            if (partners == null) {
+                partners = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = partners.add(y);
+            return partners;
+        });
+        if (added[0]) {
+            size.incrementAndGet();
+        }
+        return added[0];
+    }
+
+
+    /**
+     * Removes a pair if it is present, dropping x if it has no partners left
+     *
+     * @param x the first half of the pair
+     * @param y the second half of the pair
+     * @return true if the pair was removed, false if it was not in the index
+     */
+    private boolean delete(X x, Y y) {
+        boolean[] removed = new boolean[1];
+        index.computeIfPresent(x, (k, partners) -> {
+            removed[0] = partners.remove(y);
+            return partners.isEmpty() ? null : partners;
+        });
+        if (removed[0]) {
+            size.decrementAndGet();
+        }
+        return removed[0];
+    }
+
+
+    /**
+     * Checks that the parallel arrays of a batch hold the same number of elements
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    private static void checkLengths(Object[] xs, Object[] ys) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("Arrays of x and y have different lengths: "
+                    + xs.length + " and " + ys.length);
+        }
+    }
+}
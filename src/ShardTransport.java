@@ -0,0 +1,86 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Carries the operations of a ShardedRelation to the nodes holding its shards
+ * <p>
+ * Each shard holds two indexes, both relations of (x, y) pairs: the X index holds every pair whose x belongs to
+ * the shard and the Y index every pair whose y does. ShardedRelation only ever talks to a shard through the
+ * Relation interface of these two indexes, mostly through its batch operations, so a transport to remote nodes
+ * implements them as stubs that send each call over the network. The loopback transport holds every shard in
+ * this process, for testing and for partitioning a relation within one JVM
+ * <p>
+ * ShardedRelation looks pairs up in the X index only by x and in the Y index only by y, so each index need only
+ * be keyed by its own side; the Y index can be the inverse of a relation keyed by y. Indexing both sides of
+ * every index, as a HashRelation would, stores each pair four times where two are enough
+ *
+ * @param <X> Type of the first item in a pair
+ * @param <Y> Type of the second item in a pair
+ * @author Matthew Smith
+ * @see ShardedRelation
+ */
+public interface ShardTransport<X, Y> {
+
+    /**
+     * Get the number of shards
+     *
+     * @return the number of shards, at least 1
+     */
+    int shardCount();
+
+    /**
+     * Get the X index of a shard
+     *
+     * @param shard the number of the shard, from 0 to shardCount - 1
+     * @return the relation holding every pair whose x belongs to the shard
+     */
+    Relation<X, Y> indexX(int shard);
+
+    /**
+     * Get the Y index of a shard
+     *
+     * @param shard the number of the shard, from 0 to shardCount - 1
+     * @return the relation holding every pair whose y belongs to the shard
+     */
+    Relation<X, Y> indexY(int shard);
+
+    /**
+     * Returns a transport holding every shard in this process
+     * <p>
+     * Each index is a ShardIndex keyed by its own side, the Y index being the inverse of one keyed by y,
+     * so every pair is stored once by x and once by y. The indexes may be read and written from many threads
+     *
+     * @param shards the number of shards
+     * @param <X>    Type of the first item in a pair
+     * @param <Y>    Type of the second item in a pair
+     * @return the loopback transport
+     * @throws IllegalArgumentException if shards is not positive
+     */
+    static <X, Y> ShardTransport<X, Y> loopback(int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive: " + shards);
+        }
+        final List<Relation<X, Y>> byX = new ArrayList<>(shards);
+        final List<Relation<X, Y>> byY = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            byX.add(new ShardIndex<>());
+            byY.add(new ShardIndex<Y, X>().inverse());
+        }
+        return new ShardTransport<X, Y>() {
+            @Override
+            public int shardCount() {
+                return byX.size();
+            }
+
+            @Override
+            public Relation<X, Y> indexX(int shard) {
+                return byX.get(shard);
+            }
+
+            @Override
+            public Relation<X, Y> indexY(int shard) {
+                return byY.get(shard);
+            }
+        };
+    }
+}
@@ -0,0 +1,707 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A Relation partitioned across a number of shards, which may live on other nodes, so its capacity and
+ * throughput grow with the number of shards
+ * <p>
+ * Every pair is stored twice, like in HashRelation: in the X index of the shard its x hashes to and in the Y index
+ * of the shard its y hashes to. A lookup by x asks only the shard of x and a lookup by y only the shard of y,
+ * so no lookup fans out to every shard. Batch operations are split by shard and sent as one batch per shard.
+ * <p>
+ * The shards are reached through a ShardTransport, which gives the two indexes of each shard as Relations.
+ * The X index is only looked up by x and the Y index only by y, so each may be keyed by its own side alone.
+ * The shard of a key is chosen from the high bits of its hash, since the indexes of a shard pick their buckets
+ * from the low bits; every client of the same shards must use the same hasher and shard count.
+ * <p>
+ * Changes touch two shards and are not atomic across them. A put reaches the Y index before the X index and
+ * a remove leaves the X index first, so any pair visible by x is also visible by y, as in ConcurrentHashRelation.
+ * The relation is as thread safe as the indexes the transport provides
+ *
+ * @param <X> Type of the first item in a pair
+ * @param <Y> Type of the second item in a pair
+ * @author Matthew Smith
+ */
+public class ShardedRelation<X, Y> implements Relation<X, Y> {
+
+    /**
+     * Reaches the indexes of each shard
+     */
+    private final ShardTransport<X, Y> transport;
+
+
+    /**
+     * Number of shards, fixed when the relation is constructed
+     */
+    private final int shards;
+
+
+    /**
+     * Hashes keys to choose their shard
+     */
+    private final KeyHasher hasher;
+
+
+    /**
+     * Constructs a relation over the shards of a transport, choosing shards with the default hasher
+     *
+     * @param transport the transport to the shards
+     */
+    public ShardedRelation(ShardTransport<X, Y> transport) {
+        this(transport, KeyHasher.MIX);
+    }
+
+
+    /**
+     * Constructs a relation over the shards of a transport, choosing shards with a given hasher
+     * <p>
+     * The hasher must give the same hash for a key in every process using the shards,
+     * so KeyHasher.randomized() is only suitable when the shards are all in this process
+     *
+     * @param transport the transport to the shards
+     * @param hasher    the hash function choosing the shard of each key
+     * @throws IllegalArgumentException if the transport has no shards
+     */
+    public ShardedRelation(ShardTransport<X, Y> transport, KeyHasher hasher) {
+        int shards = transport.shardCount();
+        if (shards <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive: " + shards);
+        }
+        this.transport = transport;
+        this.shards = shards;
+        this.hasher = hasher;
+    }
+
+
+    /**
+     * Get the number of shards
+     *
+     * @return the number of shards the pairs are partitioned across
+     */
+    public int shardCount() {
+        return shards;
+    }
+
+
+    /**
+     * Finds the shard a key belongs to, on either side
+     * <p>
+     * Multiplies the hash by the shard count and keeps the high word, which takes the shard from the high bits
+     * of the hash and works for any number of shards
+     *
+     * @param key the key
+     * @return the number of the shard, from 0 to shardCount - 1
+     */
+    public int shardOf(Object key) {
+        return (int) (((hasher.hash(key) & 0xFFFFFFFFL) * shards) >>> 32);
+    }
+
+
+    /**
+     * Requirement 1
+     * Returns true if the relation contains the specified pair (x, y)
+     * <p>
+     * Asks the X index of the shard of x
+     *
+     * @param x the first part of the pair to be matched
+     * @param y the second part of the pair to be matched
+     * @return true if a pair matching (x, y) is found, false otherwise
+     */
+    @Override
+    public boolean contains(X x, Y y) {
+        return transport.indexX(shardOf(x)).contains(x, y);
+    }
+
+
+    /**
+     * Requirement 2
+     * Given x, returns a set containing all values y such that the relation contains (x, y)
+     * <p>
+     * Asks the X index of the shard of x
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a set containing all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Y> getAllMatchingX(X x) {
+        return transport.indexX(shardOf(x)).getAllMatchingX(x);
+    }
+
+
+    /**
+     * Requirement 3
+     * Given y, returns a set containing all values x such that the relation contains (x, y)
+     * <p>
+     * Asks the Y index of the shard of y, so no other shard is involved
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a set containing all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<X> getAllMatchingY(Y y) {
+        return transport.indexY(shardOf(y)).getAllMatchingY(y);
+    }
+
+
+    /**
+     * Looks up a batch of pairs, returning for each pair (xs[i], ys[i]) whether the relation contains it
+     * <p>
+     * The pairs are split by the shard of x and each shard's X index is sent its part in one containsAll call,
+     * so a batch costs one round trip per shard rather than one per pair
+     *
+     * @param xs the first half of each pair to be matched
+     * @param ys the second half of each pair to be matched
+     * @return an array whose element i is true if the relation contains (xs[i], ys[i])
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    @Override
+    public boolean[] containsAll(X[] xs, Y[] ys) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("Arrays of x and y have different lengths: "
+                    + xs.length + " and " + ys.length);
+        }
+        int[] shardOf = new int[xs.length];
+        int[] counts = new int[shards];
+        for (int i = 0; i < xs.length; i++) {
+            shardOf[i] = shardOf(xs[i]);
+            counts[shardOf[i]]++;
+        }
+
+        boolean[] found = new boolean[xs.length];
+        for (int s = 0; s < shards; s++) {
+            if (counts[s] == 0) {
+                continue;
+            }
+            X[] shardXs = Arrays.copyOf(xs, counts[s]);
+            Y[] shardYs = Arrays.copyOf(ys, counts[s]);
+            int n = 0;
+            for (int i = 0; i < xs.length; i++) {
+                if (shardOf[i] == s) {
+                    shardXs[n] = xs[i];
+                    shardYs[n++] = ys[i];
+                }
+            }
+            boolean[] shardFound = transport.indexX(s).containsAll(shardXs, shardYs);
+            n = 0;
+            for (int i = 0; i < xs.length; i++) {
+                if (shardOf[i] == s) {
+                    found[i] = shardFound[n++];
+                }
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * Given a batch of x values, returns for each one the set of all values y such that the relation contains (x, y)
+     * <p>
+     * The values are split by shard and each shard's X index is asked for its part in one call
+     *
+     * @param xs the elements to search for in the first half of a pair
+     * @return a map from each distinct x, in the order given, to the values y matching it, empty if there are none
+     */
+    @Override
+    public Map<X, Set<Y>> getAllMatchingEachX(Collection<? extends X> xs) {
+        List<List<X>> keys = keyBatches();
+        for (X x : xs) {
+            keys.get(shardOf(x)).add(x);
+        }
+        List<Map<X, Set<Y>>> results = new ArrayList<>(shards);
+        for (int s = 0; s < shards; s++) {
+            results.add(keys.get(s).isEmpty()
+                    ? Collections.emptyMap() : transport.indexX(s).getAllMatchingEachX(keys.get(s)));
+        }
+        Map<X, Set<Y>> matches = new LinkedHashMap<>();
+        for (X x : xs) {
+            matches.put(x, results.get(shardOf(x)).get(x));
+        }
+        return matches;
+    }
+
+
+    /**
+     * Given a batch of y values, returns for each one the set of all values x such that the relation contains (x, y)
+     * <p>
+     * The values are split by shard and each shard's Y index is asked for its part in one call
+     *
+     * @param ys the elements to search for in the second half of a pair
+     * @return a map from each distinct y, in the order given, to the values x matching it, empty if there are none
+     */
+    @Override
+    public Map<Y, Set<X>> getAllMatchingEachY(Collection<? extends Y> ys) {
+        List<List<Y>> keys = keyBatches();
+        for (Y y : ys) {
+            keys.get(shardOf(y)).add(y);
+        }
+        List<Map<Y, Set<X>>> results = new ArrayList<>(shards);
+        for (int s = 0; s < shards; s++) {
+            results.add(keys.get(s).isEmpty()
+                    ? Collections.emptyMap() : transport.indexY(s).getAllMatchingEachY(keys.get(s)));
+        }
+        Map<Y, Set<X>> matches = new LinkedHashMap<>();
+        for (Y y : ys) {
+            matches.put(y, results.get(shardOf(y)).get(y));
+        }
+        return matches;
+    }
+
+
+    @Override
+    public Set<Y> viewMatchingX(X x) {
+        return transport.indexX(shardOf(x)).viewMatchingX(x);
+    }
+
+
+    @Override
+    public Set<X> viewMatchingY(Y y) {
+        return transport.indexY(shardOf(y)).viewMatchingY(y);
+    }
+
+
+    @Override
+    public Set<Y> snapshotMatchingX(X x) {
+        return transport.indexX(shardOf(x)).snapshotMatchingX(x);
+    }
+
+
+    @Override
+    public Set<X> snapshotMatchingY(Y y) {
+        return transport.indexY(shardOf(y)).snapshotMatchingY(y);
+    }
+
+
+    @Override
+    public void forEachMatchingX(X x, Consumer<? super Y> action) {
+        transport.indexX(shardOf(x)).forEachMatchingX(x, action);
+    }
+
+
+    @Override
+    public void forEachMatchingY(Y y, Consumer<? super X> action) {
+        transport.indexY(shardOf(y)).forEachMatchingY(y, action);
+    }
+
+
+    @Override
+    public boolean forEachMatchingXWhile(X x, Predicate<? super Y> action) {
+        return transport.indexX(shardOf(x)).forEachMatchingXWhile(x, action);
+    }
+
+
+    @Override
+    public boolean forEachMatchingYWhile(Y y, Predicate<? super X> action) {
+        return transport.indexY(shardOf(y)).forEachMatchingYWhile(y, action);
+    }
+
+
+    @Override
+    public int degreeX(X x) {
+        return transport.indexX(shardOf(x)).degreeX(x);
+    }
+
+
+    @Override
+    public int degreeY(Y y) {
+        return transport.indexY(shardOf(y)).degreeY(y);
+    }
+
+
+    /**
+     * Requirement 4
+     * Empties the relation by clearing both indexes of every shard
+     */
+    @Override
+    public void clear() {
+        for (int s = 0; s < shards; s++) {
+            transport.indexX(s).clear();
+            transport.indexY(s).clear();
+        }
+    }
+
+
+    /**
+     * Requirement 5
+     * Adds a given pair (x, y) to the relation
+     * <p>
+     * Adds the pair to the Y index of the shard of y, then to the X index of the shard of x.
+     * Both are no-ops if the pair is already present
+     *
+     * @param x the first half of the pair to be added
+     * @param y the second half of the pair to be added
+     */
+    @Override
+    public void put(X x, Y y) {
+        transport.indexY(shardOf(y)).put(x, y);
+        transport.indexX(shardOf(x)).put(x, y);
+    }
+
+
+    /**
+     * Requirement 6
+     * Removes a given pair (x, y) from the relation
+     * <p>
+     * Removes the pair from the X index of the shard of x, then from the Y index of the shard of y
+     *
+     * @param x the first half of the pair to be removed
+     * @param y the second half of the pair to be removed
+     * @throws NoSuchElementException when trying to remove an element that isn't in the relation
+     */
+    @Override
+    public void remove(X x, Y y) throws NoSuchElementException {
+        transport.indexX(shardOf(x)).remove(x, y);
+        transport.indexY(shardOf(y)).remove(x, y);
+    }
+
+
+    /**
+     * Adds every pair in a batch to the relation, skipping pairs that are already present
+     * <p>
+     * The batch is split by shard and each shard receives its part as one batch, first for the Y indexes
+     * and then for the X indexes
+     *
+     * @param pairs the pairs to add, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs added, not counting those already in the relation or repeated in the batch
+     */
+    @Override
+    public int putAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        return apply(pairs, true);
+    }
+
+
+    @Override
+    public int putAll(X[] xs, Y[] ys) {
+        return apply(zip(xs, ys), true);
+    }
+
+
+    /**
+     * Removes every pair in a batch from the relation, skipping pairs that are not present
+     * <p>
+     * The batch is split by shard and each shard receives its part as one batch, first for the X indexes
+     * and then for the Y indexes
+     *
+     * @param pairs the pairs to remove, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        return apply(pairs, false);
+    }
+
+
+    @Override
+    public int removeAll(X[] xs, Y[] ys) {
+        return apply(zip(xs, ys), false);
+    }
+
+
+    /**
+     * Requirement 7
+     * Given x, removes all pairs (x, y) from the relation
+     * <p>
+     * Copies the partners of x out of the shard of x and removes them there,
+     * then removes the pairs from the Y indexes in one batch per shard of the partners
+     *
+     * @param x the first part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingX(X x) {
+        Relation<X, Y> index = transport.indexX(shardOf(x));
+        Set<Y> partners = index.snapshotMatchingX(x);
+        int removed = index.removeAllMatchingX(x);
+
+        List<List<Map.Entry<X, Y>>> byY = batches();
+        for (Y y : partners) {
+            byY.get(shardOf(y)).add(new AbstractMap.SimpleImmutableEntry<>(x, y));
+        }
+        send(byY, false, false);
+        return removed;
+    }
+
+
+    /**
+     * Requirement 8
+     * Given y, removes all pairs (x, y) from the relation
+     * <p>
+     * Copies the partners of y out of the shard of y, removes the pairs from the X indexes in one batch per shard
+     * of the partners, then removes y from its own shard
+     *
+     * @param y the second part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public int removeAllMatchingY(Y y) {
+        Relation<X, Y> index = transport.indexY(shardOf(y));
+        Set<X> partners = index.snapshotMatchingY(y);
+
+        List<List<Map.Entry<X, Y>>> byX = batches();
+        for (X x : partners) {
+            byX.get(shardOf(x)).add(new AbstractMap.SimpleImmutableEntry<>(x, y));
+        }
+        int removed = send(byX, true, false);
+        index.removeAllMatchingY(y);
+        return removed;
+    }
+
+
+    /**
+     * Requirement 9
+     * Renders the relations contents as a string in a readable format
+     * <p>
+     * Prints the X index of each shard in turn
+     *
+     * @return a string representation of the relation
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int s = 0; s < shards; s++) {
+            sb.append("\n== Shard ");
+            sb.append(s);
+            sb.append(" ==\n");
+            sb.append(transport.indexX(s));
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Get the number of pairs in the relation
+     * <p>
+     * Asks every shard, since no one shard knows the total
+     * <p>
+     * Complexity:
+     * O(s) for s shards
+     *
+     * @return the number of pairs in the relation
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (int s = 0; s < shards; s++) {
+            size += transport.indexX(s).size();
+        }
+        return size;
+    }
+
+
+    /**
+     * Performs an action on every pair in the relation, in no particular order
+     * <p>
+     * Walks the X index of each shard in turn
+     *
+     * @param action the action to perform on each pair
+     */
+    @Override
+    public void forEachPair(BiConsumer<? super X, ? super Y> action) {
+        for (int s = 0; s < shards; s++) {
+            transport.indexX(s).forEachPair(action);
+        }
+    }
+
+
+    /**
+     * Performs an action on pairs in the relation, in no particular order, until the action returns false
+     * <p>
+     * Walks the X index of each shard in turn, asking no further shards once the action has stopped
+     *
+     * @param action the action to perform on each pair, returning false to stop
+     * @return true if the action was performed on every pair, false if it stopped early
+     */
+    @Override
+    public boolean forEachPairWhile(BiPredicate<? super X, ? super Y> action) {
+        for (int s = 0; s < shards; s++) {
+            if (!transport.indexX(s).forEachPairWhile(action)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Returns a cursor over every pair in the relation, visiting the X index of each shard in turn
+     *
+     * @return a cursor positioned before the first pair
+     */
+    @Override
+    public PairCursor<X, Y> cursor() {
+        return new PairCursor<X, Y>() {
+            /**
+             * The number of the next shard to visit
+             */
+            private int shard;
+
+            /**
+             * The cursor over the shard being visited, or null before the first shard
+             */
+            private PairCursor<X, Y> cursor;
+
+            @Override
+            public boolean advance() {
+                while (cursor == null || !cursor.advance()) {
+                    if (shard == shards) {
+                        return false;
+                    }
+                    cursor = transport.indexX(shard++).cursor();
+                }
+                return true;
+            }
+
+            @Override
+            public X x() {
+                if (cursor == null) {
+                    throw new IllegalStateException("Cursor is not on a pair");
+                }
+                return cursor.x();
+            }
+
+            @Override
+            public Y y() {
+                if (cursor == null) {
+                    throw new IllegalStateException("Cursor is not on a pair");
+                }
+                return cursor.y();
+            }
+        };
+    }
+
+
+    /**
+     * Returns a sequential stream of every pair in the relation, streaming the X index of each shard in turn
+     *
+     * @return a stream of the pairs
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> stream() {
+        return IntStream.range(0, shards).boxed().flatMap(s -> transport.indexX(s).stream());
+    }
+
+
+    /**
+     * Returns a parallel stream of every pair in the relation, in which the shards are streamed in parallel
+     *
+     * @return a parallel stream of the pairs
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> parallelStream() {
+        return stream().parallel();
+    }
+
+
+    /**
+     * Adds or removes a batch of pairs, sending one batch to each index of each shard involved
+     * <p>
+     * Puts go to the Y indexes first and removes to the X indexes first. The indexes of the other side hold
+     * exactly the same pairs, so only the X indexes are counted
+     *
+     * @param pairs the pairs
+     * @param put   true to add the pairs, false to remove them
+     * @return the number of pairs added or removed
+     */
+    private int apply(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs, boolean put) {
+        List<List<Map.Entry<X, Y>>> byX = batches();
+        List<List<Map.Entry<X, Y>>> byY = batches();
+        for (Map.Entry<? extends X, ? extends Y> pair : pairs) {
+            Map.Entry<X, Y> e = new AbstractMap.SimpleImmutableEntry<>(pair.getKey(), pair.getValue());
+            byX.get(shardOf(e.getKey())).add(e);
+            byY.get(shardOf(e.getValue())).add(e);
+        }
+
+        if (put) {
+            send(byY, false, true);
+            return send(byX, true, true);
+        }
+        int removed = send(byX, true, false);
+        send(byY, false, false);
+        return removed;
+    }
+
+
+    /**
+     * Sends one batch of pairs to one index of each shard that has any
+     *
+     * @param batches the pairs for each shard
+     * @param sideX   true to send to the X indexes, false for the Y indexes
+     * @param put     true to add the pairs, false to remove them
+     * @return the total number of pairs the indexes added or removed
+     */
+    private int send(List<List<Map.Entry<X, Y>>> batches, boolean sideX, boolean put) {
+        int changed = 0;
+        for (int s = 0; s < shards; s++) {
+            List<Map.Entry<X, Y>> batch = batches.get(s);
+            if (batch.isEmpty()) {
+                continue;
+            }
+            Relation<X, Y> index = sideX ? transport.indexX(s) : transport.indexY(s);
+            changed += put ? index.putAll(batch) : index.removeAll(batch);
+        }
+        return changed;
+    }
+
+
+    /**
+     * Creates an empty batch for each shard
+     *
+     * @return a list of shardCount empty lists
+     */
+    private List<List<Map.Entry<X, Y>>> batches() {
+        List<List<Map.Entry<X, Y>>> batches = new ArrayList<>(shards);
+        for (int s = 0; s < shards; s++) {
+            batches.add(new ArrayList<>());
+        }
+        return batches;
+    }
+
+
+    /**
+     * Creates an empty batch of keys for each shard
+     *
+     * @param <K> the type of the keys
+     * @return a list of shardCount empty lists
+     */
+    private <K> List<List<K>> keyBatches() {
+        List<List<K>> batches = new ArrayList<>(shards);
+        for (int s = 0; s < shards; s++) {
+            batches.add(new ArrayList<>());
+        }
+        return batches;
+    }
+
+
+    /**
+     * Pairs up parallel arrays of halves as entries
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @return the pairs (xs[i], ys[i])
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    private List<Map.Entry<X, Y>> zip(X[] xs, Y[] ys) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("Arrays of x and y have different lengths: "
+                    + xs.length + " and " + ys.length);
+        }
+        List<Map.Entry<X, Y>> pairs = new ArrayList<>(xs.length);
+        for (int i = 0; i < xs.length; i++) {
+            pairs.add(new AbstractMap.SimpleImmutableEntry<>(xs[i], ys[i]));
+        }
+        return pairs;
+    }
+}
@@ -0,0 +1,139 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedRelationTest {
+
+    @Test
+    void matchesHashRelation() {
+        ShardTransport<Integer, Integer> transport = ShardTransport.loopback(5);
+        ShardedRelation<Integer, Integer> sharded = new ShardedRelation<>(transport);
+        HashRelation<Integer, Integer> expected = new HashRelation<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            int x = random.nextInt(200), y = random.nextInt(200);
+            if (random.nextInt(4) == 0) {
+                assertEquals(expected.removeAll(List.of(entry(x, y))), sharded.removeAll(List.of(entry(x, y))),
+                        "Removed count");
+            } else {
+                sharded.put(x, y);
+                expected.put(x, y);
+            }
+        }
+        assertEquals(expected.size(), sharded.size(), "Size");
+        for (int k = 0; k < 200; k++) {
+            assertEquals(expected.getAllMatchingX(k), sharded.getAllMatchingX(k), "Matching x " + k);
+            assertEquals(expected.getAllMatchingY(k), sharded.getAllMatchingY(k), "Matching y " + k);
+            assertEquals(expected.degreeY(k), sharded.degreeY(k), "Degree of y " + k);
+        }
+        assertEquals(expected.stream().collect(Collectors.toSet()), sharded.stream().collect(Collectors.toSet()),
+                "Stream");
+        assertEquals(expected.size(), sharded.parallelStream().count(), "Parallel stream");
+
+        int total = 0;
+        for (int i = 0; i < transport.shardCount(); i++) {
+            final int s = i;
+            assertTrue(transport.indexX(s).size() > 0, "Shard " + s + " used");
+            assertEquals(transport.indexX(s).size(), transport.indexX(s).stream()
+                    .filter(e -> sharded.shardOf(e.getKey()) == s).count(), "X index holds its own keys");
+            total += transport.indexY(s).size();
+        }
+        assertEquals(expected.size(), total, "Y indexes hold every pair once");
+    }
+
+    @Test
+    void batchLookups() {
+        ShardedRelation<Integer, Integer> sharded = new ShardedRelation<>(ShardTransport.loopback(3));
+        HashRelation<Integer, Integer> expected = new HashRelation<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 1000; i++) {
+            int x = random.nextInt(100), y = random.nextInt(100);
+            sharded.put(x, y);
+            expected.put(x, y);
+        }
+        Integer[] xs = new Integer[500], ys = new Integer[500];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = random.nextInt(120);
+            ys[i] = random.nextInt(120);
+        }
+        assertArrayEquals(expected.containsAll(xs, ys), sharded.containsAll(xs, ys), "containsAll");
+        assertThrows(IllegalArgumentException.class, () -> sharded.containsAll(xs, new Integer[1]), "Lengths differ");
+
+        List<Integer> keys = List.of(xs);
+        assertEquals(expected.getAllMatchingEachX(keys), sharded.getAllMatchingEachX(keys), "getAllMatchingEachX");
+        assertEquals(List.copyOf(expected.getAllMatchingEachY(keys).keySet()),
+                List.copyOf(sharded.getAllMatchingEachY(keys).keySet()), "Keys in the order given");
+        assertEquals(expected.getAllMatchingEachY(keys), sharded.getAllMatchingEachY(keys), "getAllMatchingEachY");
+    }
+
+    @Test
+    void lookupByYAsksOneShard() {
+        ShardTransport<String, String> transport = ShardTransport.loopback(4);
+        ShardedRelation<String, String> r = new ShardedRelation<>(transport);
+        r.putAll(new String[]{"a", "b", "c"}, new String[]{"k", "k", "l"});
+        int shard = r.shardOf("k");
+        for (int s = 0; s < 4; s++) {
+            assertEquals(s == shard ? Set.of("a", "b") : Set.of(), transport.indexY(s).getAllMatchingY("k"),
+                    "Only the shard of k indexes it");
+        }
+        assertEquals(Set.of("a", "b"), r.getAllMatchingY("k"), "Matching y");
+    }
+
+    @Test
+    void bulkRemovals() {
+        ShardedRelation<Integer, Integer> r = new ShardedRelation<>(ShardTransport.loopback(3));
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                r.put(x, y);
+            }
+        }
+        assertEquals(10, r.removeAllMatchingX(4), "Removed row");
+        assertEquals(Set.of(0, 1, 2, 3, 5, 6, 7, 8, 9), r.getAllMatchingY(7), "Row gone from the Y indexes");
+        assertEquals(9, r.removeAllMatchingY(7), "Removed column");
+        assertFalse(r.contains(0, 7), "Column gone from the X indexes");
+        assertEquals(81, r.size(), "Size");
+        assertThrows(NoSuchElementException.class, () -> r.remove(4, 4), "Remove missing pair");
+
+        r.remove(0, 0);
+        assertTrue(r.getAllMatchingY(0).stream().noneMatch(x -> x == 0), "Remove reaches the Y index");
+        r.clear();
+        assertEquals(0, r.size(), "Cleared");
+        assertFalse(r.cursor().advance(), "Empty cursor");
+        assertThrows(IllegalArgumentException.class, () -> ShardTransport.loopback(0), "Shard count positive");
+    }
+
+    @Test
+    void loopbackIndexesOneSideEach() {
+        ShardTransport<Integer, Integer> transport = ShardTransport.loopback(3);
+        ShardedRelation<Integer, Integer> r = new ShardedRelation<>(transport);
+        IntStream.range(0, 10000).parallel().forEach(i -> r.put(i % 97, i % 89));
+        Set<Map.Entry<Integer, Integer>> expected = IntStream.range(0, 10000)
+                .mapToObj(i -> entry(i % 97, i % 89)).collect(Collectors.toSet());
+        assertEquals(expected.size(), r.size(), "Concurrent puts");
+        assertEquals(expected, r.stream().collect(Collectors.toSet()), "Pairs");
+
+        for (int s = 0; s < transport.shardCount(); s++) {
+            assertTrue(transport.indexX(s) instanceof ShardIndex, "X index keyed by x only");
+            assertTrue(transport.indexY(s).inverse() instanceof ShardIndex, "Y index keyed by y only");
+        }
+        Set<Integer> column = expected.stream().filter(e -> e.getValue() == 3).map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+        assertEquals(column, r.getAllMatchingY(3), "Matching y through the inverse");
+        assertEquals(column.size(), r.removeAllMatchingY(3), "Removed a column");
+        assertEquals(expected.size() - column.size(), r.size(), "Size after removing a column");
+        assertTrue(r.getAllMatchingY(3).isEmpty(), "Column gone");
+    }
+
+    private static Map.Entry<Integer, Integer> entry(int x, int y) {
+        return new AbstractMap.SimpleImmutableEntry<>(x, y);
+    }
+}
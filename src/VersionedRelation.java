@@ -0,0 +1,1794 @@
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * A thread safe Relation that can take a consistent, point-in-time snapshot of itself in O(1)
+ * <p>
+ * Pairs are indexed twice, by x and by y, in persistent hash tries: each index maps a key to a row holding the
+ * set of its partners, and each row is itself a trie. Every trie node is 32 wide, branching on 5 bits of a hash,
+ * so a lookup visits O(log32 n) nodes. A snapshot shares every node with the relation rather than copying it.
+ * <p>
+ * Nodes are stamped with the edit token that was current when they were created. The relation may change
+ * a node in place only while it carries the current token; taking a snapshot replaces the token, so every node
+ * the snapshot can reach becomes read-only, and the next write to any part of the trie copies just the path
+ * from the root down to what it changes. Writes between snapshots therefore cost what they would in any hash trie,
+ * and the first write to a path after a snapshot copies at most a few nodes.
+ * <p>
+ * Writes and reads of the live relation are serialised by the relation's monitor. Taking a snapshot holds it
+ * only long enough to read the roots. A snapshot is immutable, so it can be read from any number of threads
+ * without locking and never blocks or is blocked by writers. Versions that no snapshot still references
+ * share nothing the relation needs and are reclaimed by the garbage collector like any other object.
+ * <p>
+ * getAllMatchingX, getAllMatchingY, cursor, stream and toString read from a snapshot, so they copy and iterate
+ * outside the lock and are never affected by concurrent writes
+ *
+ * @param <X> Type of the first item in a pair
+ * @param <Y> Type of the second item in a pair
+ * @author Matthew Smith
+ */
+public class VersionedRelation<X, Y> implements Relation<X, Y> {
+
+    /**
+     * Number of hash bits each level of a trie branches on
+     */
+    private static final int BITS = 5;
+
+
+    /**
+     * Greatest depth of a trie: seven levels of five bits cover a 32 bit hash, and keys whose hashes are equal
+     * share a collision node below them
+     */
+    private static final int MAX_DEPTH = 8;
+
+
+    /**
+     * Hashes keys and partners for both indexes
+     */
+    private final KeyHasher hasher;
+
+
+    /**
+     * Index X: root of the trie mapping each x to the row of all y such that the relation contains (x, y),
+     * or null if the relation is empty
+     */
+    private Node rootX;
+
+
+    /**
+     * Index Y: root of the trie mapping each y to the row of all x such that the relation contains (x, y),
+     * or null if the relation is empty
+     */
+    private Node rootY;
+
+
+    /**
+     * Number of pairs currently stored in the relation
+     */
+    private int size;
+
+
+    /**
+     * Number of changes made to the relation since it was constructed
+     */
+    private long version;
+
+
+    /**
+     * Token of the current edit; only nodes and rows carrying it may be changed in place
+     */
+    private Object edit = new Object();
+
+
+    /**
+     * The snapshot of the current version, or null if none has been taken since the last change
+     */
+    private Snapshot<X, Y> snapshot;
+
+
+    /**
+     * Constructs an empty VersionedRelation hashing keys with the default hasher
+     */
+    public VersionedRelation() {
+        this(KeyHasher.MIX);
+    }
+
+
+    /**
+     * Constructs an empty VersionedRelation
+     *
+     * @param hasher the hasher for keys and partners on both sides
+     */
+    public VersionedRelation(KeyHasher hasher) {
+        this.hasher = hasher;
+    }
+
+
+    /**
+     * Takes a snapshot of the relation as it is now
+     * <p>
+     * The snapshot shares the tries of the relation, so nothing is copied. It is immutable and unaffected by
+     * later changes to the relation, and may be read from any thread without locking.
+     * If the relation has not changed since the last snapshot, that snapshot is returned again
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @return an immutable view of the current version of the relation
+     */
+    public synchronized Snapshot<X, Y> snapshot() {
+        if (snapshot == null) {
+            snapshot = new Snapshot<>(rootX, rootY, size, version, hasher);
+            //every node the snapshot can reach must now be copied before it is changed
+            edit = new Object();
+        }
+        return snapshot;
+    }
+
+
+    /**
+     * Get the version of the relation, the number of changes made to it since it was constructed
+     * <p>
+     * Puts of pairs already present and removes that remove nothing are not changes
+     *
+     * @return the current version
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+
+    /**
+     * Requirement 1
+     * Checks if the relation contains a given pair (x, y)
+     * <p>
+     * Looks up the row of x in the X trie, then y in that row
+     * <p>
+     * Complexity:
+     * O(log n)
+     *
+     * @param x the first half of the pair
+     * @param y the second half of the pair
+     * @return true if the relation contains the pair (x, y), otherwise false
+     */
+    @Override
+    public synchronized boolean contains(X x, Y y) {
+        return containsPair(rootX, hasher, x, y);
+    }
+
+
+    /**
+     * Requirement 2
+     * Given x, returns a set containing all values y such that the relation contains (x, y)
+     * <p>
+     * The row is copied from a snapshot, outside the lock
+     * <p>
+     * Complexity:
+     * O(k log k) where k is the number of pairs matching x
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a set containing all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Y> getAllMatchingX(X x) {
+        return snapshot().getAllMatchingX(x);
+    }
+
+
+    /**
+     * Requirement 3
+     * Given y, returns a set containing all values x such that the relation contains (x, y)
+     * <p>
+     * The row is copied from a snapshot, outside the lock
+     * <p>
+     * Complexity:
+     * O(k log k) where k is the number of pairs matching y
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a set containing all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<X> getAllMatchingY(Y y) {
+        return snapshot().getAllMatchingY(y);
+    }
+
+
+    /**
+     * Given x, returns a live read-only view of all values y such that the relation contains (x, y)
+     * <p>
+     * Each iteration of the view walks the row of x in a snapshot taken when the iteration starts
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return a live, unmodifiable set of all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Y> viewMatchingX(final X x) {
+        return new AbstractSet<Y>() {
+            @Override
+            public boolean contains(Object o) {
+                @SuppressWarnings("unchecked")
+                Y y = (Y) o;
+                return o != null && VersionedRelation.this.contains(x, y);
+            }
+
+            @Override
+            public Iterator<Y> iterator() {
+                return snapshot().viewMatchingX(x).iterator();
+            }
+
+            @Override
+            public int size() {
+                return rowSize(true, x);
+            }
+        };
+    }
+
+
+    /**
+     * Given y, returns a live read-only view of all values x such that the relation contains (x, y)
+     * <p>
+     * Each iteration of the view walks the row of y in a snapshot taken when the iteration starts
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return a live, unmodifiable set of all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<X> viewMatchingY(final Y y) {
+        return new AbstractSet<X>() {
+            @Override
+            public boolean contains(Object o) {
+                @SuppressWarnings("unchecked")
+                X x = (X) o;
+                return o != null && VersionedRelation.this.contains(x, y);
+            }
+
+            @Override
+            public Iterator<X> iterator() {
+                return snapshot().viewMatchingY(y).iterator();
+            }
+
+            @Override
+            public int size() {
+                return rowSize(false, y);
+            }
+        };
+    }
+
+
+    /**
+     * Given x, returns an unsorted copy of all values y such that the relation contains (x, y)
+     * <p>
+     * The row of x in a snapshot never changes, so it is returned as it is rather than copied
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param x the element to search for in the first half of a pair
+     * @return an unmodifiable set of all values y such that the relation contains (x, y)
+     */
+    @Override
+    public Set<Y> snapshotMatchingX(X x) {
+        return snapshot().viewMatchingX(x);
+    }
+
+
+    /**
+     * Given y, returns an unsorted copy of all values x such that the relation contains (x, y)
+     * <p>
+     * The row of y in a snapshot never changes, so it is returned as it is rather than copied
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @param y the element to search for in the second half of a pair
+     * @return an unmodifiable set of all values x such that the relation contains (x, y)
+     */
+    @Override
+    public Set<X> snapshotMatchingY(Y y) {
+        return snapshot().viewMatchingY(y);
+    }
+
+
+    /**
+     * Requirement 4
+     * Empties the relation
+     * <p>
+     * The tries are dropped rather than cleared, so snapshots taken earlier keep their pairs
+     */
+    @Override
+    public synchronized void clear() {
+        if (size > 0) {
+            rootX = null;
+            rootY = null;
+            size = 0;
+            changed();
+        }
+    }
+
+
+    /**
+     * Requirement 5
+     * Adds a given pair (x, y) to the relation
+     * <p>
+     * Checks the row of x for y first. If it is not there, y is added to the row of x and x to the row of y,
+     * creating either row if it is the first pair for that key
+     * <p>
+     * Complexity:
+     * O(log n)
+     *
+     * @param x the first half of the pair to be added
+     * @param y the second half of the pair to be added
+     */
+    @Override
+    public synchronized void put(X x, Y y) {
+        int hx = hasher.hash(x);
+        int hy = hasher.hash(y);
+        Row rowX = (Row) find(rootX, hx, x);
+        if (rowX != null && find(rowX.root, hy, y) != null) {
+            return;
+        }
+        rootX = link(rootX, rowX, x, hx, y, hy);
+        rootY = link(rootY, (Row) find(rootY, hy, y), y, hy, x, hx);
+        size++;
+        changed();
+    }
+
+
+    /**
+     * Adds every pair in a batch to the relation, skipping pairs that are already present
+     * <p>
+     * The whole batch is added under the lock, so a snapshot sees either all of it or none of it
+     *
+     * @param pairs the pairs to add, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs added, not counting those already in the relation or repeated in the batch
+     */
+    @Override
+    public synchronized int putAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        return Relation.super.putAll(pairs);
+    }
+
+
+    /**
+     * Adds the pairs (xs[i], ys[i]) to the relation, skipping pairs that are already present
+     * <p>
+     * The whole batch is added under the lock, so a snapshot sees either all of it or none of it
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @return the number of pairs added, not counting those already in the relation or repeated in the arrays
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    @Override
+    public synchronized int putAll(X[] xs, Y[] ys) {
+        return Relation.super.putAll(xs, ys);
+    }
+
+
+    /**
+     * Removes every pair in a batch from the relation, skipping pairs that are not present
+     * <p>
+     * The whole batch is removed under the lock, so a snapshot sees either all of it or none of it
+     *
+     * @param pairs the pairs to remove, each given as an entry whose key is x and whose value is y
+     * @return the number of pairs removed
+     */
+    @Override
+    public synchronized int removeAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+        return Relation.super.removeAll(pairs);
+    }
+
+
+    /**
+     * Removes the pairs (xs[i], ys[i]) from the relation, skipping pairs that are not present
+     * <p>
+     * The whole batch is removed under the lock, so a snapshot sees either all of it or none of it
+     *
+     * @param xs the first half of each pair
+     * @param ys the second half of each pair
+     * @return the number of pairs removed
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    @Override
+    public synchronized int removeAll(X[] xs, Y[] ys) {
+        return Relation.super.removeAll(xs, ys);
+    }
+
+
+    /**
+     * Requirement 6
+     * Removes a given pair (x, y) from the relation
+     * <p>
+     * Removes y from the row of x and x from the row of y, dropping either row if it becomes empty
+     * <p>
+     * Complexity:
+     * O(log n)
+     *
+     * @param x the first half of the pair to be removed
+     * @param y the second half of the pair to be removed
+     * @throws NoSuchElementException when trying to remove an element that isn't in the relation
+     */
+    @Override
+    public synchronized void remove(X x, Y y) throws NoSuchElementException {
+        int hx = hasher.hash(x);
+        int hy = hasher.hash(y);
+        Row rowX = (Row) find(rootX, hx, x);
+        if (rowX == null || find(rowX.root, hy, y) == null) {
+            throw new NoSuchElementException();
+        }
+        rootX = unlink(rootX, rowX, x, hx, y, hy);
+        rootY = unlink(rootY, (Row) find(rootY, hy, y), y, hy, x, hx);
+        size--;
+        changed();
+    }
+
+
+    /**
+     * Requirement 7
+     * Removes all pairs from the relation whose first half is equal to x
+     * <p>
+     * Removes x from the row of each of its partners, then drops the row of x
+     * <p>
+     * Complexity:
+     * O(k log n) where k is the number of pairs matching x
+     *
+     * @param x the first part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public synchronized int removeAllMatchingX(X x) {
+        int hx = hasher.hash(x);
+        Row rowX = (Row) find(rootX, hx, x);
+        if (rowX == null) {
+            return 0;
+        }
+        Walker partners = new Walker();
+        partners.reset(rowX.root);
+        while (partners.advance()) {
+            Object y = partners.key;
+            int hy = hasher.hash(y);
+            rootY = unlink(rootY, (Row) find(rootY, hy, y), y, hy, x, hx);
+        }
+        rootX = remove(rootX, edit, hx, x);
+        size -= rowX.size;
+        changed();
+        return rowX.size;
+    }
+
+
+    /**
+     * Requirement 8
+     * Removes all pairs from the relation whose second half is equal to y
+     * <p>
+     * Removes y from the row of each of its partners, then drops the row of y
+     * <p>
+     * Complexity:
+     * O(k log n) where k is the number of pairs matching y
+     *
+     * @param y the second part of all pairs to be removed
+     * @return the number of pairs removed
+     */
+    @Override
+    public synchronized int removeAllMatchingY(Y y) {
+        int hy = hasher.hash(y);
+        Row rowY = (Row) find(rootY, hy, y);
+        if (rowY == null) {
+            return 0;
+        }
+        Walker partners = new Walker();
+        partners.reset(rowY.root);
+        while (partners.advance()) {
+            Object x = partners.key;
+            int hx = hasher.hash(x);
+            rootX = unlink(rootX, (Row) find(rootX, hx, x), x, hx, y, hy);
+        }
+        rootY = remove(rootY, edit, hy, y);
+        size -= rowY.size;
+        changed();
+        return rowY.size;
+    }
+
+
+    /**
+     * Requirement 9
+     * Returns a string representation of the relation, in the format of HashRelation
+     * <p>
+     * Complexity:
+     * O(n) (has to traverse every item in the relation)
+     *
+     * @return a string representation of the relation
+     */
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+
+    /**
+     * Requirement 10
+     * Returns the number of pairs in the relation
+     * <p>
+     * Complexity:
+     * O(1)
+     *
+     * @return the number of pairs in the relation
+     */
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns a cursor over every pair in a snapshot of the relation taken now
+     * <p>
+     * The relation may be changed while the cursor is in use; the cursor does not see the changes
+     *
+     * @return a cursor positioned before the first pair
+     */
+    @Override
+    public PairCursor<X, Y> cursor() {
+        return snapshot().cursor();
+    }
+
+
+    /**
+     * Returns a sequential stream of every pair in a snapshot of the relation taken now
+     *
+     * @return a stream of the pairs, each as an entry whose key is x and whose value is y
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> stream() {
+        return snapshot().stream();
+    }
+
+
+    /**
+     * Returns a possibly parallel stream of every pair in a snapshot of the relation taken now
+     *
+     * @return a stream of the pairs, each as an entry whose key is x and whose value is y
+     */
+    @Override
+    public Stream<Map.Entry<X, Y>> parallelStream() {
+        return snapshot().parallelStream();
+    }
+
+
+    /**
+     * Records a change to the relation, dropping the snapshot of the previous version
+     */
+    private void changed() {
+        version++;
+        snapshot = null;
+    }
+
+
+    /**
+     * Get the number of partners of a key in one of the indexes
+     *
+     * @param byX whether to look in index X rather than index Y
+     * @param key the key
+     * @return the size of the row of key, or 0 if it has none
+     */
+    private synchronized int rowSize(boolean byX, Object key) {
+        Row row = (Row) find(byX ? rootX : rootY, hasher.hash(key), key);
+        return row == null ? 0 : row.size;
+    }
+
+
+    /**
+     * Adds a partner to the row of a key in one of the indexes, copying the row if it is shared with a snapshot
+     *
+     * @param root        the root of the index
+     * @param row         the row of key, or null if it has none
+     * @param key         the key
+     * @param hash        the hash of key
+     * @param partner     the partner to add, which must not already be in the row
+     * @param partnerHash the hash of partner
+     * @return the new root of the index
+     */
+    private Node link(Node root, Row row, Object key, int hash, Object partner, int partnerHash) {
+        Row w = row == null ? new Row(edit, null, 0) : row.editable(edit);
+        w.root = put(w.root, edit, partnerHash, partner, partner, hasher);
+        w.size++;
+        return w == row ? root : put(root, edit, hash, key, w, hasher);
+    }
+
+
+    /**
+     * Removes a partner from the row of a key in one of the indexes, copying the row if it is shared with a
+     * snapshot and dropping it if it becomes empty
+     *
+     * @param root        the root of the index
+     * @param row         the row of key
+     * @param key         the key
+     * @param hash        the hash of key
+     * @param partner     the partner to remove, which must be in the row
+     * @param partnerHash the hash of partner
+     * @return the new root of the index, or null if it is empty
+     */
+    private Node unlink(Node root, Row row, Object key, int hash, Object partner, int partnerHash) {
+        if (row.size == 1) {
+            return remove(root, edit, hash, key);
+        }
+        Row w = row.editable(edit);
+        w.root = remove(w.root, edit, partnerHash, partner);
+        w.size--;
+        return w == row ? root : put(root, edit, hash, key, w, hasher);
+    }
+
+
+    /**
+     * Checks if an index holds a key with a given partner
+     *
+     * @param root    the root of the index
+     * @param hasher  the hasher of the index
+     * @param key     the key
+     * @param partner the partner
+     * @return true if partner is in the row of key, otherwise false
+     */
+    private static boolean containsPair(Node root, KeyHasher hasher, Object key, Object partner) {
+        Row row = (Row) find(root, hasher.hash(key), key);
+        return row != null && find(row.root, hasher.hash(partner), partner) != null;
+    }
+
+
+    /**
+     * Finds the value of a key in a trie
+     *
+     * @param root the root of the trie, or null if it is empty
+     * @param hash the hash of key
+     * @param key  the key
+     * @return the value of key, or null if the trie does not hold it
+     */
+    private static Object find(Node root, int hash, Object key) {
+        return root == null ? null : root.find(0, hash, key);
+    }
+
+
+    /**
+     * Sets the value of a key in a trie
+     *
+     * @param root   the root of the trie, or null if it is empty
+     * @param edit   the current edit token
+     * @param hash   the hash of key
+     * @param key    the key
+     * @param value  the value
+     * @param hasher the hasher of the trie
+     * @return the new root of the trie
+     */
+    private static Node put(Node root, Object edit, int hash, Object key, Object value, KeyHasher hasher) {
+        if (root == null) {
+            root = new BitmapNode(edit, 0, new Object[2]);
+        }
+        return root.put(edit, 0, hash, key, value, hasher);
+    }
+
+
+    /**
+     * Removes a key from a trie
+     *
+     * @param root the root of the trie
+     * @param edit the current edit token
+     * @param hash the hash of key
+     * @param key  the key, which must be in the trie
+     * @return the new root of the trie, or null if it is empty
+     */
+    private static Node remove(Node root, Object edit, int hash, Object key) {
+        return root.remove(edit, 0, hash, key);
+    }
+
+
+    /**
+     * Copies the partners in a row into a sorted set
+     *
+     * @param row the row, or null for none
+     * @param <V> Type of the partners
+     * @return a new set holding the partners
+     */
+    private static <V> Set<V> sortedCopy(Row row) {
+        Set<V> set = new TreeSet<>();
+        if (row != null) {
+            Walker partners = new Walker();
+            partners.reset(row.root);
+            while (partners.advance()) {
+                set.add(cast(partners.key));
+            }
+        }
+        return set;
+    }
+
+
+    /**
+     * Unchecked cast of a stored key or partner back to its type
+     *
+     * @param o   the object to cast
+     * @param <T> the type to cast to
+     * @return o as a T
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T cast(Object o) {
+        return (T) o;
+    }
+
+
+    /**
+     * An immutable, point-in-time view of a VersionedRelation, returned by snapshot()
+     * <p>
+     * A snapshot shares its tries with the relation and with other snapshots. Nothing it can reach is ever
+     * changed, so it is safe to share between threads without synchronisation, and every read is lock free.
+     * Every method that would modify it throws an UnsupportedOperationException
+     *
+     * @param <X> Type of the first item in a pair
+     * @param <Y> Type of the second item in a pair
+     */
+    public static final class Snapshot<X, Y> implements Relation<X, Y> {
+
+        /**
+         * Root of the trie mapping each x to its row, or null if the snapshot is empty
+         */
+        private final Node rootX;
+
+
+        /**
+         * Root of the trie mapping each y to its row, or null if the snapshot is empty
+         */
+        private final Node rootY;
+
+
+        /**
+         * Number of pairs in the snapshot
+         */
+        private final int size;
+
+
+        /**
+         * Version of the relation the snapshot was taken at
+         */
+        private final long version;
+
+
+        /**
+         * Hashes keys and partners for both indexes
+         */
+        private final KeyHasher hasher;
+
+
+        /**
+         * Constructs a snapshot of the given tries
+         *
+         * @param rootX   the root of the X trie
+         * @param rootY   the root of the Y trie
+         * @param size    the number of pairs
+         * @param version the version of the relation
+         * @param hasher  the hasher of the tries
+         */
+        private Snapshot(Node rootX, Node rootY, int size, long version, KeyHasher hasher) {
+            this.rootX = rootX;
+            this.rootY = rootY;
+            this.size = size;
+            this.version = version;
+            this.hasher = hasher;
+        }
+
+
+        /**
+         * Get the version of the relation the snapshot was taken at
+         *
+         * @return the version
+         */
+        public long version() {
+            return version;
+        }
+
+
+        /**
+         * Requirement 1
+         * Checks if the snapshot contains a given pair (x, y)
+         * <p>
+         * Complexity:
+         * O(log n)
+         *
+         * @param x the first half of the pair
+         * @param y the second half of the pair
+         * @return true if the snapshot contains the pair (x, y), otherwise false
+         */
+        @Override
+        public boolean contains(X x, Y y) {
+            return containsPair(rootX, hasher, x, y);
+        }
+
+
+        /**
+         * Requirement 2
+         * Given x, returns a set containing all values y such that the snapshot contains (x, y)
+         * <p>
+         * Complexity:
+         * O(k log k) where k is the number of pairs matching x
+         *
+         * @param x the element to search for in the first half of a pair
+         * @return a set containing all values y such that the snapshot contains (x, y)
+         */
+        @Override
+        public Set<Y> getAllMatchingX(X x) {
+            return sortedCopy((Row) find(rootX, hasher.hash(x), x));
+        }
+
+
+        /**
+         * Requirement 3
+         * Given y, returns a set containing all values x such that the snapshot contains (x, y)
+         * <p>
+         * Complexity:
+         * O(k log k) where k is the number of pairs matching y
+         *
+         * @param y the element to search for in the second half of a pair
+         * @return a set containing all values x such that the snapshot contains (x, y)
+         */
+        @Override
+        public Set<X> getAllMatchingY(Y y) {
+            return sortedCopy((Row) find(rootY, hasher.hash(y), y));
+        }
+
+
+        /**
+         * Given x, returns a read-only view of the row of x, which never changes
+         *
+         * @param x the element to search for in the first half of a pair
+         * @return an unmodifiable set of all values y such that the snapshot contains (x, y)
+         */
+        @Override
+        public Set<Y> viewMatchingX(X x) {
+            return RowView.of((Row) find(rootX, hasher.hash(x), x), hasher);
+        }
+
+
+        /**
+         * Given y, returns a read-only view of the row of y, which never changes
+         *
+         * @param y the element to search for in the second half of a pair
+         * @return an unmodifiable set of all values x such that the snapshot contains (x, y)
+         */
+        @Override
+        public Set<X> viewMatchingY(Y y) {
+            return RowView.of((Row) find(rootY, hasher.hash(y), y), hasher);
+        }
+
+
+        /**
+         * Given x, returns the row of x, which never changes and so needs no copying
+         *
+         * @param x the element to search for in the first half of a pair
+         * @return an unmodifiable set of all values y such that the snapshot contains (x, y)
+         */
+        @Override
+        public Set<Y> snapshotMatchingX(X x) {
+            return viewMatchingX(x);
+        }
+
+
+        /**
+         * Given y, returns the row of y, which never changes and so needs no copying
+         *
+         * @param y the element to search for in the second half of a pair
+         * @return an unmodifiable set of all values x such that the snapshot contains (x, y)
+         */
+        @Override
+        public Set<X> snapshotMatchingY(Y y) {
+            return viewMatchingY(y);
+        }
+
+
+        /**
+         * Requirement 4
+         * Not supported: a snapshot is immutable
+         *
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public void clear() {
+            throw immutable();
+        }
+
+
+        /**
+         * Requirement 5
+         * Not supported: a snapshot is immutable
+         *
+         * @param x the first half of the pair
+         * @param y the second half of the pair
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public void put(X x, Y y) {
+            throw immutable();
+        }
+
+
+        /**
+         * Requirement 6
+         * Not supported: a snapshot is immutable
+         *
+         * @param x the first half of the pair
+         * @param y the second half of the pair
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public void remove(X x, Y y) {
+            throw immutable();
+        }
+
+
+        /**
+         * Requirement 7
+         * Not supported: a snapshot is immutable
+         *
+         * @param x the first part of all pairs to be removed
+         * @return never returns
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public int removeAllMatchingX(X x) {
+            throw immutable();
+        }
+
+
+        /**
+         * Requirement 8
+         * Not supported: a snapshot is immutable
+         *
+         * @param y the second part of all pairs to be removed
+         * @return never returns
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public int removeAllMatchingY(Y y) {
+            throw immutable();
+        }
+
+
+        /**
+         * Not supported: a snapshot is immutable
+         *
+         * @param pairs the pairs to add
+         * @return never returns
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public int putAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+            throw immutable();
+        }
+
+
+        /**
+         * Not supported: a snapshot is immutable
+         *
+         * @param xs the first half of each pair
+         * @param ys the second half of each pair
+         * @return never returns
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public int putAll(X[] xs, Y[] ys) {
+            throw immutable();
+        }
+
+
+        /**
+         * Not supported: a snapshot is immutable
+         *
+         * @param pairs the pairs to remove
+         * @return never returns
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public int removeAll(Iterable<? extends Map.Entry<? extends X, ? extends Y>> pairs) {
+            throw immutable();
+        }
+
+
+        /**
+         * Not supported: a snapshot is immutable
+         *
+         * @param xs the first half of each pair
+         * @param ys the second half of each pair
+         * @return never returns
+         * @throws UnsupportedOperationException always
+         */
+        @Override
+        public int removeAll(X[] xs, Y[] ys) {
+            throw immutable();
+        }
+
+
+        /**
+         * Requirement 9
+         * Returns a string representation of the snapshot, in the format of HashRelation
+         * <p>
+         * Complexity:
+         * O(n) (has to traverse every item in the snapshot)
+         *
+         * @return a string representation of the snapshot
+         */
+        @Override
+        public String toString() {
+            HashRelation<X, Y> copy = new HashRelation<>();
+            PairCursor<X, Y> cursor = cursor();
+            while (cursor.advance()) {
+                copy.put(cursor.x(), cursor.y());
+            }
+            return copy.toString();
+        }
+
+
+        /**
+         * Requirement 10
+         * Returns the number of pairs in the snapshot
+         * <p>
+         * Complexity:
+         * O(1)
+         *
+         * @return the number of pairs in the snapshot
+         */
+        @Override
+        public int size() {
+            return size;
+        }
+
+
+        /**
+         * Returns a cursor over every pair in the snapshot, walking the rows of the X trie
+         * <p>
+         * The snapshot is immutable, so any number of cursors may be used at once from any threads
+         *
+         * @return a cursor positioned before the first pair
+         */
+        @Override
+        public PairCursor<X, Y> cursor() {
+            return new PairCursor<X, Y>() {
+                /**
+                 * Walks the keys of the X trie
+                 */
+                private final Walker keys = new Walker();
+
+                /**
+                 * Walks the row of the current key
+                 */
+                private final Walker partners = new Walker();
+
+                /**
+                 * Whether the cursor is on a pair
+                 */
+                private boolean on;
+
+                {
+                    keys.reset(rootX);
+                }
+
+                @Override
+                public boolean advance() {
+                    while (!partners.advance()) {
+                        if (!keys.advance()) {
+                            on = false;
+                            return false;
+                        }
+                        partners.reset(((Row) keys.value).root);
+                    }
+                    on = true;
+                    return true;
+                }
+
+                @Override
+                public X x() {
+                    check();
+                    return cast(keys.key);
+                }
+
+                @Override
+                public Y y() {
+                    check();
+                    return cast(partners.key);
+                }
+
+                /**
+                 * Checks that the cursor is on a pair
+                 */
+                private void check() {
+                    if (!on) {
+                        throw new IllegalStateException("Cursor is not on a pair");
+                    }
+                }
+            };
+        }
+
+
+        /**
+         * Creates the exception thrown by every method that would modify a snapshot
+         *
+         * @return the exception
+         */
+        private static UnsupportedOperationException immutable() {
+            return new UnsupportedOperationException("Relation snapshot is immutable");
+        }
+    }
+
+
+    /**
+     * Static nested class for the set of partners of one key: a trie whose keys are the partners
+     * <p>
+     * Like a node, a row may be changed in place only while it carries the current edit token
+     */
+    private static final class Row {
+
+        /**
+         * The edit token the row was created under
+         */
+        private final Object edit;
+
+
+        /**
+         * Root of the trie of partners, each mapped to itself
+         */
+        private Node root;
+
+
+        /**
+         * Number of partners in the row
+         */
+        private int size;
+
+
+        /**
+         * Constructs a row
+         *
+         * @param edit the current edit token
+         * @param root the root of the trie of partners
+         * @param size the number of partners
+         */
+        private Row(Object edit, Node root, int size) {
+            this.edit = edit;
+            this.root = root;
+            this.size = size;
+        }
+
+
+        /**
+         * Returns a row that may be changed under an edit token: this row if it carries the token,
+         * otherwise a copy sharing its trie
+         *
+         * @param edit the current edit token
+         * @return a row owned by the edit
+         */
+        private Row editable(Object edit) {
+            return this.edit == edit ? this : new Row(edit, root, size);
+        }
+    }
+
+
+    /**
+     * Static nested class for the read-only view of a row of a snapshot
+     *
+     * @param <V> Type of the partners in the row
+     */
+    private static final class RowView<V> extends AbstractSet<V> {
+
+        /**
+         * The row, which is never changed once it is reachable from a snapshot
+         */
+        private final Row row;
+
+
+        /**
+         * Hashes the partners of the row
+         */
+        private final KeyHasher hasher;
+
+
+        /**
+         * Constructs a view of a row
+         *
+         * @param row    the row
+         * @param hasher the hasher of the row
+         */
+        private RowView(Row row, KeyHasher hasher) {
+            this.row = row;
+            this.hasher = hasher;
+        }
+
+
+        /**
+         * Returns a view of a row, or the empty set if there is no row
+         *
+         * @param row    the row, or null
+         * @param hasher the hasher of the row
+         * @param <V>    Type of the partners in the row
+         * @return a read-only set of the partners in the row
+         */
+        private static <V> Set<V> of(Row row, KeyHasher hasher) {
+            return row == null ? Collections.<V>emptySet() : new RowView<>(row, hasher);
+        }
+
+
+        @Override
+        public boolean contains(Object o) {
+            return o != null && find(row.root, hasher.hash(o), o) != null;
+        }
+
+
+        @Override
+        public int size() {
+            return row.size;
+        }
+
+
+        @Override
+        public Iterator<V> iterator() {
+            final Walker partners = new Walker();
+            partners.reset(row.root);
+            return new Iterator<V>() {
+                /**
+                 * Whether partners is on a partner not yet returned
+                 */
+                private boolean ready = partners.advance();
+
+                @Override
+                public boolean hasNext() {
+                    return ready;
+                }
+
+                @Override
+                public V next() {
+                    if (!ready) {
+                        throw new NoSuchElementException();
+                    }
+                    V v = cast(partners.key);
+                    ready = partners.advance();
+                    return v;
+                }
+            };
+        }
+    }
+
+
+    /**
+     * Static nested class for a node of a hash trie
+     * <p>
+     * A node holds its entries in one array as key, value, key, value, ..., where a null key means the value is
+     * a child node. A node may be changed in place only by a write carrying the edit token it was created under;
+     * any other write copies it first
+     */
+    private abstract static class Node {
+
+        /**
+         * The edit token the node was created under
+         */
+        final Object edit;
+
+
+        /**
+         * Constructs a node
+         *
+         * @param edit the current edit token
+         */
+        Node(Object edit) {
+            this.edit = edit;
+        }
+
+
+        /**
+         * Finds the value of a key below this node
+         *
+         * @param shift the number of hash bits consumed by the levels above
+         * @param hash  the hash of key
+         * @param key   the key
+         * @return the value of key, or null if it is not below this node
+         */
+        abstract Object find(int shift, int hash, Object key);
+
+
+        /**
+         * Sets the value of a key below this node
+         *
+         * @param edit   the current edit token
+         * @param shift  the number of hash bits consumed by the levels above
+         * @param hash   the hash of key
+         * @param key    the key
+         * @param value  the value
+         * @param hasher the hasher of the trie, used to rehash a key that has to move down a level
+         * @return this node if it was changed in place or not at all, otherwise the copy that replaces it
+         */
+        abstract Node put(Object edit, int shift, int hash, Object key, Object value, KeyHasher hasher);
+
+
+        /**
+         * Removes a key from below this node
+         *
+         * @param edit  the current edit token
+         * @param shift the number of hash bits consumed by the levels above
+         * @param hash  the hash of key
+         * @param key   the key
+         * @return this node if it was changed in place or not at all, the copy that replaces it,
+         * or null if it is left empty
+         */
+        abstract Node remove(Object edit, int shift, int hash, Object key);
+
+
+        /**
+         * Get the array of entries of the node
+         *
+         * @return the entries, as key, value pairs
+         */
+        abstract Object[] entries();
+
+
+        /**
+         * Get the number of slots of the array of entries in use
+         *
+         * @return twice the number of entries
+         */
+        abstract int entriesLength();
+    }
+
+
+    /**
+     * Static nested class for a branch of a trie, holding up to 32 entries selected by 5 bits of the hash
+     * <p>
+     * The bitmap has a bit set for each of the 32 branches that is present, and the entries are stored
+     * in order of branch with no gaps. A node being edited may keep spare slots at the end of its array
+     */
+    private static final class BitmapNode extends Node {
+
+        /**
+         * Bit b is set if branch b is present
+         */
+        private int bitmap;
+
+
+        /**
+         * The entries of the present branches, as key, value pairs
+         */
+        private Object[] array;
+
+
+        /**
+         * Constructs a branch node
+         *
+         * @param edit   the current edit token
+         * @param bitmap the present branches
+         * @param array  their entries
+         */
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit);
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int i = slot(bit);
+            Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).find(shift + BITS, hash, key);
+            }
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, KeyHasher hasher) {
+            int bit = bit(hash, shift);
+            int i = slot(bit);
+            if ((bitmap & bit) != 0) {
+                Object k = array[i];
+                Object v = array[i + 1];
+                if (k == null) {
+                    Node child = ((Node) v).put(edit, shift + BITS, hash, key, value, hasher);
+                    return child == v ? this : set(edit, i + 1, child);
+                }
+                if (key.equals(k)) {
+                    return value == v ? this : set(edit, i + 1, value);
+                }
+                //two keys on one branch: push both down a level
+                Node child = pair(edit, shift + BITS, k, v, hasher.hash(k), key, value, hash, hasher);
+                BitmapNode e = editable(edit);
+                e.array[i] = null;
+                e.array[i + 1] = child;
+                return e;
+            }
+
+            int n = 2 * Integer.bitCount(bitmap);
+            BitmapNode e;
+            if (this.edit == edit && array.length >= n + 2) {
+                e = this;
+                System.arraycopy(array, i, array, i + 2, n - i);
+            } else {
+                //leave room for one more entry, as a node being edited is likely to grow again
+                Object[] grown = new Object[Math.min(n + 4, 64)];
+                System.arraycopy(array, 0, grown, 0, i);
+                System.arraycopy(array, i, grown, i + 2, n - i);
+                e = this.edit == edit ? this : new BitmapNode(edit, bitmap, null);
+                e.array = grown;
+            }
+            e.array[i] = key;
+            e.array[i + 1] = value;
+            e.bitmap |= bit;
+            return e;
+        }
+
+
+        @Override
+        Node remove(Object edit, int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = slot(bit);
+            Object k = array[i];
+            if (k == null) {
+                Node child = (Node) array[i + 1];
+                Node n = child.remove(edit, shift + BITS, hash, key);
+                if (n == child) {
+                    return this;
+                }
+                if (n != null) {
+                    return set(edit, i + 1, n);
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+
+            if (bitmap == bit) {
+                return null;
+            }
+            int n = 2 * Integer.bitCount(bitmap);
+            if (this.edit == edit) {
+                System.arraycopy(array, i + 2, array, i, n - i - 2);
+                array[n - 2] = null;
+                array[n - 1] = null;
+                bitmap ^= bit;
+                return this;
+            }
+            Object[] shrunk = new Object[n - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, n - i - 2);
+            return new BitmapNode(edit, bitmap ^ bit, shrunk);
+        }
+
+
+        @Override
+        Object[] entries() {
+            return array;
+        }
+
+
+        @Override
+        int entriesLength() {
+            return 2 * Integer.bitCount(bitmap);
+        }
+
+
+        /**
+         * Sets one slot of the array, copying the node first if it is shared
+         *
+         * @param edit  the current edit token
+         * @param i     the slot
+         * @param value the new content of the slot
+         * @return the node that was changed
+         */
+        private BitmapNode set(Object edit, int i, Object value) {
+            BitmapNode e = editable(edit);
+            e.array[i] = value;
+            return e;
+        }
+
+
+        /**
+         * Returns a node that may be changed under an edit token: this node if it carries the token,
+         * otherwise a copy
+         *
+         * @param edit the current edit token
+         * @return a node owned by the edit
+         */
+        private BitmapNode editable(Object edit) {
+            if (this.edit == edit) {
+                return this;
+            }
+            return new BitmapNode(edit, bitmap, Arrays.copyOf(array, 2 * Integer.bitCount(bitmap)));
+        }
+
+
+        /**
+         * Finds the slot of the key of a present branch
+         *
+         * @param bit the bit of the branch
+         * @return the index in the array of the key of the branch
+         */
+        private int slot(int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+
+    /**
+     * Static nested class for a leaf holding keys whose hashes are all equal
+     */
+    private static final class CollisionNode extends Node {
+
+        /**
+         * The hash of every key in the node
+         */
+        private final int hash;
+
+
+        /**
+         * Number of keys in the node
+         */
+        private int count;
+
+
+        /**
+         * The entries, as key, value pairs
+         */
+        private Object[] array;
+
+
+        /**
+         * Constructs a collision node
+         *
+         * @param edit  the current edit token
+         * @param hash  the hash of every key
+         * @param count the number of keys
+         * @param array the entries
+         */
+        CollisionNode(Object edit, int hash, int count, Object[] array) {
+            super(edit);
+            this.hash = hash;
+            this.count = count;
+            this.array = array;
+        }
+
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int i = indexOf(hash, key);
+            return i < 0 ? null : array[i + 1];
+        }
+
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, KeyHasher hasher) {
+            if (hash != this.hash) {
+                //a different hash: branch above this node so the keys can be told apart
+                BitmapNode branch = new BitmapNode(edit, bit(this.hash, shift), new Object[]{null, this});
+                return branch.put(edit, shift, hash, key, value, hasher);
+            }
+            int i = indexOf(hash, key);
+            if (i >= 0) {
+                if (array[i + 1] == value) {
+                    return this;
+                }
+                CollisionNode e = editable(edit, 2 * count);
+                e.array[i + 1] = value;
+                return e;
+            }
+            CollisionNode e = editable(edit, 2 * count + 2);
+            e.array[2 * count] = key;
+            e.array[2 * count + 1] = value;
+            e.count++;
+            return e;
+        }
+
+
+        @Override
+        Node remove(Object edit, int shift, int hash, Object key) {
+            int i = indexOf(hash, key);
+            if (i < 0) {
+                return this;
+            }
+            if (count == 1) {
+                return null;
+            }
+            int last = 2 * count - 2;
+            CollisionNode e = editable(edit, 2 * count);
+            //the last entry fills the gap
+            e.array[i] = e.array[last];
+            e.array[i + 1] = e.array[last + 1];
+            e.array[last] = null;
+            e.array[last + 1] = null;
+            e.count--;
+            return e;
+        }
+
+
+        @Override
+        Object[] entries() {
+            return array;
+        }
+
+
+        @Override
+        int entriesLength() {
+            return 2 * count;
+        }
+
+
+        /**
+         * Finds a key in the node
+         *
+         * @param hash the hash of key
+         * @param key  the key
+         * @return the index in the array of the key, or -1 if the node does not hold it
+         */
+        private int indexOf(int hash, Object key) {
+            if (hash == this.hash) {
+                for (int i = 0; i < 2 * count; i += 2) {
+                    if (key.equals(array[i])) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+
+        /**
+         * Returns a node that may be changed under an edit token with room for a given number of slots:
+         * this node if it carries the token and has the room, otherwise a copy
+         *
+         * @param edit   the current edit token
+         * @param length the number of slots needed
+         * @return a node owned by the edit
+         */
+        private CollisionNode editable(Object edit, int length) {
+            if (this.edit == edit) {
+                if (array.length < length) {
+                    array = Arrays.copyOf(array, length);
+                }
+                return this;
+            }
+            return new CollisionNode(edit, hash, count, Arrays.copyOf(array, length));
+        }
+    }
+
+
+    /**
+     * Creates a node holding two entries whose keys share a branch at the level above
+     *
+     * @param edit   the current edit token
+     * @param shift  the number of hash bits consumed by the levels above the new node
+     * @param k1     the first key
+     * @param v1     the value of the first key
+     * @param h1     the hash of the first key
+     * @param k2     the second key
+     * @param v2     the value of the second key
+     * @param h2     the hash of the second key
+     * @param hasher the hasher of the trie
+     * @return a new node holding both entries
+     */
+    private static Node pair(Object edit, int shift, Object k1, Object v1, int h1, Object k2, Object v2, int h2,
+                             KeyHasher hasher) {
+        if (h1 == h2) {
+            return new CollisionNode(edit, h1, 2, new Object[]{k1, v1, k2, v2});
+        }
+        return new BitmapNode(edit, 0, new Object[4])
+                .put(edit, shift, h1, k1, v1, hasher)
+                .put(edit, shift, h2, k2, v2, hasher);
+    }
+
+
+    /**
+     * Finds the bit of the branch a hash takes at one level of a trie
+     *
+     * @param hash  the hash
+     * @param shift the number of hash bits consumed by the levels above
+     * @return a bitmap with only the bit of the branch set
+     */
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+
+    /**
+     * Static nested class that walks every entry of a trie depth first, without allocating per entry
+     */
+    private static final class Walker {
+
+        /**
+         * The arrays of entries of the nodes on the path to the current entry
+         */
+        private final Object[][] arrays = new Object[MAX_DEPTH][];
+
+
+        /**
+         * The slot of the next entry to visit in each node on the path
+         */
+        private final int[] positions = new int[MAX_DEPTH];
+
+
+        /**
+         * The number of slots in use in each node on the path
+         */
+        private final int[] ends = new int[MAX_DEPTH];
+
+
+        /**
+         * Index of the deepest node on the path, or -1 when the walk is over
+         */
+        private int depth = -1;
+
+
+        /**
+         * The key of the current entry
+         */
+        private Object key;
+
+
+        /**
+         * The value of the current entry
+         */
+        private Object value;
+
+
+        /**
+         * Starts a new walk of a trie
+         *
+         * @param root the root of the trie, or null if it is empty
+         */
+        private void reset(Node root) {
+            depth = -1;
+            if (root != null) {
+                push(root);
+            }
+        }
+
+
+        /**
+         * Moves onto the next entry
+         *
+         * @return true if the walker is on an entry, false if every entry has been visited
+         */
+        private boolean advance() {
+            while (depth >= 0) {
+                int p = positions[depth];
+                if (p >= ends[depth]) {
+                    arrays[depth--] = null;
+                    continue;
+                }
+                positions[depth] = p + 2;
+                Object k = arrays[depth][p];
+                Object v = arrays[depth][p + 1];
+                if (k == null) {
+                    push((Node) v);
+                } else {
+                    key = k;
+                    value = v;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+
+        /**
+         * Descends into a node
+         *
+         * @param node the node
+         */
+        private void push(Node node) {
+            depth++;
+            arrays[depth] = node.entries();
+            positions[depth] = 0;
+            ends[depth] = node.entriesLength();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VersionedRelationTest {
+
+    private VersionedRelation<String, String> r;
+    private String[] a = {"j", "j", "c", "c", "c", "p", "n", "k", "k", "k"};
+    private String[] b = {"java", "javascript", "c++", "c#", "c", "python", "node", "java", "node", "c"};
+
+    @BeforeEach
+    void setUp() {
+        r = new VersionedRelation<>();
+        for (int i = 0; i < a.length; i++) {
+            r.put(a[i], b[i]);
+        }
+    }
+
+    @Test
+    void basics() {
+        assertTrue(r.contains("j", "java"), "Contains j, java");
+        assertFalse(r.contains("j", "c"), "Does not contain j, c");
+        assertEquals(a.length, r.size(), "Size");
+        assertEquals(new TreeSet<>(Set.of("c++", "c#", "c")), r.getAllMatchingX("c"), "Matching x");
+        assertEquals(Set.of("c", "k"), r.getAllMatchingY("c"), "Matching y");
+
+        r.put("j", "java");
+        assertEquals(a.length, r.size(), "Duplicate put ignored");
+        r.remove("j", "java");
+        assertFalse(r.contains("j", "java"), "Removed");
+        assertThrows(NoSuchElementException.class, () -> r.remove("j", "java"), "Remove missing pair");
+        assertEquals(3, r.removeAllMatchingX("k"), "Remove all matching x");
+        assertEquals(Set.of("p"), r.getAllMatchingY("python"), "Other rows untouched");
+        assertEquals(1, r.removeAllMatchingY("c"), "Remove all matching y");
+        assertEquals(a.length - 5, r.size(), "Size after removes");
+        r.clear();
+        assertEquals(0, r.size(), "Cleared");
+        assertFalse(r.cursor().advance(), "Nothing left");
+    }
+
+    @Test
+    void snapshots() {
+        VersionedRelation.Snapshot<String, String> before = r.snapshot();
+        assertSame(before, r.snapshot(), "No change, same snapshot");
+        long version = r.version();
+
+        r.put("r", "ruby");
+        r.removeAllMatchingX("c");
+        r.remove("j", "java");
+        assertEquals(version + 3, r.version(), "One version per change");
+        assertNotSame(before, r.snapshot(), "Changed, new snapshot");
+
+        assertEquals(a.length, before.size(), "Snapshot size unchanged");
+        assertTrue(before.contains("c", "c#"), "Snapshot keeps removed pairs");
+        assertTrue(before.contains("j", "java"), "Snapshot keeps removed pair");
+        assertFalse(before.contains("r", "ruby"), "Snapshot misses later puts");
+        assertEquals(Set.of("c", "k"), before.getAllMatchingY("c"), "Snapshot rows unchanged");
+        assertEquals(version, before.version(), "Snapshot version");
+
+        Set<String> row = r.snapshotMatchingX("k");
+        r.put("k", "kotlin");
+        assertEquals(Set.of("java", "node", "c"), row, "Row snapshot unchanged");
+        assertTrue(r.viewMatchingX("k").contains("kotlin"), "View is live");
+        assertEquals(4, r.viewMatchingX("k").size(), "View size is live");
+
+        r.clear();
+        assertEquals(a.length, before.size(), "Clear leaves snapshots alone");
+        assertThrows(UnsupportedOperationException.class, () -> before.put("r", "ruby"));
+        assertThrows(UnsupportedOperationException.class, () -> before.removeAllMatchingX("j"));
+        assertThrows(UnsupportedOperationException.class, before::clear);
+        assertThrows(UnsupportedOperationException.class, () -> before.viewMatchingX("j").add("go"));
+    }
+
+    @Test
+    void matchesHashRelation() {
+        Random random = new Random(11);
+        VersionedRelation<Integer, Integer> v = new VersionedRelation<>();
+        HashRelation<Integer, Integer> h = new HashRelation<>();
+        List<VersionedRelation.Snapshot<Integer, Integer>> snapshots = new ArrayList<>();
+        List<Set<String>> expected = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            int x = random.nextInt(300);
+            int y = random.nextInt(random.nextBoolean() ? 4 : 2000);
+            int op = random.nextInt(10);
+            if (op < 6) {
+                v.put(x, y);
+                h.put(x, y);
+            } else if (op < 8) {
+                if (h.contains(x, y)) {
+                    v.remove(x, y);
+                    h.remove(x, y);
+                }
+            } else if (op == 8) {
+                assertEquals(h.removeAllMatchingX(x), v.removeAllMatchingX(x), "Remove all matching " + x);
+            } else {
+                assertEquals(h.removeAllMatchingY(y), v.removeAllMatchingY(y), "Remove all matching " + y);
+            }
+            if (i % 1000 == 0) {
+                snapshots.add(v.snapshot());
+                expected.add(pairs(h));
+            }
+        }
+        assertEquals(h.size(), v.size(), "Size");
+        assertEquals(pairs(h), pairs(v), "Pairs");
+        for (int y = 0; y < 2000; y++) {
+            assertEquals(h.getAllMatchingY(y), v.getAllMatchingY(y), "Partners of " + y);
+        }
+        for (int i = 0; i < snapshots.size(); i++) {
+            assertEquals(expected.get(i), pairs(snapshots.get(i)), "Snapshot " + i);
+            assertEquals(expected.get(i).size(), snapshots.get(i).size(), "Snapshot size " + i);
+        }
+    }
+
+    @Test
+    void collidingKeys() {
+        VersionedRelation<String, Integer> v = new VersionedRelation<>(key -> key.hashCode() & 3);
+        for (int i = 0; i < 200; i++) {
+            v.put("k" + (i % 40), i);
+        }
+        VersionedRelation.Snapshot<String, Integer> before = v.snapshot();
+        for (int i = 0; i < 200; i += 2) {
+            v.remove("k" + (i % 40), i);
+        }
+        assertEquals(100, v.size(), "Size");
+        assertEquals(200, before.size(), "Snapshot size");
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i % 2 == 1, v.contains("k" + (i % 40), i), "Live " + i);
+            assertTrue(before.contains("k" + (i % 40), i), "Snapshot " + i);
+        }
+        assertEquals(5, before.getAllMatchingX("k3").size(), "Row of a colliding key");
+        assertEquals(Set.of("k1"), v.getAllMatchingY(1), "Y side");
+    }
+
+    @Test
+    void readersDoNotSeeHalfWrites() throws InterruptedException {
+        final VersionedRelation<Integer, Integer> v = new VersionedRelation<>();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            for (int i = 0; i < 200 && failure.get() == null; i++) {
+                VersionedRelation.Snapshot<Integer, Integer> s = v.snapshot();
+                Set<String> seen = new HashSet<>();
+                PairCursor<Integer, Integer> cursor = s.cursor();
+                while (cursor.advance()) {
+                    seen.add(cursor.x() + "=" + cursor.y());
+                    if (!s.viewMatchingY(cursor.y()).contains(cursor.x())) {
+                        failure.set("Pair missing from the Y index");
+                    }
+                }
+                if (seen.size() != s.size()) {
+                    failure.set("Snapshot of size " + s.size() + " has " + seen.size() + " pairs");
+                }
+            }
+        });
+        reader.start();
+        Random random = new Random(2);
+        for (int i = 0; i < 20000; i++) {
+            v.put(random.nextInt(100), random.nextInt(100));
+            if (i % 3 == 0) {
+                v.removeAllMatchingX(random.nextInt(100));
+            }
+        }
+        reader.join();
+        assertNull(failure.get(), "Every snapshot is consistent");
+    }
+
+    @Test
+    void cursorAndStreams() {
+        Set<String> expected = new TreeSet<>();
+        for (int i = 0; i < a.length; i++) {
+            expected.add(a[i] + "=" + b[i]);
+        }
+        Set<String> visited = new TreeSet<>();
+        PairCursor<String, String> cursor = r.cursor();
+        assertThrows(IllegalStateException.class, cursor::x, "Not on a pair yet");
+        r.put("r", "ruby");
+        while (cursor.advance()) {
+            assertTrue(visited.add(cursor.x() + "=" + cursor.y()), "Each pair visited once");
+        }
+        assertEquals(expected, visited, "Cursor walks the version it was created at");
+        expected.add("r=ruby");
+        assertEquals(expected, pairs(r), "Stream pairs");
+        assertTrue(r.toString().contains("(r, ruby)"), "toString in the format of HashRelation");
+    }
+
+    /**
+     * Collects the pairs of a relation as strings
+     *
+     * @param relation the relation
+     * @return a set of "x=y" strings
+     */
+    private static Set<String> pairs(Relation<?, ?> relation) {
+        return relation.parallelStream().map(Object::toString).collect(Collectors.toSet());
+    }
+}